@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * This software is provided as a supplement to the authors' textbooks on digital
+ * image processing published by Springer-Verlag in various languages and editions.
+ * Permission to use and distribute this software is granted under the BSD 2-Clause 
+ * "Simplified" License (see http://opensource.org/licenses/BSD-2-Clause). 
+ * Copyright (c) 2006-2015 Wilhelm Burger, Mark J. Burge. 
+ * All rights reserved. Visit http://www.imagingbook.com for additional details.
+ *  
+ *******************************************************************************/
+
+package imagingbook.lib.filters;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import imagingbook.lib.image.IntegralImage;
+import imagingbook.lib.image.IntegralImage.BorderMode;
+
+/**
+ * Box (mean) filter with a rectangular support region of size 
+ * (2 rx + 1) x (2 ry + 1). With {@code Method.Auto} (default) the filter is
+ * applied by means of integral images, i.e., at constant cost per pixel 
+ * independent of the filter size. Pixels outside the image are taken from 
+ * the nearest border pixel, as in {@link LinearFilter}.
+ */
+public class BoxFilter extends LinearFilter {
+	
+	private final int rx, ry;
+	
+	public BoxFilter(int r) {
+		this(r, r);
+	}
+	
+	public BoxFilter(int rx, int ry) {
+		super(makeKernel1d(rx), makeKernel1d(ry));
+		this.rx = rx;
+		this.ry = ry;
+	}
+	
+	private static float[] makeKernel1d(int r) {
+		if (r < 0)
+			throw new IllegalArgumentException("radius must be non-negative");
+		float[] kernel = new float[r + 1 + r];
+		for (int i = 0; i < kernel.length; i++) {
+			kernel[i] = 1.0f / kernel.length;
+		}
+		return kernel;
+	}
+	
+	@Override
+	public void applyTo(ImageProcessor ip) {
+		if (getMethod() != Method.Auto) {
+			super.applyTo(ip);
+			return;
+		}
+		final int w = ip.getWidth();
+		final int h = ip.getHeight();
+		IntegralImage[] iis = IntegralImage.makeChannels(ip, false);
+		for (int c = 0; c < iis.length; c++) {
+			float[] mean = new float[w * h];
+			iis[c].getBoxStatistics(rx, ry, BorderMode.Replicate, mean, null);
+			ip.setPixels(c, new FloatProcessor(w, h, mean));
+		}
+	}
+
+}
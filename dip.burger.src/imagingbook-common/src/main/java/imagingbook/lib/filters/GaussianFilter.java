@@ -10,14 +10,32 @@
 
 package imagingbook.lib.filters;
 
+/**
+ * Gaussian filter, which is separable and thus implemented with two 
+ * normalized 1D kernels.
+ */
 public class GaussianFilter extends LinearFilter {
 
 	public GaussianFilter(double sigma) {
-		super(makeGaussKernel2d(sigma));
+		this(sigma, sigma);
 	}
 	
 	public GaussianFilter(double sigmaX, double sigmaY) {
-		super(makeGaussKernel2d(sigmaX, sigmaY));
+		super(makeNormalizedKernel1d(sigmaX), makeNormalizedKernel1d(sigmaY));
+	}
+	
+	private static float[] makeNormalizedKernel1d(double sigma) {
+		if ((int) (3.5 * sigma) == 0)
+			return new float[] {1};
+		float[] kernel = makeGaussKernel1d(sigma);
+		double sum = 0;
+		for (float k : kernel) {
+			sum = sum + k;
+		}
+		for (int i = 0; i < kernel.length; i++) {
+			kernel[i] = (float) (kernel[i] / sum);
+		}
+		return kernel;
 	}
 	
 	public static float[] makeGaussKernel1d(double sigma){
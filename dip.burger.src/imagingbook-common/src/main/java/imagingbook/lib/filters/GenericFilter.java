@@ -11,12 +11,35 @@
 package imagingbook.lib.filters;
 
 import ij.IJ;
-import ij.process.ColorProcessor;
 import ij.process.ImageProcessor;
 import imagingbook.lib.image.ImageAccessor;
+import imagingbook.lib.image.OutOfBoundsStrategy;
+import imagingbook.lib.interpolation.InterpolationMethod;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public abstract class GenericFilter {
+
+/**
+ * Common super-class for filters that calculate each result pixel independently
+ * with {@link #filterPixel(ImageAccessor.Scalar, int, int)} or
+ * {@link #filterPixel(ImageAccessor.Rgb, int, int)}.
+ * The image is always read from a copy of the original (with nearest-border 
+ * out-of-bounds handling) and the results are written to the original image (target).
+ * <p>
+ * The image is split into horizontal bands of rows, which are processed in parallel
+ * on a {@link ForkJoinPool} (see {@link #setParallelism(int)}). Each band is 
+ * processed by its own worker instance of the filter, obtained from {@link #makeWorker()}.
+ * The default implementation returns a shallow copy ({@link #clone()}), i.e., all fields of 
+ * primitive type are private to the worker, but arrays and other objects are shared.
+ * Filters which use such objects as scratch data in {@code filterPixel()} must override
+ * {@link #makeWorker()} to give each worker its own instances.
+ * Arrays returned by {@code filterPixel()} are consumed immediately and may be reused
+ * by the same worker.
+ * </p>
+ */
+public abstract class GenericFilter implements Cloneable {
 	
 	// PASS THE IMAGE PROCESSOR of the original image and
 	// set up width/height, accessors etc.
@@ -24,44 +47,147 @@ public abstract class GenericFilter {
 	// Allow source/target to be of different types?
 	// Implement using interfaces (for gray/color)?
 	
+	private int parallelism = 0;	// 0 = use the common pool
+	
 	protected GenericFilter() {
 	}
  	
  	public abstract float   filterPixel(ImageAccessor.Scalar source, int u, int v);
  	public abstract float[] filterPixel(ImageAccessor.Rgb source, int u, int v);
  	
+ 	/**
+ 	 * Sets the number of threads used by {@link #applyTo(ImageProcessor)}.
+ 	 * @param parallelism number of threads (1 = run on the calling thread, 
+ 	 * 0 = use {@link ForkJoinPool#commonPool()}, which is the default)
+ 	 */
+ 	public void setParallelism(int parallelism) {
+ 		if (parallelism < 0)
+ 			throw new IllegalArgumentException("parallelism must be >= 0");
+ 		this.parallelism = parallelism;
+ 	}
+ 	
+ 	public int getParallelism() {
+ 		return parallelism;
+ 	}
+ 	
+ 	/**
+ 	 * Returns a filter instance to be used exclusively by one worker (band of rows).
+ 	 * Override to allocate private scratch data for the worker (see class comment).
+ 	 * @return a worker instance of this filter
+ 	 */
+ 	protected GenericFilter makeWorker() {
+ 		return this.clone();
+ 	}
+ 	
+ 	/**
+ 	 * Called on the original filter with each worker instance after the worker
+ 	 * has finished. Override to collect statistics gathered by the workers.
+ 	 * Calls are never concurrent.
+ 	 * @param worker a worker instance obtained from {@link #makeWorker()}
+ 	 */
+ 	protected void mergeWorker(GenericFilter worker) {
+ 	}
+ 	
+ 	@Override
+ 	protected GenericFilter clone() {
+ 		try {
+ 			return (GenericFilter) super.clone();
+ 		} catch (CloneNotSupportedException e) {
+ 			throw new RuntimeException(e);	// cannot happen
+ 		}
+ 	}
+ 	
  	/* Dispatch work depending on actual (runtime) type of processor.
  	 * This is ugly but we want to avoid generic types (which would
  	 * not be of much help in this case anyway).
  	 */
  	public void applyTo(ImageProcessor ip) {	// check for target == null?
-		final int w = ip.getWidth();
-		final int h = ip.getHeight();
- 		ImageProcessor ipCopy = ip.duplicate();
- 
- 		if (ip instanceof ColorProcessor) {
- 	 		ImageAccessor.Rgb iaOrig = ImageAccessor.Rgb.create(ip, null, null);
- 	 		ImageAccessor.Rgb iaCopy = ImageAccessor.Rgb.create(ipCopy, null, null);
-			for (int v = 0; v < h; v++) {
-				for (int u = 0; u < w; u++) {
- 	            	//int p = (int) filterPixel(iaCopy, u, v);
- 	            	float[] rgb = filterPixel(iaCopy, u, v);
- 	            	iaOrig.setPix(u, v, rgb);
- 	            }
- 	            IJ.showProgress(v, h);
- 	        }
+ 		final int h = ip.getHeight();
+ 		final ImageProcessor ipCopy = ip.duplicate();
+ 		final ImageAccessor source = ImageAccessor.create(ipCopy, OutOfBoundsStrategy.NearestBorder, InterpolationMethod.Bilinear);
+ 		final ImageAccessor target = ImageAccessor.create(ip);
+ 		final BandTask task = new BandTask(source, target, 0, h, new AtomicInteger());
+ 		if (parallelism == 1) {
+ 			task.processBand();
  		}
  		else {
- 			ImageAccessor.Scalar iaOrig = ImageAccessor.Scalar.create(ipCopy, null, null);
- 	 		ImageAccessor.Scalar iaCopy = ImageAccessor.Scalar.create(ipCopy, null, null);
-			for (int v = 0; v < h; v++) {
-				for (int u = 0; u < w; u++) {
-					float p = filterPixel(iaCopy, u, v);
-					iaOrig.setVal(u, v, p);
-				}
-				IJ.showProgress(v, h);
-			}
+ 			ForkJoinPool pool = (parallelism == 0) ? ForkJoinPool.commonPool() : new ForkJoinPool(parallelism);
+ 			try {
+ 				task.minBandSize = Math.max(1, h / (4 * pool.getParallelism()));
+ 				pool.invoke(task);
+ 			}
+ 			finally {
+ 				if (pool != ForkJoinPool.commonPool())
+ 					pool.shutdown();
+ 			}
+ 		}
+ 		IJ.showProgress(1.0);
+ 	}
+ 	
+ 	/**
+ 	 * Filters rows [v0, v1) by recursively splitting them into bands of 
+ 	 * at least {@code minBandSize} rows.
+ 	 */
+ 	private class BandTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		final ImageAccessor source, target;
+ 		final int v0, v1;
+ 		final AtomicInteger rowsDone;
+ 		int minBandSize = Integer.MAX_VALUE;
+ 		
+ 		BandTask(ImageAccessor source, ImageAccessor target, int v0, int v1, AtomicInteger rowsDone) {
+ 			this.source = source;
+ 			this.target = target;
+ 			this.v0 = v0;
+ 			this.v1 = v1;
+ 			this.rowsDone = rowsDone;
  		}
+ 		
+		@Override
+		protected void compute() {
+			if (v1 - v0 <= minBandSize) {
+				processBand();
+			}
+			else {
+				int vm = (v0 + v1) / 2;
+				BandTask t1 = new BandTask(source, target, v0, vm, rowsDone);
+				BandTask t2 = new BandTask(source, target, vm, v1, rowsDone);
+				t1.minBandSize = t2.minBandSize = minBandSize;
+				invokeAll(t1, t2);
+			}
+		}
+		
+		void processBand() {
+			final GenericFilter worker = makeWorker();
+			final int w = source.getProcessor().getWidth();
+			final int h = source.getProcessor().getHeight();
+	 		if (source instanceof ImageAccessor.Rgb) {
+	 			ImageAccessor.Rgb src = (ImageAccessor.Rgb) source;
+	 			ImageAccessor.Rgb tgt = (ImageAccessor.Rgb) target;
+				for (int v = v0; v < v1; v++) {
+					for (int u = 0; u < w; u++) {
+	 	            	float[] rgb = worker.filterPixel(src, u, v);
+	 	            	tgt.setPix(u, v, rgb);
+	 	            }
+	 	            IJ.showProgress(rowsDone.incrementAndGet(), h);
+	 	        }
+	 		}
+	 		else {
+	 			ImageAccessor.Scalar src = (ImageAccessor.Scalar) source;
+	 			ImageAccessor.Scalar tgt = (ImageAccessor.Scalar) target;
+				for (int v = v0; v < v1; v++) {
+					for (int u = 0; u < w; u++) {
+						float p = worker.filterPixel(src, u, v);
+						tgt.setVal(u, v, p);
+					}
+					IJ.showProgress(rowsDone.incrementAndGet(), h);
+				}
+	 		}
+	 		synchronized (GenericFilter.this) {
+	 			mergeWorker(worker);
+	 		}
+		}
  	}
 
 }
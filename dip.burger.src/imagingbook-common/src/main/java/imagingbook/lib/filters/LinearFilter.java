@@ -10,27 +10,120 @@
 
 package imagingbook.lib.filters;
 
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
 import imagingbook.lib.image.ImageAccessor;
+import imagingbook.lib.util.ParallelTasks;
+import imagingbook.lib.util.ParallelTasks.BandOp;
+import imagingbook.pub.dft.Fft2d;
+
+import java.util.concurrent.ExecutorService;
 
 
 /**
  * Generic linear convolution filter implemented
  * by extending the GenericFilter class.
+ * Separable kernels (detected by rank-1 decomposition) are applied
+ * as two 1D passes, large kernels by multiplication in the frequency domain
+ * (see {@link Method}). Pixels outside the image are taken from the nearest 
+ * border pixel in all cases. All methods process the image in bands of rows 
+ * (or columns) in parallel (see {@link #setParallelism(int)}).
  */
 public class LinearFilter extends GenericFilter {
 	
+	/**
+	 * Methods for applying the filter kernel to an image.
+	 * {@code Auto} selects one of the other methods by kernel size
+	 * (see {@link LinearFilter#getEffectiveMethod()}).
+	 */
+	public enum Method {
+		Auto, Direct, Separable, Fft
+	}
+	
+	// Thresholds used by Method.Auto, determined with main() (single thread, 1024 x 1024 image):
+	static int MaxDirectKernelSize = 400;		// max. number of kernel elements for direct 2D convolution
+	// Separable convolution was measured faster than Fft up to kernelWidth + kernelHeight = 1600,
+	// i.e., for any kernel smaller than the image, so Fft is in effect only used for non-separable kernels:
+	static int MaxSeparableKernelSize = 1500;	// max. kernelWidth + kernelHeight for separable convolution
+	
 	private final float[][] kernel2d;
-	private final float[] rgb = { 0, 0, 0 };
+	private final float[] kernelX, kernelY;		// 1D factors of kernel2d (null if not separable)
+	private float[] rgb = { 0, 0, 0 };
 
 	private final int kernelWidth, kernelHeight;	// width/height of the kernel
 	private final int kernelCtrX, kernelCtrY;	// center coordinates of the kernel
 	
+	private Method method = Method.Auto;
+	
 	public LinearFilter(float[][] kernel2d) {
 		this.kernel2d = kernel2d;
 		this.kernelWidth = kernel2d.length;
 		this.kernelHeight = kernel2d[0].length;
 		this.kernelCtrX = kernelWidth / 2;
 		this.kernelCtrY = kernelHeight / 2;
+		float[][] factors = decompose(kernel2d);
+		this.kernelX = (factors != null) ? factors[0] : null;
+		this.kernelY = (factors != null) ? factors[1] : null;
+	}
+	
+	/**
+	 * Creates a filter with the separable kernel H(i,j) = kernelX(i) * kernelY(j).
+	 * @param kernelX horizontal 1D kernel
+	 * @param kernelY vertical 1D kernel
+	 */
+	public LinearFilter(float[] kernelX, float[] kernelY) {
+		this.kernelX = kernelX.clone();
+		this.kernelY = kernelY.clone();
+		this.kernelWidth = kernelX.length;
+		this.kernelHeight = kernelY.length;
+		this.kernelCtrX = kernelWidth / 2;
+		this.kernelCtrY = kernelHeight / 2;
+		this.kernel2d = new float[kernelWidth][kernelHeight];
+		for (int i = 0; i < kernelWidth; i++) {
+			for (int j = 0; j < kernelHeight; j++) {
+				kernel2d[i][j] = kernelX[i] * kernelY[j];
+			}
+		}
+	}
+	
+	public void setMethod(Method method) {
+		if (method == Method.Separable && !isSeparable())
+			throw new IllegalArgumentException("kernel is not separable");
+		this.method = method;
+	}
+	
+	public Method getMethod() {
+		return method;
+	}
+	
+	public boolean isSeparable() {
+		return kernelX != null;
+	}
+	
+	/**
+	 * Returns the method actually used by {@link #applyTo(ImageProcessor)},
+	 * i.e., resolves {@code Method.Auto} depending on the kernel size and separability.
+	 * Separable kernels are always applied with {@code Method.Separable}, unless
+	 * kernel width + height exceeds 1500, non-separable kernels with more than 
+	 * 400 elements with {@code Method.Fft}.
+	 * @return the method used for filtering
+	 */
+	public Method getEffectiveMethod() {
+		if (method != Method.Auto)
+			return method;
+		if (isSeparable()) {
+			return (kernelWidth + kernelHeight <= MaxSeparableKernelSize) ? Method.Separable : Method.Fft;
+		}
+		else {
+			return (kernelWidth * kernelHeight <= MaxDirectKernelSize) ? Method.Direct : Method.Fft;
+		}
+	}
+	
+	@Override
+	protected LinearFilter makeWorker() {
+		LinearFilter worker = (LinearFilter) super.makeWorker();
+		worker.rgb = new float[3];	// private result array
+		return worker;
 	}
 	
 	// --------------------------------------------------------------
@@ -68,8 +161,228 @@ public class LinearFilter extends GenericFilter {
 		rgb[2] = sumB;
 		return rgb;
  	}
+	
+	// --------------------------------------------------------------
+	
+	@Override
+	public void applyTo(ImageProcessor ip) {
+		Method m = getEffectiveMethod();
+		if (m == Method.Direct) {
+			super.applyTo(ip);
+			return;
+		}
+		final int w = ip.getWidth();
+		final int h = ip.getHeight();
+		final int nc = ip.getNChannels();
+		FloatProcessor[] fps = new FloatProcessor[nc];
+		for (int c = 0; c < nc; c++) {
+			fps[c] = ip.toFloat(c, null);
+		}
+		if (m == Method.Separable) {
+			ExecutorService pool = ParallelTasks.makePool(getParallelism());
+			try {
+				for (int c = 0; c < nc; c++) {
+					convolveSeparable(pool, (float[]) fps[c].getPixels(), w, h);
+				}
+			} finally {
+				ParallelTasks.release(pool);
+			}
+		}
+		else {	// Method.Fft: 2 channels are processed at once as real and imaginary parts
+			FftSetup fs = new FftSetup(w, h);
+			for (int c = 0; c < nc; c += 2) {
+				float[] A = (float[]) fps[c].getPixels();
+				float[] B = (c + 1 < nc) ? (float[]) fps[c + 1].getPixels() : null;
+				fs.convolve(A, B);
+			}
+		}
+		for (int c = 0; c < nc; c++) {
+			ip.setPixels(c, fps[c]);
+		}
+	}
+	
+	/**
+	 * Finds 1D kernels hx, hy with H(i,j) = hx(i) * hy(j), if they exist.
+	 * @param H 2D kernel
+	 * @return the array {hx, hy} or null if H is not separable
+	 */
+	private static float[][] decompose(float[][] H) {
+		final int kw = H.length;
+		final int kh = H[0].length;
+		int ip = 0, jp = 0;		// position of the max. absolute kernel element
+		float hmax = 0;
+		for (int i = 0; i < kw; i++) {
+			for (int j = 0; j < kh; j++) {
+				if (Math.abs(H[i][j]) > hmax) {
+					hmax = Math.abs(H[i][j]);
+					ip = i;
+					jp = j;
+				}
+			}
+		}
+		if (hmax == 0)
+			return null;
+		float[] hx = new float[kw];
+		float[] hy = new float[kh];
+		for (int i = 0; i < kw; i++) {
+			hx[i] = H[i][jp];
+		}
+		for (int j = 0; j < kh; j++) {
+			hy[j] = H[ip][j] / H[ip][jp];
+		}
+		final double tolerance = 1e-6 * hmax;
+		for (int i = 0; i < kw; i++) {
+			for (int j = 0; j < kh; j++) {
+				if (Math.abs(H[i][j] - hx[i] * hy[j]) > tolerance)
+					return null;
+			}
+		}
+		return new float[][] {hx, hy};
+	}
+	
+	private static int clamp(int k, int max) {
+		return (k < 0) ? 0 : (k > max) ? max : k;
+	}
+	
+	private void convolveSeparable(ExecutorService pool, final float[] I, final int w, final int h) {
+		// horizontal pass, using a line buffer with replicated border pixels:
+		ParallelTasks.runBands(pool, h, getParallelism(), new BandOp() {
+			public void run(int v0, int v1) {
+				final float[] line = new float[w + kernelWidth - 1];
+				for (int v = v0; v < v1; v++) {
+					final int off = v * w;
+					for (int k = 0; k < line.length; k++) {
+						line[k] = I[off + clamp(k - kernelCtrX, w - 1)];
+					}
+					for (int u = 0; u < w; u++) {
+						float sum = 0;
+						for (int i = 0; i < kernelWidth; i++) {
+							sum = sum + line[u + i] * kernelX[i];
+						}
+						I[off + u] = sum;
+					}
+				}
+			}
+		});
+		// vertical pass, accumulating complete rows (sequential memory access):
+		final float[] T = I.clone();
+		ParallelTasks.runBands(pool, h, getParallelism(), new BandOp() {
+			public void run(int v0, int v1) {
+				for (int v = v0; v < v1; v++) {
+					final int off = v * w;
+					for (int u = 0; u < w; u++) {
+						I[off + u] = 0;
+					}
+					for (int j = 0; j < kernelHeight; j++) {
+						final int offj = clamp(v + j - kernelCtrY, h - 1) * w;
+						final float k = kernelY[j];
+						for (int u = 0; u < w; u++) {
+							I[off + u] = I[off + u] + T[offj + u] * k;
+						}
+					}
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Frequency-domain filtering of images of a fixed size. The image is padded
+	 * (by replicating border pixels) to a power-of-2 size large enough to avoid 
+	 * wrap-around effects, and the spectrum of the kernel is calculated once.
+	 * The row and column passes of the 2D FFT are run in parallel bands.
+	 */
+	private class FftSetup {
+		final int w, h;		// image size
+		final int W, H;		// padded size
+		final Fft2d fft;
+		final double[] kre, kim;	// spectrum of the padded kernel
+		
+		FftSetup(int w, int h) {
+			this.w = w;
+			this.h = h;
+			this.W = Integer.highestOneBit(2 * (w + kernelWidth - 1) - 1);
+			this.H = Integer.highestOneBit(2 * (h + kernelHeight - 1) - 1);
+			this.fft = new Fft2d(W, H, getParallelism());
+			kre = new double[W * H];
+			kim = new double[W * H];
+			for (int i = 0; i < kernelWidth; i++) {
+				for (int j = 0; j < kernelHeight; j++) {
+					kre[j * W + i] = kernel2d[i][j];
+				}
+			}
+			fft.transform(kre, kim, true);
+		}
+		
+		/*
+		 * Filters the real-valued images A and B (optional), passed as 
+		 * real and imaginary parts of a single complex image. 
+		 * The kernel is real, so the results do not interfere.
+		 */
+		void convolve(float[] A, float[] B) {
+			final double[] re = new double[W * H];
+			final double[] im = new double[W * H];
+			for (int y = 0; y < H; y++) {
+				final int offI = clamp(y - kernelCtrY, h - 1) * w;
+				for (int x = 0; x < W; x++) {
+					int i = offI + clamp(x - kernelCtrX, w - 1);
+					re[y * W + x] = A[i];
+					if (B != null)
+						im[y * W + x] = B[i];
+				}
+			}
+			fft.transform(re, im, true);
+			// correlation: multiply by the complex conjugate of the kernel spectrum
+			for (int i = 0; i < re.length; i++) {
+				double a = re[i], b = im[i];
+				re[i] = a * kre[i] + b * kim[i];
+				im[i] = b * kre[i] - a * kim[i];
+			}
+			fft.transform(re, im, false);
+			final double s = Math.sqrt(W * H);	// compensates the scaling of Fft1d
+			for (int v = 0; v < h; v++) {
+				for (int u = 0; u < w; u++) {
+					A[v * w + u] = (float) (s * re[v * W + u]);
+					if (B != null)
+						B[v * w + u] = (float) (s * im[v * W + u]);
+				}
+			}
+		}
+	}
 
 	// --------------------------------------------------------------
+	
+	/**
+	 * Benchmark for the filter methods (used to determine the thresholds
+	 * for {@code Method.Auto}). Prints the running times (ms) for a 
+	 * 1024 x 1024 float image and square kernels of increasing size.
+	 * @param args ignored
+	 */
+	public static void main(String[] args) {
+		FloatProcessor fp = new FloatProcessor(1024, 1024);
+		fp.noise(100);
+		System.out.println("kernel size | direct | separable | fft");
+		for (int r = 1; r <= 64; r = 2 * r) {
+			LinearFilter filter = new GaussianFilter(r / 3.5 + 0.01);
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("%4d x %-4d", 2 * r + 1, 2 * r + 1));
+			for (Method m : new Method[] {Method.Direct, Method.Separable, Method.Fft}) {
+				if (m == Method.Direct && r > 16) {
+					sb.append(" |    -   ");	// too slow
+					continue;
+				}
+				filter.setMethod(m);
+				long best = Long.MAX_VALUE;
+				for (int k = 0; k < 3; k++) {
+					FloatProcessor ip = (FloatProcessor) fp.duplicate();
+					long t0 = System.nanoTime();
+					filter.applyTo(ip);
+					best = Math.min(best, System.nanoTime() - t0);
+				}
+				sb.append(String.format(" | %8.1f", best * 1e-6));
+			}
+			System.out.println(sb.toString());
+		}
+	}
 
 //	@Deprecated	// return a string instead
 //	public void listKernel() {
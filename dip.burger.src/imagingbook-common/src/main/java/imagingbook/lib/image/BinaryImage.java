@@ -0,0 +1,402 @@
+/*******************************************************************************
+ * This software is provided as a supplement to the authors' textbooks on digital
+ * image processing published by Springer-Verlag in various languages and editions.
+ * Permission to use and distribute this software is granted under the BSD 2-Clause 
+ * "Simplified" License (see http://opensource.org/licenses/BSD-2-Clause). 
+ * Copyright (c) 2006-2015 Wilhelm Burger, Mark J. Burge. 
+ * All rights reserved. Visit http://www.imagingbook.com for additional details.
+ *  
+ *******************************************************************************/
+
+package imagingbook.lib.image;
+
+import ij.process.ByteProcessor;
+
+import java.util.Arrays;
+
+/**
+ * Binary image with 64 pixels packed into each {@code long} (1 bit per pixel,
+ * i.e., 1/8 of the memory of a {@link ByteProcessor}). Every image row starts
+ * with a new word, pixel u of a row being bit (u mod 64) of word (u / 64);
+ * unused bits at the end of each row are always zero.
+ * Pixels outside the image are treated as background (0).
+ * Logical operations, shifts and morphological dilation/erosion work on entire
+ * words, i.e., on 64 pixels in parallel.
+ */
+public class BinaryImage {
+
+	private final int width, height;
+	private final int wpr;				// words per row
+	private final long lastMask;		// valid bits of the last word in each row
+	private final long[] bits;
+
+	/**
+	 * Creates a new binary image with all pixels set to 0.
+	 * @param width image width
+	 * @param height image height
+	 */
+	public BinaryImage(int width, int height) {
+		if (width < 1 || height < 1)
+			throw new IllegalArgumentException("image size must be positive");
+		this.width = width;
+		this.height = height;
+		this.wpr = (width + 63) / 64;
+		this.lastMask = (width % 64 == 0) ? -1L : (1L << (width % 64)) - 1;
+		this.bits = new long[wpr * height];
+	}
+
+	/**
+	 * Creates a new binary image from the given {@link ByteProcessor},
+	 * setting all pixels with values &gt; 0.
+	 * @param ip the source image
+	 */
+	public BinaryImage(ByteProcessor ip) {
+		this(ip.getWidth(), ip.getHeight());
+		final byte[] pixels = (byte[]) ip.getPixels();
+		for (int v = 0; v < height; v++) {
+			final int p = v * width;
+			final int r = v * wpr;
+			for (int i = 0; i < wpr; i++) {
+				final int u0 = i * 64;
+				final int n = Math.min(64, width - u0);
+				long word = 0;
+				for (int k = n - 1; k >= 0; k--) {
+					word = (word << 1) | ((pixels[p + u0 + k] != 0) ? 1 : 0);
+				}
+				bits[r + i] = word;
+			}
+		}
+	}
+
+	/**
+	 * @return a new {@link ByteProcessor} with the values 255 (foreground) and 0 (background)
+	 */
+	public ByteProcessor toByteProcessor() {
+		ByteProcessor ip = new ByteProcessor(width, height);
+		copyTo(ip);
+		return ip;
+	}
+
+	/**
+	 * Copies this image into the given {@link ByteProcessor} (of the same size),
+	 * with the values 255 (foreground) and 0 (background).
+	 * @param ip the target image
+	 */
+	public void copyTo(ByteProcessor ip) {
+		checkSize(ip.getWidth(), ip.getHeight());
+		final byte[] pixels = (byte[]) ip.getPixels();
+		for (int v = 0; v < height; v++) {
+			final int p = v * width;
+			final int r = v * wpr;
+			for (int u = 0; u < width; u++) {
+				pixels[p + u] = (byte) ((((bits[r + (u >> 6)] >>> u) & 1) != 0) ? 255 : 0);
+			}
+		}
+	}
+
+	/**
+	 * Sets all pixels of the given image to 0 which are not set in this image
+	 * (the remaining pixels keep their values).
+	 * @param ip an image of the same size
+	 */
+	public void applyMask(ByteProcessor ip) {
+		checkSize(ip.getWidth(), ip.getHeight());
+		final byte[] pixels = (byte[]) ip.getPixels();
+		for (int v = 0; v < height; v++) {
+			final int p = v * width;
+			final int r = v * wpr;
+			for (int i = 0; i < wpr; i++) {
+				long word = ~bits[r + i] & ((i == wpr - 1) ? lastMask : -1L);
+				while (word != 0) {
+					final int k = Long.numberOfTrailingZeros(word);
+					pixels[p + i * 64 + k] = 0;
+					word = word & (word - 1);
+				}
+			}
+		}
+	}
+
+	public BinaryImage duplicate() {
+		BinaryImage bi = new BinaryImage(width, height);
+		System.arraycopy(bits, 0, bi.bits, 0, bits.length);
+		return bi;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public boolean get(int u, int v) {
+		if (u < 0 || u >= width || v < 0 || v >= height)
+			return false;
+		return ((bits[v * wpr + (u >> 6)] >>> u) & 1) != 0;
+	}
+
+	public void set(int u, int v, boolean value) {
+		if (u < 0 || u >= width || v < 0 || v >= height)
+			throw new IllegalArgumentException("position outside image: " + u + "/" + v);
+		final int i = v * wpr + (u >> 6);
+		if (value)
+			bits[i] = bits[i] | (1L << u);
+		else
+			bits[i] = bits[i] & ~(1L << u);
+	}
+
+	/**
+	 * @return the number of foreground pixels
+	 */
+	public int count() {
+		int n = 0;
+		for (long word : bits) {
+			n = n + Long.bitCount(word);
+		}
+		return n;
+	}
+
+	// logical operations ---------------------------------------------------
+
+	public void clear() {
+		Arrays.fill(bits, 0);
+	}
+
+	public void invert() {
+		for (int v = 0; v < height; v++) {
+			final int r = v * wpr;
+			for (int i = 0; i < wpr; i++) {
+				bits[r + i] = ~bits[r + i];
+			}
+			bits[r + wpr - 1] = bits[r + wpr - 1] & lastMask;
+		}
+	}
+
+	public void and(BinaryImage bi) {
+		checkSize(bi.width, bi.height);
+		for (int i = 0; i < bits.length; i++) {
+			bits[i] = bits[i] & bi.bits[i];
+		}
+	}
+
+	public void or(BinaryImage bi) {
+		checkSize(bi.width, bi.height);
+		for (int i = 0; i < bits.length; i++) {
+			bits[i] = bits[i] | bi.bits[i];
+		}
+	}
+
+	/**
+	 * Clears all pixels of this image that are set in the given image.
+	 * @param bi a binary image of the same size
+	 */
+	public void andNot(BinaryImage bi) {
+		checkSize(bi.width, bi.height);
+		for (int i = 0; i < bits.length; i++) {
+			bits[i] = bits[i] & ~bi.bits[i];
+		}
+	}
+
+	/**
+	 * Sets each pixel p of this image if the pixel p - (dx, dy) of the source image is set,
+	 * i.e., combines this image with the translated source image by a logical OR.
+	 * The source image may be of different size.
+	 * @param src the source image (must not be this image)
+	 * @param dx horizontal translation
+	 * @param dy vertical translation
+	 */
+	public void orShifted(BinaryImage src, int dx, int dy) {
+		if (src == this)
+			throw new IllegalArgumentException("source must not be the target image");
+		final int v0 = Math.max(0, dy);
+		final int v1 = Math.min(height, src.height + dy);
+		for (int v = v0; v < v1; v++) {
+			final int r = v * wpr;
+			final int rs = (v - dy) * src.wpr;
+			if (dx == 0 && src.wpr == wpr) {
+				for (int i = 0; i < wpr; i++) {
+					bits[r + i] = bits[r + i] | src.bits[rs + i];
+				}
+			}
+			else {
+				for (int i = 0; i < wpr; i++) {
+					bits[r + i] = bits[r + i] | src.getWord(rs, i * 64 - dx);
+				}
+			}
+			bits[r + wpr - 1] = bits[r + wpr - 1] & lastMask;
+		}
+	}
+
+	// 64 bits of the row starting at rs, starting with pixel s (bits outside the row are 0)
+	private long getWord(int rs, int s) {
+		final int i = s >> 6;	// floor(s / 64)
+		final int k = s & 63;
+		final long lo = (i >= 0 && i < wpr) ? bits[rs + i] : 0;
+		if (k == 0)
+			return lo;
+		final long hi = (i + 1 >= 0 && i + 1 < wpr) ? bits[rs + i + 1] : 0;
+		return (lo >>> k) | (hi << (64 - k));
+	}
+
+	// morphology -----------------------------------------------------------
+
+	/**
+	 * Dilation with the given structuring element (with the hot spot at the center
+	 * of H), i.e., the logical OR of the image translated by each point of H.
+	 * @param H the structuring element
+	 */
+	public void dilate(int[][] H) {
+		final int ic = (H[0].length - 1) / 2;
+		final int jc = (H.length - 1) / 2;
+		BinaryImage src = this.duplicate();
+		this.clear();
+		for (int j = 0; j < H.length; j++) {
+			for (int i = 0; i < H[j].length; i++) {
+				if (H[j][i] > 0)
+					this.orShifted(src, i - ic, j - jc);
+			}
+		}
+	}
+
+	/**
+	 * Erosion with the given structuring element, obtained by dilating
+	 * the background with the reflected structuring element
+	 * (pixels outside the image are treated as foreground).
+	 * @param H the structuring element
+	 */
+	public void erode(int[][] H) {
+		final int N = H.length;
+		final int M = H[0].length;
+		int[][] Hr = new int[N][M];
+		for (int j = 0; j < N; j++) {
+			for (int i = 0; i < M; i++) {
+				Hr[j][i] = H[N - j - 1][M - i - 1];
+			}
+		}
+		invert();
+		dilate(Hr);
+		invert();
+	}
+
+	/**
+	 * Replaces the image by its inner outline, i.e., the foreground pixels
+	 * with at least one 4-connected background neighbor (pixels outside
+	 * the image are treated as foreground).
+	 */
+	public void outline() {
+		BinaryImage E = this.duplicate();
+		E.erode(new int[][] {{0, 1, 0}, {1, 1, 1}, {0, 1, 0}});
+		this.andNot(E);
+	}
+
+	// thinning -------------------------------------------------------------
+
+	/**
+	 * Iterative thinning (as in {@code BinaryMorphologyFilter}), until no more
+	 * pixels are deleted or the given number of iterations is reached.
+	 * @param iMax the maximum number of iterations
+	 * @return the number of iterations performed
+	 */
+	public int thin(int iMax) {
+		long[] D = new long[bits.length];
+		int n;
+		int iter = 0;
+		do {
+			n = thinOnce(D);
+			iter++;
+		} while (n > 0 && iter < iMax);
+		return iter;
+	}
+
+	/**
+	 * Single thinning iteration (consisting of 2 passes).
+	 * @return the number of deleted pixels
+	 */
+	public int thinOnce() {
+		return thinOnce(new long[bits.length]);
+	}
+
+	private int thinOnce(long[] D) {
+		int nd = 0;
+		for (int p = 1; p <= 2; p++) {
+			int n = 0;
+			for (int v = 0; v < height; v++) {
+				final int r = v * wpr;
+				final int ra = r - wpr;		// row above
+				final int rb = r + wpr;		// row below
+				final boolean hasA = v > 0;
+				final boolean hasB = v < height - 1;
+				for (int i = 0; i < wpr; i++) {
+					long word = bits[r + i];
+					long del = 0;
+					if (word != 0) {
+						final long c = word;
+						final long a = hasA ? bits[ra + i] : 0;
+						final long b = hasB ? bits[rb + i] : 0;
+						// neighbors to the left (bit k holds pixel u-1) and to the right (u+1):
+						final long cl = (c << 1) | ((i > 0) ? bits[r + i - 1] >>> 63 : 0);
+						final long cr = (c >>> 1) | ((i < wpr - 1) ? bits[r + i + 1] << 63 : 0);
+						final long al = hasA ? (a << 1) | ((i > 0) ? bits[ra + i - 1] >>> 63 : 0) : 0;
+						final long ar = hasA ? (a >>> 1) | ((i < wpr - 1) ? bits[ra + i + 1] << 63 : 0) : 0;
+						final long bl = hasB ? (b << 1) | ((i > 0) ? bits[rb + i - 1] >>> 63 : 0) : 0;
+						final long br = hasB ? (b >>> 1) | ((i < wpr - 1) ? bits[rb + i + 1] << 63 : 0) : 0;
+						while (word != 0) {
+							final int k = Long.numberOfTrailingZeros(word);
+							final int code =
+									(int) ((cr >>> k) & 1) |			// N0 = (u+1, v)
+									(int) ((ar >>> k) & 1) << 1 |		// N1 = (u+1, v-1)
+									(int) ((a >>> k) & 1) << 2 |		// N2 = (u, v-1)
+									(int) ((al >>> k) & 1) << 3 |		// N3 = (u-1, v-1)
+									(int) ((cl >>> k) & 1) << 4 |		// N4 = (u-1, v)
+									(int) ((bl >>> k) & 1) << 5 |		// N5 = (u-1, v+1)
+									(int) ((b >>> k) & 1) << 6 |		// N6 = (u, v+1)
+									(int) ((br >>> k) & 1) << 7;		// N7 = (u+1, v+1)
+							if ((p & Q[code]) != 0) {
+								del = del | (1L << k);
+								n++;
+							}
+							word = word & (word - 1);
+						}
+					}
+					D[r + i] = del;
+				}
+			}
+			if (n > 0) {
+				for (int i = 0; i < bits.length; i++) {
+					bits[i] = bits[i] & ~D[i];
+				}
+				nd = nd + n;
+			}
+		}
+		return nd;
+	}
+
+	// neighborhood deletion code table (bit 1: delete in pass 1, bit 2: delete in pass 2)
+	private static final byte[] Q = {
+		0, 0, 0, 3, 0, 0, 3, 3, 0, 0, 0, 0, 3, 0, 3, 3,
+		0, 0, 0, 0, 0, 0, 0, 0, 3, 0, 0, 0, 3, 0, 3, 1,
+		0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+		3, 0, 0, 0, 0, 0, 0, 0, 3, 0, 0, 0, 3, 0, 3, 1,
+		0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+		0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+		3, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+		3, 0, 0, 0, 0, 0, 0, 0, 3, 0, 0, 0, 1, 0, 1, 0,
+		0, 3, 0, 3, 0, 0, 0, 3, 0, 0, 0, 0, 0, 0, 0, 3,
+		0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1,
+		0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+		0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+		3, 3, 0, 3, 0, 0, 0, 2, 0, 0, 0, 0, 0, 0, 0, 2,
+		0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+		3, 3, 0, 3, 0, 0, 0, 2, 0, 0, 0, 0, 0, 0, 0, 0,
+		3, 2, 0, 2, 0, 0, 0, 0, 3, 2, 0, 0, 1, 0, 0, 0
+	};
+
+	// ----------------------------------------------------------------------
+
+	private void checkSize(int w, int h) {
+		if (w != width || h != height)
+			throw new IllegalArgumentException("images must be of the same size");
+	}
+
+}
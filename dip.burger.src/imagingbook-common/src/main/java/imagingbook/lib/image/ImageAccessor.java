@@ -18,6 +18,9 @@ import ij.process.ShortProcessor;
 import imagingbook.lib.interpolation.InterpolationMethod;
 import imagingbook.lib.interpolation.PixelInterpolator;
 
+import java.util.Arrays;
+import java.util.Random;
+
 
 /**
  * This class provides unified image access to all 4 types of images available in ImageJ.
@@ -25,6 +28,9 @@ import imagingbook.lib.interpolation.PixelInterpolator;
  * Byte, Short, Float, Rgb: uses a float[] to pass in values using getPix() and setPix().
  * 
  * getVal() and getPix() interpolate for non-integer coordinates.
+ * getRow() and getBlock() copy complete rows or rectangular blocks of pixel values into
+ * caller-provided arrays, applying the out-of-bounds strategy only to the pixels
+ * outside the image.
  * 
  * @author W. Burger
  * @version 2015/12/20
@@ -70,6 +76,20 @@ public abstract class ImageAccessor {
 		return interpolationMethod;
 	}
 	
+	/**
+	 * Maps row index v to a valid image row according to the
+	 * out-of-bounds strategy. All strategies are separable, i.e.,
+	 * the row and column indices can be mapped independently.
+	 * @param v row index (may be outside the image)
+	 * @return a valid row index or -1 if the default value is to be used
+	 */
+	protected int mapRow(int v) {
+		if (v >= 0 && v < height)
+			return v;
+		int i = indexer.getIndex(0, v);
+		return (i < 0) ? -1 : i / width;
+	}
+	
 	// all ImageAccessor's can do this (Gray and Color, get/set complete pixels):
 	public abstract float[] getPix(int u, int v);			// returns pixel value at integer position (u, v)
 	public abstract float[] getPix(double x, double y);		// returns interpolated pixel value at real position (x, y)
@@ -101,7 +121,7 @@ public abstract class ImageAccessor {
 		private Scalar(ImageProcessor ip, OutOfBoundsStrategy obs, InterpolationMethod ipm) {
 			super(ip,  obs, ipm);
 			this.ip = ip;
-			this.interpolator = PixelInterpolator.create(ipm);
+			this.interpolator = PixelInterpolator.create(this.interpolationMethod);
 		}
 		
 		public float getVal(double x, double y) {	// interpolating version
@@ -123,6 +143,55 @@ public abstract class ImageAccessor {
 		public void setPix(int u, int v, float[] pix) {
 			this.setVal(u, v, pix[0]);
 		}
+		
+		/**
+		 * Copies n consecutive pixel values, starting at array index i,
+		 * to dst (all pixels are inside the image).
+		 */
+		protected abstract void copyPixels(int i, float[] dst, int dstPos, int n);
+		
+		/**
+		 * Copies the values of image row v to dst (of length &ge; width).
+		 * @param v row index (may be outside the image)
+		 * @param dst the array receiving the pixel values
+		 */
+		public void getRow(int v, float[] dst) {
+			getBlock(0, v, width, 1, dst);
+		}
+		
+		/**
+		 * Copies the values of the rectangular block at position (u0, v0) 
+		 * and size w x h to dst (in row-major order). The block may extend over the 
+		 * image boundary.
+		 * @param u0 left block position
+		 * @param v0 top block position
+		 * @param w block width
+		 * @param h block height
+		 * @param dst the array receiving the pixel values (of length &ge; w * h)
+		 */
+		public void getBlock(int u0, int v0, int w, int h, float[] dst) {
+			if (dst.length < w * h)
+				throw new IllegalArgumentException("destination array too small");
+			final int uA = Math.min(Math.max(u0, 0), u0 + w);		// [uA, uB) is inside the image
+			final int uB = Math.max(Math.min(u0 + w, width), uA);
+			for (int j = 0; j < h; j++) {
+				final int k = j * w - u0;	// dst index = k + u
+				final int vj = mapRow(v0 + j);
+				if (vj < 0) {
+					Arrays.fill(dst, j * w, (j + 1) * w, pixelDefaultValue);
+					continue;
+				}
+				for (int u = u0; u < uA; u++) {
+					dst[k + u] = getVal(u, vj);
+				}
+				if (uA < uB) {
+					copyPixels(width * vj + uA, dst, k + uA, uB - uA);
+				}
+				for (int u = uB; u < u0 + w; u++) {
+					dst[k + u] = getVal(u, vj);
+				}
+			}
+		}
 	}
 	
 	// ------------------------------------------------------------
@@ -153,6 +222,13 @@ public abstract class ImageAccessor {
 			}
 		}
 		
+		@Override
+		protected void copyPixels(int i, float[] dst, int dstPos, int n) {
+			for (int k = 0; k < n; k++) {
+				dst[dstPos + k] = 0xff & pixels[i + k];
+			}
+		}
+		
 		@Override
 		public void setVal(int u, int v, float valf) {
 			int val = Math.round(valf);
@@ -192,6 +268,13 @@ public abstract class ImageAccessor {
 				return (float) pixels[i];
 		}
 		
+		@Override
+		protected void copyPixels(int i, float[] dst, int dstPos, int n) {
+			for (int k = 0; k < n; k++) {
+				dst[dstPos + k] = pixels[i + k];
+			}
+		}
+		
 		@Override
 		public void setVal(int u, int v, float valf) {
 			int val = Math.round(valf);
@@ -229,6 +312,11 @@ public abstract class ImageAccessor {
 				return pixels[i];
 		}
 		
+		@Override
+		protected void copyPixels(int i, float[] dst, int dstPos, int n) {
+			System.arraycopy(pixels, i, dst, dstPos, n);
+		}
+		
 		@Override
 		public void setVal(int u, int v, float val) {	
 			if (u >= 0 && u < width && v >= 0 && v < height) {
@@ -243,9 +331,8 @@ public abstract class ImageAccessor {
 		private final ColorProcessor ip;
 		private final int[] pixels;
 		private final float[] pixelDefaultValue = { 0, 0, 0 };
-		private final int[] rgb = new int[3];
 		
-		private final ImageAccessor.Byte rAcc, gAcc, bAcc;
+		private ImageAccessor.Byte rAcc, gAcc, bAcc;	// created on demand (for interpolation only)
 		
 		
 		public static ImageAccessor.Rgb create(ImageProcessor ip,  OutOfBoundsStrategy obs, InterpolationMethod ipm) {
@@ -258,9 +345,11 @@ public abstract class ImageAccessor {
 			super(ip, obs, ipm);
 			this.ip = ip;
 			this.pixels = (int[]) this.ip.getPixels();
-			
-			int width  = ip.getWidth();
-			int height = ip.getHeight();
+		}
+		
+		private synchronized void makeChannelAccessors() {
+			if (bAcc != null)
+				return;
 			ByteProcessor rp = new ByteProcessor(width, height);
 			ByteProcessor gp = new ByteProcessor(width, height);
 			ByteProcessor bp = new ByteProcessor(width, height);
@@ -268,9 +357,9 @@ public abstract class ImageAccessor {
 			byte[] gpix = (byte[]) gp.getPixels();
 			byte[] bpix = (byte[]) bp.getPixels();
 			ip.getRGB(rpix, gpix, bpix);	// fill byte arrays
-			rAcc = new ImageAccessor.Byte(rp, obs, ipm);
-			gAcc = new ImageAccessor.Byte(gp, obs, ipm);
-			bAcc = new ImageAccessor.Byte(bp, obs, ipm);
+			rAcc = new ImageAccessor.Byte(rp, outOfBoundsStrategy, interpolationMethod);
+			gAcc = new ImageAccessor.Byte(gp, outOfBoundsStrategy, interpolationMethod);
+			bAcc = new ImageAccessor.Byte(bp, outOfBoundsStrategy, interpolationMethod);
 		}
 		
 		@Override
@@ -296,17 +385,18 @@ public abstract class ImageAccessor {
 		@Override
 		public void setPix(int u, int v, float[] valf) {
 			if (u >= 0 && u < width && v >= 0 && v < height) {
+				int r, g, b;	// local, since setPix() may be called concurrently
 				if (valf.length == 3) {
-					rgb[0] = clamp(Math.round(valf[0]));
-					rgb[1] = clamp(Math.round(valf[1]));
-					rgb[2] = clamp(Math.round(valf[2]));
+					r = clamp(Math.round(valf[0]));
+					g = clamp(Math.round(valf[1]));
+					b = clamp(Math.round(valf[2]));
 				}
 				else {
-					rgb[0] = clamp(Math.round(valf[0]));
-					rgb[1] = rgb[0];
-					rgb[2] = rgb[0];
+					r = clamp(Math.round(valf[0]));
+					g = r;
+					b = r;
 				}
-				int val = ((rgb[0] & 0xff) << 16) | ((rgb[1] & 0xff) << 8) | rgb[2] & 0xff;
+				int val = ((r & 0xff) << 16) | ((g & 0xff) << 8) | b & 0xff;
 				pixels[width * v + u] = val;
 			}
 		}
@@ -314,11 +404,76 @@ public abstract class ImageAccessor {
 		@Override
 		public float[] getPix(double x, double y) {
 //			return interpolator.getInterpolatedValue(new Point2D.Double(x, y));
+			makeChannelAccessors();
 			float red = rAcc.getVal(x, y);
 			float grn = gAcc.getVal(x, y);
 			float blu = bAcc.getVal(x, y);
 			return new float[] { red, grn, blu };
 		}
+		
+		/**
+		 * Copies the color components of image row v to the separate 
+		 * arrays R, G, B (each of length &ge; width).
+		 * @param v row index (may be outside the image)
+		 * @param R the array receiving the red values
+		 * @param G the array receiving the green values
+		 * @param B the array receiving the blue values
+		 */
+		public void getRow(int v, float[] R, float[] G, float[] B) {
+			getBlock(0, v, width, 1, R, G, B);
+		}
+		
+		/**
+		 * Copies the color components of the rectangular block at position (u0, v0) 
+		 * and size w x h to the separate arrays R, G, B (in row-major order). 
+		 * The block may extend over the image boundary.
+		 * @param u0 left block position
+		 * @param v0 top block position
+		 * @param w block width
+		 * @param h block height
+		 * @param R the array receiving the red values (of length &ge; w * h)
+		 * @param G the array receiving the green values (of length &ge; w * h)
+		 * @param B the array receiving the blue values (of length &ge; w * h)
+		 */
+		public void getBlock(int u0, int v0, int w, int h, float[] R, float[] G, float[] B) {
+			if (R.length < w * h || G.length < w * h || B.length < w * h)
+				throw new IllegalArgumentException("destination array too small");
+			final int uA = Math.min(Math.max(u0, 0), u0 + w);		// [uA, uB) is inside the image
+			final int uB = Math.max(Math.min(u0 + w, width), uA);
+			for (int j = 0; j < h; j++) {
+				final int k = j * w - u0;	// dst index = k + u
+				final int vj = mapRow(v0 + j);
+				if (vj < 0) {
+					Arrays.fill(R, j * w, (j + 1) * w, pixelDefaultValue[0]);
+					Arrays.fill(G, j * w, (j + 1) * w, pixelDefaultValue[1]);
+					Arrays.fill(B, j * w, (j + 1) * w, pixelDefaultValue[2]);
+					continue;
+				}
+				for (int u = u0; u < uA; u++) {
+					copyPixel(indexer.getIndex(u, vj), R, G, B, k + u);
+				}
+				for (int u = uA, i = width * vj + uA; u < uB; u++, i++) {
+					copyPixel(i, R, G, B, k + u);
+				}
+				for (int u = uB; u < u0 + w; u++) {
+					copyPixel(indexer.getIndex(u, vj), R, G, B, k + u);
+				}
+			}
+		}
+		
+		private void copyPixel(int i, float[] R, float[] G, float[] B, int k) {
+			if (i < 0) {
+				R[k] = pixelDefaultValue[0];
+				G[k] = pixelDefaultValue[1];
+				B[k] = pixelDefaultValue[2];
+			}
+			else {
+				int c = pixels[i];
+				R[k] = (c & 0xff0000) >> 16;
+				G[k] = (c & 0xff00) >> 8;
+				B[k] = (c & 0xff);
+			}
+		}
 
 	}
 	
@@ -328,4 +483,123 @@ public abstract class ImageAccessor {
 		return val;
 	}
 	
+	// ------------------------------------------------------------
+	
+	/*
+	 * Compares the bulk accessors getRow()/getBlock() against single-pixel access 
+	 * (getVal()/getPix()): timing for reading complete images row by row (best of
+	 * several runs) and block contents for all out-of-bounds strategies.
+	 */
+	public static void main(String[] args) {
+		final int size = 2000;
+		final int runs = 10;
+		Random rnd = new Random(13);
+		ImageProcessor[] images = {
+			new ByteProcessor(size, size), new ShortProcessor(size, size), 
+			new FloatProcessor(size, size), new ColorProcessor(size, size)};
+		for (ImageProcessor ip : images) {
+			for (int i = 0; i < ip.getPixelCount(); i++) {
+				if (ip instanceof FloatProcessor)
+					ip.setf(i, (float) rnd.nextGaussian());
+				else if (ip instanceof ShortProcessor)
+					ip.set(i, rnd.nextInt(4096));
+				else
+					ip.set(i, rnd.nextInt());
+			}
+		}
+		System.out.println("image | single pixel (ms) | getRow (ms) | same sum");
+		for (ImageProcessor ip : images) {
+			ImageAccessor ia = ImageAccessor.create(ip);
+			long tPix = Long.MAX_VALUE, tRow = Long.MAX_VALUE;
+			double sumPix = 0, sumRow = 0;
+			for (int r = 0; r < runs; r++) {
+				long t0 = System.nanoTime();
+				sumPix = sumPixels(ia, size);
+				long t1 = System.nanoTime();
+				sumRow = sumRows(ia, size);
+				long t2 = System.nanoTime();
+				tPix = Math.min(tPix, t1 - t0);
+				tRow = Math.min(tRow, t2 - t1);
+			}
+			System.out.format("%-5d | %17d | %11d | %s%n", ip.getBitDepth(), 
+					tPix / 1000000, tRow / 1000000, sumPix == sumRow);
+		}
+		System.out.println("image | out-of-bounds strategy | blocks | mismatches");
+		for (ImageProcessor ip : images) {
+			for (OutOfBoundsStrategy obs : OutOfBoundsStrategy.values()) {
+				ImageAccessor ia = ImageAccessor.create(ip, obs, null);
+				final int w = 1 + rnd.nextInt(50), h = 1 + rnd.nextInt(50);
+				final float[][] block = {new float[w * h], new float[w * h], new float[w * h]};
+				final int nBlocks = 1000;
+				int mismatches = 0;
+				for (int n = 0; n < nBlocks; n++) {
+					final int u0, v0;
+					if (obs == OutOfBoundsStrategy.Exception) {	// blocks inside the image only
+						u0 = rnd.nextInt(size - w + 1); 
+						v0 = rnd.nextInt(size - h + 1);
+					}
+					else {
+						u0 = rnd.nextInt(size + 2 * w) - 2 * w;
+						v0 = rnd.nextInt(size + 2 * h) - 2 * h;
+					}
+					if (ia instanceof Scalar)
+						((Scalar) ia).getBlock(u0, v0, w, h, block[0]);
+					else
+						((Rgb) ia).getBlock(u0, v0, w, h, block[0], block[1], block[2]);
+					for (int j = 0; j < h; j++) {
+						for (int i = 0; i < w; i++) {
+							final float[] pix = ia.getPix(u0 + i, v0 + j);
+							for (int c = 0; c < pix.length; c++) {
+								if (pix[c] != block[c][j * w + i]) 
+									mismatches++;
+							}
+						}
+					}
+				}
+				System.out.format("%-5d | %-22s | %6d | %d%n", ip.getBitDepth(), obs, nBlocks, mismatches);
+			}
+		}
+	}
+	
+	private static double sumPixels(ImageAccessor ia, int size) {
+		double sum = 0;
+		if (ia instanceof Scalar) {
+			Scalar sa = (Scalar) ia;
+			for (int v = 0; v < size; v++) {
+				for (int u = 0; u < size; u++) {
+					sum += sa.getVal(u, v);
+				}
+			}
+		}
+		else {
+			for (int v = 0; v < size; v++) {
+				for (int u = 0; u < size; u++) {
+					float[] rgb = ia.getPix(u, v);
+					sum += rgb[0] + rgb[1] + rgb[2];
+				}
+			}
+		}
+		return sum;
+	}
+	
+	private static double sumRows(ImageAccessor ia, int size) {
+		double sum = 0;
+		float[] R = new float[size], G = new float[size], B = new float[size];
+		for (int v = 0; v < size; v++) {
+			if (ia instanceof Scalar) {
+				((Scalar) ia).getRow(v, R);
+				for (int u = 0; u < size; u++) {
+					sum += R[u];
+				}
+			}
+			else {
+				((Rgb) ia).getRow(v, R, G, B);
+				for (int u = 0; u < size; u++) {
+					sum += R[u] + G[u] + B[u];
+				}
+			}
+		}
+		return sum;
+	}
+	
 }
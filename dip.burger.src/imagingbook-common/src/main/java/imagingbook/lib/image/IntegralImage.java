@@ -7,107 +7,465 @@
  * All rights reserved. Visit http://www.imagingbook.com for additional details.
  *  
  *******************************************************************************/
+
 package imagingbook.lib.image;
 
-import ij.IJ;
 import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
 
 
 /**
- * This class represents an 'integral image' or 'summed area table' [Crow, 1984], 
+ * This class represents an 'integral image' or 'summed area table' [Crow, 1984],
  * as described in the book (see 2nd English ed. 2016, Sec. 3.8).
- * Currently only implemented for images of type {@link ByteProcessor}.
- * 
+ * Tables are stored as flat arrays of size (M+1) x (N+1), with a leading row and
+ * column of zeros. Integer-valued images (of type {@link ByteProcessor} or
+ * {@link ShortProcessor}) are summed exactly into {@code long} tables, images of type
+ * {@link FloatProcessor} into {@code double} tables. Color images are handled
+ * one channel at a time (see {@link #makeRgb(ColorProcessor, boolean)}).
+ * Optionally, a 'tilted' (45 degree) summed area table [Lienhart, 2002]
+ * is calculated as well (see {@link #getTiltedSum(int, int, int, int)}).
+ * <p>
+ * Besides single block queries, this class provides batch methods which fill
+ * entire mean and variance maps for a given box radius at constant cost per pixel,
+ * independent of the radius (see {@link #getBoxStatistics(int, int, BorderMode, float[], float[])}).
+ * </p>
+ *
  * @author W. Burger
  * @version 2015/11/15
  *
  */
 public class IntegralImage {
-	
-	private final int M, N;
-	private final long[][] S1, S2;
-	
+
+	/**
+	 * Specifies how box regions which extend beyond the image boundaries are treated.
+	 */
+	public enum BorderMode {
+		/** Only pixels inside the image are used, i.e., the region is clipped. */
+		Clip,
+		/** Pixels outside the image take the value of the closest border pixel. */
+		Replicate
+	}
+
+	private final int M, N;				// image width and height
+	private final int K;				// row stride of the S1/S2 tables (= M + 1)
+	private final long[] S1L, S2L;		// tables for integer-valued images (or null)
+	private final double[] S1D, S2D;	// tables for float-valued images (or null)
+	private final long[] T1L;			// tilted table for integer-valued images (or null)
+	private final double[] T1D;			// tilted table for float-valued images (or null)
+
 	/**
 	 * Creates a new integral image from pixel values in a 2D int-array.
 	 * @param I pixel values
 	 */
 	public IntegralImage(int[][] I) {
-		M = I.length;
-		N = I[0].length;
-		S1 = new long[M][N];
-		S2 = new long[M][N];
-		
-		// initialize top-left corner (0,0)
-		S1[0][0] = I[0][0];
-		S2[0][0] = I[0][0] * I[0][0];
-		// do line v = 0:
-		for (int u = 1; u < M; u++) {
-			S1[u][0] = S1[u-1][0] + I[u][0];
-			S2[u][0] = S2[u-1][0] + I[u][0] * I[u][0];
-		}
-		// do lines v = 1,...,h-1
-		for (int v = 1; v < N; v++) {
-			S1[0][v] = S1[0][v-1] + I[0][v];
-			S2[0][v] = S2[0][v-1] + I[0][v] * I[0][v];
-			for (int u = 1; u < M; u++) {
-				S1[u][v] = S1[u-1][v] + S1[u][v-1] - S1[u-1][v-1] + I[u][v];
-				S2[u][v] = S2[u-1][v] + S2[u][v-1] - S2[u-1][v-1] + I[u][v] * I[u][v];
-			}
-		}
+		this(I.length, I[0].length, flatten(I), null, false);
+	}
+
+	/**
+	 * Creates a new integral image from pixel values in a 2D float-array.
+	 * @param I pixel values
+	 */
+	public IntegralImage(float[][] I) {
+		this(I.length, I[0].length, null, flatten(I), false);
 	}
-	
+
 	/**
 	 * Creates a new integral image from pixel values in a {@link ByteProcessor}.
 	 * @param I input image
 	 */
 	public IntegralImage(ByteProcessor I) {
-		this(I.getIntArray());
+		this((ImageProcessor) I);
+	}
+
+	/**
+	 * Creates a new integral image from a single-channel image of type
+	 * {@link ByteProcessor}, {@link ShortProcessor} or {@link FloatProcessor}.
+	 * @param ip input image
+	 */
+	public IntegralImage(ImageProcessor ip) {
+		this(ip, false);
+	}
+
+	/**
+	 * Creates a new integral image from a single-channel image of type
+	 * {@link ByteProcessor}, {@link ShortProcessor} or {@link FloatProcessor}.
+	 * @param ip input image
+	 * @param tilted if true, the tilted (45 degree) summed area table is calculated too
+	 */
+	public IntegralImage(ImageProcessor ip, boolean tilted) {
+		this(ip.getWidth(), ip.getHeight(), getIntPixels(ip), getFloatPixels(ip), tilted);
+	}
+
+	/**
+	 * Creates a separate integral image for each channel of the given RGB color image.
+	 * @param cp input image
+	 * @param tilted if true, the tilted (45 degree) summed area tables are calculated too
+	 * @return an array of three integral images (for the red, green and blue channel)
+	 */
+	public static IntegralImage[] makeRgb(ColorProcessor cp, boolean tilted) {
+		final int w = cp.getWidth();
+		final int h = cp.getHeight();
+		final int[] pixels = (int[]) cp.getPixels();
+		IntegralImage[] iis = new IntegralImage[3];
+		for (int c = 0; c < 3; c++) {
+			final int shift = 16 - 8 * c;
+			int[] I = new int[w * h];
+			for (int i = 0; i < I.length; i++) {
+				I[i] = (pixels[i] >> shift) & 0xFF;
+			}
+			iis[c] = new IntegralImage(w, h, I, null, tilted);
+		}
+		return iis;
+	}
+
+	/**
+	 * Creates a separate integral image for each channel of the given image
+	 * (one for scalar images, three for RGB color images).
+	 * @param ip input image
+	 * @param tilted if true, the tilted (45 degree) summed area tables are calculated too
+	 * @return an array of integral images, one for each channel
+	 */
+	public static IntegralImage[] makeChannels(ImageProcessor ip, boolean tilted) {
+		if (ip instanceof ColorProcessor)
+			return makeRgb((ColorProcessor) ip, tilted);
+		else
+			return new IntegralImage[] {new IntegralImage(ip, tilted)};
+	}
+
+	/*
+	 * Either I (integer-valued pixels) or F (float-valued pixels) is non-null,
+	 * both are in row-major order.
+	 */
+	private IntegralImage(int M, int N, int[] I, float[] F, boolean tilted) {
+		this.M = M;
+		this.N = N;
+		this.K = M + 1;
+		if (I != null) {
+			S1L = new long[K * (N + 1)];
+			S2L = new long[K * (N + 1)];
+			S1D = S2D = null;
+			for (int v = 0; v < N; v++) {
+				long s1 = 0, s2 = 0;	// running row sums
+				final int i0 = v * M;
+				final int k0 = (v + 1) * K;
+				for (int u = 0; u < M; u++) {
+					long p = I[i0 + u];
+					s1 = s1 + p;
+					s2 = s2 + p * p;
+					S1L[k0 + u + 1] = S1L[k0 - K + u + 1] + s1;
+					S2L[k0 + u + 1] = S2L[k0 - K + u + 1] + s2;
+				}
+			}
+			T1L = (tilted) ? makeTiltedL(I) : null;
+			T1D = null;
+		}
+		else {
+			S1D = new double[K * (N + 1)];
+			S2D = new double[K * (N + 1)];
+			S1L = S2L = null;
+			for (int v = 0; v < N; v++) {
+				double s1 = 0, s2 = 0;
+				final int i0 = v * M;
+				final int k0 = (v + 1) * K;
+				for (int u = 0; u < M; u++) {
+					double p = F[i0 + u];
+					s1 = s1 + p;
+					s2 = s2 + p * p;
+					S1D[k0 + u + 1] = S1D[k0 - K + u + 1] + s1;
+					S2D[k0 + u + 1] = S2D[k0 - K + u + 1] + s2;
+				}
+			}
+			T1D = (tilted) ? makeTiltedD(F) : null;
+			T1L = null;
+		}
 	}
-	
-	
+
+	private static int[] flatten(int[][] I) {
+		final int M = I.length;
+		final int N = I[0].length;
+		int[] A = new int[M * N];
+		for (int v = 0; v < N; v++) {
+			for (int u = 0; u < M; u++) {
+				A[v * M + u] = I[u][v];
+			}
+		}
+		return A;
+	}
+
+	private static float[] flatten(float[][] I) {
+		final int M = I.length;
+		final int N = I[0].length;
+		float[] A = new float[M * N];
+		for (int v = 0; v < N; v++) {
+			for (int u = 0; u < M; u++) {
+				A[v * M + u] = I[u][v];
+			}
+		}
+		return A;
+	}
+
+	private static int[] getIntPixels(ImageProcessor ip) {
+		if (ip instanceof ColorProcessor)
+			throw new IllegalArgumentException("use makeRgb() for color images");
+		if (ip instanceof FloatProcessor)
+			return null;
+		final int n = ip.getPixelCount();
+		int[] I = new int[n];
+		for (int i = 0; i < n; i++) {
+			I[i] = ip.get(i);
+		}
+		return I;
+	}
+
+	private static float[] getFloatPixels(ImageProcessor ip) {
+		return (ip instanceof FloatProcessor) ? (float[]) ip.getPixels() : null;
+	}
+
+	// -------------------------------------------------------
+
+	/*
+	 * The tilted table T(u,v) holds the sum of all pixels (u',v') with v' <= v and
+	 * |u - u'| <= v - v' (i.e., a triangle opening upwards), stored at index
+	 * (v + 1) * M + u (row 0 corresponds to v = -1 and is zero).
+	 * T(u,v) = T(u,v-1) + Dl(u,v) + Dr(u,v) - I(u,v), where Dl, Dr are the
+	 * sums along the two diagonal rays running up-left and up-right from (u,v).
+	 */
+	private long[] makeTiltedL(int[] I) {
+		long[] T = new long[M * (N + 1)];
+		long[] Dl = new long[M], Dr = new long[M];
+		long[] DlPrev = new long[M], DrPrev = new long[M];
+		for (int v = 0; v < N; v++) {
+			final int i0 = v * M;
+			final int t0 = (v + 1) * M;
+			for (int u = 0; u < M; u++) {
+				long p = I[i0 + u];
+				Dl[u] = p + ((u > 0) ? DlPrev[u - 1] : 0);
+				Dr[u] = p + ((u < M - 1) ? DrPrev[u + 1] : 0);
+				T[t0 + u] = T[t0 - M + u] + Dl[u] + Dr[u] - p;
+			}
+			long[] tmp = Dl; Dl = DlPrev; DlPrev = tmp;
+			tmp = Dr; Dr = DrPrev; DrPrev = tmp;
+		}
+		return T;
+	}
+
+	private double[] makeTiltedD(float[] F) {
+		double[] T = new double[M * (N + 1)];
+		double[] Dl = new double[M], Dr = new double[M];
+		double[] DlPrev = new double[M], DrPrev = new double[M];
+		for (int v = 0; v < N; v++) {
+			final int i0 = v * M;
+			final int t0 = (v + 1) * M;
+			for (int u = 0; u < M; u++) {
+				double p = F[i0 + u];
+				Dl[u] = p + ((u > 0) ? DlPrev[u - 1] : 0);
+				Dr[u] = p + ((u < M - 1) ? DrPrev[u + 1] : 0);
+				T[t0 + u] = T[t0 - M + u] + Dl[u] + Dr[u] - p;
+			}
+			double[] tmp = Dl; Dl = DlPrev; DlPrev = tmp;
+			tmp = Dr; Dr = DrPrev; DrPrev = tmp;
+		}
+		return T;
+	}
+
 	// -------------------------------------------------------
-	
+
+	public int getWidth() {
+		return M;
+	}
+
+	public int getHeight() {
+		return N;
+	}
+
 	/**
-	 * Returns the summed area table of pixel values (Sigma_1).
+	 * @return true if this integral image was created from float-valued pixels
+	 */
+	public boolean isFloat() {
+		return S1D != null;
+	}
+
+	/**
+	 * @return true if the tilted summed area table is available
+	 */
+	public boolean hasTilted() {
+		return T1L != null || T1D != null;
+	}
+
+	/**
+	 * Returns the summed area table of pixel values (Sigma_1) as a 2D array
+	 * (a copy, in the original layout). Only available for integer-valued images,
+	 * see {@link #getS1Double()} for float-valued images.
 	 * @return Array of Sigma_1 values
 	 */
 	public long[][] getS1() {
-		return S1;
+		return copyTable(S1L);
 	}
-	
+
 	/**
-	 * Returns the summed area table of squared pixel values (Sigma_2).
+	 * Returns the summed area table of squared pixel values (Sigma_2) as a 2D array
+	 * (a copy, in the original layout). Only available for integer-valued images,
+	 * see {@link #getS2Double()} for float-valued images.
 	 * @return Array of Sigma_2 values
 	 */
 	public long[][] getS2() {
-		return S2;
+		return copyTable(S2L);
+	}
+
+	/**
+	 * Returns the summed area table of pixel values (Sigma_1) as a 2D array
+	 * of type double (a copy, in the original layout), for any type of image.
+	 * @return Array of Sigma_1 values
+	 */
+	public double[][] getS1Double() {
+		return copyTable(S1L, S1D);
+	}
+
+	/**
+	 * Returns the summed area table of squared pixel values (Sigma_2) as a 2D array
+	 * of type double (a copy, in the original layout), for any type of image.
+	 * @return Array of Sigma_2 values
+	 */
+	public double[][] getS2Double() {
+		return copyTable(S2L, S2D);
+	}
+
+	private long[][] copyTable(long[] S) {
+		if (S == null)
+			throw new UnsupportedOperationException("no long table for float-valued images");
+		long[][] A = new long[M][N];
+		for (int u = 0; u < M; u++) {
+			for (int v = 0; v < N; v++) {
+				A[u][v] = S[(v + 1) * K + u + 1];
+			}
+		}
+		return A;
 	}
-	
+
+	private double[][] copyTable(long[] SL, double[] SD) {
+		double[][] A = new double[M][N];
+		for (int u = 0; u < M; u++) {
+			for (int v = 0; v < N; v++) {
+				final int i = (v + 1) * K + u + 1;
+				A[u][v] = (SL != null) ? SL[i] : SD[i];
+			}
+		}
+		return A;
+	}
+
 	// -------------------------------------------------------
-	
+
+	/*
+	 * Sum over the rectangle [ua,ub] x [va,vb], which must be inside the image
+	 * and non-empty.
+	 */
+	private double rectSum(long[] SL, double[] SD, int ua, int va, int ub, int vb) {
+		final int a = va * K + ua;
+		final int b = va * K + ub + 1;
+		final int c = (vb + 1) * K + ua;
+		final int d = (vb + 1) * K + ub + 1;
+		if (SL != null)
+			return SL[d] - SL[b] - SL[c] + SL[a];
+		else
+			return SD[d] - SD[b] - SD[c] + SD[a];
+	}
+
+	/*
+	 * Sum over the rectangle [ua,ub] x [va,vb], which may extend beyond the image.
+	 * With BorderMode.Replicate, column u is mapped to clamp(u) and row v to clamp(v),
+	 * i.e., the border rows/columns are counted repeatedly (including the corners).
+	 */
+	private double blockSum(long[] SL, double[] SD, int ua, int va, int ub, int vb, BorderMode bm) {
+		if (ua >= 0 && va >= 0 && ub < M && vb < N)	// the common case
+			return (ub < ua || vb < va) ? 0 : rectSum(SL, SD, ua, va, ub, vb);
+		if (ub < ua || vb < va)
+			return 0;
+		final int u0 = Math.max(ua, 0), u1 = Math.min(ub, M - 1);
+		final int v0 = Math.max(va, 0), v1 = Math.min(vb, N - 1);
+		final boolean cols = (u0 <= u1);		// clipped column range is non-empty
+		final boolean rows = (v0 <= v1);		// clipped row range is non-empty
+		double s = (cols && rows) ? rectSum(SL, SD, u0, v0, u1, v1) : 0;
+		if (bm != BorderMode.Replicate)
+			return s;
+		final int ue = M - 1;
+		final int ve = N - 1;
+		final int eL = Math.max(0, Math.min(ub, -1) - ua + 1);	// columns left of the image
+		final int eR = Math.max(0, ub - Math.max(ua, M) + 1);	// columns right of the image
+		final int eT = Math.max(0, Math.min(vb, -1) - va + 1);	// rows above the image
+		final int eB = Math.max(0, vb - Math.max(va, N) + 1);	// rows below the image
+		if (rows) {
+			if (eL > 0) s = s + eL * rectSum(SL, SD, 0, v0, 0, v1);
+			if (eR > 0) s = s + eR * rectSum(SL, SD, ue, v0, ue, v1);
+		}
+		if (eT > 0) {
+			if (cols) s = s + eT * rectSum(SL, SD, u0, 0, u1, 0);
+			if (eL > 0) s = s + eT * eL * rectSum(SL, SD, 0, 0, 0, 0);
+			if (eR > 0) s = s + eT * eR * rectSum(SL, SD, ue, 0, ue, 0);
+		}
+		if (eB > 0) {
+			if (cols) s = s + eB * rectSum(SL, SD, u0, ve, u1, ve);
+			if (eL > 0) s = s + eB * eL * rectSum(SL, SD, 0, ve, 0, ve);
+			if (eR > 0) s = s + eB * eR * rectSum(SL, SD, ue, ve, ue, ve);
+		}
+		return s;
+	}
+
+	/*
+	 * Exact sum over the rectangle [ua,ub] x [va,vb] for integer-valued images,
+	 * parts outside the image are ignored.
+	 */
+	private long blockSumL(long[] SL, int ua, int va, int ub, int vb) {
+		if (SL == null)
+			throw new UnsupportedOperationException("no long table for float-valued images");
+		final int u0 = Math.max(ua, 0), u1 = Math.min(ub, M - 1);
+		final int v0 = Math.max(va, 0), v1 = Math.min(vb, N - 1);
+		if (u1 < u0 || v1 < v0)
+			return 0;
+		return SL[(v1 + 1) * K + u1 + 1] - SL[v0 * K + u1 + 1] - SL[(v1 + 1) * K + u0] + SL[v0 * K + u0];
+	}
+
 	/**
-	 * Calculates the sum of the pixel values in the rectangle
+	 * Calculates the (exact) sum of the pixel values in the rectangle
 	 * R, specified by the corner points a = (ua, va) and b = (b1, vb).
+	 * Parts of R outside the image are ignored.
+	 * Only available for integer-valued images, see 
+	 * {@link #getBlockSum1(int, int, int, int, BorderMode)} for float-valued images.
 	 * @param ua leftmost position in R
 	 * @param va top position in R
 	 * @param ub rightmost position in R
 	 * @param vb bottom position in R
-	 * @return the first-order block sum (S1(R)) inside the specified rectangle 
+	 * @return the first-order block sum (S1(R)) inside the specified rectangle
 	 * or zero if the rectangle is empty.
 	 */
 	public long getBlockSum1(int ua, int va, int ub, int vb) {
-		if (ub < ua || vb < va) 
-			return 0;
-		final long saa = (ua > 0  && va > 0)  ? S1[ua - 1][va - 1] : 0;
-		final long sba = (ub >= 0 && va > 0)  ? S1[ub][va - 1] : 0;
-		final long sab = (ua > 0  && vb >= 0) ? S1[ua - 1][vb] : 0;
-		final long sbb = (ub >= 0 && vb >= 0) ? S1[ub][vb] : 0;
-		return sbb + saa - sba - sab;
+		return blockSumL(S1L, ua, va, ub, vb);
 	}
-	
+
 	/**
-	 * Calculates the sum of the squared pixel values in the rectangle
+	 * Calculates the sum of the pixel values in the rectangle
+	 * R, specified by the corner points a = (ua, va) and b = (b1, vb),
+	 * treating parts of R outside the image as specified. 
+	 * Available for all types of images.
+	 * @param ua leftmost position in R
+	 * @param va top position in R
+	 * @param ub rightmost position in R
+	 * @param vb bottom position in R
+	 * @param bm specifies how pixels outside the image are treated
+	 * @return the first-order block sum (S1(R)) or zero if the rectangle is empty.
+	 */
+	public double getBlockSum1(int ua, int va, int ub, int vb, BorderMode bm) {
+		return blockSum(S1L, S1D, ua, va, ub, vb, bm);
+	}
+
+	/**
+	 * Calculates the (exact) sum of the squared pixel values in the rectangle
 	 * R, specified by the corner points a = (ua, va) and b = (b1, vb).
+	 * Parts of R outside the image are ignored.
+	 * Only available for integer-valued images, see 
+	 * {@link #getBlockSum2(int, int, int, int, BorderMode)} for float-valued images.
 	 * @param ua leftmost position in R
 	 * @param va top position in R
 	 * @param ub rightmost position in R
@@ -116,22 +474,49 @@ public class IntegralImage {
 	 * or zero if the rectangle is empty.
 	 */
 	public long getBlockSum2(int ua, int va, int ub, int vb) {
-		if (ub < ua || vb < va) 
-			return 0;
-		final long saa = (ua > 0  && va > 0)  ? S2[ua - 1][va - 1] : 0;
-		final long sba = (ub >= 0 && va > 0)  ? S2[ub][va - 1] : 0;
-		final long sab = (ua > 0  && vb >= 0) ? S2[ua - 1][vb] : 0;
-		final long sbb = (ub >= 0 && vb >= 0) ? S2[ub][vb] : 0;
-		return sbb + saa - sba - sab;
+		return blockSumL(S2L, ua, va, ub, vb);
 	}
-	
+
+	/**
+	 * Calculates the sum of the squared pixel values in the rectangle
+	 * R, specified by the corner points a = (ua, va) and b = (b1, vb),
+	 * treating parts of R outside the image as specified.
+	 * Available for all types of images.
+	 * @param ua leftmost position in R
+	 * @param va top position in R
+	 * @param ub rightmost position in R
+	 * @param vb bottom position in R
+	 * @param bm specifies how pixels outside the image are treated
+	 * @return the second-order block sum (S2(R)) or zero if the rectangle is empty.
+	 */
+	public double getBlockSum2(int ua, int va, int ub, int vb, BorderMode bm) {
+		return blockSum(S2L, S2D, ua, va, ub, vb, bm);
+	}
+
+	/**
+	 * Returns the number of pixels in the rectangle R (including parts outside the image).
+	 * @param u0 leftmost position in R
+	 * @param v0 top position in R
+	 * @param u1 rightmost position in R
+	 * @param v1 bottom position in R
+	 * @return the size of R
+	 */
 	public int getSize(int u0, int v0, int u1, int v1) {
 		return (1 + u1 - u0) * (1 + v1 - v0);
 	}
-	
+
+	private int getClippedSize(int ua, int va, int ub, int vb) {
+		final int u0 = Math.max(ua, 0), u1 = Math.min(ub, M - 1);
+		final int v0 = Math.max(va, 0), v1 = Math.min(vb, N - 1);
+		return (u1 < u0 || v1 < v0) ? 0 : getSize(u0, v0, u1, v1);
+	}
+
 	/**
 	 * Calculates the mean of the image values in the specified rectangle.
-	 * 
+	 * Pixels outside the image count as zero, i.e., the sum of the pixels
+	 * inside the image is divided by the full size of the rectangle
+	 * (see {@link #getMean(int, int, int, int, BorderMode)} for alternatives).
+	 *
 	 * @param ua leftmost position in R
 	 * @param va top position in R
 	 * @param ub rightmost position in R {@literal (u1 >= u0)}
@@ -139,19 +524,36 @@ public class IntegralImage {
 	 * @return the mean value for the specified rectangle
 	 */
 	public double getMean(int ua, int va, int ub, int vb) {
-		int N = getSize(ua, va, ub, vb);
-		if (N <= 0)
+		int n = getSize(ua, va, ub, vb);
+		if (ub < ua || vb < va || n <= 0)
+			throw new IllegalArgumentException("region size must be positive");
+		double s1 = blockSum(S1L, S1D, ua, va, ub, vb, BorderMode.Clip);
+		return s1 / n;
+	}
+
+	/**
+	 * Calculates the mean of the image values in the specified rectangle,
+	 * treating parts of R outside the image as specified: with {@code BorderMode.Clip}
+	 * the mean is taken over the pixels inside the image only.
+	 * @param ua leftmost position in R
+	 * @param va top position in R
+	 * @param ub rightmost position in R {@literal (u1 >= u0)}
+	 * @param vb bottom position in R {@literal (v1 >= v0)}
+	 * @param bm specifies how pixels outside the image are treated
+	 * @return the mean value for the specified rectangle
+	 */
+	public double getMean(int ua, int va, int ub, int vb, BorderMode bm) {
+		int n = (bm == BorderMode.Clip) ? getClippedSize(ua, va, ub, vb) : getSize(ua, va, ub, vb);
+		if (ub < ua || vb < va || n <= 0)
 			throw new IllegalArgumentException("region size must be positive");
-		double S1 = getBlockSum1(ua, va, ub, vb);
-		IJ.log("u0 = " + ua); IJ.log("v0 = " + va);
-		IJ.log("u1 = " + ub); IJ.log("v1 = " + vb);
-		IJ.log("S1 = " + S1);
-		return S1 / N;
+		return blockSum(S1L, S1D, ua, va, ub, vb, bm) / n;
 	}
-	
+
 	/**
 	 * Calculates the variance of the image values in the specified rectangle.
-	 * parameters.
+	 * Pixels outside the image count as zero, i.e., the sums over the pixels
+	 * inside the image are divided by the full size of the rectangle
+	 * (see {@link #getVariance(int, int, int, int, BorderMode)} for alternatives).
 	 * @param ua leftmost position in R
 	 * @param va top position in R
 	 * @param ub rightmost position in R {@literal (u1 >= u0)}
@@ -159,12 +561,136 @@ public class IntegralImage {
 	 * @return the variance for the specified rectangle
 	 */
 	public double getVariance(int ua, int va, int ub, int vb) {
-		int N = getSize(ua, va, ub, vb);
-		if (N <= 0)
+		int n = getSize(ua, va, ub, vb);
+		if (ub < ua || vb < va || n <= 0)
+			throw new IllegalArgumentException("region size must be positive");
+		double s1 = blockSum(S1L, S1D, ua, va, ub, vb, BorderMode.Clip);
+		double s2 = blockSum(S2L, S2D, ua, va, ub, vb, BorderMode.Clip);
+		return (s2 - (s1 * s1) / n) / n;
+	}
+
+	/**
+	 * Calculates the variance of the image values in the specified rectangle,
+	 * treating parts of R outside the image as specified: with {@code BorderMode.Clip}
+	 * the variance is taken over the pixels inside the image only.
+	 * @param ua leftmost position in R
+	 * @param va top position in R
+	 * @param ub rightmost position in R {@literal (u1 >= u0)}
+	 * @param vb bottom position in R {@literal (v1 >= v0)}
+	 * @param bm specifies how pixels outside the image are treated
+	 * @return the variance for the specified rectangle
+	 */
+	public double getVariance(int ua, int va, int ub, int vb, BorderMode bm) {
+		int n = (bm == BorderMode.Clip) ? getClippedSize(ua, va, ub, vb) : getSize(ua, va, ub, vb);
+		if (ub < ua || vb < va || n <= 0)
 			throw new IllegalArgumentException("region size must be positive");
-		double S1 = getBlockSum1(ua, va, ub, vb);
-		double S2 = getBlockSum2(ua, va, ub, vb);
-		return (S2 - (S1 * S1) / N) / N;
+		double s1 = blockSum(S1L, S1D, ua, va, ub, vb, bm);
+		double s2 = blockSum(S2L, S2D, ua, va, ub, vb, bm);
+		return Math.max((s2 - (s1 * s1) / n) / n, 0);
+	}
+
+	// -------------------------------------------------------
+
+	/**
+	 * Calculates the sum of the pixel values inside a 45 degree rotated rectangle
+	 * with top pixel (u, v), extending w steps down-right and h steps down-left.
+	 * The region consists of all pixels (u',v') with
+	 * {@literal u+v <= u'+v' < u+v+2w} and {@literal v-u <= v'-u' < v-u+2h},
+	 * i.e., 2wh pixels in total. The left, right and bottom corner points
+	 * (u-h, v+h-1), (u+w, v+w-1), (u+w-h, v+w+h-1) must be inside the image.
+	 * Requires the tilted table (see {@link #IntegralImage(ImageProcessor, boolean)}).
+	 * @param u horizontal position of the top pixel
+	 * @param v vertical position of the top pixel
+	 * @param w size along the down-right direction
+	 * @param h size along the down-left direction
+	 * @return the sum of pixel values inside the rotated rectangle
+	 */
+	public double getTiltedSum(int u, int v, int w, int h) {
+		if (!hasTilted())
+			throw new UnsupportedOperationException("tilted table was not calculated");
+		if (w < 1 || h < 1)
+			throw new IllegalArgumentException("rectangle size must be positive");
+		final int vt = v - 1;	// top corner point (outside the region)
+		if (u < 0 || u >= M || vt < -1 || u - h < 0 || u + w >= M || vt + w + h >= N)
+			throw new IllegalArgumentException("tilted rectangle exceeds the image");
+		return getT(u + w - h, vt + w + h) - getT(u + w, vt + w) - getT(u - h, vt + h) + getT(u, vt);
+	}
+
+	private double getT(int u, int v) {
+		final int i = (v + 1) * M + u;
+		return (T1L != null) ? T1L[i] : T1D[i];
+	}
+
+	// -------------------------------------------------------
+
+	/**
+	 * Calculates the local mean and variance inside a (2 rx + 1) x (2 ry + 1) box
+	 * centered at each image position, at constant cost per pixel.
+	 * The results are stored in row-major order in the supplied arrays, either
+	 * of which may be null.
+	 * @param rx horizontal box radius
+	 * @param ry vertical box radius
+	 * @param bm specifies how pixels outside the image are treated
+	 * @param mean array of size M x N to receive the local means (or null)
+	 * @param var array of size M x N to receive the local variances (or null)
+	 */
+	public void getBoxStatistics(int rx, int ry, BorderMode bm, float[] mean, float[] var) {
+		if (rx < 0 || ry < 0)
+			throw new IllegalArgumentException("box radius must be non-negative");
+		if ((mean != null && mean.length != M * N) || (var != null && var.length != M * N))
+			throw new IllegalArgumentException("arrays of size " + (M * N) + " expected");
+		final int nFull = (2 * rx + 1) * (2 * ry + 1);
+		for (int v = 0; v < N; v++) {
+			final int va = v - ry;
+			final int vb = v + ry;
+			final int nv = Math.min(vb, N - 1) - Math.max(va, 0) + 1;	// clipped box height
+			for (int u = 0; u < M; u++) {
+				final int ua = u - rx;
+				final int ub = u + rx;
+				final double s1, s2;
+				final int n;
+				if (ua >= 0 && va >= 0 && ub < M && vb < N) {	// box is inside the image
+					s1 = rectSum(S1L, S1D, ua, va, ub, vb);
+					s2 = (var != null) ? rectSum(S2L, S2D, ua, va, ub, vb) : 0;
+					n = nFull;
+				}
+				else {
+					s1 = blockSum(S1L, S1D, ua, va, ub, vb, bm);
+					s2 = (var != null) ? blockSum(S2L, S2D, ua, va, ub, vb, bm) : 0;
+					n = (bm == BorderMode.Replicate) ? nFull : 
+						(Math.min(ub, M - 1) - Math.max(ua, 0) + 1) * nv;
+				}
+				final int i = v * M + u;
+				if (mean != null)
+					mean[i] = (float) (s1 / n);
+				if (var != null)
+					var[i] = (float) Math.max((s2 - (s1 * s1) / n) / n, 0);
+			}
+		}
+	}
+
+	/**
+	 * Returns the local means inside a square box of size (2 r + 1) x (2 r + 1).
+	 * @param r box radius
+	 * @param bm specifies how pixels outside the image are treated
+	 * @return a new image of local means
+	 */
+	public FloatProcessor getMeanImage(int r, BorderMode bm) {
+		float[] mean = new float[M * N];
+		getBoxStatistics(r, r, bm, mean, null);
+		return new FloatProcessor(M, N, mean);
+	}
+
+	/**
+	 * Returns the local variances inside a square box of size (2 r + 1) x (2 r + 1).
+	 * @param r box radius
+	 * @param bm specifies how pixels outside the image are treated
+	 * @return a new image of local variances
+	 */
+	public FloatProcessor getVarianceImage(int r, BorderMode bm) {
+		float[] var = new float[M * N];
+		getBoxStatistics(r, r, bm, null, var);
+		return new FloatProcessor(M, N, var);
 	}
 
 }
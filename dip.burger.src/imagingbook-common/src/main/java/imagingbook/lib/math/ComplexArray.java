@@ -0,0 +1,296 @@
+/*******************************************************************************
+ * This software is provided as a supplement to the authors' textbooks on digital
+ * image processing published by Springer-Verlag in various languages and editions.
+ * Permission to use and distribute this software is granted under the BSD 2-Clause 
+ * "Simplified" License (see http://opensource.org/licenses/BSD-2-Clause). 
+ * Copyright (c) 2006-2015 Wilhelm Burger, Mark J. Burge. 
+ * All rights reserved. Visit http://www.imagingbook.com for additional details.
+ *  
+ *******************************************************************************/
+
+package imagingbook.lib.math;
+
+/**
+ * A vector of complex values stored as two separate arrays of real and
+ * imaginary parts ("split" layout). In contrast to {@link Complex}, whose
+ * instances are immutable, all arithmetic operations of this class work
+ * destructively on the stored values and never allocate new objects.
+ * This is intended for spectral calculations on large data, where
+ * creating one {@link Complex} per sample would dominate the run time.
+ * Two-dimensional data (e.g., a 2D spectrum) are stored in row-major order.
+ */
+public class ComplexArray {
+
+	private final double[] re;
+	private final double[] im;
+
+	/**
+	 * Creates a new complex vector of length n with all values zero.
+	 * @param n vector length
+	 */
+	public ComplexArray(int n) {
+		this.re = new double[n];
+		this.im = new double[n];
+	}
+
+	/**
+	 * Creates a new complex vector which uses the given arrays
+	 * (no copies are made).
+	 * @param re real parts
+	 * @param im imaginary parts (same length as re)
+	 */
+	public ComplexArray(double[] re, double[] im) {
+		if (re.length != im.length)
+			throw new IllegalArgumentException("arrays of same length expected");
+		this.re = re;
+		this.im = im;
+	}
+
+	/**
+	 * Creates a new complex vector with real parts copied from a float array,
+	 * all imaginary parts are zero.
+	 * @param re real parts
+	 */
+	public ComplexArray(float[] re) {
+		this(re.length);
+		for (int i = 0; i < re.length; i++) {
+			this.re[i] = re[i];
+		}
+	}
+
+	public ComplexArray(Complex[] c) {
+		this(c.length);
+		for (int i = 0; i < c.length; i++) {
+			this.re[i] = c[i].re();
+			this.im[i] = c[i].im();
+		}
+	}
+
+	public ComplexArray(ComplexArray c) {
+		this.re = c.re.clone();
+		this.im = c.im.clone();
+	}
+
+	public ComplexArray duplicate() {
+		return new ComplexArray(this);
+	}
+
+	public int size() {
+		return re.length;
+	}
+
+	/**
+	 * @return the (live) array of real parts
+	 */
+	public double[] re() {
+		return re;
+	}
+
+	/**
+	 * @return the (live) array of imaginary parts
+	 */
+	public double[] im() {
+		return im;
+	}
+
+	public double re(int i) {
+		return re[i];
+	}
+
+	public double im(int i) {
+		return im[i];
+	}
+
+	public Complex get(int i) {
+		return new Complex(re[i], im[i]);
+	}
+
+	public void set(int i, double a, double b) {
+		re[i] = a;
+		im[i] = b;
+	}
+
+	public void set(int i, Complex z) {
+		re[i] = z.re();
+		im[i] = z.im();
+	}
+
+	public Complex[] toComplexArray() {
+		Complex[] c = new Complex[re.length];
+		for (int i = 0; i < re.length; i++) {
+			c[i] = new Complex(re[i], im[i]);
+		}
+		return c;
+	}
+
+	/**
+	 * Copies length values starting at srcPos to another complex vector.
+	 * @param srcPos start position in this vector
+	 * @param dst target vector
+	 * @param dstPos start position in the target vector
+	 * @param length number of values to copy
+	 */
+	public void copyTo(int srcPos, ComplexArray dst, int dstPos, int length) {
+		System.arraycopy(re, srcPos, dst.re, dstPos, length);
+		System.arraycopy(im, srcPos, dst.im, dstPos, length);
+	}
+
+	// single elements -------------------------------------------------
+
+	public double abs(int i) {
+		return Math.sqrt(abs2(i));
+	}
+
+	public double abs2(int i) {
+		return re[i] * re[i] + im[i] * im[i];
+	}
+
+	public double arg(int i) {
+		return Math.atan2(im[i], re[i]);
+	}
+
+	/**
+	 * Multiplies element i by the complex quantity (a + i b).
+	 */
+	public void mult(int i, double a, double b) {
+		double x = re[i];
+		double y = im[i];
+		re[i] = x * a - y * b;
+		im[i] = x * b + y * a;
+	}
+
+	/**
+	 * Rotates element i by angle phi, i.e., multiplies by e^{i phi}.
+	 */
+	public void rotate(int i, double phi) {
+		mult(i, Math.cos(phi), Math.sin(phi));
+	}
+
+	// whole vector (all operations are destructive) ---------------------
+
+	public void fill(double a, double b) {
+		for (int i = 0; i < re.length; i++) {
+			re[i] = a;
+			im[i] = b;
+		}
+	}
+
+	public void conjugate() {
+		for (int i = 0; i < im.length; i++) {
+			im[i] = -im[i];
+		}
+	}
+
+	public void add(ComplexArray c2) {
+		checkSize(c2);
+		for (int i = 0; i < re.length; i++) {
+			re[i] = re[i] + c2.re[i];
+			im[i] = im[i] + c2.im[i];
+		}
+	}
+
+	public void mult(double s) {
+		for (int i = 0; i < re.length; i++) {
+			re[i] = s * re[i];
+			im[i] = s * im[i];
+		}
+	}
+
+	/**
+	 * Multiplies all elements by the complex quantity (a + i b).
+	 */
+	public void mult(double a, double b) {
+		for (int i = 0; i < re.length; i++) {
+			mult(i, a, b);
+		}
+	}
+
+	/**
+	 * Element-wise complex multiplication with another vector of the same length.
+	 * @param c2 the second factor
+	 */
+	public void mult(ComplexArray c2) {
+		checkSize(c2);
+		for (int i = 0; i < re.length; i++) {
+			mult(i, c2.re[i], c2.im[i]);
+		}
+	}
+
+	/**
+	 * Element-wise multiplication with the complex conjugate of another 
+	 * vector of the same length (as used for correlation in the frequency domain).
+	 * @param c2 the second factor (not modified)
+	 */
+	public void multConjugate(ComplexArray c2) {
+		checkSize(c2);
+		for (int i = 0; i < re.length; i++) {
+			mult(i, c2.re[i], -c2.im[i]);
+		}
+	}
+
+	/**
+	 * Calculates the magnitudes of all elements.
+	 * @param mag array to hold the results (a new array is created if null)
+	 * @return the magnitudes
+	 */
+	public double[] abs(double[] mag) {
+		if (mag == null)
+			mag = new double[re.length];
+		for (int i = 0; i < re.length; i++) {
+			mag[i] = abs(i);
+		}
+		return mag;
+	}
+
+	/**
+	 * Calculates the phase angles of all elements (in [-pi, pi]).
+	 * @param phase array to hold the results (a new array is created if null)
+	 * @return the phase angles
+	 */
+	public double[] arg(double[] phase) {
+		if (phase == null)
+			phase = new double[re.length];
+		for (int i = 0; i < re.length; i++) {
+			phase[i] = arg(i);
+		}
+		return phase;
+	}
+
+	/**
+	 * Treats this vector as a 2D array of size width x height (row-major)
+	 * and cyclically shifts it by (width/2, height/2), i.e., swaps quadrants
+	 * Q1 &lt;-&gt; Q3 and Q2 &lt;-&gt; Q4 such that the zero frequency 
+	 * ends up at the center. For even sizes, this operation is its own inverse.
+	 * @param width number of columns
+	 * @param height number of rows
+	 */
+	public void swapQuadrants(int width, int height) {
+		if (width * height != re.length)
+			throw new IllegalArgumentException("wrong 2D size");
+		double[] tmp = new double[Math.max(width, height)];
+		for (double[] a : new double[][] {re, im}) {
+			for (int v = 0; v < height; v++) {
+				rotateSegment(a, v * width, 1, width, width / 2, tmp);
+			}
+			for (int u = 0; u < width; u++) {
+				rotateSegment(a, u, width, height, height / 2, tmp);
+			}
+		}
+	}
+
+	// cyclic shift of n elements a[off + k * stride] by d positions
+	private static void rotateSegment(double[] a, int off, int stride, int n, int d, double[] tmp) {
+		for (int k = 0; k < n; k++) {
+			tmp[(k + d) % n] = a[off + k * stride];
+		}
+		for (int k = 0; k < n; k++) {
+			a[off + k * stride] = tmp[k];
+		}
+	}
+
+	private void checkSize(ComplexArray c2) {
+		if (c2.re.length != re.length)
+			throw new IllegalArgumentException("complex vectors of same length expected");
+	}
+
+}
@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * This software is provided as a supplement to the authors' textbooks on digital
+ * image processing published by Springer-Verlag in various languages and editions.
+ * Permission to use and distribute this software is granted under the BSD 2-Clause 
+ * "Simplified" License (see http://opensource.org/licenses/BSD-2-Clause). 
+ * Copyright (c) 2006-2015 Wilhelm Burger, Mark J. Burge. 
+ * All rights reserved. Visit http://www.imagingbook.com for additional details.
+ *  
+ *******************************************************************************/
+
+package imagingbook.lib.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Static helper methods for running lists of independent tasks
+ * on a thread pool, with results returned in task order (i.e.,
+ * independent of the actual execution order).
+ */
+public abstract class ParallelTasks {
+	
+	/**
+	 * Returns a thread pool for the given number of threads, to be
+	 * released with {@link #release(ExecutorService)}.
+	 * @param parallelism number of threads (0 = use {@link ForkJoinPool#commonPool()}, 
+	 * 1 = no pool, i.e., tasks are run on the calling thread)
+	 * @return a thread pool or null
+	 */
+	public static ExecutorService makePool(int parallelism) {
+		if (parallelism < 0)
+			throw new IllegalArgumentException("parallelism must be >= 0");
+		if (parallelism == 0)
+			return ForkJoinPool.commonPool();
+		if (parallelism == 1)
+			return null;
+		return new ForkJoinPool(parallelism);
+	}
+	
+	/**
+	 * Shuts down a pool obtained from {@link #makePool(int)} (unless it is the
+	 * common pool or null).
+	 * @param pool the thread pool
+	 */
+	public static void release(ExecutorService pool) {
+		if (pool != null && pool != ForkJoinPool.commonPool())
+			pool.shutdown();
+	}
+	
+	/**
+	 * Runs all tasks and returns their results in task order. The tasks are run 
+	 * on the calling thread if pool is null. Exceptions thrown by a task are
+	 * re-thrown (unchecked exceptions unchanged, others wrapped in a RuntimeException).
+	 * @param <T> the result type
+	 * @param pool the thread pool (may be null)
+	 * @param tasks the tasks to run
+	 * @return the list of task results
+	 */
+	public static <T> List<T> invokeAll(ExecutorService pool, List<? extends Callable<T>> tasks) {
+		List<T> results = new ArrayList<T>(tasks.size());
+		try {
+			if (pool == null) {
+				for (Callable<T> task : tasks) {
+					results.add(task.call());
+				}
+			}
+			else {
+				for (Future<T> f : pool.invokeAll(tasks)) {
+					results.add(f.get());
+				}
+			}
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new RuntimeException(cause);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		return results;
+	}
+	
+	/**
+	 * Operation on the index range [i0, i1), e.g., a band of image rows.
+	 */
+	public interface BandOp {
+		void run(int i0, int i1);
+	}
+	
+	/**
+	 * Returns the size of the bands n items are split into for the given
+	 * number of threads: a single band for parallelism = 1, otherwise about 
+	 * 4 bands per thread.
+	 * @param n the number of items (e.g., image rows)
+	 * @param parallelism number of threads (0 = number of available processors)
+	 * @return the band size (&ge; 1)
+	 */
+	public static int getBandSize(int n, int parallelism) {
+		final int nThreads = (parallelism == 0) ? Runtime.getRuntime().availableProcessors() : parallelism;
+		return (nThreads == 1) ? Math.max(1, n) : Math.max(1, n / (4 * nThreads));
+	}
+	
+	/**
+	 * Applies op to the items 0,...,n-1, split into bands (see {@link #getBandSize(int, int)})
+	 * which are run on the given pool (on the calling thread if pool is null).
+	 * @param pool the thread pool (may be null)
+	 * @param n the number of items (e.g., image rows)
+	 * @param parallelism the number of threads the bands are sized for
+	 * @param op the operation applied to each band
+	 */
+	public static void runBands(ExecutorService pool, int n, int parallelism, final BandOp op) {
+		final int bandSize = getBandSize(n, parallelism);
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int i = 0; i < n; i += bandSize) {
+			final int i0 = i;
+			final int i1 = Math.min(i + bandSize, n);
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					op.run(i0, i1);
+					return null;
+				}
+			});
+		}
+		invokeAll(pool, tasks);
+	}
+
+}
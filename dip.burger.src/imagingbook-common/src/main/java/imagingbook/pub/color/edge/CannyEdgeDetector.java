@@ -15,11 +15,16 @@ import ij.process.ByteProcessor;
 import ij.process.ColorProcessor;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
+import imagingbook.lib.util.ParallelTasks;
+import imagingbook.lib.util.ParallelTasks.BandOp;
 
 import java.awt.Point;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Stack;
+import java.util.concurrent.ExecutorService;
 
 /**
  * This class implements a Canny edge detector for grayscale and RGB images.
@@ -37,6 +42,10 @@ public class CannyEdgeDetector extends ColorEdgeDetector {
 		public float loThr  = 5.0f;
 		/** Set true to normalize gradient magnitude */
 		public boolean normGradMag = true;	
+		/** Set true to use the high-throughput implementation (flat arrays, parallel passes) */
+		public boolean fastMode = false;
+		/** Number of threads used in fast mode (0 = use the common thread pool, 1 = run on the calling thread) */
+		public int parallelism = 0;
 		
 		/**
 		 * Checks the parameter set.
@@ -55,6 +64,7 @@ public class CannyEdgeDetector extends ColorEdgeDetector {
 	FloatProcessor Ex, Ey;			// edge normal vectors
 	ByteProcessor Ebin;				// final (binary) edge image
 	List<List<Point>> traceList;	// list of edge traces
+	List<int[]> traceArrays;		// list of edge traces, as coordinate arrays (fast mode)
 	
 	// Constructor with default parameters:
 	public CannyEdgeDetector(ImageProcessor ip) {
@@ -73,6 +83,10 @@ public class CannyEdgeDetector extends ColorEdgeDetector {
 	void findEdges() {
 		M = I.getWidth();
 		N = I.getHeight();
+		if (params.fastMode) {
+			findEdgesFast();
+			return;
+		}
 		if (I instanceof ColorProcessor) 
 			makeGradientsAndMagnitudeColor();
 		else
@@ -329,9 +343,297 @@ public class CannyEdgeDetector extends ColorEdgeDetector {
 	}
 	
 	public List<List<Point>> getEdgeTraces() {
+		if (traceList == null) {	// fast mode
+			traceList = new LinkedList<List<Point>>();
+			for (int[] xy : traceArrays) {
+				List<Point> trace = new ArrayList<Point>(xy.length / 2);
+				for (int i = 0; i < xy.length; i += 2) {
+					trace.add(new Point(xy[i], xy[i + 1]));
+				}
+				traceList.add(trace);
+			}
+		}
 		return traceList;
 	}
 	
+	/**
+	 * Returns the edge traces as compact coordinate arrays {x0, y0, x1, y1, ...},
+	 * with the points of each trace in tracing order.
+	 * @return a list of coordinate arrays, one for each edge trace
+	 */
+	public List<int[]> getEdgeTracesCompact() {
+		if (traceArrays == null) {
+			traceArrays = new ArrayList<int[]>(traceList.size());
+			for (List<Point> trace : traceList) {
+				int[] xy = new int[2 * trace.size()];
+				int i = 0;
+				for (Point p : trace) {
+					xy[i++] = p.x;
+					xy[i++] = p.y;
+				}
+				traceArrays.add(xy);
+			}
+		}
+		return traceArrays;
+	}
+	
+	//---------------------------------------------------------------------------
+	// High-throughput implementation (params.fastMode): all intermediate results are
+	// flat float arrays, Gaussian smoothing, gradient/magnitude/orientation sector and 
+	// non-maximum suppression are computed by horizontal bands in parallel and 
+	// hysteresis thresholding uses a stack of pixel indices (marking pixels when pushed).
+	// Results are the same as with the standard implementation, except that each
+	// edge point appears only once in its edge trace.
+	
+	void findEdgesFast() {
+		final float[] emag = new float[M * N];
+		final float[] ex = new float[M * N];
+		final float[] ey = new float[M * N];
+		final byte[] sector = new byte[M * N];
+		final float[] enms = new float[M * N];
+		ExecutorService pool = ParallelTasks.makePool(params.parallelism);
+		try {
+			final float[][] channels = (I instanceof ColorProcessor) ?
+					getFloatPixels(rgbToFloatChannels((ColorProcessor) I)) :
+					new float[][] {(float[]) ((I instanceof FloatProcessor) ? I.duplicate() : I.convertToFloat()).getPixels()};
+			final float[] gaussKernel = makeGaussKernel1d(params.gSigma);
+			final float[] tmp = new float[M * N];
+			for (final float[] pix : channels) {
+				ParallelTasks.runBands(pool, N, params.parallelism, new BandOp() {
+					public void run(int v0, int v1) {
+						smoothX(pix, tmp, gaussKernel, v0, v1);
+					}
+				});
+				ParallelTasks.runBands(pool, N, params.parallelism, new BandOp() {
+					public void run(int v0, int v1) {
+						smoothY(tmp, pix, gaussKernel, v0, v1);
+					}
+				});
+			}
+			
+			final float[] emax = new float[N];	// max. magnitude of each row
+			ParallelTasks.runBands(pool, N, params.parallelism, new BandOp() {
+				public void run(int v0, int v1) {
+					if (channels.length == 1)
+						makeGradientsGray(channels[0], ex, ey, emag, sector, emax, v0, v1);
+					else
+						makeGradientsColor(channels, ex, ey, emag, sector, emax, v0, v1);
+				}
+			});
+			float eMax = 0;
+			for (float e : emax) {
+				if (e > eMax) eMax = e;
+			}
+			if (params.normGradMag && eMax > 0.001) {	// same as FloatProcessor.multiply()
+				final double s = 100.0 / eMax;
+				ParallelTasks.runBands(pool, N, params.parallelism, new BandOp() {
+					public void run(int v0, int v1) {
+						for (int i = v0 * M; i < v1 * M; i++) {
+							emag[i] = (float) (emag[i] * s);
+						}
+					}
+				});
+			}
+			
+			ParallelTasks.runBands(pool, N, params.parallelism, new BandOp() {
+				public void run(int v0, int v1) {
+					nonMaxSuppression(emag, sector, enms, v0, v1);
+				}
+			});
+		} finally {
+			ParallelTasks.release(pool);
+		}
+		Emag = new FloatProcessor(M, N, emag);
+		Ex = new FloatProcessor(M, N, ex);
+		Ey = new FloatProcessor(M, N, ey);
+		Enms = new FloatProcessor(M, N, enms);
+		traceAndThresholdFast(enms);
+	}
+	
+	private float[][] getFloatPixels(FloatProcessor[] fps) {
+		float[][] pixels = new float[fps.length][];
+		for (int i = 0; i < fps.length; i++) {
+			pixels[i] = (float[]) fps[i].getPixels();
+		}
+		return pixels;
+	}
+	
+	// normalized 1D convolution in x (border pixels replicated, as by Convolver)
+	private void smoothX(float[] src, float[] dst, float[] kernel, int v0, int v1) {
+		final int r = kernel.length / 2;
+		final double scale = getScale(kernel);
+		for (int v = v0; v < v1; v++) {
+			final int row = v * M;
+			for (int u = 0; u < M; u++) {
+				double sum = 0;
+				if (u >= r && u < M - r) {	// interior
+					for (int k = 0, i = row + u - r; k < kernel.length; k++, i++) {
+						sum += src[i] * kernel[k];
+					}
+				}
+				else {
+					for (int k = 0; k < kernel.length; k++) {
+						int uu = u + k - r;
+						if (uu < 0) uu = 0;
+						else if (uu >= M) uu = M - 1;
+						sum += src[row + uu] * kernel[k];
+					}
+				}
+				dst[row + u] = (float) (sum * scale);
+			}
+		}
+	}
+	
+	// normalized 1D convolution in y (border pixels replicated, as by Convolver)
+	private void smoothY(float[] src, float[] dst, float[] kernel, int v0, int v1) {
+		final int r = kernel.length / 2;
+		final double scale = getScale(kernel);
+		final double[] sum = new double[M];
+		for (int v = v0; v < v1; v++) {
+			Arrays.fill(sum, 0);
+			for (int k = 0; k < kernel.length; k++) {
+				int vv = v + k - r;
+				if (vv < 0) vv = 0;
+				else if (vv >= N) vv = N - 1;
+				final int row = vv * M;
+				final float w = kernel[k];
+				for (int u = 0; u < M; u++) {
+					sum[u] += src[row + u] * w;
+				}
+			}
+			final int row = v * M;
+			for (int u = 0; u < M; u++) {
+				dst[row + u] = (float) (sum[u] * scale);
+			}
+		}
+	}
+	
+	private static double getScale(float[] kernel) {
+		double sum = 0;
+		for (float k : kernel) {
+			sum += k;
+		}
+		return (sum != 0) ? 1 / sum : 1;
+	}
+	
+	// x-derivative (-0.5, 0, 0.5) at position i = v * M + u
+	private float dX(float[] I, int i, int u) {
+		final int iL = (u > 0) ? i - 1 : i;
+		final int iR = (u < M - 1) ? i + 1 : i;
+		return (float) (-0.5 * I[iL] + 0.5 * I[iR]);
+	}
+	
+	// y-derivative (-0.5, 0, 0.5) at position i = v * M + u
+	private float dY(float[] I, int i, int v) {
+		final int iT = (v > 0) ? i - M : i;
+		final int iB = (v < N - 1) ? i + M : i;
+		return (float) (-0.5 * I[iT] + 0.5 * I[iB]);
+	}
+	
+	private void makeGradientsGray(float[] I, float[] ex, float[] ey, float[] emag, byte[] sector, 
+			float[] emax, int v0, int v1) {
+		for (int v = v0; v < v1; v++) {
+			float rowMax = 0;
+			for (int u = 0, i = v * M; u < M; u++, i++) {
+				final float dx = dX(I, i, u);
+				final float dy = dY(I, i, v);
+				final float mag = (float) Math.sqrt((double) dx * dx + (double) dy * dy);
+				if (mag > rowMax) rowMax = mag;
+				ex[i] = dx;
+				ey[i] = dy;
+				emag[i] = mag;
+				sector[i] = (byte) getOrientationSector(dx, dy);
+			}
+			emax[v] = rowMax;
+		}
+	}
+	
+	private void makeGradientsColor(float[][] rgb, float[] ex, float[] ey, float[] emag, byte[] sector, 
+			float[] emax, int v0, int v1) {
+		final float[] R = rgb[0], G = rgb[1], B = rgb[2];
+		for (int v = v0; v < v1; v++) {
+			float rowMax = 0;
+			for (int u = 0, i = v * M; u < M; u++, i++) {
+				final float rx = dX(R, i, u), ry = dY(R, i, v);
+				final float gx = dX(G, i, u), gy = dY(G, i, v);
+				final float bx = dX(B, i, u), by = dY(B, i, v);
+				final float A = rx*rx + gx*gx + bx*bx;
+				final float Bc = ry*ry + gy*gy + by*by;
+				final float C = rx*ry + gx*gy + bx*by;
+				final float D = (float) Math.sqrt((A - Bc)*(A - Bc) + 4*C*C);
+				final float mag = (float) Math.sqrt(0.5*(A+Bc+D));
+				if (mag > rowMax) rowMax = mag;
+				ex[i] = A - Bc + D;
+				ey[i] = 2*C;
+				emag[i] = mag;
+				sector[i] = (byte) getOrientationSector(ex[i], ey[i]);
+			}
+			emax[v] = rowMax;
+		}
+	}
+	
+	private void nonMaxSuppression(float[] emag, byte[] sector, float[] enms, int v0, int v1) {
+		final float mMin = params.loThr;
+		for (int v = Math.max(v0, 1); v < Math.min(v1, N - 1); v++) {
+			for (int u = 1, i = v * M + 1; u < M - 1; u++, i++) {
+				final float mC = emag[i];
+				if (mC < mMin)
+					continue;
+				final int d;	// index offset of the neighbors in gradient direction
+				switch (sector[i]) {
+				case 0 : d = 1; 	break;
+				case 1 : d = M + 1; break;
+				case 2 : d = M; 	break;
+				default: d = M - 1;	break;
+				}
+				if (emag[i - d] <= mC && mC >= emag[i + d]) {
+					enms[i] = mC;	// keep local maximum only
+				}
+			}
+		}
+	}
+	
+	private void traceAndThresholdFast(float[] enms) {
+		final float hiThr = params.hiThr;
+		final float loThr = params.loThr;
+		final byte[] ebin = new byte[M * N];
+		int[] stack = new int[256];
+		int[] trace = new int[256];
+		traceArrays = new ArrayList<int[]>();
+		for (int i0 = 0; i0 < M * N; i0++) {
+			if (enms[i0] < hiThr || ebin[i0] != 0)
+				continue;
+			// new edge trace, starting at i0:
+			int sp = 0, n = 0;
+			stack[sp++] = i0;
+			ebin[i0] = (byte) 255;
+			while (sp > 0) {
+				final int p = stack[--sp];
+				if (n == trace.length) trace = Arrays.copyOf(trace, 2 * n);
+				trace[n++] = p;
+				final int up = p % M, vp = p / M;
+				final int uL = Math.max(up - 1, 0), uR = Math.min(up + 1, M - 1);
+				final int vT = Math.max(vp - 1, 0), vB = Math.min(vp + 1, N - 1);
+				for (int v = vT; v <= vB; v++) {
+					for (int u = uL, q = v * M + uL; u <= uR; u++, q++) {
+						if (ebin[q] == 0 && enms[q] >= loThr) {
+							ebin[q] = (byte) 255;
+							if (sp == stack.length) stack = Arrays.copyOf(stack, 2 * sp);
+							stack[sp++] = q;
+						}
+					}
+				}
+			}
+			int[] xy = new int[2 * n];
+			for (int k = 0; k < n; k++) {
+				xy[2 * k] = trace[k] % M;
+				xy[2 * k + 1] = trace[k] / M;
+			}
+			traceArrays.add(xy);
+		}
+		Ebin = new ByteProcessor(M, N, ebin);
+	}
+	
 	//---------------------------------------------------------------------------
 
 	float[] makeGaussKernel1d(double sigma) {
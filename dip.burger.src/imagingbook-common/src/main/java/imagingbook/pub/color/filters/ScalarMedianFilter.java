@@ -10,15 +10,37 @@
 
 package imagingbook.pub.color.filters;
 
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
 import imagingbook.lib.filters.GenericFilter;
 import imagingbook.lib.image.ImageAccessor;
+import imagingbook.lib.util.ParallelTasks;
+import imagingbook.lib.util.ParallelTasks.BandOp;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Ordinary (scalar) median filter for color images implemented
  * by extending the {@link GenericFilter} class.
  * Color images are filtered individually in all channels.
+ * <p>
+ * By default (see {@link Parameters#useSlidingWindow}) the filter keeps a
+ * histogram of the pixel values inside the (circular) filter mask, which is 
+ * updated along each image row by removing and adding the pixels at the left and 
+ * right mask boundary, i.e., at O(r) cost per pixel (T. S. Huang et al. 1979, 
+ * S. Perreault and P. Hebert 2007). The median is tracked incrementally using a 
+ * two-level histogram. Float images (and other images with many distinct values)
+ * are first converted to ranks, such that the histogram size is limited by the
+ * number of distinct pixel values. The results are the same as with the 
+ * (sort-based) {@link #filterPixel(ImageAccessor.Scalar, int, int)} method.
+ * See {@link #main(String[])} for a benchmark.
+ * </p>
  * @author W. Burger
  * @version 2013/05/30
  */
@@ -27,6 +49,8 @@ public class ScalarMedianFilter extends GenericFilter {
 	public static class Parameters {
 		/** Filter radius */
 		public double radius = 3.0;
+		/** Set false to use the (slow) sort-based implementation */
+		public boolean useSlidingWindow = true;
 	}
 	
 	final Parameters params;
@@ -102,4 +126,312 @@ public class ScalarMedianFilter extends GenericFilter {
 		Arrays.sort(pB); //pF[2] = pB[medianIndex];
 		return new float[] { pR[medianIndex], pG[medianIndex], pB[medianIndex] };
  	}
+	
+	//-------------------------------------------------------------------------------------
+	
+	// overrides the corresponding method in GenericFilter
+	@Override
+	public void applyTo(ImageProcessor ip) {
+		if (!params.useSlidingWindow) {
+			super.applyTo(ip);
+			return;
+		}
+		final MaskEdges edges = new MaskEdges(mask, ip.getWidth() + 2 * mask.getCenter());
+		final int nc = (ip instanceof ColorProcessor) ? 3 : 1;
+		final RankImage[] ranks = new RankImage[nc];
+		for (int c = 0; c < nc; c++) {
+			ranks[c] = new RankImage(ip, c, mask.getCenter());
+		}
+		final int w = ip.getWidth();
+		final int h = ip.getHeight();
+		ExecutorService pool = ParallelTasks.makePool(getParallelism());
+		try {
+			ParallelTasks.runBands(pool, h, getParallelism(), new BandOp() {
+				public void run(int v0, int v1) {
+					int[][] result = new int[nc][w];
+					RankHistogram hist = null;
+					for (int v = v0; v < v1; v++) {
+						for (int c = 0; c < nc; c++) {
+							if (hist == null || hist.size() != ranks[c].levels) 
+								hist = new RankHistogram(ranks[c].levels);
+							filterRow(ranks[c], edges, v, hist, result[c]);
+						}
+						writeRow(ip, v, ranks, result);
+					}
+				}
+			});
+		}
+		finally {
+			ParallelTasks.release(pool);
+		}
+	}
+	
+	/*
+	 * Calculates the median ranks for image row v.
+	 */
+	private void filterRow(RankImage ri, MaskEdges edges, int v, RankHistogram hist, int[] result) {
+		final int[] R = ri.ranks;
+		final int k = mask.getCount() / 2;
+		// fill the histogram for position (0, v):
+		int p = (v + mask.getCenter()) * ri.width + mask.getCenter();	// (0, v) in the padded image
+		for (int q : edges.all) {
+			hist.add(R[p + q]);
+		}
+		result[0] = hist.select(k);
+		final int[] remove = edges.left;
+		final int[] add = edges.right;
+		for (int u = 1; u < result.length; u++) {
+			for (int i = 0; i < remove.length; i++) {
+				hist.remove(R[p + remove[i]]);
+			}
+			p++;
+			for (int i = 0; i < add.length; i++) {
+				hist.add(R[p + add[i]]);
+			}
+			result[u] = hist.select(k);
+		}
+		// clear the histogram for the next row:
+		for (int q : edges.all) {
+			hist.remove(R[p + q]);
+		}
+	}
+	
+	private void writeRow(ImageProcessor ip, int v, RankImage[] ranks, int[][] result) {
+		final int w = ip.getWidth();
+		if (ip instanceof ColorProcessor) {
+			final int[] pixels = (int[]) ip.getPixels();
+			for (int u = 0; u < w; u++) {
+				pixels[v * w + u] = 0xff000000 | (result[0][u] << 16) | (result[1][u] << 8) | result[2][u];
+			}
+		}
+		else {
+			final float[] values = ranks[0].values;
+			for (int u = 0; u < w; u++) {
+				int r = result[0][u];
+				ip.setf(v * w + u, (values == null) ? r : values[r]);
+			}
+		}
+	}
+	
+	/*
+	 * A single channel of an image, with pixel values replaced by their ranks 
+	 * (0,...,levels-1) and padded by replicating the border pixels.
+	 * For integer-valued images the rank is the pixel value itself (values == null).
+	 */
+	private static class RankImage {
+		final int width;		// padded width
+		final int[] ranks;
+		final int levels;
+		final float[] values;	// values[r] is the pixel value with rank r (or null)
+		
+		RankImage(ImageProcessor ip, int c, int pad) {
+			final int w = ip.getWidth();
+			final int h = ip.getHeight();
+			int[] R = new int[w * h];
+			if (ip instanceof ColorProcessor) {
+				final int[] pixels = (int[]) ip.getPixels();
+				final int shift = 16 - 8 * c;
+				for (int i = 0; i < R.length; i++) {
+					R[i] = (pixels[i] >> shift) & 0xff;
+				}
+				levels = 256;
+				values = null;
+			}
+			else if (ip instanceof FloatProcessor) {
+				final float[] pixels = (float[]) ip.getPixels();
+				float[] sorted = pixels.clone();
+				Arrays.sort(sorted);
+				int n = 0;	// number of distinct values
+				for (int i = 0; i < sorted.length; i++) {
+					if (n == 0 || Float.compare(sorted[i], sorted[n - 1]) != 0) {
+						sorted[n++] = sorted[i];
+					}
+				}
+				values = Arrays.copyOf(sorted, n);
+				for (int i = 0; i < R.length; i++) {
+					R[i] = Arrays.binarySearch(values, pixels[i]);
+				}
+				levels = n;
+			}
+			else {	// byte or short image
+				int max = 0;
+				for (int i = 0; i < R.length; i++) {
+					R[i] = ip.get(i);
+					max = Math.max(max, R[i]);
+				}
+				levels = (ip instanceof ShortProcessor) ? max + 1 : 256;
+				values = null;
+			}
+			// pad by replicating border pixels:
+			width = w + 2 * pad;
+			ranks = new int[width * (h + 2 * pad)];
+			for (int v = 0; v < h + 2 * pad; v++) {
+				int vv = Math.min(Math.max(v - pad, 0), h - 1);
+				for (int u = 0; u < width; u++) {
+					int uu = Math.min(Math.max(u - pad, 0), w - 1);
+					ranks[v * width + u] = R[vv * w + uu];
+				}
+			}
+		}
+	}
+	
+	/*
+	 * Offsets (in a padded image of the given width, relative to the mask center) 
+	 * of all mask elements and of the mask elements at the left and right
+	 * boundary of each mask row.
+	 */
+	private static class MaskEdges {
+		final int[] all, left, right;
+		
+		MaskEdges(FilterMask mask, int width) {
+			final int[][] m = mask.getMask();
+			final int c = mask.getCenter();
+			final int n = m.length;
+			List<Integer> all = new ArrayList<Integer>();
+			List<Integer> left = new ArrayList<Integer>();
+			List<Integer> right = new ArrayList<Integer>();
+			for (int j = 0; j < n; j++) {	// mask row (y)
+				for (int i = 0; i < n; i++) {
+					if (m[i][j] > 0) {
+						int q = (j - c) * width + (i - c);
+						all.add(q);
+						if (i == 0 || m[i - 1][j] == 0)
+							left.add(q);
+						if (i == n - 1 || m[i + 1][j] == 0)
+							right.add(q);
+					}
+				}
+			}
+			this.all = toArray(all);
+			this.left = toArray(left);
+			this.right = toArray(right);
+		}
+		
+		private static int[] toArray(List<Integer> list) {
+			int[] a = new int[list.size()];
+			for (int i = 0; i < a.length; i++) {
+				a[i] = list.get(i);
+			}
+			return a;
+		}
+	}
+	
+	/*
+	 * Histogram of ranks with coarse (block) counts, keeping track of a current
+	 * position m and the number of values below m to select the k-th smallest 
+	 * value incrementally.
+	 */
+	private static class RankHistogram {
+		private final int size;
+		private final int shift;	// block size is 2^shift
+		private final int[] H;		// fine histogram
+		private final int[] C;		// coarse histogram (counts per block)
+		private int m = 0;			// current position
+		private int lt = 0;			// number of values < m
+		
+		RankHistogram(int size) {
+			this.size = size;
+			int bits = 32 - Integer.numberOfLeadingZeros(Math.max(size - 1, 1));
+			this.shift = Math.max(4, (bits + 1) / 2);
+			int nBlocks = ((size - 1) >> shift) + 1;
+			this.H = new int[nBlocks << shift];
+			this.C = new int[nBlocks];
+		}
+		
+		int size() {
+			return size;
+		}
+		
+		void add(int r) {
+			H[r]++;
+			C[r >> shift]++;
+			if (r < m) lt++;
+		}
+		
+		void remove(int r) {
+			H[r]--;
+			C[r >> shift]--;
+			if (r < m) lt--;
+		}
+		
+		// returns the k-th smallest value (k = 0, 1,...)
+		int select(int k) {
+			final int mask = (1 << shift) - 1;
+			while (lt > k) {	// move down
+				if ((m & mask) == 0 && lt - C[(m >> shift) - 1] > k) {	// skip the block below m
+					m = m - mask - 1;
+					lt = lt - C[m >> shift];
+				}
+				else {
+					m--;
+					lt = lt - H[m];
+				}
+			}
+			while (lt + H[m] <= k) {	// move up
+				if ((m & mask) == 0 && lt + C[m >> shift] <= k) {	// skip the block starting at m
+					lt = lt + C[m >> shift];
+					m = m + mask + 1;
+				}
+				else {
+					lt = lt + H[m];
+					m++;
+				}
+			}
+			return m;
+		}
+	}
+	
+	//-------------------------------------------------------------------------------------
+	
+	/**
+	 * Benchmark: running times (ms, single thread) of the sort-based and the 
+	 * sliding-window median filter for random 8-bit, 16-bit, float and RGB images 
+	 * of size 512 x 512 and increasing filter radius. Also checks that both 
+	 * implementations produce the same results.
+	 * @param args ignored
+	 */
+	public static void main(String[] args) {
+		final int size = 512;
+		Random rnd = new Random(11);
+		ImageProcessor[] images = {
+			new ij.process.ByteProcessor(size, size), new ShortProcessor(size, size), 
+			new FloatProcessor(size, size), new ColorProcessor(size, size)};
+		for (ImageProcessor ip : images) {
+			for (int i = 0; i < ip.getPixelCount(); i++) {
+				if (ip instanceof FloatProcessor)
+					ip.setf(i, (float) rnd.nextGaussian());
+				else if (ip instanceof ShortProcessor)
+					ip.set(i, rnd.nextInt(4096));
+				else
+					ip.set(i, rnd.nextInt());
+			}
+		}
+		System.out.println("image | radius | sort (ms) | sliding (ms) | same result");
+		for (ImageProcessor ip : images) {
+			for (double radius : new double[] {1, 2, 3, 5, 10}) {
+				ImageProcessor A = ip.duplicate();
+				ImageProcessor B = ip.duplicate();
+				Parameters params = new Parameters();
+				params.radius = radius;
+				params.useSlidingWindow = false;
+				ScalarMedianFilter fA = new ScalarMedianFilter(params);
+				fA.setParallelism(1);
+				long t0 = System.nanoTime();
+				fA.applyTo(A);
+				long t1 = System.nanoTime();
+				params.useSlidingWindow = true;
+				ScalarMedianFilter fB = new ScalarMedianFilter(params);
+				fB.setParallelism(1);
+				fB.applyTo(B);
+				long t2 = System.nanoTime();
+				boolean same = true;
+				for (int i = 0; i < ip.getPixelCount() && same; i++) {
+					same = (ip instanceof ColorProcessor) ? 
+							(A.get(i) & 0xffffff) == (B.get(i) & 0xffffff) : A.getf(i) == B.getf(i);
+				}
+				System.out.format("%-5d | %6.1f | %9d | %12d | %s%n", ip.getBitDepth(), radius, 
+						(t1 - t0) / 1000000, (t2 - t1) / 1000000, same);
+			}
+		}
+	}
 }
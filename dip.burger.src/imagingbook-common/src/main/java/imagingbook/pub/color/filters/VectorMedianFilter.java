@@ -10,6 +10,8 @@
 
 package imagingbook.pub.color.filters;
 
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
 import imagingbook.lib.filters.GenericFilter;
 import imagingbook.lib.image.ImageAccessor;
 import imagingbook.lib.image.ImageAccessor.Scalar;
@@ -21,6 +23,10 @@ import java.awt.Color;
 /**
  * Basic vector median filter for color images implemented
  * by extending the {@link GenericFilter} class.
+ * By default (see {@link Parameters#useSlidingWindow}) the aggregate
+ * distances are updated incrementally while the filter mask is moved along 
+ * the image rows (see {@link VectorMedianWindow}), which reduces the cost 
+ * per pixel from O(r^4) to O(r^3) for filter radius r.
  * @author W. Burger
  * @version 2013/05/30
  */
@@ -31,6 +37,11 @@ public class VectorMedianFilter extends GenericFilter {
 		public double radius = 3.0;
 		/** Distance norm to use */
 		public NormType distanceNorm = NormType.L1;
+		/** Set false to use the (slow) brute-force implementation */
+		public boolean useSlidingWindow = true;
+		/** Radius of the region from which the median color is selected (0 = same as radius),
+		 * smaller values give an approximate but faster filter */
+		public double candidateRadius = 0;
 		/** For testing only */
 		public boolean markModifiedPixels = false;
 		/** For testing only */
@@ -44,7 +55,9 @@ public class VectorMedianFilter extends GenericFilter {
 	public int modifiedCount = 0;
 	
 	final FilterMask mask;
-	final int[][] supportRegion;		// supportRegion[i][c] with index i, color component c
+	final FilterMask candidates;
+	final boolean[] isCandidate;	// isCandidate[i] for support region index i
+	int[][] supportRegion;		// supportRegion[i][c] with index i, color component c
 	final VectorNorm vNorm;
 	
 	//-------------------------------------------------------------------------------------
@@ -58,6 +71,9 @@ public class VectorMedianFilter extends GenericFilter {
 	public VectorMedianFilter(Parameters params) {
 		this.params = params;
 		mask = new FilterMask(params.radius);
+		candidates = (params.candidateRadius > 0 && params.candidateRadius < params.radius) ?
+				new FilterMask(params.candidateRadius) : mask;
+		isCandidate = VectorMedianWindow.getCandidateFlags(mask, candidates);
 		supportRegion = new int[mask.getCount()][3];
 		vNorm = params.distanceNorm.create();
 		initialize();
@@ -69,6 +85,51 @@ public class VectorMedianFilter extends GenericFilter {
 		if (params.showMask) mask.show("Mask");
 	}
 	
+	@Override
+	protected VectorMedianFilter makeWorker() {
+		VectorMedianFilter worker = (VectorMedianFilter) super.makeWorker();
+		worker.supportRegion = new int[supportRegion.length][3];	// private scratch data
+		worker.modifiedCount = 0;
+		return worker;
+	}
+	
+	@Override
+	protected void mergeWorker(GenericFilter worker) {
+		modifiedCount += ((VectorMedianFilter) worker).modifiedCount;
+	}
+	
+	// overrides the corresponding method in GenericFilter
+	@Override
+	public void applyTo(ImageProcessor ip) {
+		if (!params.useSlidingWindow || !(ip instanceof ColorProcessor)) {
+			super.applyTo(ip);
+			return;
+		}
+		final int w = ip.getWidth();
+		final int[] pixels = (int[]) ip.getPixels();
+		final int modRgb = (modColor[0] << 16) | (modColor[1] << 8) | modColor[2];
+		VectorMedianWindow.run((ColorProcessor) ip, mask, candidates, vNorm, 0, getParallelism(), 
+			new VectorMedianWindow.RowHandler() {
+				public void processRow(int v, int[] rgbMin, double[] dMin, double[] dCtr) {
+					int count = 0;
+					for (int u = 0; u < w; u++) {
+						if (dMin[u] < dCtr[u]) {	// modify this pixel
+							if (params.markModifiedPixels) {
+								pixels[v * w + u] = 0xff000000 | modRgb;
+								count++;
+							}
+							else {
+								pixels[v * w + u] = 0xff000000 | rgbMin[u];
+							}
+						}
+					}
+					synchronized (VectorMedianFilter.this) {
+						modifiedCount += count;
+					}
+				}
+			});
+	}
+	
 	public float filterPixel(Scalar source, int u, int v) {
 		throw new IllegalArgumentException("no filter for gray images");
 	}
@@ -83,6 +144,8 @@ public class VectorMedianFilter extends GenericFilter {
 		double dMin = Double.MAX_VALUE;
 		int jMin = -1;
 		for (int j = 0; j < supportRegion.length; j++) {
+			if (!isCandidate[j]) 
+				continue;
 			int[] p = supportRegion[j];
 			double d = aggregateDistance(p, supportRegion);
 			if (d < dMin) {
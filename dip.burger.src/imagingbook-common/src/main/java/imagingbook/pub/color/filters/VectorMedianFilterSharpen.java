@@ -10,6 +10,8 @@
 
 package imagingbook.pub.color.filters;
 
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
 import imagingbook.lib.filters.GenericFilter;
 import imagingbook.lib.image.ImageAccessor;
 import imagingbook.lib.math.VectorNorm;
@@ -17,10 +19,16 @@ import imagingbook.lib.math.VectorNorm.NormType;
 
 import java.awt.Color;
 import java.util.Arrays;
+import java.util.Random;
 
 /**
  * Sharpening vector median filter for color images implemented
  * by extending the {@link GenericFilter} class.
+ * By default (see {@link Parameters#useSlidingWindow}) the sorted distances
+ * of each pixel to the other pixels in the filter region are updated 
+ * incrementally while the filter mask is moved along the image rows 
+ * (see {@link VectorMedianWindow}). The results are the same as with the
+ * brute-force implementation (see {@link #main(String[])}).
  * @author W. Burger
  * @version 2013/05/30
  */
@@ -35,6 +43,11 @@ public class VectorMedianFilterSharpen extends GenericFilter {
 		public double threshold = 0.0;	
 		/** Distance norm to use */
 		public NormType distanceNorm = NormType.L1;
+		/** Set false to use the (slow) brute-force implementation */
+		public boolean useSlidingWindow = true;
+		/** Radius of the region from which the median color is selected (0 = same as radius),
+		 * smaller values give an approximate but faster filter */
+		public double candidateRadius = 0;
 		/** For testing only */
 		public boolean showMask = false;
 		/** For testing only */
@@ -44,7 +57,9 @@ public class VectorMedianFilterSharpen extends GenericFilter {
 	}
 	
 	private final FilterMask mask;
-	private final int[][] supportRegion;		// supportRegion[i][c] with index i, color component c
+	private final FilterMask candidates;
+	private final boolean[] isCandidate;	// isCandidate[i] for support region index i
+	private int[][] supportRegion;		// supportRegion[i][c] with index i, color component c
 	private final VectorNorm vNorm;
 	private final int a;						// a = 2,...,n
 	private final Parameters params;
@@ -64,6 +79,9 @@ public class VectorMedianFilterSharpen extends GenericFilter {
 	public VectorMedianFilterSharpen(Parameters params) {
 		this.params = params;
 		mask = new FilterMask(params.radius);
+		candidates = (params.candidateRadius > 0 && params.candidateRadius < params.radius) ?
+				new FilterMask(params.candidateRadius) : mask;
+		isCandidate = VectorMedianWindow.getCandidateFlags(mask, candidates);
 		int maskCount = mask.getCount();
 		supportRegion = new int[maskCount][3];
 		a = (int) Math.round(maskCount - params.sharpen * (maskCount - 2));
@@ -77,6 +95,52 @@ public class VectorMedianFilterSharpen extends GenericFilter {
 			mask.show("Mask");
 	}
 	
+	@Override
+	protected VectorMedianFilterSharpen makeWorker() {
+		VectorMedianFilterSharpen worker = (VectorMedianFilterSharpen) super.makeWorker();
+		worker.supportRegion = new int[supportRegion.length][3];	// private scratch data
+		worker.modifiedCount = 0;
+		return worker;
+	}
+	
+	@Override
+	protected void mergeWorker(GenericFilter worker) {
+		modifiedCount += ((VectorMedianFilterSharpen) worker).modifiedCount;
+	}
+	
+	// overrides the corresponding method in GenericFilter
+	@Override
+	public void applyTo(ImageProcessor ip) {
+		if (!params.useSlidingWindow || !(ip instanceof ColorProcessor)) {
+			super.applyTo(ip);
+			return;
+		}
+		final int w = ip.getWidth();
+		final int[] pixels = (int[]) ip.getPixels();
+		final int modRgb = (modColor[0] << 16) | (modColor[1] << 8) | modColor[2];
+		// the trimmed aggregate distance is zero for a <= 1
+		VectorMedianWindow.run((ColorProcessor) ip, mask, candidates, vNorm, Math.max(a, 1), getParallelism(), 
+			new VectorMedianWindow.RowHandler() {
+				public void processRow(int v, int[] rgbMin, double[] dMin, double[] dCtr) {
+					int count = 0;
+					for (int u = 0; u < w; u++) {
+						if (dCtr[u] - dMin[u] > params.threshold * a) {	// modify this pixel
+							if (params.markModifiedPixels) {
+								pixels[v * w + u] = 0xff000000 | modRgb;
+								count++;
+							}
+							else {
+								pixels[v * w + u] = 0xff000000 | rgbMin[u];
+							}
+						}
+					}
+					synchronized (VectorMedianFilterSharpen.this) {
+						modifiedCount += count;
+					}
+				}
+			});
+	}
+	
 	public float filterPixel(ImageAccessor.Scalar source, int u, int v) {
 		throw new IllegalArgumentException("no filter for gray images");
 	}
@@ -93,6 +157,8 @@ public class VectorMedianFilterSharpen extends GenericFilter {
 		double dMin = Double.MAX_VALUE;
 		int jMin = -1;
 		for (int j = 0; j < supportRegion.length; j++) {
+			if (!isCandidate[j]) 
+				continue;
 			int[] p = supportRegion[j];
 			double d = trimmedAggregateDistance(p, supportRegion, a);
 			if (d < dMin) {
@@ -177,11 +243,11 @@ public class VectorMedianFilterSharpen extends GenericFilter {
 		for (int i = 0; i < N; i++) {
 			R[i] = vNorm.distance(p, P[i]);
 		}
-		if (a < N) {
-			Arrays.sort(R);	// only sort if the rank is less than N
-		}
+		// sorting is required for a = N too, since R[0] must be the distance of p to itself (zero):
+		Arrays.sort(R);
+		final int n = Math.min(a, N);
 		double d = 0;
-		for (int i = 1; i < a; i++) {
+		for (int i = 1; i < n; i++) {
 			d = d + R[i];
 		}
 		return d;
@@ -190,5 +256,49 @@ public class VectorMedianFilterSharpen extends GenericFilter {
 	final int rgbToInt (int r, int g, int b) {
 		return ((r & 0xFF)<<16) | ((g & 0xFF)<<8) | b & 0xFF;
 	}
+	
+	//-------------------------------------------------------------------------------------
+	
+	/**
+	 * Benchmark: running times (ms, single thread) of the brute-force and the 
+	 * sliding-window filter for a random RGB image of size 160 x 120, for
+	 * all distance norms and sharpening factors 0 (i.e., a = N), 0.5 and 1.
+	 * Also checks that both implementations produce the same results.
+	 * @param args ignored
+	 */
+	public static void main(String[] args) {
+		Random rnd = new Random(11);
+		ColorProcessor cp = new ColorProcessor(160, 120);
+		for (int i = 0; i < cp.getPixelCount(); i++) {
+			cp.set(i, rnd.nextInt(4) * 0x3F3F3F + rnd.nextInt(0x101010));	// few similar colors
+		}
+		System.out.println("norm | sharpen | brute force (ms) | sliding (ms) | same result");
+		for (NormType norm : NormType.values()) {
+			for (double sharpen : new double[] {0, 0.5, 1}) {
+				ColorProcessor A = (ColorProcessor) cp.duplicate();
+				ColorProcessor B = (ColorProcessor) cp.duplicate();
+				Parameters params = new Parameters();
+				params.distanceNorm = norm;
+				params.sharpen = sharpen;
+				params.useSlidingWindow = false;
+				VectorMedianFilterSharpen fA = new VectorMedianFilterSharpen(params);
+				fA.setParallelism(1);
+				long t0 = System.nanoTime();
+				fA.applyTo(A);
+				long t1 = System.nanoTime();
+				params.useSlidingWindow = true;
+				VectorMedianFilterSharpen fB = new VectorMedianFilterSharpen(params);
+				fB.setParallelism(1);
+				fB.applyTo(B);
+				long t2 = System.nanoTime();
+				boolean same = true;
+				for (int i = 0; i < cp.getPixelCount() && same; i++) {
+					same = (A.get(i) & 0xffffff) == (B.get(i) & 0xffffff);
+				}
+				System.out.format("%-4s | %7.1f | %16d | %12d | %s%n", norm, sharpen, 
+						(t1 - t0) / 1000000, (t2 - t1) / 1000000, same);
+			}
+		}
+	}
 
 }
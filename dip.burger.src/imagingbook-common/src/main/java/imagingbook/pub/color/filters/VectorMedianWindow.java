@@ -0,0 +1,393 @@
+/*******************************************************************************
+ * This software is provided as a supplement to the authors' textbooks on digital
+ * image processing published by Springer-Verlag in various languages and editions.
+ * Permission to use and distribute this software is granted under the BSD 2-Clause 
+ * "Simplified" License (see http://opensource.org/licenses/BSD-2-Clause). 
+ * Copyright (c) 2006-2015 Wilhelm Burger, Mark J. Burge. 
+ * All rights reserved. Visit http://www.imagingbook.com for additional details.
+ *  
+ *******************************************************************************/
+
+package imagingbook.pub.color.filters;
+
+import ij.process.ColorProcessor;
+import imagingbook.lib.math.VectorNorm;
+import imagingbook.lib.util.ParallelTasks;
+import imagingbook.lib.util.ParallelTasks.BandOp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Sliding-window implementation of the (sharpening) vector median filter, used by
+ * {@link VectorMedianFilter} and {@link VectorMedianFilterSharpen}.
+ * The window is moved along each image row. For each candidate pixel in the window,
+ * either the aggregate distance to all pixels in the window (plain vector median) or
+ * the sorted list of these distances (trimmed aggregate distance of the sharpening
+ * filter) is kept and updated incrementally with the distances to the pixels leaving
+ * and entering the window at the boundary of the filter mask. Only the pixels
+ * entering the candidate region need a full evaluation.
+ * The candidate region may be smaller than the filter mask, which gives an
+ * approximate (but faster) filter.
+ */
+class VectorMedianWindow {
+
+	/**
+	 * Receives the results for one image row.
+	 */
+	interface RowHandler {
+		/**
+		 * @param v the image row
+		 * @param rgbMin the (packed) color of the candidate with the min. aggregate distance, for each pixel
+		 * @param dMin the min. aggregate distance, for each pixel
+		 * @param dCtr the aggregate distance of the center pixel, for each pixel
+		 */
+		void processRow(int v, int[] rgbMin, double[] dMin, double[] dCtr);
+	}
+
+	private final int[] P;			// packed RGB colors of the padded image
+	private final int width;		// padded image width
+	private final int pad;			// padding (= mask center)
+	private final VectorNorm norm;
+	private final int a;			// rank for trimmed aggregate distances (0 = plain aggregate distance)
+
+	private final int[] all, left, right;	// offsets of all mask elements and of the left/right mask boundary
+	private final int[] cand;				// offsets of all candidates (in mask order)
+	private final int[] candSlot;			// slot base of each candidate's row
+	private final int[] candRowWidth;		// width of each candidate's row
+	private final int[] candDx;				// x-offset of each candidate
+	private final int[] newCand;			// indexes of the candidates at the right boundary of the candidate region
+	private final boolean[] isNew;			// true for the candidates in newCand
+	private final int ctr;					// index of the center candidate
+
+	// per-candidate data, indexed by slots (each candidate row is a ring buffer):
+	private final double[] D;				// aggregate distances
+	private final double[][] L;				// sorted distances (only for a > 0)
+	private double[] tmp;					// work array for merging
+	private final double[] dRem, dAdd;		// distances to the leaving and entering pixels
+	private final int[] rgbK = new int[3];	// color of the current candidate
+	private final int[] rgbQ = new int[3];	// color of the pixel compared to
+
+	/**
+	 * Creates a new sliding window (to be used by a single thread).
+	 * @param P packed RGB colors of the padded image (see {@link #makePaddedImage(ColorProcessor, int)})
+	 * @param width the width of the padded image
+	 * @param mask the filter mask
+	 * @param candidates the candidate mask (subset of the filter mask)
+	 * @param norm the color distance norm
+	 * @param a rank for trimmed aggregate distances (sum of the a-1 smallest distances
+	 * to other pixels), 0 = plain aggregate distance
+	 */
+	VectorMedianWindow(int[] P, int width, FilterMask mask, FilterMask candidates, VectorNorm norm, int a) {
+		this.P = P;
+		this.width = width;
+		this.pad = mask.getCenter();
+		this.norm = norm;
+		this.a = a;
+		final int[][] m = mask.getMask();
+		List<Integer> all = new ArrayList<Integer>();
+		List<Integer> left = new ArrayList<Integer>();
+		List<Integer> right = new ArrayList<Integer>();
+		for (int i = 0; i < m.length; i++) {
+			for (int j = 0; j < m.length; j++) {
+				if (m[i][j] > 0) {
+					int q = offset(i - pad, j - pad);
+					all.add(q);
+					if (i == 0 || m[i - 1][j] == 0)
+						left.add(q);
+					if (i == m.length - 1 || m[i + 1][j] == 0)
+						right.add(q);
+				}
+			}
+		}
+		this.all = toArray(all);
+		this.left = toArray(left);
+		this.right = toArray(right);
+
+		// candidates (in mask order) and their slots:
+		final int[][] c = candidates.getMask();
+		final int cc = candidates.getCenter();
+		final int nc = candidates.getCount();
+		final int[] rowWidth = new int[c.length];
+		for (int i = 0; i < c.length; i++) {
+			for (int j = 0; j < c.length; j++) {
+				if (c[i][j] > 0)
+					rowWidth[j]++;
+			}
+		}
+		final int[] rowBase = new int[c.length];
+		for (int j = 1; j < c.length; j++) {
+			rowBase[j] = rowBase[j - 1] + rowWidth[j - 1];
+		}
+		this.cand = new int[nc];
+		this.candSlot = new int[nc];
+		this.candRowWidth = new int[nc];
+		this.candDx = new int[nc];
+		List<Integer> newCand = new ArrayList<Integer>();
+		int k = 0, kc = -1;
+		for (int i = 0; i < c.length; i++) {
+			for (int j = 0; j < c.length; j++) {
+				if (c[i][j] > 0) {
+					cand[k] = offset(i - cc, j - cc);
+					candSlot[k] = rowBase[j];
+					candRowWidth[k] = rowWidth[j];
+					candDx[k] = i - cc;
+					if (i == c.length - 1 || c[i + 1][j] == 0)
+						newCand.add(k);
+					if (i == cc && j == cc)
+						kc = k;
+					k++;
+				}
+			}
+		}
+		this.newCand = toArray(newCand);
+		this.isNew = new boolean[nc];
+		for (int kn : this.newCand) {
+			isNew[kn] = true;
+		}
+		this.ctr = kc;
+
+		this.D = new double[nc];
+		this.L = (a > 0) ? new double[nc][this.all.length] : null;
+		this.tmp = new double[this.all.length];
+		this.dRem = new double[this.left.length];
+		this.dAdd = new double[this.right.length];
+	}
+
+	private int offset(int dx, int dy) {
+		return dy * width + dx;
+	}
+
+	private static void unpack(int c, int[] rgb) {
+		rgb[0] = (c >> 16) & 0xff;
+		rgb[1] = (c >> 8) & 0xff;
+		rgb[2] = c & 0xff;
+	}
+	
+	// distance between the color rgb and the color of pixel q (in the padded image)
+	private double distance(int[] rgb, int q) {
+		unpack(P[q], rgbQ);
+		return norm.distance(rgb, rgbQ);
+	}
+
+	private static int[] toArray(List<Integer> list) {
+		int[] a = new int[list.size()];
+		for (int i = 0; i < a.length; i++) {
+			a[i] = list.get(i);
+		}
+		return a;
+	}
+
+	/**
+	 * Returns a flag for each element of the filter mask (in mask order, i.e., 
+	 * as used by the filters' {@code getSupportRegion()} methods), which is
+	 * true if the element is also contained in the candidate mask.
+	 * @param mask the filter mask
+	 * @param candidates the candidate mask (with the same or a smaller radius)
+	 * @return the candidate flags
+	 */
+	static boolean[] getCandidateFlags(FilterMask mask, FilterMask candidates) {
+		final int[][] m = mask.getMask();
+		final int[][] c = candidates.getMask();
+		final int d = candidates.getCenter() - mask.getCenter();
+		boolean[] flags = new boolean[mask.getCount()];
+		int n = 0;
+		for (int i = 0; i < m.length; i++) {
+			for (int j = 0; j < m.length; j++) {
+				if (m[i][j] > 0) {
+					int ic = i + d;
+					int jc = j + d;
+					flags[n++] = ic >= 0 && ic < c.length && jc >= 0 && jc < c.length && c[ic][jc] > 0;
+				}
+			}
+		}
+		return flags;
+	}
+
+	/**
+	 * Returns the colors of the given image, padded by replicating the border pixels.
+	 * @param cp the image
+	 * @param pad the padding (on each side)
+	 * @return the padded image, of width (w + 2 pad), as an array of packed RGB values
+	 */
+	static int[] makePaddedImage(ColorProcessor cp, int pad) {
+		final int w = cp.getWidth();
+		final int h = cp.getHeight();
+		final int[] pixels = (int[]) cp.getPixels();
+		final int W = w + 2 * pad;
+		final int H = h + 2 * pad;
+		int[] P = new int[W * H];
+		for (int v = 0; v < H; v++) {
+			int vv = Math.min(Math.max(v - pad, 0), h - 1);
+			for (int u = 0; u < W; u++) {
+				int uu = Math.min(Math.max(u - pad, 0), w - 1);
+				P[v * W + u] = pixels[vv * w + uu] & 0xffffff;
+			}
+		}
+		return P;
+	}
+
+	/**
+	 * Applies the window to all rows of the given image (in parallel bands) and
+	 * passes the results to the handler. The image itself is not modified.
+	 * @param cp the image
+	 * @param mask the filter mask
+	 * @param candidates the candidate mask (subset of the filter mask)
+	 * @param vNorm the color distance norm
+	 * @param a rank for trimmed aggregate distances (0 = plain aggregate distance)
+	 * @param parallelism number of threads (see {@link ParallelTasks#makePool(int)})
+	 * @param handler receives the results (concurrently for different rows)
+	 */
+	static void run(ColorProcessor cp, final FilterMask mask, final FilterMask candidates,
+			final VectorNorm vNorm, final int a, int parallelism, final RowHandler handler) {
+		final int w = cp.getWidth();
+		final int h = cp.getHeight();
+		final int W = w + 2 * mask.getCenter();
+		final int[] P = makePaddedImage(cp, mask.getCenter());
+		ExecutorService pool = ParallelTasks.makePool(parallelism);
+		try {
+			ParallelTasks.runBands(pool, h, parallelism, new BandOp() {
+				public void run(int v0, int v1) {
+					VectorMedianWindow window = new VectorMedianWindow(P, W, mask, candidates, vNorm, a);
+					int[] rgbMin = new int[w];
+					double[] dMin = new double[w];
+					double[] dCtr = new double[w];
+					for (int v = v0; v < v1; v++) {
+						window.filterRow(v, rgbMin, dMin, dCtr);
+						handler.processRow(v, rgbMin, dMin, dCtr);
+					}
+				}
+			});
+		}
+		finally {
+			ParallelTasks.release(pool);
+		}
+	}
+
+	/**
+	 * Calculates the results for image row v.
+	 * @param v the image row
+	 * @param rgbMin receives the (packed) color of the candidate with the min. aggregate distance
+	 * @param dMin receives the min. aggregate distance
+	 * @param dCtr receives the aggregate distance of the center pixel
+	 */
+	void filterRow(int v, int[] rgbMin, double[] dMin, double[] dCtr) {
+		int p = (v + pad) * width + pad;	// position of (0, v) in the padded image
+		for (int k = 0; k < cand.length; k++) {
+			evaluate(k, p, 0);
+		}
+		select(p, 0, rgbMin, dMin, dCtr);
+		for (int u = 1; u < rgbMin.length; u++) {
+			p++;
+			// candidates which were in the candidate region before:
+			for (int k = 0; k < cand.length; k++) {
+				if (!isNew[k]) 
+					update(k, p, u);
+			}
+			// candidates entering the candidate region:
+			for (int k : newCand) {
+				evaluate(k, p, u);
+			}
+			select(p, u, rgbMin, dMin, dCtr);
+		}
+	}
+
+	// the data slot of candidate k for window position u
+	private int slot(int k, int u) {
+		return candSlot[k] + (u + candDx[k] + pad) % candRowWidth[k];
+	}
+
+	// full evaluation of candidate k for the window centered at p (x-position u)
+	private void evaluate(int k, int p, int u) {
+		final int s = slot(k, u);
+		unpack(P[p + cand[k]], rgbK);
+		if (L != null) {
+			final double[] R = L[s];
+			for (int i = 0; i < all.length; i++) {
+				R[i] = distance(rgbK, p + all[i]);
+			}
+			Arrays.sort(R);
+		}
+		else {
+			double d = 0;
+			for (int i = 0; i < all.length; i++) {
+				d = d + distance(rgbK, p + all[i]);
+			}
+			D[s] = d;
+		}
+	}
+
+	// incremental update of candidate k when the window has moved to p (x-position u)
+	private void update(int k, int p, int u) {
+		final int s = slot(k, u);
+		unpack(P[p + cand[k]], rgbK);
+		for (int i = 0; i < left.length; i++) {
+			dRem[i] = distance(rgbK, p - 1 + left[i]);
+		}
+		for (int i = 0; i < right.length; i++) {
+			dAdd[i] = distance(rgbK, p + right[i]);
+		}
+		if (L != null) {
+			Arrays.sort(dRem);
+			Arrays.sort(dAdd);
+			// merge (L[s] without dRem) and dAdd into tmp:
+			final double[] R = L[s];
+			int i = 0, j = 0, r = 0;
+			for (int t = 0; t < tmp.length; t++) {
+				while (r < dRem.length && i < R.length && R[i] == dRem[r]) {	// skip removed distances
+					i++;
+					r++;
+				}
+				if (j >= dAdd.length || (i < R.length && R[i] <= dAdd[j]))
+					tmp[t] = R[i++];
+				else
+					tmp[t] = dAdd[j++];
+			}
+			L[s] = tmp;
+			tmp = R;
+		}
+		else {
+			double d = D[s];
+			for (int i = 0; i < dRem.length; i++) {
+				d = d - dRem[i];
+			}
+			for (int i = 0; i < dAdd.length; i++) {
+				d = d + dAdd[i];
+			}
+			D[s] = d;
+		}
+	}
+
+	// aggregate distance of candidate k at window position u
+	private double getAggregateDistance(int k, int u) {
+		final int s = slot(k, u);
+		if (L == null)
+			return D[s];
+		// trimmed aggregate distance (the smallest distance is to the candidate itself):
+		final double[] R = L[s];
+		final int n = Math.min(a, R.length);
+		double d = 0;
+		for (int i = 1; i < n; i++) {
+			d = d + R[i];
+		}
+		return d;
+	}
+
+	private void select(int p, int u, int[] rgbMin, double[] dMin, double[] dCtr) {
+		double dmin = Double.MAX_VALUE;
+		int kmin = -1;
+		for (int k = 0; k < cand.length; k++) {
+			double d = getAggregateDistance(k, u);
+			if (d < dmin) {
+				kmin = k;
+				dmin = d;
+			}
+		}
+		rgbMin[u] = P[p + cand[kmin]];
+		dMin[u] = dmin;
+		dCtr[u] = getAggregateDistance(ctr, u);
+	}
+
+}
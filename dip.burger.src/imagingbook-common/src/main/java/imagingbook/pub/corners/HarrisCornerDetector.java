@@ -11,13 +11,17 @@
 package imagingbook.pub.corners;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
 
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
-import imagingbook.lib.image.Filter;
-import imagingbook.lib.image.ImageMath;
+import imagingbook.lib.util.ParallelTasks;
+import imagingbook.lib.util.ParallelTasks.BandOp;
 
 
 /**
@@ -44,6 +48,12 @@ public class HarrisCornerDetector {
 		public int border = 20;
 		/** Set true to perform final corner cleanup */
 		public boolean doCleanUp = true;	
+		/** Number of corners selected by adaptive non-maximal suppression (0 = no selection) */
+		public int anmsCount = 0;
+		/** Robustness factor used by adaptive non-maximal suppression (&lt; 1) */
+		public double anmsRobustness = 0.9;
+		/** Number of threads (0 = use the common thread pool, 1 = run on the calling thread) */
+		public int parallelism = 0;
 	}
 	
 	//filter kernels (one-dim. part of separable 2D filters)
@@ -70,49 +80,147 @@ public class HarrisCornerDetector {
 		makeDerivatives(ip);
 	}
 	
+	/**
+	 * Returns the detected corners. If {@code params.doCleanUp} is set, weaker 
+	 * corners closer than {@code params.dmin} to a stronger corner are removed.
+	 * If {@code params.anmsCount} &gt; 0, at most that many well-distributed corners 
+	 * are then selected by adaptive non-maximal suppression (sorted by decreasing 
+	 * suppression radius).
+	 * @return the list of corners
+	 */
 	public List<Corner> findCorners() {
 		FloatProcessor Q = makeCrf((float)params.alpha);				//corner response function (CRF)
 		List<Corner> corners = collectCorners(Q, (float)params.tH, params.border);
 		if (params.doCleanUp) {
 			corners = cleanupCorners(corners, params.dmin);
 		}
+		if (params.anmsCount > 0) {
+			corners = selectCornersAnms(corners, params.anmsCount, params.anmsRobustness);
+		}
 		return corners;
 	}
 	
+	/*
+	 * Calculates the (blurred) structure tensor components A, B, C by horizontal bands
+	 * in 3 passes on flat arrays, performing the same arithmetic as the filters applied by 
+	 * ImageJ's Convolver (edge pixels replicated, sums in double precision):
+	 * 1. Ix = hd * hp * I (in x), T = hp * I (in y),
+	 * 2. Iy = hd * T (in y), products Ix^2, Iy^2, Ix*Iy blurred in x,
+	 * 3. products blurred in y.
+	 */
 	private void makeDerivatives(ImageProcessor I) {
-		FloatProcessor Ix = I.convertToFloatProcessor(); 
-		FloatProcessor Iy = I.convertToFloatProcessor();
-		
-		Filter.convolveX(Ix, hp);				// pre-filter Ix horizontally
-		Filter.convolveX(Ix, hd);				// get horizontal derivative 
-		
-		Filter.convolveY(Iy, hp);				// pre-filter Iy vertically
-		Filter.convolveY(Iy, hd);				// get vertical derivative
-		
-		A = ImageMath.sqr(Ix);					// A <- Ix^2
-		B = ImageMath.sqr(Iy);					// B <- Iy^2
-		C = ImageMath.mult(Ix, Iy);				// C <- Ix * Iy
-		
-		Filter.convolveXY(A, hb);				// blur A in x/y
-		Filter.convolveXY(B, hb);				// blur B in x/y
-		Filter.convolveXY(C, hb);				// blur C in x/y
+		final float[] pI = (float[]) I.convertToFloatProcessor().getPixels(); 
+		final float[] pIx = new float[M * N];
+		final float[] pT = new float[M * N];
+		final float[] pA = new float[M * N];
+		final float[] pB = new float[M * N];
+		final float[] pC = new float[M * N];
+		ExecutorService pool = ParallelTasks.makePool(params.parallelism);
+		try {
+			ParallelTasks.runBands(pool, N, params.parallelism, new BandOp() {
+				public void run(int v0, int v1) {
+					final float[] tmp = new float[M];
+					for (int v = v0; v < v1; v++) {
+						convolveRowX(pI, v * M, hp, tmp, 0);	// pre-filter Ix horizontally
+						convolveRowX(tmp, 0, hd, pIx, v * M);	// get horizontal derivative 
+						convolveRowY(pI, v, hp, pT);			// pre-filter Iy vertically
+					}
+				}
+			});
+			ParallelTasks.runBands(pool, N, params.parallelism, new BandOp() {
+				public void run(int v0, int v1) {
+					final float[] iy = new float[M];
+					final float[] a = new float[M], b = new float[M], c = new float[M];
+					for (int v = v0; v < v1; v++) {
+						final int row = v * M;
+						convolveRowY(pT, v, hd, iy, 0);			// get vertical derivative
+						for (int u = 0; u < M; u++) {
+							final float ix = pIx[row + u];
+							a[u] = ix * ix;						// A <- Ix^2
+							b[u] = iy[u] * iy[u];				// B <- Iy^2
+							c[u] = ix * iy[u];					// C <- Ix * Iy
+						}
+						convolveRowX(a, 0, hb, pA, row);		// blur A, B, C in x
+						convolveRowX(b, 0, hb, pB, row);
+						convolveRowX(c, 0, hb, pC, row);
+					}
+				}
+			});
+			// blur A, B, C in y (input arrays are reused for the results):
+			final float[] pAx = pA.clone(), pBx = pB.clone(), pCx = pC.clone();
+			ParallelTasks.runBands(pool, N, params.parallelism, new BandOp() {
+				public void run(int v0, int v1) {
+					for (int v = v0; v < v1; v++) {
+						convolveRowY(pAx, v, hb, pA);
+						convolveRowY(pBx, v, hb, pB);
+						convolveRowY(pCx, v, hb, pC);
+					}
+				}
+			});
+		} finally {
+			ParallelTasks.release(pool);
+		}
+		A = new FloatProcessor(M, N, pA);
+		B = new FloatProcessor(M, N, pB);
+		C = new FloatProcessor(M, N, pC);
 	}
 	
-	private FloatProcessor makeCrf(float alpha) { //corner response function (CRF)
+	private FloatProcessor makeCrf(final float alpha) { //corner response function (CRF)
 		FloatProcessor Q = new FloatProcessor(M, N);
 		final float[] pA = (float[]) A.getPixels();
 		final float[] pB = (float[]) B.getPixels();
 		final float[] pC = (float[]) C.getPixels();
 		final float[] pQ = (float[]) Q.getPixels();
-		for (int i = 0; i < M * N; i++) {
-			float a = pA[i], b = pB[i], c = pC[i];
-			float det = a * b - c * c;
-			float trace = a + b;
-			pQ[i] = det - alpha * (trace * trace);
+		ExecutorService pool = ParallelTasks.makePool(params.parallelism);
+		try {
+			ParallelTasks.runBands(pool, N, params.parallelism, new BandOp() {
+				public void run(int v0, int v1) {
+					for (int i = v0 * M; i < v1 * M; i++) {
+						float a = pA[i], b = pB[i], c = pC[i];
+						float det = a * b - c * c;
+						float trace = a + b;
+						pQ[i] = det - alpha * (trace * trace);
+					}
+				}
+			});
+		} finally {
+			ParallelTasks.release(pool);
 		}
 		return Q;
 	}
 	
+	// ------------------------------------------------------------------------
+	
+	// 1D filter (correlation) of the row starting at src[i0], result stored at dst[j0]
+	private void convolveRowX(float[] src, int i0, float[] h, float[] dst, int j0) {
+		final int r = h.length / 2;
+		for (int u = 0; u < M; u++) {
+			double sum = 0;
+			for (int k = 0; k < h.length; k++) {
+				final int uu = Math.min(Math.max(u + k - r, 0), M - 1);
+				sum += src[i0 + uu] * h[k];
+			}
+			dst[j0 + u] = (float) sum;
+		}
+	}
+	
+	// 1D filter (correlation) in y-direction at row v, result stored at dst[j0]
+	private void convolveRowY(float[] src, int v, float[] h, float[] dst, int j0) {
+		final int r = h.length / 2;
+		for (int u = 0; u < M; u++) {
+			double sum = 0;
+			for (int k = 0; k < h.length; k++) {
+				final int vv = Math.min(Math.max(v + k - r, 0), N - 1);
+				sum += src[vv * M + u] * h[k];
+			}
+			dst[j0 + u] = (float) sum;
+		}
+	}
+	
+	private void convolveRowY(float[] src, int v, float[] h, float[] dst) {
+		convolveRowY(src, v, h, dst, v * M);
+	}
+	
 	private List<Corner> collectCorners(FloatProcessor Q, float tH, int border) {
 		List<Corner> C = new ArrayList<Corner>();
 		for (int v = border; v < N - border; v++) {
@@ -145,26 +253,234 @@ public class HarrisCornerDetector {
 		}
 	}
 	
+	// Removes all corners closer than dmin to a stronger corner.
 	private List<Corner> cleanupCorners(List<Corner> C, double dmin){
 		final double dmin2 = dmin * dmin;
 		// sort corners by descending q-value:
 		Collections.sort(C);
-		// we use an array of corners for efficiency reasons:
-		Corner[] Ca = C.toArray(new Corner[C.size()]);
+		// accepted corners are kept in a grid with cell size dmin, i.e., 
+		// conflicting corners can only be found in the 3 x 3 adjacent cells:
+		CornerGrid grid = new CornerGrid(Math.max(dmin, 1));
 		List<Corner> Cclean = new ArrayList<Corner>(C.size());
-		for (int i = 0; i < Ca.length; i++) {
-			Corner c0 = Ca[i];		// get next strongest corner
-			if (c0 != null) {
+		for (Corner c0 : C) {		// get next strongest corner
+			if (!grid.hasNeighbor(c0, dmin2)) {
 				Cclean.add(c0);
-				// delete all remaining corners cj too close to c0:
-				for (int j = i + 1; j < Ca.length; j++) {
-					Corner cj = Ca[j];
-					if (cj != null && c0.dist2(cj) < dmin2)
-						Ca[j] = null;   //delete corner cj from C
-				}
+				grid.add(c0);
 			}
 		}
 		return Cclean;
 	}
+	
+	/*
+	 * Adaptive non-maximal suppression (M. Brown, R. Szeliski, S. Winder: "Multi-image 
+	 * matching using multi-scale oriented patches", CVPR 2005). The suppression radius
+	 * of each corner is its distance to the closest sufficiently stronger corner 
+	 * (q_j * robustness > q_i), the n corners with the largest radii are returned.
+	 * The candidates for each corner are a prefix of the list sorted by strength,
+	 * which is inserted into a grid incrementally.
+	 */
+	private List<Corner> selectCornersAnms(List<Corner> C, int n, double robustness) {
+		if (C.size() <= n) 
+			return C;
+		Collections.sort(C);
+		final Corner[] Ca = C.toArray(new Corner[C.size()]);
+		final double[] r2 = new double[Ca.length];	// squared suppression radii
+		CornerGrid grid = new CornerGrid(Math.max(1, Math.sqrt((double) M * N / Ca.length)));
+		int k = 0;	// Ca[0],...,Ca[k-1] are in the grid
+		for (int i = 0; i < Ca.length; i++) {
+			while (k < i && Ca[k].q * robustness > Ca[i].q) {
+				grid.add(Ca[k++]);
+			}
+			r2[i] = grid.getNearestDist2(Ca[i]);
+		}
+		Integer[] idx = new Integer[Ca.length];
+		for (int i = 0; i < idx.length; i++) {
+			idx[i] = i;
+		}
+		Arrays.sort(idx, new Comparator<Integer>() {	// by decreasing radius (stable)
+			public int compare(Integer i1, Integer i2) {
+				return Double.compare(r2[i2], r2[i1]);
+			}
+		});
+		List<Corner> Cbest = new ArrayList<Corner>(n);
+		for (int i = 0; i < n; i++) {
+			Cbest.add(Ca[idx[i]]);
+		}
+		return Cbest;
+	}
+	
+	/*
+	 * Corners bucketed into square cells of size s covering the image.
+	 */
+	private class CornerGrid {
+		private final double s;
+		private final int nx, ny;
+		private final List<List<Corner>> cells;
+		private int count = 0;					// number of corners in the grid
+		private int ixMin, ixMax, iyMin, iyMax;	// bounding box of the occupied cells
+		
+		CornerGrid(double s) {
+			this.s = s;
+			this.nx = (int) (M / s) + 1;
+			this.ny = (int) (N / s) + 1;
+			this.cells = new ArrayList<List<Corner>>(Collections.<List<Corner>>nCopies(nx * ny, null));
+		}
+		
+		private int cellX(Corner c) {
+			return Math.min(Math.max((int) (c.x / s), 0), nx - 1);
+		}
+		
+		private int cellY(Corner c) {
+			return Math.min(Math.max((int) (c.y / s), 0), ny - 1);
+		}
+		
+		void add(Corner c) {
+			final int cx = cellX(c), cy = cellY(c);
+			final int i = cy * nx + cx;
+			List<Corner> cell = cells.get(i);
+			if (cell == null) {
+				cell = new ArrayList<Corner>(4);
+				cells.set(i, cell);
+			}
+			cell.add(c);
+			if (count == 0) {
+				ixMin = ixMax = cx;
+				iyMin = iyMax = cy;
+			}
+			else {
+				ixMin = Math.min(ixMin, cx); ixMax = Math.max(ixMax, cx);
+				iyMin = Math.min(iyMin, cy); iyMax = Math.max(iyMax, cy);
+			}
+			count++;
+		}
+		
+		// true if any corner in the 3 x 3 cells around c is closer than sqrt(d2)
+		boolean hasNeighbor(Corner c, double d2) {
+			final int cx = cellX(c), cy = cellY(c);
+			for (int j = Math.max(cy - 1, 0); j <= Math.min(cy + 1, ny - 1); j++) {
+				for (int i = Math.max(cx - 1, 0); i <= Math.min(cx + 1, nx - 1); i++) {
+					List<Corner> cell = cells.get(j * nx + i);
+					if (cell != null) {
+						for (Corner c2 : cell) {
+							if (c.dist2(c2) < d2)
+								return true;
+						}
+					}
+				}
+			}
+			return false;
+		}
+		
+		// squared distance to the closest corner in the grid (infinite if empty),
+		// searching rings of cells around c until no closer corner can be found;
+		// only the bounding box of the occupied cells is visited
+		double getNearestDist2(Corner c) {
+			if (count == 0)
+				return Double.POSITIVE_INFINITY;
+			final int cx = cellX(c), cy = cellY(c);
+			final int dMax = Math.max(Math.max(cx - ixMin, ixMax - cx), Math.max(cy - iyMin, iyMax - cy));
+			double best = Double.POSITIVE_INFINITY;
+			for (int d = 0; d <= dMax; d++) {
+				for (int j = Math.max(cy - d, iyMin); j <= Math.min(cy + d, iyMax); j++) {
+					if (j == cy - d || j == cy + d) {	// top or bottom row of the ring
+						for (int i = Math.max(cx - d, ixMin); i <= Math.min(cx + d, ixMax); i++) {
+							best = getNearestDist2(c, j * nx + i, best);
+						}
+					}
+					else {								// left and right cell of the ring
+						if (cx - d >= ixMin) best = getNearestDist2(c, j * nx + cx - d, best);
+						if (cx + d <= ixMax) best = getNearestDist2(c, j * nx + cx + d, best);
+					}
+				}
+				if (best <= (d * s) * (d * s))	// cells further out are at least d * s away
+					break;
+			}
+			return best;
+		}
+		
+		private double getNearestDist2(Corner c, int cellIndex, double best) {
+			List<Corner> cell = cells.get(cellIndex);
+			if (cell != null) {
+				for (Corner c2 : cell) {
+					best = Math.min(best, c.dist2(c2));
+				}
+			}
+			return best;
+		}
+	}
+
+	
+	// ------------------------------------------------------------------------
+	
+	/*
+	 * Compares the ANMS selection against a brute-force calculation of the suppression 
+	 * radii and reports the timings, for a noise image and a checkerboard (whose corners
+	 * all have the same strength, i.e., none of them is suppressed by another).
+	 */
+	public static void main(String[] args) {
+		final int size = 1600;
+		Random rnd = new Random(17);
+		FloatProcessor noise = new FloatProcessor(size, size);
+		FloatProcessor checker = new FloatProcessor(size, size);
+		for (int v = 0; v < size; v++) {
+			for (int u = 0; u < size; u++) {
+				noise.setf(u, v, rnd.nextFloat() * 255);
+				checker.setf(u, v, ((u / 12 + v / 12) % 2 == 0) ? 0 : 255);
+			}
+		}
+		System.out.println("image   | corners | anms | detect (ms) | anms (ms) | brute force (ms) | same result");
+		for (FloatProcessor ip : new FloatProcessor[] {noise, checker}) {
+			Parameters params = new Parameters();
+			params.dmin = 3;
+			params.parallelism = 1;
+			long t0 = System.nanoTime();
+			HarrisCornerDetector hcd = new HarrisCornerDetector(ip, params);
+			List<Corner> C = hcd.findCorners();
+			long t1 = System.nanoTime();
+			for (int n : new int[] {100, 500, 2000}) {
+				long t2 = System.nanoTime();
+				List<Corner> A = hcd.selectCornersAnms(new ArrayList<Corner>(C), n, params.anmsRobustness);
+				long t3 = System.nanoTime();
+				List<Corner> B = selectCornersAnmsBruteForce(new ArrayList<Corner>(C), n, params.anmsRobustness);
+				long t4 = System.nanoTime();
+				boolean same = (A.size() == B.size());
+				for (int i = 0; i < A.size() && same; i++) {
+					same = A.get(i).x == B.get(i).x && A.get(i).y == B.get(i).y;
+				}
+				System.out.format("%-7s | %7d | %4d | %11d | %9d | %16d | %s%n", (ip == noise) ? "noise" : "checker",
+						C.size(), n, (t1 - t0) / 1000000, (t3 - t2) / 1000000, (t4 - t3) / 1000000, same);
+			}
+		}
+	}
+	
+	// O(n^2) reference implementation of selectCornersAnms()
+	private static List<Corner> selectCornersAnmsBruteForce(List<Corner> C, int n, double robustness) {
+		if (C.size() <= n) 
+			return C;
+		Collections.sort(C);
+		final Corner[] Ca = C.toArray(new Corner[C.size()]);
+		final double[] r2 = new double[Ca.length];
+		for (int i = 0; i < Ca.length; i++) {
+			r2[i] = Double.POSITIVE_INFINITY;
+			for (int j = 0; j < i; j++) {
+				if (Ca[j].q * robustness > Ca[i].q) 
+					r2[i] = Math.min(r2[i], Ca[i].dist2(Ca[j]));
+			}
+		}
+		Integer[] idx = new Integer[Ca.length];
+		for (int i = 0; i < idx.length; i++) {
+			idx[i] = i;
+		}
+		Arrays.sort(idx, new Comparator<Integer>() {
+			public int compare(Integer i1, Integer i2) {
+				return Double.compare(r2[i2], r2[i1]);
+			}
+		});
+		List<Corner> Cbest = new ArrayList<Corner>(n);
+		for (int i = 0; i < n; i++) {
+			Cbest.add(Ca[idx[i]]);
+		}
+		return Cbest;
+	}
 
 }
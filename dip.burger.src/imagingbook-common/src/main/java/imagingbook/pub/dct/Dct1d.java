@@ -11,11 +11,15 @@
 package imagingbook.pub.dct;
 
 import imagingbook.lib.math.Matrix;
+import imagingbook.pub.dft.Fft1d;
 
 /**
- * This class calculates the 1D DFT using tabulated cosine values.
- * This version is considerably faster than the original without tables.
- * Other optimizations are possible.
+ * This class calculates the 1D DCT in O(M log M) time by mapping it
+ * to a complex DFT of the same length (Makhoul's method, see J. Makhoul,
+ * "A fast cosine transform in one and two dimensions", IEEE Trans. ASSP 28(1), 1980),
+ * which is calculated with {@link Fft1d}. All twiddle factors are tabulated.
+ * Results are the same as with the direct implementation in {@link Dct1d_Slow}.
+ * Instances hold work arrays and thus must not be shared between threads.
  * @author W. Burger
  * @version 2015-07-29
  */
@@ -24,33 +28,29 @@ public class Dct1d {
 	static final double CM0 = 1.0 / Math.sqrt(2);
 
 	final private double s; 		// common scale factor
-	final private double[] tmp;		// array to hold temporary data
 	final private int M;			// size of the input vector
-	final private int N;			// = 4M
+	final private Fft1d fft;		// complex DFT of size M
+	final private double[] re, im;	// arrays to hold temporary data
 	
 	/**
-	 * This table holds the cosine values cos(PI * (m(2u + 1)) / (2M)) = cos(j * PI / (2M))
-	 * for all possible values of j = m (2u + 1), i.e., cosTable[j] =  cos[j * PI / (2M)].
-	 * The table is of size N = 4M. To retrieve the correct cosine value for a given index 
-	 * pair (m, u) use cosTable[(m * (2 * u + 1)) % (4 * M)].
+	 * These tables hold the twiddle factors cos(m * PI / (2M)) and sin(m * PI / (2M)),
+	 * for m = 0,...,M-1.
 	 */
-	final private double[] cosTable;
+	final private double[] cosTable, sinTable;
 	
 	public Dct1d(int M) {
 		this.M = M;
-		this.N = 4 * M;
 		this.s = Math.sqrt(2.0 / M); 
-		this.tmp = new double[M];
-		this.cosTable = makeCosineTable(M);
-	}
-	
-	private double[] makeCosineTable(int M) {
-		double[] table = new double[N]; 	// we need a table of size 4*M
-		for (int j = 0; j < N; j++) {		// j is equivalent to (m * (2 * u + 1)) % 4M
-			double phi = j * Math.PI / (2 * M);
-			table[j] = Math.cos(phi);
+		this.fft = new Fft1d(M);
+		this.re = new double[M];
+		this.im = new double[M];
+		this.cosTable = new double[M];
+		this.sinTable = new double[M];
+		for (int m = 0; m < M; m++) {
+			double phi = m * Math.PI / (2 * M);
+			cosTable[m] = Math.cos(phi);
+			sinTable[m] = Math.sin(phi);
 		}
-		return table;
 	}
 
 	/**
@@ -62,16 +62,22 @@ public class Dct1d {
 	public void DCT(double[] g) {
 		if (g.length != M)
 			throw new IllegalArgumentException();
-		double[] G = tmp;
+		// reorder: even samples ascending, odd samples descending
+		for (int u = 0; 2 * u < M; u++) {
+			re[u] = g[2 * u];
+			im[u] = 0;
+		}
+		for (int u = 0; 2 * u + 1 < M; u++) {
+			re[M - 1 - u] = g[2 * u + 1];
+			im[M - 1 - u] = 0;
+		}
+		fft.transform(re, im, true);
+		// G[m] = Re(exp(-i m PI / (2M)) * V[m]), the FFT is scaled by 1/sqrt(M)
+		final double sf = s * Math.sqrt(M);
 		for (int m = 0; m < M; m++) {
 			double cm = (m == 0) ? CM0 : 1.0;
-			double sum = 0;
-			for (int u = 0; u < M; u++) {
-				sum += g[u] * cm * cosTable[(m * (2 * u + 1)) % N];
-			}
-			G[m] = s * sum;
+			g[m] = sf * cm * (re[m] * cosTable[m] + im[m] * sinTable[m]);
 		}
-		System.arraycopy(G, 0, g, 0, M); // copy G -> g
 	}
 	
 	/**
@@ -83,16 +89,23 @@ public class Dct1d {
 	public void iDCT(double[] G) {
 		if (G.length != M)
 			throw new IllegalArgumentException();
-		double[] g = tmp;
-		for (int u = 0; u < M; u++) {
-			double sum = 0;
-			for (int m = 0; m < M; m++) {
-				double cm = (m == 0) ? CM0 : 1.0;
-				sum += cm * G[m] * cosTable[(m * (2 * u + 1)) % N];
-			}
-			g[u] = s * sum;
+		// V[m] = exp(i m PI / (2M)) * (C[m] - i C[M-m]), with C[M] = 0
+		// and C[0] weighted by 2 * CM0 (the DC term appears only once in the sum)
+		for (int m = 0; m < M; m++) {
+			double a = (m == 0) ? 2 * CM0 * G[0] : G[m];
+			double b = (m == 0) ? 0 : G[M - m];
+			re[m] = a * cosTable[m] + b * sinTable[m];
+			im[m] = a * sinTable[m] - b * cosTable[m];
+		}
+		fft.transform(re, im, false);
+		// undo the reordering (the inverse FFT is scaled by 1/sqrt(M))
+		final double sf = s * Math.sqrt(M) / 2;
+		for (int u = 0; 2 * u < M; u++) {
+			G[2 * u] = sf * re[u];
+		}
+		for (int u = 0; 2 * u + 1 < M; u++) {
+			G[2 * u + 1] = sf * re[M - 1 - u];
 		}
-		System.arraycopy(g, 0, G, 0, M); // copy g -> G
 	}
 	
 	
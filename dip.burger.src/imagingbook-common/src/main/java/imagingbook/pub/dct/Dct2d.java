@@ -40,7 +40,7 @@ public class Dct2d {
 	}
 	
 	public void iDCT(float[][] data) {
-		applyTo(data, true);
+		applyTo(data, false);
 	}
 	
 //	@Deprecated
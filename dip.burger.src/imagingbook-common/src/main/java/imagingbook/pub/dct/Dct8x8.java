@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * This software is provided as a supplement to the authors' textbooks on digital
+ * image processing published by Springer-Verlag in various languages and editions.
+ * Permission to use and distribute this software is granted under the BSD 2-Clause 
+ * "Simplified" License (see http://opensource.org/licenses/BSD-2-Clause). 
+ * Copyright (c) 2006-2015 Wilhelm Burger, Mark J. Burge. 
+ * All rights reserved. Visit http://www.imagingbook.com for additional details.
+ *  
+ *******************************************************************************/
+
+package imagingbook.pub.dct;
+
+import ij.process.FloatProcessor;
+
+/**
+ * This class calculates the 2D DCT independently on non-overlapping 8x8 blocks
+ * (as used in JPEG), using the fast 1D 8-point DCT by Arai, Agui and Nakajima (AAN),
+ * which needs only 5 multiplications plus one scaling step per coefficient.
+ * The results are the same as applying {@link Dct2d} to each 8x8 block.
+ * Image width and height must be multiples of 8.
+ */
+public class Dct8x8 {
+	
+	static final int B = 8;		// block size
+	
+	static final double A1 = Math.cos(4 * Math.PI / 16);						// 0.707106781
+	static final double A2 = Math.cos(2 * Math.PI / 16) - Math.cos(6 * Math.PI / 16);	// 0.541196100
+	static final double A4 = Math.cos(2 * Math.PI / 16) + Math.cos(6 * Math.PI / 16);	// 1.306562965
+	static final double A5 = Math.cos(6 * Math.PI / 16);						// 0.382683433
+	
+	/**
+	 * The AAN flow graphs produce coefficients scaled by 1 (u = 0) and 2 cos(u PI / 16)
+	 * (u > 0), respectively. These tables fold this scaling and the sqrt(2/8) c_u
+	 * normalization of {@link Dct1d} into one multiplication per coefficient.
+	 */
+	static final double[] postScale = new double[B];	// used by the forward DCT
+	static final double[] preScale = new double[B];		// used by the inverse DCT
+	
+	static {
+		postScale[0] = 0.5 * Dct1d.CM0;
+		preScale[0]  = 0.5 * Dct1d.CM0;
+		for (int u = 1; u < B; u++) {
+			double cu = Math.cos(u * Math.PI / 16);
+			postScale[u] = 1 / (4 * cu);
+			preScale[u]  = cu / 2;
+		}
+	}
+	
+	private final double[] tmp = new double[B];
+	
+	public Dct8x8() {
+	}
+	
+	public FloatProcessor DCT(FloatProcessor g) {
+		float[][] data = g.getFloatArray();	// this is always a duplicate array!
+		DCT(data);
+		return new FloatProcessor(data);
+	}
+	
+	public void DCT(float[][] data) {
+		applyTo(data, true);
+	}
+	
+	public FloatProcessor iDCT(FloatProcessor G) {
+		float[][] data = G.getFloatArray();	
+		iDCT(data);
+		return new FloatProcessor(data);
+	}
+	
+	public void iDCT(float[][] data) {
+		applyTo(data, false);
+	}
+	
+	// in-place blockwise 2D DCT
+	private void applyTo(final float[][] data, final boolean forward) {
+		final int width = data.length;
+		final int height = data[0].length;
+		if (width % B != 0 || height % B != 0)
+			throw new IllegalArgumentException("image size must be a multiple of " + B);
+		final double[] x = tmp;
+		for (int u0 = 0; u0 < width; u0 += B) {
+			for (int v0 = 0; v0 < height; v0 += B) {
+				// do the rows of this block:
+				for (int v = v0; v < v0 + B; v++) {
+					for (int i = 0; i < B; i++) {
+						x[i] = data[u0 + i][v];
+					}
+					if (forward) DCT8(x); else iDCT8(x);
+					for (int i = 0; i < B; i++) {
+						data[u0 + i][v] = (float) x[i];
+					}
+				}
+				// do the columns of this block:
+				for (int u = u0; u < u0 + B; u++) {
+					final float[] col = data[u];
+					for (int i = 0; i < B; i++) {
+						x[i] = col[v0 + i];
+					}
+					if (forward) DCT8(x); else iDCT8(x);
+					for (int i = 0; i < B; i++) {
+						col[v0 + i] = (float) x[i];
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Destructively applies the forward 8-point DCT (AAN) to the argument vector.
+	 * @param d the data to be transformed (of length 8)
+	 */
+	static void DCT8(double[] d) {
+		double t0 = d[0] + d[7], t7 = d[0] - d[7];
+		double t1 = d[1] + d[6], t6 = d[1] - d[6];
+		double t2 = d[2] + d[5], t5 = d[2] - d[5];
+		double t3 = d[3] + d[4], t4 = d[3] - d[4];
+		// even part:
+		double t10 = t0 + t3, t13 = t0 - t3;
+		double t11 = t1 + t2, t12 = t1 - t2;
+		d[0] = t10 + t11;
+		d[4] = t10 - t11;
+		double z1 = (t12 + t13) * A1;
+		d[2] = t13 + z1;
+		d[6] = t13 - z1;
+		// odd part:
+		t10 = t4 + t5;
+		t11 = t5 + t6;
+		t12 = t6 + t7;
+		double z5 = (t10 - t12) * A5;
+		double z2 = A2 * t10 + z5;
+		double z4 = A4 * t12 + z5;
+		double z3 = t11 * A1;
+		double z11 = t7 + z3, z13 = t7 - z3;
+		d[5] = z13 + z2;
+		d[3] = z13 - z2;
+		d[1] = z11 + z4;
+		d[7] = z11 - z4;
+		for (int u = 0; u < B; u++) {
+			d[u] = d[u] * postScale[u];
+		}
+	}
+	
+	/**
+	 * Destructively applies the inverse 8-point DCT (AAN) to the argument vector.
+	 * @param d the data to be transformed (of length 8)
+	 */
+	static void iDCT8(double[] d) {
+		for (int u = 0; u < B; u++) {
+			d[u] = d[u] * preScale[u];
+		}
+		// even part:
+		double t0 = d[0], t1 = d[2], t2 = d[4], t3 = d[6];
+		double t10 = t0 + t2, t11 = t0 - t2;
+		double t13 = t1 + t3;
+		double t12 = (t1 - t3) * 2 * A1 - t13;
+		t0 = t10 + t13;
+		t3 = t10 - t13;
+		t1 = t11 + t12;
+		t2 = t11 - t12;
+		// odd part:
+		double t4 = d[1], t5 = d[3], t6 = d[5], t7 = d[7];
+		double z13 = t6 + t5, z10 = t6 - t5;
+		double z11 = t4 + t7, z12 = t4 - t7;
+		t7 = z11 + z13;
+		t11 = (z11 - z13) * 2 * A1;
+		double z5 = (z10 + z12) * 2 * Math.cos(2 * Math.PI / 16);
+		t10 = 2 * A2 * z12 - z5;
+		t12 = -2 * A4 * z10 + z5;
+		t6 = t12 - t7;
+		t5 = t11 - t6;
+		t4 = t10 + t5;
+		d[0] = t0 + t7;
+		d[7] = t0 - t7;
+		d[1] = t1 + t6;
+		d[6] = t1 - t6;
+		d[2] = t2 + t5;
+		d[5] = t2 - t5;
+		d[4] = t3 + t4;
+		d[3] = t3 - t4;
+	}
+
+}
@@ -12,56 +12,32 @@ package imagingbook.pub.dft;
 
 import imagingbook.lib.math.Complex;
 
+/**
+ * Calculates the 1D DFT on vectors of {@link Complex} values.
+ * The actual transform is delegated to {@link Fft1d}, so this
+ * takes O(M log M) time for any signal length M.
+ */
 public class Dft1d {
 
-	double[] cosTable;
-	double[] sinTable;
-	Complex[] G;			// TODO: clean up creation of G (made instances of Complex immutable)!
+	final Fft1d fft;
+	final double[] re, im;	// work arrays
 	
 	Dft1d(int M){ //Constructor
-		makeCosTable(M);
-		makeSinTable(M);
-		G = new Complex[M];	//this is done only ONCE when object is created!
-		for (int i = 0; i < M; i++) {
-			G[i] = new Complex(0,0);
-		}
-	}
-	
-	void makeCosTable(int M){
-		cosTable = new double[M];
-		for (int i=0; i<M; i++){
-			cosTable[i]= Math.cos(2*Math.PI*i/M);
-		}
-	}
-	
-	void makeSinTable(int M){
-		sinTable = new double[M];
-		for (int i=0; i<M; i++){
-			sinTable[i]= Math.sin(2*Math.PI*i/M);
-		}		
+		fft = new Fft1d(M);
+		re = new double[M];
+		im = new double[M];
 	}
 	
 	public Complex[] DFT(Complex[] g, boolean forward) {
 		int M = g.length;
-		double s = 1 / Math.sqrt(M); //common scale factor
+		for (int m = 0; m < M; m++) {
+			re[m] = g[m].re();
+			im[m] = g[m].im();
+		}
+		fft.transform(re, im, forward);
+		Complex[] G = new Complex[M];
 		for (int u = 0; u < M; u++) {
-			double sumRe = 0;
-			double sumIm = 0;
-			for (int m = 0; m < M; m++) {
-				double gRe = g[m].re();
-				double gIm = g[m].im();
-				int k = (u * m) % M;
-				double cosPhi = cosTable[k];
-				double sinPhi = sinTable[k];
-				if (forward)
-					sinPhi = -sinPhi;
-				//complex multiplication: (gRe + i gIm) * (cosPhi + i sinPhi)
-				sumRe += gRe * cosPhi - gIm * sinPhi;
-				sumIm += gRe * sinPhi + gIm * cosPhi;
-			}
-//			G[u].re = s * sumRe;	
-//			G[u].im = s * sumIm;
-			G[u] = new Complex(s * sumRe, s * sumIm);
+			G[u] = new Complex(re[u], im[u]);
 		}
 		return G;
 	}
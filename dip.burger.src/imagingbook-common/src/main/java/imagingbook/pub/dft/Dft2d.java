@@ -11,14 +11,16 @@
 package imagingbook.pub.dft;
 
 import ij.process.*;
-import imagingbook.lib.math.Complex;
-import imagingbook.pub.dft.Dft1d;
-
-//TODO: clean up creation of G (made instances of Complex immutable)!
+import imagingbook.lib.math.ComplexArray;
 
+/**
+ * Calculates the 2D DFT of a float image of arbitrary size by applying
+ * {@link Fft1d} to all rows and columns (see {@link Fft2d}), i.e., in O(MN log(MN)) time.
+ */
 public class Dft2d {
 	final int width, height;
-	float[] Real;	//original image data
+	final ComplexArray spectrum;	// 2D data in row-major order
+	float[] Real;	// float copies of the spectrum, created on demand
 	float[] Imag;
 	float[] Power;
 	float PowerMax;
@@ -29,8 +31,7 @@ public class Dft2d {
 	public Dft2d(FloatProcessor ip){
 		width = ip.getWidth();
 		height = ip.getHeight();
-		Real = (float[]) ip.getPixels();
-		Imag = new float[width*height];  // values are zero
+		spectrum = new ComplexArray((float[]) ip.getPixels());
 		doDft2d();
 		makePowerSpectrum();
 	}
@@ -50,11 +51,23 @@ public class Dft2d {
 //		forward = false;
 //	}
 	
+	/**
+	 * @return the real part of the spectrum as a float array 
+	 * (created from the full-precision spectrum on the first call)
+	 */
 	public float[] getReal() {
+		if (Real == null)
+			Real = toFloat(spectrum.re());
 		return Real;
 	}
 	
+	/**
+	 * @return the imaginary part of the spectrum as a float array 
+	 * (created from the full-precision spectrum on the first call)
+	 */
 	public float[] getImag(){
+		if (Imag == null)
+			Imag = toFloat(spectrum.im());
 		return Imag;
 	}
 	
@@ -62,69 +75,38 @@ public class Dft2d {
 		return Power;
 	}
 	
-	//------------------------------------------------
-	
-	public void doDft2d () { // in-place 2D Dft
-		// do the rows:
-		Complex[] row = Complex.makeComplexVector(width);
-		Dft1d dftR = new Dft1d(width);
-		for (int v=0; v<height; v++){
-			getRow(v,row);
-			Complex[] rowDft = dftR.DFT(row, forward);
-			putRow(v,rowDft);
-		}
-		// do the columns:
-		Complex[] col = Complex.makeComplexVector(height);
-		Dft1d dftC = new Dft1d(height);
-		for (int u=0; u<width; u++){
-			getCol(u,col);
-			Complex[] colDft = dftC.DFT(col,forward);
-			putCol(u,colDft);
-		}
-	}
-	
-	void getRow(int v, Complex[] rowC){
-		int i = v*width; //start index of row v
-		for (int u=0; u<width; u++){
-//			rowC[u].re = Real[i+u];
-//			rowC[u].im = Imag[i+u];
-			rowC[u] = new Complex(Real[i+u], Imag[i+u]);
-		}
+	/**
+	 * @return the complex 2D spectrum (not centered) in full 
+	 * precision, row-major order
+	 */
+	public ComplexArray getSpectrum() {
+		return spectrum;
 	}
 	
-	void putRow(int v, Complex[] rowC){
-		int i = v*width; //start index of row v
-		for (int u=0; u<width; u++){
-			Real[i+u] = (float) rowC[u].re();
-			Imag[i+u] = (float) rowC[u].im();
-		}
-	}
+	//------------------------------------------------
 	
-	void getCol(int u, Complex[] rowC){
-		for (int v=0; v<height; v++){
-//			rowC[v].re = Real[v*width+u];
-//			rowC[v].im = Imag[v*width+u];
-			rowC[v] = new Complex(Real[v*width+u], Imag[v*width+u]);
-		}
+	public void doDft2d () { // in-place 2D Dft
+		new Fft2d(width, height).transform(spectrum, forward);
+		Real = null;
+		Imag = null;
 	}
 	
-	void putCol(int u, Complex[] rowC){
-		for (int v=0; v<height; v++){
-			Real[v*width+u] = (float) rowC[v].re();
-			Imag[v*width+u] = (float) rowC[v].im();
+	private static float[] toFloat(double[] a) {
+		float[] f = new float[a.length];
+		for (int i=0; i<a.length; i++){
+			f[i] = (float) a[i];
 		}
+		return f;
 	}
 	
 	//----------------------------------------------------
 	
 	void makePowerSpectrum(){
 		//computes the power spectrum 
-		Power = new float[Real.length];
+		Power = new float[spectrum.size()];
 		PowerMax = 0.0f;
-		for (int i=0; i<Real.length; i++){
-			double a = Real[i];
-			double b = Imag[i];
-			float p = (float) Math.sqrt(a*a + b*b);
+		for (int i=0; i<Power.length; i++){
+			float p = (float) spectrum.abs(i);
 			Power[i] = p;
 			if (p>PowerMax)
 				PowerMax = p;
@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * This software is provided as a supplement to the authors' textbooks on digital
+ * image processing published by Springer-Verlag in various languages and editions.
+ * Permission to use and distribute this software is granted under the BSD 2-Clause 
+ * "Simplified" License (see http://opensource.org/licenses/BSD-2-Clause). 
+ * Copyright (c) 2006-2015 Wilhelm Burger, Mark J. Burge. 
+ * All rights reserved. Visit http://www.imagingbook.com for additional details.
+ *  
+ *******************************************************************************/
+
+package imagingbook.pub.dft;
+
+import imagingbook.lib.math.ComplexArray;
+
+/**
+ * This class calculates the 1D DFT of arbitrary length in O(M log M) time,
+ * operating destructively on separate arrays of real and imaginary parts.
+ * Signals whose length is a power of 2 are transformed with an iterative
+ * radix-2 FFT, all other lengths are handled by Bluestein's algorithm
+ * (chirp-z transform), which uses a radix-2 FFT of size &ge; 2M-1 internally.
+ * The same (symmetric) scale factor 1/sqrt(M) as in {@link Dft1d} is applied
+ * in both directions.
+ * Instances hold pre-calculated tables and work arrays and thus must not be
+ * shared between threads.
+ */
+public class Fft1d {
+
+	final private int M;			// size of the input vector
+	final private double s;			// common scale factor
+
+	// radix-2 setup (used only if M is a power of 2):
+	private int[] bitRev;			// bit-reversal permutation
+	private double[] cosTable;		// cos(2 PI k / M), k = 0,...,M/2-1
+	private double[] sinTable;		// sin(2 PI k / M), k = 0,...,M/2-1
+
+	// Bluestein setup (used only if M is not a power of 2):
+	private Fft1d fftN;				// radix-2 FFT of size N >= 2M-1
+	private double[] wRe, wIm;		// chirp w[m] = exp(-i PI m^2 / M)
+	private double[] bRe, bIm;		// (unscaled) spectrum of the conjugate chirp
+	private double[] aRe, aIm;		// work arrays of size N
+
+	public Fft1d(int M) {
+		if (M < 1)
+			throw new IllegalArgumentException("signal length M >= 1 expected");
+		this.M = M;
+		this.s = 1 / Math.sqrt(M);
+		if (isPowerOf2(M))
+			makeRadix2Tables();
+		else
+			makeBluesteinTables();
+	}
+
+	public int getSize() {
+		return M;
+	}
+
+	/**
+	 * Destructively applies the DFT to the complex signal given by the arrays
+	 * of real and imaginary parts, which must both be of length M.
+	 * @param re real parts (modified)
+	 * @param im imaginary parts (modified)
+	 * @param forward true for the forward, false for the inverse transform
+	 */
+	public void transform(double[] re, double[] im, boolean forward) {
+		if (re.length != M || im.length != M)
+			throw new IllegalArgumentException("arrays of length " + M + " expected");
+		if (fftN == null)
+			fftRadix2(re, im, forward);
+		else
+			fftBluestein(re, im, forward);
+		for (int i = 0; i < M; i++) {
+			re[i] = s * re[i];
+			im[i] = s * im[i];
+		}
+	}
+
+	/**
+	 * Destructively applies the DFT to the given complex vector of length M.
+	 * @param g the data to be transformed
+	 * @param forward true for the forward, false for the inverse transform
+	 */
+	public void transform(ComplexArray g, boolean forward) {
+		transform(g.re(), g.im(), forward);
+	}
+
+	// ---------------------------------------------------------------------
+
+	static boolean isPowerOf2(int n) {
+		return n > 0 && (n & (n - 1)) == 0;
+	}
+
+	private void makeRadix2Tables() {
+		int bits = Integer.numberOfTrailingZeros(M);
+		bitRev = new int[M];
+		for (int i = 0; i < M; i++) {
+			bitRev[i] = (bits == 0) ? 0 : Integer.reverse(i) >>> (32 - bits);
+		}
+		cosTable = new double[M / 2];
+		sinTable = new double[M / 2];
+		for (int k = 0; k < M / 2; k++) {
+			double phi = 2 * Math.PI * k / M;
+			cosTable[k] = Math.cos(phi);
+			sinTable[k] = Math.sin(phi);
+		}
+	}
+
+	private void makeBluesteinTables() {
+		int N = Integer.highestOneBit(2 * M - 1);
+		if (N < 2 * M - 1)
+			N = 2 * N;
+		fftN = new Fft1d(N);
+		wRe = new double[M];
+		wIm = new double[M];
+		for (int m = 0; m < M; m++) {
+			// m^2 is reduced modulo 2M to keep the angle small and exact
+			long k = ((long) m * m) % (2 * M);
+			double phi = Math.PI * k / M;
+			wRe[m] = Math.cos(phi);
+			wIm[m] = -Math.sin(phi);
+		}
+		bRe = new double[N];
+		bIm = new double[N];
+		bRe[0] = wRe[0];
+		bIm[0] = -wIm[0];
+		for (int m = 1; m < M; m++) {
+			bRe[m] = bRe[N - m] = wRe[m];
+			bIm[m] = bIm[N - m] = -wIm[m];
+		}
+		fftN.fftRadix2(bRe, bIm, true);
+		aRe = new double[N];
+		aIm = new double[N];
+	}
+
+	/*
+	 * Unscaled, in-place iterative radix-2 FFT (M must be a power of 2).
+	 */
+	private void fftRadix2(double[] re, double[] im, boolean forward) {
+		for (int i = 0; i < M; i++) {
+			int j = bitRev[i];
+			if (j > i) {
+				double t = re[i]; re[i] = re[j]; re[j] = t;
+				t = im[i]; im[i] = im[j]; im[j] = t;
+			}
+		}
+		for (int size = 2; size <= M; size = 2 * size) {
+			int half = size / 2;
+			int step = M / size;
+			for (int i = 0; i < M; i += size) {
+				for (int j = 0, k = 0; j < half; j++, k += step) {
+					double wr = cosTable[k];
+					double wi = forward ? -sinTable[k] : sinTable[k];
+					int p = i + j;
+					int q = p + half;
+					double tr = re[q] * wr - im[q] * wi;
+					double ti = re[q] * wi + im[q] * wr;
+					re[q] = re[p] - tr;
+					im[q] = im[p] - ti;
+					re[p] = re[p] + tr;
+					im[p] = im[p] + ti;
+				}
+			}
+		}
+	}
+
+	/*
+	 * Unscaled Bluestein FFT for arbitrary M. The inverse transform is
+	 * obtained by conjugating input and output of the forward transform.
+	 */
+	private void fftBluestein(double[] re, double[] im, boolean forward) {
+		final int N = aRe.length;
+		final double sgn = forward ? 1 : -1;
+		// a[m] = g[m] * w[m], zero-padded to length N
+		for (int m = 0; m < M; m++) {
+			double gr = re[m];
+			double gi = sgn * im[m];
+			aRe[m] = gr * wRe[m] - gi * wIm[m];
+			aIm[m] = gr * wIm[m] + gi * wRe[m];
+		}
+		for (int m = M; m < N; m++) {
+			aRe[m] = 0;
+			aIm[m] = 0;
+		}
+		// cyclic convolution a * b via the radix-2 FFT:
+		fftN.fftRadix2(aRe, aIm, true);
+		for (int i = 0; i < N; i++) {
+			double ar = aRe[i];
+			double ai = aIm[i];
+			aRe[i] = ar * bRe[i] - ai * bIm[i];
+			aIm[i] = ar * bIm[i] + ai * bRe[i];
+		}
+		fftN.fftRadix2(aRe, aIm, false);
+		// G[k] = w[k] * (a * b)[k] / N
+		for (int k = 0; k < M; k++) {
+			double cr = aRe[k] / N;
+			double ci = aIm[k] / N;
+			re[k] = cr * wRe[k] - ci * wIm[k];
+			im[k] = sgn * (cr * wIm[k] + ci * wRe[k]);
+		}
+	}
+
+}
@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * This software is provided as a supplement to the authors' textbooks on digital
+ * image processing published by Springer-Verlag in various languages and editions.
+ * Permission to use and distribute this software is granted under the BSD 2-Clause
+ * "Simplified" License (see http://opensource.org/licenses/BSD-2-Clause).
+ * Copyright (c) 2006-2015 Wilhelm Burger, Mark J. Burge.
+ * All rights reserved. Visit http://www.imagingbook.com for additional details.
+ *
+ *******************************************************************************/
+
+package imagingbook.pub.dft;
+
+import imagingbook.lib.math.ComplexArray;
+import imagingbook.lib.util.ParallelTasks;
+import imagingbook.lib.util.ParallelTasks.BandOp;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * This class calculates the 2D DFT of a complex array of size width x height
+ * (stored in row-major order) by applying {@link Fft1d} to all rows and then
+ * to all columns, operating destructively on the given data.
+ * The rows (columns) may be processed in parallel bands.
+ * The same (symmetric) scale factor 1/sqrt(width * height) is applied in both directions.
+ */
+public class Fft2d {
+
+	private final int width, height;
+	private final int parallelism;
+
+	/**
+	 * Creates a 2D FFT which runs on the calling thread.
+	 * @param width the width of the 2D data
+	 * @param height the height of the 2D data
+	 */
+	public Fft2d(int width, int height) {
+		this(width, height, 1);
+	}
+
+	/**
+	 * @param width the width of the 2D data
+	 * @param height the height of the 2D data
+	 * @param parallelism number of threads (0 = use the common thread pool, 1 = run on the calling thread)
+	 */
+	public Fft2d(int width, int height, int parallelism) {
+		if (width < 1 || height < 1)
+			throw new IllegalArgumentException("width and height >= 1 expected");
+		if (parallelism < 0)
+			throw new IllegalArgumentException("parallelism must be >= 0");
+		this.width = width;
+		this.height = height;
+		this.parallelism = parallelism;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Destructively applies the 2D DFT to the complex data given by the arrays
+	 * of real and imaginary parts, which must both be of size width x height.
+	 * @param re real parts (modified)
+	 * @param im imaginary parts (modified)
+	 * @param forward true for the forward, false for the inverse transform
+	 */
+	public void transform(final double[] re, final double[] im, final boolean forward) {
+		if (re.length != width * height || im.length != width * height)
+			throw new IllegalArgumentException("arrays of length " + (width * height) + " expected");
+		ExecutorService pool = ParallelTasks.makePool(parallelism);
+		try {
+			ParallelTasks.runBands(pool, height, parallelism, new BandOp() {	// rows
+				public void run(int v0, int v1) {
+					final Fft1d fft = new Fft1d(width);
+					final double[] bre = new double[width];
+					final double[] bim = new double[width];
+					for (int v = v0; v < v1; v++) {
+						System.arraycopy(re, v * width, bre, 0, width);
+						System.arraycopy(im, v * width, bim, 0, width);
+						fft.transform(bre, bim, forward);
+						System.arraycopy(bre, 0, re, v * width, width);
+						System.arraycopy(bim, 0, im, v * width, width);
+					}
+				}
+			});
+			ParallelTasks.runBands(pool, width, parallelism, new BandOp() {	// columns
+				public void run(int u0, int u1) {
+					final Fft1d fft = new Fft1d(height);
+					final double[] bre = new double[height];
+					final double[] bim = new double[height];
+					for (int u = u0; u < u1; u++) {
+						for (int v = 0; v < height; v++) {
+							bre[v] = re[v * width + u];
+							bim[v] = im[v * width + u];
+						}
+						fft.transform(bre, bim, forward);
+						for (int v = 0; v < height; v++) {
+							re[v * width + u] = bre[v];
+							im[v * width + u] = bim[v];
+						}
+					}
+				}
+			});
+		} finally {
+			ParallelTasks.release(pool);
+		}
+	}
+
+	/**
+	 * Destructively applies the 2D DFT to the given complex array of size width x height.
+	 * @param g the data to be transformed
+	 * @param forward true for the forward, false for the inverse transform
+	 */
+	public void transform(ComplexArray g, boolean forward) {
+		transform(g.re(), g.im(), forward);
+	}
+
+}
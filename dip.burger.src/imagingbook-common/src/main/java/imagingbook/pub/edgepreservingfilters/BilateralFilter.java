@@ -54,7 +54,7 @@ public class BilateralFilter extends GenericFilter {
 	
 	private float[][] Hd;	// the domain kernel
 	protected final int K;
-	protected final float[] rgb = {0,0,0};
+	protected float[] rgb = {0,0,0};
 	protected final double sigmaR2;
 	protected final VectorNorm colorNorm;
 	protected final double colorScale;
@@ -81,6 +81,13 @@ public class BilateralFilter extends GenericFilter {
 		Hd = makeDomainKernel2D(params.sigmaD, K);
 	}
 	
+	@Override
+	protected BilateralFilter makeWorker() {
+		BilateralFilter worker = (BilateralFilter) super.makeWorker();
+		worker.rgb = new float[3];	// private result array
+		return worker;
+	}
+	
 	public float filterPixel(ImageAccessor.Scalar I, int u, int v) {
 		float S = 0;			// sum of weighted pixel values
 		float W = 0;			// sum of weights
@@ -101,10 +108,8 @@ public class BilateralFilter extends GenericFilter {
 	}
 	
 	public float[] filterPixel(ImageAccessor.Rgb I, int u, int v) {
-		float[] S = new float[3]; 	// sum of weighted RGB values
-		float W = 0;				// sum of weights
-		//int[] a = new int[3];
-		//int[] b = new int[3];
+		float SR = 0, SG = 0, SB = 0; 	// sum of weighted RGB values
+		float W = 0;					// sum of weights
 		
 		float[] a = I.getPix(u, v);			// value of the current center pixel
 		
@@ -114,15 +119,15 @@ public class BilateralFilter extends GenericFilter {
 				float wd = Hd[m + K][n + K];
 				float wr = similarityGauss(a, b);
 				float w = wd * wr;
-				S[0] = S[0] + w * b[0];
-				S[1] = S[1] + w * b[1];
-				S[2] = S[2] + w * b[2];
+				SR = SR + w * b[0];
+				SG = SG + w * b[1];
+				SB = SB + w * b[2];
 				W = W + w;
 			}
 		}
-		rgb[0] = Math.round(S[0] / W);
-		rgb[1] = Math.round(S[1] / W);
-		rgb[2] = Math.round(S[2] / W);
+		rgb[0] = Math.round(SR / W);
+		rgb[1] = Math.round(SG / W);
+		rgb[2] = Math.round(SB / W);
  		return rgb;
  	}
 	
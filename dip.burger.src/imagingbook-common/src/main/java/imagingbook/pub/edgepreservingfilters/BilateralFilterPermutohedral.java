@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * This software is provided as a supplement to the authors' textbooks on digital
+ * image processing published by Springer-Verlag in various languages and editions.
+ * Permission to use and distribute this software is granted under the BSD 2-Clause 
+ * "Simplified" License (see http://opensource.org/licenses/BSD-2-Clause). 
+ * Copyright (c) 2006-2015 Wilhelm Burger, Mark J. Burge. 
+ * All rights reserved. Visit http://www.imagingbook.com for additional details.
+ *  
+ *******************************************************************************/
+
+package imagingbook.pub.edgepreservingfilters;
+
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import imagingbook.lib.math.VectorNorm.NormType;
+
+import java.util.Random;
+
+/**
+ * Fast approximation of the {@link BilateralFilter} (with the same parameters),
+ * using the {@link PermutohedralLattice} in the joint space of pixel positions and values
+ * (3 dimensions for scalar images, 5 for RGB images). The running time is
+ * linear in the image size and independent of sigmaD.
+ * The lattice requires Euclidean range distances, i.e., RGB images with
+ * color norms other than {@code NormType.L2} are processed by the (slow) brute-force
+ * method of the super class.
+ */
+public class BilateralFilterPermutohedral extends BilateralFilter {
+
+	public BilateralFilterPermutohedral() {
+		this(new Parameters());
+	}
+
+	public BilateralFilterPermutohedral(double sigmaD, double sigmaR) {
+		this(Parameters.create(sigmaD, sigmaR));
+	}
+
+	public BilateralFilterPermutohedral(Parameters params) {
+		super(params);
+	}
+
+	// overrides the corresponding method in GenericFilter
+	@Override
+	public void applyTo(ImageProcessor ip) {
+		final boolean isColor = (ip instanceof ColorProcessor);
+		if (isColor && params.colorNormType != NormType.L2) {
+			super.applyTo(ip);
+			return;
+		}
+		final int w = ip.getWidth();
+		final int h = ip.getHeight();
+		final int nc = ip.getNChannels();
+		final float sd = (float) (1 / params.sigmaD);
+		// range distances are scaled in the same way as in BilateralFilter:
+		final float sr = (float) ((isColor ? Math.sqrt(colorScale) : 1) / params.sigmaR);
+
+		float[][] I = new float[nc][];
+		for (int c = 0; c < nc; c++) {
+			I[c] = (float[]) ip.toFloat(c, null).getPixels();
+		}
+
+		final int d = 2 + nc;
+		final float[] pos = new float[d];
+		final float[] val = new float[nc + 1];	// homogeneous value vector
+		PermutohedralLattice lattice = new PermutohedralLattice(d, nc + 1, w * h / 16);
+
+		val[nc] = 1;
+		for (int v = 0; v < h; v++) {
+			for (int u = 0; u < w; u++) {
+				final int i = v * w + u;
+				makePosition(I, i, u, v, sd, sr, pos);
+				for (int c = 0; c < nc; c++) {
+					val[c] = I[c][i];
+				}
+				lattice.splat(pos, val);
+			}
+		}
+
+		lattice.blur();
+
+		float[][] R = new float[nc][w * h];
+		for (int v = 0; v < h; v++) {
+			for (int u = 0; u < w; u++) {
+				final int i = v * w + u;
+				makePosition(I, i, u, v, sd, sr, pos);
+				lattice.slice(pos, val);
+				for (int c = 0; c < nc; c++) {
+					R[c][i] = val[c] / val[nc];
+				}
+			}
+		}
+		for (int c = 0; c < nc; c++) {
+			ip.setPixels(c, new FloatProcessor(w, h, R[c]));
+		}
+	}
+
+	private static void makePosition(float[][] I, int i, int u, int v, float sd, float sr, float[] pos) {
+		pos[0] = u * sd;
+		pos[1] = v * sd;
+		for (int c = 0; c < I.length; c++) {
+			pos[2 + c] = I[c][i] * sr;
+		}
+	}
+
+	// ------------------------------------------------------
+
+	/**
+	 * Benchmark: quality (PSNR relative to the brute-force {@link BilateralFilter})
+	 * and running time for synthetic gray and color images.
+	 * @param args ignored
+	 */
+	public static void main(String[] args) {
+		System.out.println("image     | sigmaD | PSNR (dB) | brute force (ms) | lattice (ms)");
+		for (boolean color : new boolean[] {false, true}) {
+			ImageProcessor ip = makeTestImage(256, 256, color);
+			for (double sigmaD : new double[] {2, 5, 10}) {
+				ImageProcessor A = ip.duplicate();
+				ImageProcessor B = ip.duplicate();
+				long t0 = System.nanoTime();
+				new BilateralFilter(sigmaD, 30).applyTo(A);
+				long t1 = System.nanoTime();
+				new BilateralFilterPermutohedral(sigmaD, 30).applyTo(B);
+				long t2 = System.nanoTime();
+				System.out.format("%-9s | %6.1f | %9.2f | %16d | %12d%n", (color ? "RGB" : "gray"), sigmaD,
+						psnr(A, B), (t1 - t0) / 1000000, (t2 - t1) / 1000000);
+			}
+		}
+		System.out.println("throughput of the lattice filter (sigmaD = 10):");
+		for (boolean color : new boolean[] {false, true}) {
+			ImageProcessor ip = makeTestImage(2048, 1536, color);
+			long t0 = System.nanoTime();
+			new BilateralFilterPermutohedral(10, 30).applyTo(ip);
+			long t1 = System.nanoTime();
+			System.out.format("%-5s %d x %d: %.2f MPixel/s%n", (color ? "RGB" : "gray"),
+					ip.getWidth(), ip.getHeight(), ip.getPixelCount() / ((t1 - t0) / 1000.0));
+		}
+	}
+
+	// piecewise constant image (disk on a 2-level background) plus Gaussian noise
+	private static ImageProcessor makeTestImage(int w, int h, boolean color) {
+		ImageProcessor ip = color ? new ColorProcessor(w, h) : new FloatProcessor(w, h);
+		Random rnd = new Random(17);
+		float[] pix = new float[3];
+		for (int v = 0; v < h; v++) {
+			for (int u = 0; u < w; u++) {
+				double dx = u - w / 2, dy = v - h / 2;
+				boolean inside = dx * dx + dy * dy < w * h / 8;
+				for (int c = 0; c < 3; c++) {
+					double g = inside ? 60 + 50 * c : ((u < w / 3) ? 190 - 40 * c : 120);
+					pix[c] = (float) Math.max(0, Math.min(255, g + 20 * rnd.nextGaussian()));
+				}
+				if (color)
+					ip.putPixel(u, v, ((int) pix[0] << 16) | ((int) pix[1] << 8) | (int) pix[2]);
+				else
+					ip.putPixelValue(u, v, pix[0]);
+			}
+		}
+		return ip;
+	}
+
+	private static double psnr(ImageProcessor A, ImageProcessor B) {
+		double sum = 0;
+		int n = 0;
+		for (int c = 0; c < A.getNChannels(); c++) {
+			float[] a = (float[]) A.toFloat(c, null).getPixels();
+			float[] b = (float[]) B.toFloat(c, null).getPixels();
+			for (int i = 0; i < a.length; i++) {
+				double e = a[i] - b[i];
+				sum = sum + e * e;
+				n++;
+			}
+		}
+		return 10 * Math.log10(255 * 255 / (sum / n));
+	}
+
+}
@@ -29,11 +29,11 @@ public class BilateralFilterSeparable extends BilateralFilter {
 	private float[] Hr;			// domain kernel is one-dimensional here!
 	
 	public BilateralFilterSeparable() {
-		super();
+		this(new Parameters());
 	}
 	
 	public BilateralFilterSeparable(double sigmaD, double sigmaR) {
-		super(sigmaD, sigmaR);
+		this(Parameters.create(sigmaD, sigmaR));
 	}
 	
 	public BilateralFilterSeparable(Parameters params) {
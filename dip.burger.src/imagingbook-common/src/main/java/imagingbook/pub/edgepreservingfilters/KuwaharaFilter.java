@@ -10,14 +10,19 @@
 
 package imagingbook.pub.edgepreservingfilters;
 
+import ij.process.ImageProcessor;
 import imagingbook.lib.filters.GenericFilter;
 import imagingbook.lib.image.ImageAccessor;
+import imagingbook.lib.image.IntegralImage;
+import imagingbook.lib.image.IntegralImage.BorderMode;
 
 /**
  * This class implements a Kuwahara-type filter, similar to the filter suggested in 
  * Tomita and Tsuji (1977). It structures the filter region into five overlapping, 
  * square subregions (including a center region) of size (r+1) x (r+1). 
  * See algorithm 5.2 in Utics Vol. 3.
+ * By default, the subregion statistics are obtained from summed-area tables
+ * (calculated once per image), i.e., in constant time independent of the radius.
  * 
  * @author W. Burger
  * @version 2013/05/30
@@ -29,6 +34,8 @@ public class KuwaharaFilter extends GenericFilter {
 		public int radius = 2;
 		/** Threshold on sigma to avoid banding in flat regions */
 		public double tsigma = 5.0; 	
+		/** Use summed-area tables for calculating subregion statistics */
+		public boolean useIntegralImage = true;
 	}
 	
 	private Parameters params;
@@ -43,6 +50,8 @@ public class KuwaharaFilter extends GenericFilter {
 	private float AminR;
 	private float AminG;
 	private float AminB;
+	
+	private IntegralImage[] tables = null;	// summed-area tables of the current image (one per channel)
 
 	// constructor using default settings
 	public KuwaharaFilter() {
@@ -75,7 +84,28 @@ public class KuwaharaFilter extends GenericFilter {
 	}
 	
 	// ------------------------------------------------------
+	
+	// overrides the corresponding method in GenericFilter
+	@Override
+	public void applyTo(ImageProcessor ip) {
+		if (params.useIntegralImage) {
+			tables = IntegralImage.makeChannels(ip, false);
+		}
+		try {
+			super.applyTo(ip);	// tables are shared by all workers
+		}
+		finally {
+			tables = null;
+		}
+	}
 
+	@Override
+	protected KuwaharaFilter makeWorker() {
+		KuwaharaFilter worker = (KuwaharaFilter) super.makeWorker();
+		worker.rgb = new float[3];	// private result array
+		return worker;
+	}
+	
 	/*
 	 * This method is used for all scalar-values images.
 	 */
@@ -96,11 +126,17 @@ public class KuwaharaFilter extends GenericFilter {
 	void evalSubregionGray(ImageAccessor.Scalar ia, int u, int v) {
 		float S1 = 0; 
 		float S2 = 0;
-		for (int j = dm; j <= dp; j++) {
-			for (int i = dm; i <= dp; i++) {
-				float a = ia.getVal(u+i, v+j);
-				S1 = S1 + a;
-				S2 = S2 + a * a;
+		if (tables != null) {
+			S1 = (float) tables[0].getBlockSum1(u + dm, v + dm, u + dp, v + dp, BorderMode.Replicate);
+			S2 = (float) tables[0].getBlockSum2(u + dm, v + dm, u + dp, v + dp, BorderMode.Replicate);
+		}
+		else {
+			for (int j = dm; j <= dp; j++) {
+				for (int i = dm; i <= dp; i++) {
+					float a = ia.getVal(u+i, v+j);
+					S1 = S1 + a;
+					S2 = S2 + a * a;
+				}
 			}
 		}
 //		double s = (sum2 - sum1*sum1/nr)/nr;	// actual sigma^2
@@ -113,7 +149,7 @@ public class KuwaharaFilter extends GenericFilter {
 	
 	// ------------------------------------------------------
 	
-	final float[] rgb = {0,0,0};
+	float[] rgb = {0,0,0};
 	
 	public float[] filterPixel(ImageAccessor.Rgb ia, int u, int v) {
 		Smin = Float.MAX_VALUE;
@@ -132,28 +168,39 @@ public class KuwaharaFilter extends GenericFilter {
 	void evalSubregion(ImageAccessor.Rgb ia, int u, int v) {
 		// evaluate the subregion centered at (u,v)
 		//final int[] cpix = {0,0,0};
-		int S1R = 0; int S2R = 0;
-		int S1G = 0; int S2G = 0;
-		int S1B = 0; int S2B = 0;
-		for (int j = dm; j <= dp; j++) {
-			for (int i = dm; i <= dp; i++) {		
-				final float[] cpix = ia.getPix(u + i, v + j);
-				int red = (int) cpix[0];
-				int grn = (int) cpix[1];
-				int blu = (int) cpix[2];
-				S1R = S1R + red;
-				S1G = S1G + grn;
-				S1B = S1B + blu;
-				S2R = S2R + red * red;
-				S2G = S2G + grn * grn;
-				S2B = S2B + blu * blu;
+		long S1R = 0; long S2R = 0;
+		long S1G = 0; long S2G = 0;
+		long S1B = 0; long S2B = 0;
+		if (tables != null) {
+			final int ua = u + dm, va = v + dm, ub = u + dp, vb = v + dp;
+			S1R = (long) tables[0].getBlockSum1(ua, va, ub, vb, BorderMode.Replicate);
+			S1G = (long) tables[1].getBlockSum1(ua, va, ub, vb, BorderMode.Replicate);
+			S1B = (long) tables[2].getBlockSum1(ua, va, ub, vb, BorderMode.Replicate);
+			S2R = (long) tables[0].getBlockSum2(ua, va, ub, vb, BorderMode.Replicate);
+			S2G = (long) tables[1].getBlockSum2(ua, va, ub, vb, BorderMode.Replicate);
+			S2B = (long) tables[2].getBlockSum2(ua, va, ub, vb, BorderMode.Replicate);
+		}
+		else {
+			for (int j = dm; j <= dp; j++) {
+				for (int i = dm; i <= dp; i++) {		
+					final float[] cpix = ia.getPix(u + i, v + j);
+					int red = (int) cpix[0];
+					int grn = (int) cpix[1];
+					int blu = (int) cpix[2];
+					S1R = S1R + red;
+					S1G = S1G + grn;
+					S1B = S1B + blu;
+					S2R = S2R + red * red;
+					S2G = S2G + grn * grn;
+					S2B = S2B + blu * blu;
+				}
 			}
 		}
-		// calculate the variance for this subregion:
+		// calculate the variance for this subregion (in float to avoid overflow for large n):
 		float nf = n;
-		float SR = S2R - S1R * S1R / nf;
-		float SG = S2G - S1G * S1G / nf;
-		float SB = S2B - S1B * S1B / nf;
+		float SR = S2R - (float) S1R * S1R / nf;
+		float SG = S2G - (float) S1G * S1G / nf;
+		float SB = S2B - (float) S1B * S1B / nf;
 		// total variance (scaled by nr):
 		float Srgb = SR + SG + SB;
 		if (Srgb < Smin) { 
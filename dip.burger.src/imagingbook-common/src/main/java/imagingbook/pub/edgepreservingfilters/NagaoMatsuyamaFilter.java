@@ -10,12 +10,22 @@
 
 package imagingbook.pub.edgepreservingfilters;
 
+import ij.process.ImageProcessor;
 import imagingbook.lib.filters.GenericFilter;
 import imagingbook.lib.image.ImageAccessor;
+import imagingbook.lib.image.IntegralImage;
+import imagingbook.lib.image.IntegralImage.BorderMode;
+
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * This class implements a 5x5 Nagao-Matsuyama filter, as described in
  * NagaoMatsuyama (1979).
+ * Optionally, the subregion statistics are obtained from summed-area tables
+ * (calculated once per image), with each subregion decomposed into rectangles.
+ * For the small, fixed-size filter region this is not faster than direct summation,
+ * which is used by default.
  * 
  * @author W. Burger
  * @version 2013/05/30
@@ -26,6 +36,8 @@ public class NagaoMatsuyamaFilter extends GenericFilter {
 	public static class Parameters {
 		/** Variance threshold */
 		public double varThreshold = 0.0;	// 0,...,10
+		/** Use summed-area tables for calculating subregion statistics */
+		public boolean useIntegralImage = false;
 	}
 	
 	private final Parameters params;
@@ -78,6 +90,85 @@ public class NagaoMatsuyamaFilter extends GenericFilter {
 	private static final int[][][] subRegions =
 		{R2, R3, R4, R5, R6, R7, R8, R9};
 	
+	// the same subregions, decomposed into rectangles {u0, v0, u1, v1}:
+	private static final int[][] R1rects = makeRectangles(R1);
+	private static final int[][][] subRegionRects = new int[subRegions.length][][];
+	static {
+		for (int k = 0; k < subRegions.length; k++) {
+			subRegionRects[k] = makeRectangles(subRegions[k]);
+		}
+	}
+	
+	/*
+	 * Decomposes the point set R into rectangles, merging either row runs or
+	 * column runs (whichever gives fewer rectangles).
+	 */
+	private static int[][] makeRectangles(int[][] R) {
+		int[][] Rt = new int[R.length][];	// transposed point set
+		for (int i = 0; i < R.length; i++) {
+			Rt[i] = new int[] {R[i][1], R[i][0]};
+		}
+		int[][] rectsH = mergeRuns(R);
+		int[][] rectsV = mergeRuns(Rt);
+		if (rectsH.length <= rectsV.length)
+			return rectsH;
+		for (int[] r : rectsV) {	// transpose back
+			int t = r[0]; r[0] = r[1]; r[1] = t;
+			t = r[2]; r[2] = r[3]; r[3] = t;
+		}
+		return rectsV;
+	}
+	
+	/*
+	 * Decomposes the point set R into rectangles by merging the horizontal runs
+	 * of successive rows with the same extent.
+	 */
+	private static int[][] mergeRuns(int[][] R) {
+		int umin = Integer.MAX_VALUE, vmin = Integer.MAX_VALUE;
+		int umax = Integer.MIN_VALUE, vmax = Integer.MIN_VALUE;
+		for (int[] p : R) {
+			umin = Math.min(umin, p[0]); umax = Math.max(umax, p[0]);
+			vmin = Math.min(vmin, p[1]); vmax = Math.max(vmax, p[1]);
+		}
+		boolean[][] mask = new boolean[umax - umin + 1][vmax - vmin + 1];
+		for (int[] p : R) {
+			mask[p[0] - umin][p[1] - vmin] = true;
+		}
+		List<int[]> rects = new ArrayList<int[]>();
+		List<int[]> open = new ArrayList<int[]>();	// rectangles ending in the previous row
+		for (int v = vmin; v <= vmax; v++) {
+			List<int[]> next = new ArrayList<int[]>();
+			int u = umin;
+			while (u <= umax) {
+				if (!mask[u - umin][v - vmin]) {
+					u++;
+					continue;
+				}
+				int u0 = u;
+				while (u <= umax && mask[u - umin][v - vmin]) {
+					u++;
+				}
+				int u1 = u - 1;
+				int[] rect = null;
+				for (int[] r : open) {
+					if (r[0] == u0 && r[2] == u1) {
+						rect = r;
+					}
+				}
+				if (rect != null) {
+					rect[3] = v;	// extend downwards
+				}
+				else {
+					rect = new int[] {u0, v, u1, v};
+					rects.add(rect);
+				}
+				next.add(rect);
+			}
+			open = next;
+		}
+		return rects.toArray(new int[0][]);
+	}
+	
 	// ------------------------------------------------------
 	
 	public NagaoMatsuyamaFilter() {
@@ -94,27 +185,62 @@ public class NagaoMatsuyamaFilter extends GenericFilter {
 	private float minMeanG;
 	private float minMeanB;
 	
+	private IntegralImage[] tables = null;	// summed-area tables of the current image (one per channel)
+	
 	// ------------------------------------------------------
+	
+	// overrides the corresponding method in GenericFilter
+	@Override
+	public void applyTo(ImageProcessor ip) {
+		if (params.useIntegralImage) {
+			tables = IntegralImage.makeChannels(ip, false);
+		}
+		try {
+			super.applyTo(ip);	// tables are shared by all workers
+		}
+		finally {
+			tables = null;
+		}
+	}
 
+	@Override
+	protected NagaoMatsuyamaFilter makeWorker() {
+		NagaoMatsuyamaFilter worker = (NagaoMatsuyamaFilter) super.makeWorker();
+		worker.rgb = new float[3];	// private result array
+		return worker;
+	}
+	
 	public float filterPixel(ImageAccessor.Scalar image, int u, int v) {
 		minVariance = Float.MAX_VALUE;
-		evalSubregion(image, R1, u, v);
+		evalSubregion(image, R1, R1rects, u, v);
 		minVariance = minVariance - (float) params.varThreshold;
-		for (int[][] Rk : subRegions) {
-			evalSubregion(image, Rk, u, v);
+		for (int k = 0; k < subRegions.length; k++) {
+			evalSubregion(image, subRegions[k], subRegionRects[k], u, v);
 		}
  		return minMean;
  	}
 	
-	void evalSubregion(ImageAccessor.Scalar ia, int[][] R, int u, int v) {
+	void evalSubregion(ImageAccessor.Scalar ia, int[][] R, int[][] rects, int u, int v) {
 		float sum1 = 0; 
 		float sum2 = 0;
 		int n = 0;
-		for (int[] p : R) {
-			float a = ia.getVal(u+p[0], v+p[1]);
-			sum1 = sum1 + a;
-			sum2 = sum2 + a * a;
-			n = n + 1;
+		if (tables != null) {
+			double s1 = 0, s2 = 0;
+			for (int[] r : rects) {
+				s1 = s1 + tables[0].getBlockSum1(u + r[0], v + r[1], u + r[2], v + r[3], BorderMode.Replicate);
+				s2 = s2 + tables[0].getBlockSum2(u + r[0], v + r[1], u + r[2], v + r[3], BorderMode.Replicate);
+			}
+			sum1 = (float) s1;
+			sum2 = (float) s2;
+			n = R.length;
+		}
+		else {
+			for (int[] p : R) {
+				float a = ia.getVal(u+p[0], v+p[1]);
+				sum1 = sum1 + a;
+				sum2 = sum2 + a * a;
+				n = n + 1;
+			}
 		}
 		float nr = n;
 		float var = (sum2 - sum1 * sum1 / nr) / nr;	// = sigma^2
@@ -126,14 +252,14 @@ public class NagaoMatsuyamaFilter extends GenericFilter {
 	
 	// ------------------------------------------------------
 	
-	final float[] rgb = {0,0,0};
+	float[] rgb = {0,0,0};
 	
 	public float[] filterPixel(ImageAccessor.Rgb ia, int u, int v) {
 		minVariance = Float.MAX_VALUE;
-		evalSubregionColor(ia, R1, u, v);
+		evalSubregionColor(ia, R1, R1rects, u, v);
 		minVariance = minVariance - (3 * (float) params.varThreshold);
-		for (int[][] Rk : subRegions) {
-			evalSubregionColor(ia, Rk, u, v);
+		for (int k = 0; k < subRegions.length; k++) {
+			evalSubregionColor(ia, subRegions[k], subRegionRects[k], u, v);
 		}
 		rgb[0] = (int) Math.rint(minMeanR);
 		rgb[1] = (int) Math.rint(minMeanG);
@@ -141,24 +267,37 @@ public class NagaoMatsuyamaFilter extends GenericFilter {
  		return rgb;
  	}
 	
-	void evalSubregionColor(ImageAccessor.Rgb ia, int[][] R, int u, int v) {
-		//final int[] cpix = {0,0,0};
+	void evalSubregionColor(ImageAccessor.Rgb ia, int[][] R, int[][] rects, int u, int v) {
 		int sum1R = 0; int sum2R = 0;
 		int sum1G = 0; int sum2G = 0;
 		int sum1B = 0; int sum2B = 0;
 		int n = 0;
-		for (int[] p : R) {
-			final float[] cpix = ia.getPix(u + p[0], v + p[1]);
-			int red = (int) cpix[0];
-			int grn = (int) cpix[1];
-			int blu = (int) cpix[2];
-			sum1R = sum1R + red;
-			sum1G = sum1G + grn;
-			sum1B = sum1B + blu;
-			sum2R = sum2R + red * red;
-			sum2G = sum2G + grn * grn;
-			sum2B = sum2B + blu * blu;
-			n = n + 1;
+		if (tables != null) {
+			for (int[] r : rects) {
+				final int ua = u + r[0], va = v + r[1], ub = u + r[2], vb = v + r[3];
+				sum1R = sum1R + (int) tables[0].getBlockSum1(ua, va, ub, vb, BorderMode.Replicate);
+				sum1G = sum1G + (int) tables[1].getBlockSum1(ua, va, ub, vb, BorderMode.Replicate);
+				sum1B = sum1B + (int) tables[2].getBlockSum1(ua, va, ub, vb, BorderMode.Replicate);
+				sum2R = sum2R + (int) tables[0].getBlockSum2(ua, va, ub, vb, BorderMode.Replicate);
+				sum2G = sum2G + (int) tables[1].getBlockSum2(ua, va, ub, vb, BorderMode.Replicate);
+				sum2B = sum2B + (int) tables[2].getBlockSum2(ua, va, ub, vb, BorderMode.Replicate);
+			}
+			n = R.length;
+		}
+		else {
+			for (int[] p : R) {
+				final float[] cpix = ia.getPix(u + p[0], v + p[1]);
+				int red = (int) cpix[0];
+				int grn = (int) cpix[1];
+				int blu = (int) cpix[2];
+				sum1R = sum1R + red;
+				sum1G = sum1G + grn;
+				sum1B = sum1B + blu;
+				sum2R = sum2R + red * red;
+				sum2G = sum2G + grn * grn;
+				sum2B = sum2B + blu * blu;
+				n = n + 1;
+			}
 		}
 		float nr = n;
 		// calculate variance for this subregion:
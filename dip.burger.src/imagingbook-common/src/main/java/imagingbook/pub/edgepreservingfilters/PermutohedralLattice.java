@@ -0,0 +1,302 @@
+/*******************************************************************************
+ * This software is provided as a supplement to the authors' textbooks on digital
+ * image processing published by Springer-Verlag in various languages and editions.
+ * Permission to use and distribute this software is granted under the BSD 2-Clause 
+ * "Simplified" License (see http://opensource.org/licenses/BSD-2-Clause). 
+ * Copyright (c) 2006-2015 Wilhelm Burger, Mark J. Burge. 
+ * All rights reserved. Visit http://www.imagingbook.com for additional details.
+ *  
+ *******************************************************************************/
+
+package imagingbook.pub.edgepreservingfilters;
+
+/**
+ * Sparse permutohedral lattice for high-dimensional Gaussian filtering, as proposed in
+ * A. Adams, J. Baek and M. A. Davis, "Fast High-Dimensional Filtering Using the
+ * Permutohedral Lattice", Computer Graphics Forum 29(2), 753-762 (2010).
+ * Values (vectors of length vd) are splatted onto the vertices of the enclosing
+ * simplices of their d-dimensional positions, blurred along the d+1 lattice directions
+ * and sliced again at the original positions. Positions are expected to be scaled
+ * such that the Gaussian has unit standard deviation along each axis.
+ * Only lattice vertices actually touched are stored (in a hash table), so the cost
+ * is linear in the number of samples and independent of the filter size.
+ * Instances are not thread-safe.
+ */
+public class PermutohedralLattice {
+
+	private final int d;				// dimension of positions
+	private final int vd;				// dimension of values
+	private final float[] scaleFactor;
+	private final int[] canonical;		// canonical simplex, (d+1) x (d+1)
+
+	// work arrays used by embed():
+	private final float[] elevated;
+	private final float[] barycentric;
+	private final int[] greedy;
+	private final int[] rank;
+	private final int[] key;
+
+	// hash table (open addressing), mapping keys to vertex indices:
+	private int[] keys;			// vertex keys, d values each
+	private float[] values;		// vertex values, vd values each
+	private int[] table;		// vertex index + 1 or 0 if empty (size is a power of 2)
+	private int size = 0;		// number of vertices
+
+	/**
+	 * Creates a new (empty) lattice.
+	 * @param d dimension of positions
+	 * @param vd dimension of values
+	 * @param capacity the expected number of lattice vertices (the table grows as needed)
+	 */
+	public PermutohedralLattice(int d, int vd, int capacity) {
+		if (d < 1 || vd < 1)
+			throw new IllegalArgumentException("dimensions must be positive");
+		this.d = d;
+		this.vd = vd;
+		this.scaleFactor = new float[d];
+		final double invStdDev = Math.sqrt(2.0 / 3) * (d + 1);
+		for (int i = 0; i < d; i++) {
+			scaleFactor[i] = (float) (invStdDev / Math.sqrt((i + 1) * (i + 2)));
+		}
+		this.canonical = new int[(d + 1) * (d + 1)];
+		for (int i = 0; i <= d; i++) {
+			for (int j = 0; j <= d; j++) {
+				canonical[i * (d + 1) + j] = (j <= d - i) ? i : i - (d + 1);
+			}
+		}
+		this.elevated = new float[d + 1];
+		this.barycentric = new float[d + 2];
+		this.greedy = new int[d + 1];
+		this.rank = new int[d + 1];
+		this.key = new int[d + 1];
+		int n = Integer.highestOneBit(Math.max(2 * capacity, 16) - 1) << 1;
+		this.table = new int[n];
+		this.keys = new int[(n / 2) * d];
+		this.values = new float[(n / 2) * vd];
+	}
+
+	/**
+	 * @return the number of lattice vertices in use
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Adds the value vector at the given position to the lattice.
+	 * @param position position vector of length d
+	 * @param value value vector of length vd
+	 */
+	public void splat(float[] position, float[] value) {
+		embed(position);
+		for (int r = 0; r <= d; r++) {
+			makeKey(r);
+			int k = find(true) * vd;
+			final float b = barycentric[r];
+			for (int i = 0; i < vd; i++) {
+				values[k + i] = values[k + i] + b * value[i];
+			}
+		}
+	}
+
+	/**
+	 * Blurs the lattice values with a [1 2 1] kernel along each of the d+1 lattice
+	 * directions.
+	 */
+	public void blur() {
+		float[] newValues = new float[values.length];
+		int[] n1 = new int[d];
+		int[] n2 = new int[d];
+		for (int j = 0; j <= d; j++) {
+			for (int i = 0; i < size; i++) {
+				final int k0 = i * d;
+				for (int k = 0; k < d; k++) {
+					n1[k] = keys[k0 + k] + 1;
+					n2[k] = keys[k0 + k] - 1;
+				}
+				if (j < d) {
+					n1[j] = keys[k0 + j] - d;
+					n2[j] = keys[k0 + j] + d;
+				}
+				final int v0 = i * vd;
+				final int v1 = lookup(n1) * vd;
+				final int v2 = lookup(n2) * vd;
+				for (int k = 0; k < vd; k++) {
+					float s = 0.5f * values[v0 + k];
+					if (v1 >= 0) s = s + 0.25f * values[v1 + k];
+					if (v2 >= 0) s = s + 0.25f * values[v2 + k];
+					newValues[v0 + k] = s;
+				}
+			}
+			float[] tmp = values;
+			values = newValues;
+			newValues = tmp;
+		}
+	}
+
+	/**
+	 * Interpolates the (blurred) lattice values at the given position.
+	 * @param position position vector of length d
+	 * @param result array of length vd to receive the interpolated value
+	 */
+	public void slice(float[] position, float[] result) {
+		embed(position);
+		for (int i = 0; i < vd; i++) {
+			result[i] = 0;
+		}
+		for (int r = 0; r <= d; r++) {
+			makeKey(r);
+			int k = find(false) * vd;
+			if (k < 0)
+				continue;
+			final float b = barycentric[r];
+			for (int i = 0; i < vd; i++) {
+				result[i] = result[i] + b * values[k + i];
+			}
+		}
+	}
+
+	// ---------------------------------------------------------------------
+
+	/*
+	 * Finds the enclosing simplex of the given position (remainder-0 point 'greedy'
+	 * and permutation 'rank') and the barycentric coordinates of the position.
+	 */
+	private void embed(float[] position) {
+		final int d1 = d + 1;
+		// elevate the position onto the hyperplane H_d:
+		float sm = 0;
+		for (int i = d; i > 0; i--) {
+			float cf = position[i - 1] * scaleFactor[i - 1];
+			elevated[i] = sm - i * cf;
+			sm = sm + cf;
+		}
+		elevated[0] = sm;
+		// find the closest remainder-0 point:
+		int sum = 0;
+		for (int i = 0; i <= d; i++) {
+			float v = elevated[i] / d1;
+			int up = (int) Math.ceil(v) * d1;
+			int down = (int) Math.floor(v) * d1;
+			greedy[i] = (up - elevated[i] < elevated[i] - down) ? up : down;
+			sum = sum + greedy[i];
+		}
+		sum = sum / d1;
+		// rank the differences to this point:
+		for (int i = 0; i <= d; i++) {
+			rank[i] = 0;
+		}
+		for (int i = 0; i < d; i++) {
+			for (int j = i + 1; j <= d; j++) {
+				if (elevated[i] - greedy[i] < elevated[j] - greedy[j])
+					rank[i]++;
+				else
+					rank[j]++;
+			}
+		}
+		// move the point onto the hyperplane if necessary:
+		if (sum > 0) {
+			for (int i = 0; i <= d; i++) {
+				if (rank[i] >= d1 - sum) {
+					greedy[i] = greedy[i] - d1;
+					rank[i] = rank[i] + sum - d1;
+				}
+				else {
+					rank[i] = rank[i] + sum;
+				}
+			}
+		}
+		else if (sum < 0) {
+			for (int i = 0; i <= d; i++) {
+				if (rank[i] < -sum) {
+					greedy[i] = greedy[i] + d1;
+					rank[i] = rank[i] + d1 + sum;
+				}
+				else {
+					rank[i] = rank[i] + sum;
+				}
+			}
+		}
+		// barycentric coordinates:
+		for (int i = 0; i <= d + 1; i++) {
+			barycentric[i] = 0;
+		}
+		for (int i = 0; i <= d; i++) {
+			float delta = (elevated[i] - greedy[i]) / d1;
+			barycentric[d - rank[i]] += delta;
+			barycentric[d1 - rank[i]] -= delta;
+		}
+		barycentric[0] += 1 + barycentric[d1];
+	}
+
+	// key of the simplex vertex with remainder r (only the first d coordinates are used)
+	private void makeKey(int r) {
+		final int c0 = r * (d + 1);
+		for (int i = 0; i < d; i++) {
+			key[i] = greedy[i] + canonical[c0 + rank[i]];
+		}
+	}
+
+	private int lookup(int[] k) {
+		System.arraycopy(k, 0, key, 0, d);
+		return find(false);
+	}
+
+	/*
+	 * Returns the index of the vertex with the current key, optionally inserting
+	 * a new vertex, or -1 if not found.
+	 */
+	private int find(boolean create) {
+		if (create && 2 * size >= table.length) {
+			grow();
+		}
+		final int mask = table.length - 1;
+		int h = hash(key, 0) & mask;
+		while (true) {
+			int e = table[h];
+			if (e == 0) {	// empty slot
+				if (!create)
+					return -1;
+				System.arraycopy(key, 0, keys, size * d, d);
+				table[h] = size + 1;
+				return size++;
+			}
+			int k0 = (e - 1) * d;
+			boolean match = true;
+			for (int i = 0; i < d && match; i++) {
+				match = (keys[k0 + i] == key[i]);
+			}
+			if (match)
+				return e - 1;
+			h = (h + 1) & mask;
+		}
+	}
+
+	private int hash(int[] k, int off) {
+		int h = 0;
+		for (int i = 0; i < d; i++) {
+			h = (h + k[off + i]) * 2531011;
+		}
+		return h ^ (h >>> 16);
+	}
+
+	private void grow() {
+		final int n = 2 * table.length;
+		int[] newKeys = new int[(n / 2) * d];
+		float[] newValues = new float[(n / 2) * vd];
+		System.arraycopy(keys, 0, newKeys, 0, size * d);
+		System.arraycopy(values, 0, newValues, 0, size * vd);
+		keys = newKeys;
+		values = newValues;
+		table = new int[n];
+		final int mask = n - 1;
+		for (int i = 0; i < size; i++) {
+			int h = hash(keys, i * d) & mask;
+			while (table[h] != 0) {
+				h = (h + 1) & mask;
+			}
+			table[h] = i + 1;
+		}
+	}
+
+}
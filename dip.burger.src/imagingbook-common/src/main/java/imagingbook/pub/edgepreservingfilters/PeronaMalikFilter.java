@@ -11,13 +11,17 @@
 package imagingbook.pub.edgepreservingfilters;
 
 import ij.IJ;
-import ij.ImagePlus;
-import ij.process.ByteProcessor;
 import ij.process.ColorProcessor;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
+import imagingbook.lib.util.ParallelTasks;
 import imagingbook.pub.color.image.sRgbUtil;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
 //TODO: work over to use GenericFilter (as in BilateralFilter)
 
 /**
@@ -29,6 +33,14 @@ import imagingbook.pub.color.image.sRgbUtil;
  * The filter operates on all types of grayscale (scalar) and RGB color images.
  * This class is based on the ImageJ API and intended to be used in ImageJ plugins.
  * How to use: consult the source code of the related ImageJ plugins for examples.
+ * <p>
+ * Images are processed in horizontal bands (in parallel), each performing
+ * several iterations on a private copy of the band (extended by one row per 
+ * iteration at either side) to improve cache locality (see
+ * {@link Parameters#blockIterations}). The gradient and update steps are 
+ * fused and the conductance is calculated only once per pixel edge.
+ * Results are the same as with plain (full-image) iterations.
+ * </p>
  * 
  * @author W. Burger
  * @version 2013/05/30
@@ -54,14 +66,23 @@ public class PeronaMalikFilter {
 		public ColorMode colorMode = ColorMode.SeparateChannels;
 		/** Set true to apply the filter in linear RGB (assumes sRGB input) */
 		public boolean useLinearRgb = false;
+		/** Number of iterations performed per pass over the image */
+		public int blockIterations = 4;
+		/** Number of threads (0 = use the common thread pool, 1 = run on the calling thread) */
+		public int parallelism = 0;
 	}
 	
+	// min. number of values processed by a single band (per iteration)
+	private static final int MinBandSize = 1 << 16;
+	
 	private final Parameters params;
 	private final int T; // number of iterations
-	private final ConductanceFunction g;
 	
 	private int M;		// image width
 	private int N;		// image height
+	private float kappa;
+	private float alpha;
+	private boolean smooth;
 	
 	// constructor - using default parameters
 	public PeronaMalikFilter () {
@@ -72,410 +93,336 @@ public class PeronaMalikFilter {
 	public PeronaMalikFilter (Parameters params) {
 		this.params = params;
 		T = params.iterations;
-		g = (params.smoothRegions) ? g2 : g1;
 	}
 	
 	public void applyTo(ImageProcessor ip) {
 		M = ip.getWidth();
 		N = ip.getHeight();
-		FilterOperator fm = null;
+		kappa = params.kappa;
+		alpha = params.alpha;
+		smooth = params.smoothRegions;
 		if (ip instanceof ColorProcessor) {
+			ColorProcessor cp = (ColorProcessor) ip;
+			float[][] I = extractRgbData(cp);
+			if (params.useLinearRgb) 
+				srgbToRgb(I);
+			Operator op = null;
 			switch (params.colorMode) {
-			case SeparateChannels : 	fm = new FilterColorSeparate(); break;
-			case BrightnessGradient : 	fm = new FilterColorBrightnessGradient(); break;
-			case ColorGradient : 	  	fm = new FilterColorColorGradient(); break;
+			case SeparateChannels : 	op = Operator.Scalar; break;
+			case BrightnessGradient : 	op = Operator.BrightnessGradient; break;
+			case ColorGradient : 	  	op = Operator.ColorGradient; break;
 			}
+			I = diffuse(I, op);
+			if (params.useLinearRgb) 
+				rgbToSrgb(I);
+			copyResultToImage(I, cp);
 		}
 		else {
-			fm = new FilterScalar();
+			float[][] I = {extractScalarData(ip)};
+			if (params.useLinearRgb) 
+				srgbToRgb(I);
+			I = diffuse(I, Operator.Scalar);
+			if (params.useLinearRgb) 
+				rgbToSrgb(I);
+			copyResultToImage(I[0], ip);
 		}
- 		fm.filter(ip);
 	}
 	
 	// ------------------------------------------------------
 	
-	private interface ConductanceFunction {
-		float eval(float d);
+	// conductance functions g_K^{(1)} (for not so smooth regions) and g_K^{(2)} (for smoother regions):
+	private float g(float d) {
+		float gK = d / kappa;
+		return (smooth) ? 1.0f / (1.0f + gK*gK) : (float) Math.exp(-gK*gK);
 	}
 	
-	// ConductanceFunction objects g1, g2 implemented with anonymous classes:
-	
-	// = g_K^{(1)} (d)	// for not so smooth regions
-	private final ConductanceFunction g1 = new ConductanceFunction() {
-		public float eval(float d) {
-			float gK = d/params.kappa;
-			return (float) Math.exp(-gK*gK);
-		}
-	};
-	
-	// = g_K^{(2)} (d)	// for smoother regions
-	private final ConductanceFunction g2 = new ConductanceFunction() {
-		public float eval(float d) {
-			float gK = d / params.kappa;
-			return (1.0f / (1.0f + gK*gK));
-		}
-	};
-	
 	// ------------------------------------------------------
 	
 	/*
-	 * Interface for different types of operators. The implementing
-	 * classes (below) do the actual work, depending on the image type
-	 * and (in case of color images) the specified color mode.
+	 * The different types of diffusion operators: Scalar operates on each channel
+	 * separately, BrightnessGradient and ColorGradient couple the 3 RGB channels
+	 * through a common conductance.
 	 */
-	// TODO: change to use GenericFilter
-	private interface FilterOperator {
-		void filter(ImageProcessor ip);
+	private enum Operator {
+		Scalar, BrightnessGradient, ColorGradient;
 	}
-
-	/* ----------------------------------------------------------------------
-	 * FilterOperator for scalar images (8 bit, 16 bit, float)
-	 * -------------------------------------------------------------------- */
 	
-	private class FilterScalar implements FilterOperator {
-		private float[][] I = null;			// I[u][v]
-		private float[][] Dx = null;		// Dx[u][v] = I[u+1][v] - I[u][v]
-		private float[][] Dy = null;		// Dy[u][v] = I[u][v+1] - I[u][v]
-		
-		public void filter(ImageProcessor ip) {	
-			// create temporary data structures
-			I = ip.getFloatArray();
-			Dx = new float[M][N];
-			Dy = new float[M][N];			
-			if (params.useLinearRgb) srgbToRgb(I);
-			
-			// perform actual filter operation
-			for (int n = 1; n <= T; n++) {
-				IJ.showProgress(n, T);
-				iterateOnce();
-			}		
-			if (params.useLinearRgb) rgbToSrgb(I);
-			copyResultToImage(I, ip);
-			
-			I = null; 
-			Dx = null; 
-			Dy = null;
-		}
-		
-		void iterateOnce() {
-			// calculate local gradients in X and Y direction:
-			for (int u = 0; u < M; u++) {
-				for (int v = 0; v < N; v++) {	
-					Dx[u][v] = (u < M-1) ? I[u+1][v] - I[u][v] : 0; // set last column to zero
-					Dy[u][v] = (v < N-1) ? I[u][v+1] - I[u][v] : 0; // set last row to zero
-				}
-			}
-			
-			// update image data:
-			for (int u = 0; u < M; u++) {
-				for (int v = 0; v < N; v++) {
-					float d0 = Dx[u][v];
-					float d1 = Dy[u][v];
-					float d2 = (u>0) ? -Dx[u-1][v] : 0;
-					float d3 = (v>0) ? -Dy[u][v-1] : 0;
-					I[u][v] = I[u][v] +
-						params.alpha * (g.eval(d0)*d0 + g.eval(d1)*d1 + g.eval(d2)*d2 + g.eval(d3)*d3);
+	/*
+	 * Performs T iterations on the channel data I (each of size M x N, row-major)
+	 * and returns the result (I is used as a work array).
+	 */
+	private float[][] diffuse(float[][] I, Operator op) {
+		final int nc = I.length;
+		final int K = Math.max(1, params.blockIterations);
+		final int bandHeight = Math.max(4 * K, MinBandSize / (nc * M));
+		float[][] J = new float[nc][M * N];
+		ExecutorService pool = ParallelTasks.makePool(params.parallelism);
+		try {
+			for (int t = 0; t < T; t += K) {
+				final int k = Math.min(K, T - t);
+				List<BandTask> tasks = new ArrayList<BandTask>();
+				for (int v0 = 0; v0 < N; v0 += bandHeight) {
+					tasks.add(new BandTask(I, J, v0, Math.min(v0 + bandHeight, N), k, op));
 				}
+				ParallelTasks.invokeAll(pool, tasks);
+				float[][] tmp = I; I = J; J = tmp;
+				IJ.showProgress(t + k, T);
 			}
 		}
+		finally {
+			ParallelTasks.release(pool);
+		}
+		return I;
+	}
+	
+	/*
+	 * Performs k iterations for rows [v0, v1) of I and stores the result in J.
+	 * Works on a copy of rows [v0 - k, v1 + k), whose outer rows become invalid
+	 * one per iteration and are thus excluded from subsequent updates.
+	 */
+	private class BandTask implements Callable<Void> {
+		private final float[][] I, J;
+		private final int v0, v1, k;
+		private final Operator op;
 		
-		private void copyResultToImage(float[][] imgData, ImageProcessor ip) {
-			if (ip instanceof FloatProcessor) {
-				FloatProcessor cp = (FloatProcessor) ip;
-				for (int v = 0; v < N; v++) {
-					for (int u = 0; u < M; u++) {
-						cp.putPixelValue(u, v, imgData[u][v]);
-					}
-				}
+		BandTask(float[][] I, float[][] J, int v0, int v1, int k, Operator op) {
+			this.I = I;
+			this.J = J;
+			this.v0 = v0;
+			this.v1 = v1;
+			this.k = k;
+			this.op = op;
+		}
+
+		@Override
+		public Void call() {
+			final int nc = I.length;
+			final int e0 = Math.max(v0 - k, 0);		// first row of the extended band
+			final int e1 = Math.min(v1 + k, N);		// last row + 1 of the extended band
+			final int rows = e1 - e0;
+			float[][] X = new float[nc][rows * M];
+			float[][] Y = new float[nc][rows * M];
+			for (int c = 0; c < nc; c++) {
+				System.arraycopy(I[c], e0 * M, X[c], 0, rows * M);
 			}
-			else {
-				for (int v = 0; v < N; v++) {
-					for (int u = 0; u < M; u++) {
-						ip.putPixel(u, v, (int) Math.round(imgData[u][v]));
+			float[] rowBuffer = new float[M];
+			float[] B = (op == Operator.BrightnessGradient) ? new float[rows * M] : null;
+			for (int j = 1; j <= k; j++) {
+				final int lo = (e0 > 0) ? j : 0;			// range of rows still valid after
+				final int hi = (e1 < N) ? rows - j : rows;	// j iterations
+				switch (op) {
+				case Scalar:
+					for (int c = 0; c < nc; c++) {
+						iterateScalar(X[c], Y[c], rows, lo, hi, rowBuffer);
 					}
+					break;
+				case BrightnessGradient:
+					iterateBrightnessGradient(X, Y, rows, lo, hi, rowBuffer, B);
+					break;
+				case ColorGradient:
+					iterateColorGradient(X, Y, rows, lo, hi, rowBuffer);
+					break;
 				}
+				float[][] tmp = X; X = Y; Y = tmp;
 			}
+			for (int c = 0; c < nc; c++) {
+				System.arraycopy(X[c], (v0 - e0) * M, J[c], v0 * M, (v1 - v0) * M);
+			}
+			return null;
 		}
-
 	}
 	
-	/* ----------------------------------------------------------------------
-	 * FilterOperator for RGB color images - applies the (scalar) anisotropic 
-	 * filter to each of the RGB color channels
-	 * -------------------------------------------------------------------- */
-	
-	private class FilterColorSeparate implements FilterOperator {
-
-		public void filter(ImageProcessor ip) {
-			ColorProcessor I = (ColorProcessor) ip;
-			
-			// extract color channels as individual ByteProcessor images:
-			ByteProcessor Ir = new ByteProcessor(M, N);
-			ByteProcessor Ig = new ByteProcessor(M, N);
-			ByteProcessor Ib = new ByteProcessor(M, N);
-			byte[] pR = (byte[]) Ir.getPixels();
-			byte[] pG = (byte[]) Ig.getPixels();
-			byte[] pB = (byte[]) Ib.getPixels();
-			I.getRGB(pR, pG, pB);
-			
-			FilterScalar fm = new FilterScalar();
-			fm.filter(Ir);
-			fm.filter(Ig);
-			fm.filter(Ib);
-			
-			// copy back to color image
-			I.setRGB(pR, pG, pB);
+	/*
+	 * One iteration on rows [lo, hi) of a band with the given number of rows 
+	 * (X = source, Y = target). Rows 0 and rows-1 have no north/south neighbors.
+	 * fluxN holds the fluxes across the north edges of the current row, each
+	 * flux g(d) * d is calculated only once for both adjacent pixels.
+	 */
+	private void iterateScalar(float[] X, float[] Y, int rows, int lo, int hi, float[] fluxN) {
+		if (lo > 0) {
+			for (int u = 0, i = (lo - 1) * M; u < M; u++, i++) {
+				float d = X[i + M] - X[i];
+				fluxN[u] = g(d) * d;
+			}
+		}
+		for (int r = lo; r < hi; r++) {
+			final boolean hasN = (r > 0);
+			final boolean hasS = (r < rows - 1);
+			float fW = 0;
+			for (int u = 0, i = r * M; u < M; u++, i++) {
+				final float a = X[i];
+				float fE = 0, fS = 0;
+				if (u < M - 1) {
+					float d = X[i + 1] - a;
+					fE = g(d) * d;
+				}
+				if (hasS) {
+					float d = X[i + M] - a;
+					fS = g(d) * d;
+				}
+				float fN = (hasN) ? fluxN[u] : 0;
+				Y[i] = a + alpha * (fE + fS - fW - fN);
+				fW = fE;
+				fluxN[u] = fS;
+			}
 		}
 	}
 	
-	/* ----------------------------------------------------------------------
-	 * FilterOperator for RGB color images - uses the brightness gradient to
-	 * control the local conductance.
-	 * -------------------------------------------------------------------- */
-
-	private class FilterColorBrightnessGradient implements FilterOperator {
-		private float[][][] I = null;	// I[c][u][v] (RGB color image)
-		private float[][] B = null;		// B[u][v] (brightness image)
-		// color differences in X/Y
-		private float[][][] Ix = null;	// Ix[c][u][v] = I[c][u+1][v] - I[c][u][v]
-		private float[][][] Iy = null;	// Iy[c][u][v] = I[c][u][v+1] - I[c][u][v]
-		// color gradient
-		private float[][] Bx = null;	 
-		private float[][] By = null;
-		
-		public void filter(ImageProcessor ip) {
-			ColorProcessor cp = (ColorProcessor) ip;
-			I = extractRgbData(cp);
-			if (params.useLinearRgb) 
-				srgbToRgb(I);
-			B = new float[M][N];
-			Ix = new float[3][M][N];	// local differences in R,G,B (x-direction)
-			Iy = new float[3][M][N]; 	// local differences in R,G,B (y-direction)
-			Bx = new float[M][N];		// local differences in brightness  (x-direction)
-			By = new float[M][N];		// local differences in brightness  (y-direction)
-			
-			for (int t = 1; t <= T; t++) {
-				IJ.showProgress(t, T);
-				iterateOnce();
-			}	
-			if (params.useLinearRgb) 
-				rgbToSrgb(I);
-			copyResultToImage(I, cp);
-			
-			I = null; Ix = null; Iy = null;
-			Bx = null; By = null;
+	/*
+	 * Same for RGB images, using the brightness gradient to control the 
+	 * local conductance (condN holds the conductances of the north edges).
+	 */
+	private void iterateBrightnessGradient(float[][] X, float[][] Y, int rows, int lo, int hi, 
+			float[] condN, float[] B) {
+		final float[] R = X[0], G = X[1], Bl = X[2];
+		final int r0 = Math.max(lo - 1, 0);
+		final int r1 = Math.min(hi + 1, rows);
+		for (int i = r0 * M; i < r1 * M; i++) {
+			B[i] = getBrightness(R[i], G[i], Bl[i]);
 		}
-		
-		private void iterateOnce() {
-			// re-calculate local brightness:
-			for (int v = 0; v < N; v++) {	
-				for (int u = 0; u < M; u++) {	
-					B[u][v] = getBrightness(I[0][u][v], I[1][u][v], I[2][u][v]);
+		if (lo > 0) {
+			for (int u = 0, i = (lo - 1) * M; u < M; u++, i++) {
+				condN[u] = g(B[i + M] - B[i]);
+			}
+		}
+		for (int r = lo; r < hi; r++) {
+			final boolean hasN = (r > 0);
+			final boolean hasS = (r < rows - 1);
+			float cW = g(0);
+			for (int u = 0, i = r * M; u < M; u++, i++) {
+				final boolean hasE = (u < M - 1);
+				final boolean hasW = (u > 0);
+				final float cN = (hasN) ? condN[u] : g(0);
+				final float cS = g((hasS) ? B[i + M] - B[i] : 0);
+				final float cE = g((hasE) ? B[i + 1] - B[i] : 0);
+				// update all color channels:
+				for (int c = 0; c < 3; c++) {
+					final float[] Xc = X[c];
+					final float a = Xc[i];
+					float dN = (hasN) ? -(a - Xc[i - M]) : 0;
+					float dS = (hasS) ? Xc[i + M] - a : 0;
+					float dE = (hasE) ? Xc[i + 1] - a : 0;
+					float dW = (hasW) ? -(a - Xc[i - 1]) : 0;
+					Y[c][i] = a + alpha * (cN * dN + cS * dS + cE * dE + cW * dW);
 				}
+				cW = cE;
+				condN[u] = cS;
 			}
-			// re-calculate local color differences and brightness gradient in X and Y direction:
-			for (int v = 0; v < N; v++) {	
-				for (int u = 0; u < M; u++) {
-	    			if (u < M-1) {
-	    				Ix[0][u][v] = I[0][u+1][v] - I[0][u][v];
-	    				Ix[1][u][v] = I[1][u+1][v] - I[1][u][v];
-	    				Ix[2][u][v] = I[2][u+1][v] - I[2][u][v];
-	    				Bx[u][v] 	= B[u+1][v] - B[u][v];
-	    			}
-	    			else {
-	    				Ix[0][u][v] = Ix[1][u][v] = Ix[2][u][v] = Bx[u][v] = 0;
-	    			}    				
-	    			if (v < N-1) {
-	    				Iy[0][u][v] = I[0][u][v+1] - I[0][u][v];
-	    				Iy[1][u][v] = I[1][u][v+1] - I[1][u][v];
-	    				Iy[2][u][v] = I[2][u][v+1] - I[2][u][v];
-	    				By[u][v] 	= B[u][v+1] - B[u][v];
-	    			}
-	    			else {
-	    				Iy[0][u][v] = Iy[1][u][v] = Iy[2][u][v] = By[u][v] = 0;
-	    			}
+		}
+	}
+	
+	private final float getBrightness(float r, float g, float b) {
+		return 0.299f * r + 0.587f * g + 0.114f * b;
+	}
+	
+	/*
+	 * Same for RGB images, using the DiZenzo color gradient to control 
+	 * the local conductance (condN holds the conductances of the north edges).
+	 */
+	private void iterateColorGradient(float[][] X, float[][] Y, int rows, int lo, int hi, float[] condN) {
+		final float[] R = X[0], G = X[1], B = X[2];
+		if (lo > 0) {
+			for (int u = 0, i = (lo - 1) * M; u < M; u++, i++) {
+				float Ry = R[i + M] - R[i];
+				float Gy = G[i + M] - G[i];
+				float By = B[i + M] - B[i];
+				condN[u] = g((float) Math.sqrt(Ry * Ry + Gy * Gy + By * By));
+			}
+		}
+		for (int r = lo; r < hi; r++) {
+			final boolean hasN = (r > 0);
+			final boolean hasS = (r < rows - 1);
+			float cW = g(0);
+			for (int u = 0, i = r * M; u < M; u++, i++) {
+				final boolean hasE = (u < M - 1);
+				final boolean hasW = (u > 0);
+				float Rx = 0, Gx = 0, Bx = 0;
+				float Ry = 0, Gy = 0, By = 0;
+				if (hasE) {
+					Rx = R[i + 1] - R[i];
+					Gx = G[i + 1] - G[i];
+					Bx = B[i + 1] - B[i];
 				}
-			}	
-			// update image data:
-			for (int v = 0; v < N; v++) {
-				for (int u = 0; u < M; u++) {
-					// brightness gradients:
-					float dw = (u>0) ? -Bx[u-1][v] : 0;
-					float de = Bx[u][v];
-					float dn = (v>0) ? -By[u][v-1] : 0;
-					float ds = By[u][v];
-					// update all color channels
-					for (int i = 0; i<3; i++) {
-						float dWrgb = (u>0) ? -Ix[i][u-1][v] : 0;			
-						float dErgb = Ix[i][u][v];
-						float dNrgb = (v>0) ? -Iy[i][u][v-1] : 0;
-						float dSrgb = Iy[i][u][v];
-						I[i][u][v] = I[i][u][v] +
-								params.alpha * (g.eval(dn)*dNrgb + g.eval(ds)*dSrgb + g.eval(de)*dErgb + g.eval(dw)*dWrgb);
-					}
+				if (hasS) {
+					Ry = R[i + M] - R[i];
+					Gy = G[i + M] - G[i];
+					By = B[i + M] - B[i];
 				}
-			}		
-		}
-		
-		private final float getBrightness(float r, float g, float b) {
-			return 0.299f * r + 0.587f * g + 0.114f * b;
+				// Di Zenzo color contrast along X/Y-axes
+				final float c0 = g((float) Math.sqrt(Rx * Rx + Gx * Gx + Bx * Bx));
+				final float c1 = g((float) Math.sqrt(Ry * Ry + Gy * Gy + By * By));
+				final float c2 = cW;
+				final float c3 = (hasN) ? condN[u] : g(0);
+				// update all color channels using the same neighborhood conductance
+				for (int c = 0; c < 3; c++) {
+					final float[] Xc = X[c];
+					final float a = Xc[i];
+					float d0 = (hasE) ? Xc[i + 1] - a : 0;
+					float d1 = (hasS) ? Xc[i + M] - a : 0;
+					float d2 = (hasW) ? -(a - Xc[i - 1]) : 0;
+					float d3 = (hasN) ? -(a - Xc[i - M]) : 0;
+					Y[c][i] = a + alpha * (c0 * d0 + c1 * d1 + c2 * d2 + c3 * d3);
+				}
+				cW = c0;
+				condN[u] = c1;
+			}
 		}
 	}
 	
-	/* ----------------------------------------------------------------------
-	 * FilterOperator for RGB color images - uses the DiZenzo color gradient 
-	 * to control the local conductance.
-	 * -------------------------------------------------------------------- */
+	// ---------------------------------------------------------------
 	
-	private class FilterColorColorGradient implements FilterOperator {
-		private float[][][] I = null;	// I[c][u][v]
-		// color differences in X/Y
-		private float[][][] Ix = null;	// Ix[c][u][v] = I[c][u+1][v] - I[c][u][v][
-		private float[][][] Iy = null;	// Iy[c][u][v][c] = I[c][u][v+1] - I[c][u][v]
-		// color gradient
-		private float[][] Sx = null;	// local color gradient (x-direction)
-		private float[][] Sy = null;	// local color gradient (y-direction)
-
-		public void filter(ImageProcessor ip) {
-			ColorProcessor cp = (ColorProcessor) ip;
-			I = extractRgbData(cp);
-			if (params.useLinearRgb) srgbToRgb(I);
-			Ix = new float[3][M][N];	
-			Iy = new float[3][M][N];			
-			Sx = new float[M][N];
-			Sy = new float[M][N];
-			
-			for (int n = 1; n <= T; n++) {
-				IJ.showProgress(n, T);
-				iterateOnce();
+	private float[] extractScalarData(ImageProcessor ip) {
+		float[] data = new float[M * N];
+		for (int v = 0; v < N; v++) {
+			for (int u = 0; u < M; u++) {
+				data[v * M + u] = ip.getPixelValue(u, v);
 			}
-			
-			if (params.useLinearRgb) rgbToSrgb(I);
-			copyResultToImage(I, cp);
-			I = null; Ix = null; Iy = null;
-			Sx = null; Sy = null;
 		}
-		
-		private void iterateOnce() {
-			// recalculate gradients:
-			for (int v = 0; v < N; v++) {	
+		return data;
+	}
+	
+	private void copyResultToImage(float[] imgData, ImageProcessor ip) {
+		if (ip instanceof FloatProcessor) {
+			FloatProcessor cp = (FloatProcessor) ip;
+			for (int v = 0; v < N; v++) {
 				for (int u = 0; u < M; u++) {
-					float Rx = 0, Gx = 0, Bx = 0;
-	    			float Ry = 0, Gy = 0, By = 0;
-	    			if (u < M-1) {
-	    				Rx = I[0][u+1][v] - I[0][u][v];
-	    				Gx = I[1][u+1][v] - I[1][u][v];
-	    				Bx = I[2][u+1][v] - I[2][u][v];
-	    			}
-	    			if (v < N-1) {
-	    				Ry = I[0][u][v+1] - I[0][u][v];
-	    				Gy = I[1][u][v+1] - I[1][u][v];
-	    				By = I[2][u][v+1] - I[2][u][v];
-	    			}    			
-	    			Ix[0][u][v] = Rx; Ix[1][u][v] = Gx; Ix[2][u][v] = Bx;
-	    			Iy[0][u][v] = Ry; Iy[1][u][v] = Gy; Iy[2][u][v] = By;
-	    			// Di Zenzo color contrast along X/Y-axes
-    				Sx[u][v] = (float) Math.sqrt(Rx * Rx + Gx * Gx + Bx * Bx);
-    				Sy[u][v] = (float) Math.sqrt(Ry * Ry + Gy * Gy + By * By);
+					cp.putPixelValue(u, v, imgData[v * M + u]);
 				}
 			}
-			
-			// update image data:
+		}
+		else {
 			for (int v = 0; v < N; v++) {
 				for (int u = 0; u < M; u++) {
-					float s0 = Sx[u][v];  
-					float s1 = Sy[u][v];  
-					float s2 = (u>0) ? Sx[u-1][v] : 0;
-					float s3 = (v>0) ? Sy[u][v-1] : 0;
-					// calculate neighborhood conductance
-					float c0 = g.eval(s0);
-					float c1 = g.eval(s1);
-					float c2 = g.eval(s2);
-					float c3 = g.eval(s3);
-					// update all color channels using the same neighborhood conductance
-					for (int i = 0; i<3; i++) {
-						// differences in color channel i
-						float d0 = Ix[i][u][v];
-						float d1 = Iy[i][u][v];
-						float d2 = (u>0) ? -Ix[i][u-1][v] : 0;			
-						float d3 = (v>0) ? -Iy[i][u][v-1] : 0;				
-						I[i][u][v] = I[i][u][v] +
-								params.alpha * (c0*d0 + c1*d1 + c2*d2 + c3*d3);
-					}
+					ip.putPixel(u, v, (int) Math.round(imgData[v * M + u]));
 				}
 			}
 		}
-		
-	/* ----------------------------------------------------------------------
-	 * Various utility methods
-	 * -------------------------------------------------------------------- */
-	
-	@SuppressWarnings("unused")
-	private void showColorGradients() {
-			(new ImagePlus("dX RED", new FloatProcessor(Ix[0]))).show();
-			(new ImagePlus("dX GRN", new FloatProcessor(Ix[1]))).show();
-			(new ImagePlus("dX BLU", new FloatProcessor(Ix[2]))).show();
-			
-			(new ImagePlus("dY RED", new FloatProcessor(Iy[0]))).show();
-			(new ImagePlus("dY GRN", new FloatProcessor(Iy[1]))).show();
-			(new ImagePlus("dY BLU", new FloatProcessor(Iy[2]))).show();
-			
-			(new ImagePlus("dX", new FloatProcessor(Sx))).show();
-			(new ImagePlus("dY", new FloatProcessor(Sy))).show();
-		}
 	}
 	
-	@SuppressWarnings("unused")
-	private float getAbsMaxValue(float[][] A) {
-		float themax = 0;
-		for (int u = 0; u < A.length; u++) {
-			for (int v = 0; v < A[u].length; v++) {
-				float a = Math.abs(A[u][v]);
-				if (a > themax)
-					themax = a;
-			}
+	private float[][] extractRgbData(ColorProcessor ip) {
+		int[] pixels = (int[]) ip.getPixels();
+		float[][] rgbData = new float[3][pixels.length];
+		for (int i = 0; i < pixels.length; i++) {
+			int c = pixels[i];
+			rgbData[0][i] = (c & 0xff0000) >> 16;
+			rgbData[1][i] = (c & 0xff00) >> 8;
+			rgbData[2][i] = (c & 0xff);
 		}
-		return themax;
+		return rgbData;
 	}
 	
-	// ---------------------------------------------------------------
-	
-	private float[][][] extractRgbData(ColorProcessor ip) {
-		int w = ip.getWidth();
-		int h = ip.getHeight();
-		float[][][] rgbData = new float[3][w][h];
-		int[] c = new int[3];
-		
-		for (int v = 0; v < h; v++) {
-			for (int u = 0; u < w; u++) {
-				ip.getPixel(u, v, c);
-				rgbData[0][u][v] = c[0];
-				rgbData[1][u][v] = c[1];
-				rgbData[2][u][v] = c[2];
-			}
+	private void copyResultToImage(float[][] imgData, ColorProcessor ip) {
+		int[] pixels = (int[]) ip.getPixels();
+		for (int i = 0; i < pixels.length; i++) {
+			int r = clamp(Math.round(imgData[0][i]));
+			int g = clamp(Math.round(imgData[1][i]));
+			int b = clamp(Math.round(imgData[2][i]));
+			pixels[i] = 0xff000000 | (r << 16) | (g << 8) | b;
 		}
-		return rgbData;
 	}
 	
-	private void copyResultToImage(float[][][] imgData, ColorProcessor ip) {
-		int w = ip.getWidth();
-		int h = ip.getHeight();
-		int[] c = new int[3];
-		for (int v = 0; v < h; v++) {
-			for (int u = 0; u < w; u++) {
-				ip.getPixel(u, v, c);
-				c[0] = (int) Math.round(imgData[0][u][v]);
-				c[1] = (int) Math.round(imgData[1][u][v]);
-				c[2] = (int) Math.round(imgData[2][u][v]);
-				if (c[0] < 0) c[0] = 0;
-				if (c[1] < 0) c[1] = 0;
-				if (c[2] < 0) c[2] = 0;
-				if (c[0] > 255) c[0] = 255;
-				if (c[1] > 255) c[1] = 255;
-				if (c[2] > 255) c[2] = 255;
-				ip.putPixel(u, v, c);
-			}
-		}
+	private int clamp(int c) {
+		return (c < 0) ? 0 : (c > 255) ? 255 : c;
 	}
 	
 	// Conversion methods from sRGB to linear RGB -----------------------
@@ -492,12 +439,6 @@ public class PeronaMalikFilter {
 			srgbToRgb(srgb[j]);
 		}
 	}
-	
-	private void srgbToRgb(float[][][] srgb) {
-		for (int k = 0; k < srgb.length; k++) {
-			srgbToRgb(srgb[k]);
-		}
-	}
 
 	// Conversion methods from linear RGB to sRGB -----------------------
 	// TODO: this should be moved to class lib.colorImage.sRgbUtil
@@ -514,11 +455,5 @@ public class PeronaMalikFilter {
 			rgbToSrgb(rgb[j]);
 		}
 	}
-	
-	private void rgbToSrgb(float[][][] rgb) {
-		for (int k=0; k<rgb.length; k++) {
-			rgbToSrgb(rgb[k]);
-		}
-	}
 
 }
@@ -11,12 +11,16 @@
 package imagingbook.pub.edgepreservingfilters;
 
 import ij.IJ;
-import ij.plugin.filter.Convolver;
 import ij.process.ColorProcessor;
-import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
+import imagingbook.lib.util.ParallelTasks;
+import imagingbook.pub.sift.filters.GaussianFilterRecursive;
 
-// TODO: convert to subclass of GenericFilter using ImageAccessor (see BilateralFilter)
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 /**
  * This class implements the Anisotropic Diffusion filter proposed by David Tschumperle 
@@ -28,6 +32,15 @@ import ij.process.ImageProcessor;
  * 
  * This class is based on the ImageJ API and intended to be used in ImageJ plugins.
  * How to use: consult the source code of the related ImageJ plugins for examples.
+ * <p>
+ * All data are held in flat (row-major) float arrays, which are allocated once
+ * and re-used in all iterations: K image planes (K = number of color channels) 
+ * plus 6 work planes (see {@link #getPeakMemory()}). Each processing step 
+ * is performed in parallel on horizontal image bands.
+ * Large images may be processed in tiles (see {@link Parameters#tileSize}),
+ * in which case only the image planes (twice) are of full size and the 
+ * work planes are of tile size. 
+ * </p>
  * 
  * @author W. Burger
  * @version 2013/05/30
@@ -50,27 +63,41 @@ public class TschumperleDericheFilter {
 		public float a2 = 0.90f;
 		/** Set true to apply the filter in linear RGB (assumes sRGB input) */
 		public boolean useLinearRgb = false;
+		/** Set true to use the recursive Gaussian filter for smoothing (applies only to sigma &ge; 0.5) */
+		public boolean useRecursiveSmoothing = false;
+		/** Size of the tiles used for calculating the work planes (0 = process the whole image at once).
+		 * In each iteration, every tile (extended by 4 pixels on each side for the default sigmas) is 
+		 * processed twice: once to find the global max. velocity (time step), once to update the image.
+		 * This takes about twice the time, but only 2K instead of K + 6 planes are of full image size.
+		 * Results are the same as without tiles, except with recursive smoothing, whose
+		 * (infinite) support is truncated at the tile boundaries. */
+		public int tileSize = 0;
+		/** Number of threads (0 = use the common thread pool, 1 = run on the calling thread) */
+		public int parallelism = 0;
 	}
 	
+	// min. number of pixels processed by a single band
+	private static final int MinBandSize = 1 << 14;
+	
 	private final Parameters params;
 	private final int T;			// number of iterations
 	
-	private int M;	// image width
-	private int N;	// image height
 	private int K;	// number of color channels, k = 0,...,K-1
-
-	private float[][][] I;		// float image data: 		I[k][u][v] for color channel k
-	private float[][][] Dx; 	// image x-gradient: 		Dx[k][u][v] for color channel k
-	private float[][][] Dy; 	// image y-gradient: 		Dx[k][u][v] for color channel k
-	private float[][][] G; 		// 2x2 structure tensor: 	G[i][u][v], i=0,1,2 (only 3 elements because of symmetry)
-	private float[][][] A;		// 2x2 tensor field: 	 	A[i][u][v], i=0,1,2 (only 3 elements because of symmetry)
-	private float[][][] B;		// scalar local velocity:   B[k][u][v]  for channel k (== beta_k)
-//	private float[][][] Hk;  	// Hessian matrix for channel k: Hk[i][u][v], i=0,1,2
-	FloatProcessor tmpFp;		// used as temporary storage for blurring
+	
+	// these Gradient kernels produce reduced artifacts
+	private final float c1 = (float) (2 - Math.sqrt(2.0)) / 4;
+	private final float c2 = (float) (Math.sqrt(2.0) - 1) / 2;
+	
+	private final float[] Hg;	// 1D Gaussian kernel for gradient smoothing (null = no smoothing)
+	private final float[] Hs;	// 1D Gaussian kernel for structure tensor smoothing (null = no smoothing)
+	private final GaussianFilterRecursive Rg, Rs;	// recursive filters (null = use the above kernels)
 	
 	private float initial_max;
 	private float initial_min;
 	
+	private ExecutorService pool;
+	private long peakMemory = 0;
+	
 	// constructor - uses only default settings:
 	public TschumperleDericheFilter() {
 		this(new Parameters());
@@ -80,434 +107,614 @@ public class TschumperleDericheFilter {
 	public TschumperleDericheFilter(Parameters params) {
 		this.params = params;
 		T = params.iterations;
+		Hg = makeGaussKernel1D(params.sigmaG);
+		Hs = makeGaussKernel1D(params.sigmaS);
+		Rg = (params.useRecursiveSmoothing && params.sigmaG >= 0.5) ? 
+				new GaussianFilterRecursive(params.sigmaG) : null;
+		Rs = (params.useRecursiveSmoothing && params.sigmaS >= 0.5) ? 
+				new GaussianFilterRecursive(params.sigmaS) : null;
+	}
+	
+	/**
+	 * Returns the number of bytes allocated for float image planes and work arrays 
+	 * in the last invocation of {@link #applyTo(ImageProcessor)}.
+	 * @return the peak memory used (in bytes)
+	 */
+	public long getPeakMemory() {
+		return peakMemory;
 	}
 	
 	/* This method applies the filter to the given image (ip). 
 	 * Note that ip is destructively modified.
 	 */
-	public void applyTo(ImageProcessor ip) {	
-		initialize(ip);
-		// main iteration loop
+	public void applyTo(ImageProcessor ip) {
+		final int M = ip.getWidth();
+		final int N = ip.getHeight();
+		K = (ip instanceof ColorProcessor) ? 3 : 1;
+		getImageMinMax(ip);
+		pool = ParallelTasks.makePool(params.parallelism);
+		try {
+			final int S = params.tileSize;
+			if (S <= 0 || (S >= M && S >= N)) {
+				Engine engine = new Engine(M * N);
+				peakMemory = engine.getMemory();
+				engine.load(ip, 0, 0, M, N);
+				engine.run(true);
+				engine.store(ip, 0, 0, M, N, 0, 0);
+			}
+			else {
+				applyTiled(ip, S);
+			}
+		}
+		finally {
+			ParallelTasks.release(pool);
+			pool = null;
+		}
+	}
+	
+	/*
+	 * Performs all iterations on the full-size image planes P, calculating the 
+	 * work planes for tiles of size S x S. Tiles are extended by the distance 
+	 * that information travels in a single iteration. In each iteration, the 
+	 * global max. velocity is found in a first pass over all tiles, the updated 
+	 * image (stored in a second set of planes Q) is calculated in a second pass.
+	 */
+	private void applyTiled(ImageProcessor ip, int S) {
+		final int M = ip.getWidth();
+		final int N = ip.getHeight();
+		final int R = getIterationRadius();
+		float[][] P = new float[K][M * N];
+		float[][] Q = new float[K][M * N];
+		loadPixels(ip, 0, 0, M, N, P);
+		final Engine engine = new Engine(Math.min(S + 2 * R, M) * Math.min(S + 2 * R, N));
+		peakMemory = engine.getMemory() + 2 * 4L * K * M * N;
 		for (int n = 1; n <= T; n++) {
 			IJ.showProgress(n, T);
-			
-			// Step 1:
-			calculateGradients(I, Dx, Dy);
-			
-			// Step 2:
-			smoothGradients(Dx, Dy);
-			
-			// Step 3: Hessian matrix is only calculated locally as part of Step 8.
-			
-			// Step 4:
-			calculateStructureMatrix(Dx, Dy, G);
-			// Step 5:
-			smoothStructureMatrix(G);
-
-			// Step 6-7:
-			calculateGeometryMatrix(G, A);
-			
-			// Step 8:
-			float maxVelocity = calculateVelocities(I, A, B);
-			
-			double alpha = params.dt / maxVelocity;
-			updateImage(I, B, alpha);
+			float maxVelocity = 0;
+			for (int pass = 0; pass < 2; pass++) {
+				final float alpha = (pass == 0) ? 0 : (float) (params.dt / maxVelocity);
+				for (int v0 = 0; v0 < N; v0 += S) {
+					for (int u0 = 0; u0 < M; u0 += S) {
+						int u1 = Math.min(u0 + S, M);
+						int v1 = Math.min(v0 + S, N);
+						int ua = Math.max(u0 - R, 0);
+						int va = Math.max(v0 - R, 0);
+						int ub = Math.min(u1 + R, M);
+						int vb = Math.min(v1 + R, N);
+						engine.load(P, M, ua, va, ub - ua, vb - va);
+						engine.calculateGeometry();
+						for (int k = 0; k < K; k++) {
+							if (pass == 0)
+								maxVelocity = Math.max(maxVelocity, 
+									engine.calculateMaxVelocity(engine.I[k], u0 - ua, v0 - va, u1 - u0, v1 - v0));
+							else
+								engine.updateImage(engine.I[k], u0 - ua, v0 - va, u1 - u0, v1 - v0, Q[k], M, ua, va, alpha);
+						}
+					}
+				}
+				if (maxVelocity <= Float.MIN_VALUE) 	// constant image, nothing to do
+					break;
+			}
+			if (maxVelocity <= Float.MIN_VALUE)
+				break;
+			float[][] tmp = P; P = Q; Q = tmp;
 		}
-		copyResultToImage(ip);
-		cleanUp();
-	} 
+		storePixels(P, M, ip, 0, 0, M, N, 0, 0);
+		IJ.showProgress(1.0);
+	}
+	
+	// max. distance that information is propagated by a single iteration
+	private int getIterationRadius() {
+		// gradient + gradient smoothing + structure tensor smoothing + Hessian
+		return 1 + getGaussRadius(params.sigmaG) + getGaussRadius(params.sigmaS) + 1;
+	}
 	
 	// -------------------------------------------------------------------------
 	
 	/*
-	 * Create temporary arrays, copy image data and calculate
-	 * initial image statistics (all in one pass).
+	 * Holds the work arrays for filtering an image region of size w x h
+	 * (with w x h not exceeding the capacity given at construction).
 	 */
-	private void initialize(ImageProcessor ip) {
-		M = ip.getWidth(); 
-		N = ip.getHeight(); 
-		K = (ip instanceof ColorProcessor) ? 3 : 1;
-		I  = new float[K][M][N];
-		Dx  = new float[K][M][N];
-		Dy  = new float[K][M][N];
-		G = new float[3][M][N];
-		A = new float[3][M][N];
-		B = new float[K][M][N];
-//		Hk = new float[3][M][N];
-
-		if (ip instanceof ColorProcessor) {
-			final int[] pixel = new int[K];	
-			for (int u = 0; u < M; u++) {
-				for (int v = 0; v < N; v++) {
-					ip.getPixel(u, v, pixel);
-					for (int k = 0; k < K; k++) {
-						float c = pixel[k];
-						I[k][u][v] = params.useLinearRgb ? srgbToRgb(c) : c;
-					}
+	private class Engine {
+		private final int capacity;
+		private float[][] I;		// float image data: 		I[k][v * w + u] for color channel k
+		private final float[] Dx; 	// image x-gradient of a single color channel
+		private final float[] Dy; 	// image y-gradient of a single color channel
+		private final float[][] G; 	// 2x2 structure tensor: 	G[i][v * w + u], i=0,1,2 (only 3 elements because of symmetry),
+									// also used for the 2x2 tensor field A (geometry matrix)
+		private float[] W;			// work array (for blurring and image updates)
+		private int w, h;			// size of the current image region
+		
+		Engine(int capacity) {
+			this.capacity = capacity;
+			I = new float[K][capacity];
+			Dx = new float[capacity];
+			Dy = new float[capacity];
+			G = new float[3][capacity];
+			W = new float[capacity];
+		}
+		
+		long getMemory() {
+			return 4L * capacity * (K + 6);
+		}
+		
+		/*
+		 * Copies the image data in the rectangle with top-left corner (u0, v0)
+		 * and size w x h.
+		 */
+		void load(ImageProcessor ip, int u0, int v0, int w, int h) {
+			this.w = w;
+			this.h = h;
+			loadPixels(ip, u0, v0, w, h, I);
+		}
+		
+		/*
+		 * Copies the rectangle with top-left corner (u0, v0) and size w x h
+		 * from the image planes P of width M.
+		 */
+		void load(float[][] P, int M, int u0, int v0, int w, int h) {
+			this.w = w;
+			this.h = h;
+			for (int k = 0; k < K; k++) {
+				for (int v = 0; v < h; v++) {
+					System.arraycopy(P[k], (v0 + v) * M + u0, I[k], v * w, w);
 				}
 			}
 		}
-		else {	// 8-bit, 16-bit or 32-bit (float) processor
-			for (int u = 0; u < M; u++) {
-				for (int v = 0; v < N; v++) {
-					I[0][u][v] = ip.getf(u,v);
-				}
+		
+		/*
+		 * Copies the region of size w x h with top-left corner (uu, vv) (relative
+		 * to the current region) to the image rectangle with top-left corner (u0, v0).
+		 */
+		void store(ImageProcessor ip, int u0, int v0, int w, int h, int uu, int vv) {
+			storePixels(I, this.w, ip, u0, v0, w, h, uu, vv);
+		}
+		
+		void run(boolean showProgress) {
+			for (int n = 1; n <= T; n++) {
+				if (showProgress) 
+					IJ.showProgress(n, T);
+				iterateOnce();
 			}
 		}
-		getImageMinMax();
-	}
-	
-	void getImageMinMax() {
-		float max = Float.MIN_VALUE;
-		float min = Float.MAX_VALUE;
-		for (int u = 0; u < M; u++) {
-			for (int v = 0; v < N; v++) {
-				for (int k = 0; k < K; k++) {
-					float p = I[k][u][v];
-					if (p>max) max = p;
-					if (p<min) min = p;
+		
+		void iterateOnce() {
+			calculateGeometry();
+			
+			// Step 3 + 8: Hessian matrix and velocities are calculated locally
+			// (twice, to avoid storing the velocities)
+			float maxVelocity = 0;
+			for (int k = 0; k < K; k++) {
+				maxVelocity = Math.max(maxVelocity, calculateMaxVelocity(I[k]));
+			}
+			if (maxVelocity <= Float.MIN_VALUE) 	// constant image region, nothing to do
+				return;
+			
+			double alpha = params.dt / maxVelocity;
+			for (int k = 0; k < K; k++) {
+				updateImage(I[k], W, (float) alpha);
+				float[] tmp = I[k]; I[k] = W; W = tmp;
+			}
+		}
+		
+		// Steps 1-7: calculates the geometry matrix A (in G) for the current region
+		void calculateGeometry() {
+			// Steps 1, 2, 4 (gradients, smoothed gradients, structure matrix):
+			// calculated for one color channel at a time
+			for (int i = 0; i < 3; i++) {
+				Arrays.fill(G[i], 0, w * h, 0.0f);
+			}
+			for (int k = 0; k < K; k++) {
+				calculateGradients(I[k]);
+				blur(new float[][] {Dx, Dy}, Hg, Rg);
+				addToStructureMatrix();
+			}
+			
+			// Step 5:
+			blur(G, Hs, Rs);
+			
+			// Step 6-7 (the geometry matrix A replaces G):
+			calculateGeometryMatrix();
+		}
+		
+		// Step 1: gradients of channel X (Dx, Dy)
+		void calculateGradients(final float[] X) {
+			forBands(w, h, new BandOp() {
+				float run(int v0, int v1) {
+					for (int v = v0; v < v1; v++) {
+						final int rp = ((v > 0) ? v - 1 : 0) * w;
+						final int rc = v * w;
+						final int rn = ((v < h - 1) ? v + 1 : h - 1) * w;
+						for (int u = 0; u < w; u++) {
+							final int pu = (u > 0) ? u - 1 : 0; 
+							final int nu = (u < w - 1) ? u + 1 : w - 1;
+							// same summation order (row by row) as the 3x3 convolution:
+							double sx = 0, sy = 0;
+							sx += X[rp + pu] * -c1;
+							sx += X[rp + nu] * c1;
+							sx += X[rc + pu] * -c2;
+							sx += X[rc + nu] * c2;
+							sx += X[rn + pu] * -c1;
+							sx += X[rn + nu] * c1;
+							sy += X[rp + pu] * -c1;
+							sy += X[rp + u] * -c2;
+							sy += X[rp + nu] * -c1;
+							sy += X[rn + pu] * c1;
+							sy += X[rn + u] * c2;
+							sy += X[rn + nu] * c1;
+							Dx[rc + u] = (float) sx;
+							Dy[rc + u] = (float) sy;
+						}
+					}
+					return 0;
+				}
+			});
+		}
+		
+		// Step 4: G += (Dx^2, Dx*Dy, Dy^2)
+		void addToStructureMatrix() {
+			forBands(w, h, new BandOp() {
+				float run(int v0, int v1) {
+					final float[] G0 = G[0], G1 = G[1], G2 = G[2];
+					for (int i = v0 * w; i < v1 * w; i++) {
+						final float fx = Dx[i];
+						final float fy = Dy[i];
+						G0[i] += fx * fx;
+						G1[i] += fx * fy;
+						G2[i] += fy * fy;
+					}
+					return 0;
+				}
+			});
+		}
+		
+		/*
+		 * Blurs each of the given arrays, either with the recursive filter rf 
+		 * (if not null, all arrays in parallel) or with the separable kernel H.
+		 */
+		void blur(final float[][] Xs, final float[] H, final GaussianFilterRecursive rf) {
+			if (rf != null) {
+				List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+				for (final float[] X : Xs) {
+					tasks.add(new Callable<Void>() {
+						public Void call() {
+							rf.applyTo(X, w, h);
+							return null;
+						}
+					});
+				}
+				ParallelTasks.invokeAll(pool, tasks);
+			}
+			else if (H != null) {
+				for (float[] X : Xs) {
+					blurX(X, W, H);
+					blurY(W, X, H);
 				}
 			}
 		}
-		initial_max = max;
-		initial_min = min;
-	}
-	
-	void cleanUp() {
-		I  = null;		Dx = null;		Dy = null;
-		G = null;		A = null;		B = null;
-//		Hk = null;		
-		tmpFp = null;
-	}
-	
-	void calculateGradients(float[][][] I, float[][][] Dx, float[][][] Dy) {
-		// these Gradient kernels produce reduced artifacts
-		final float c1 = (float) (2 - Math.sqrt(2.0)) / 4;
-		final float c2 = (float) (Math.sqrt(2.0) - 1) / 2;
 		
-		final float[][] Hdx = 
-			{{-c1, 0, c1},
-			 {-c2, 0, c2},
-			 {-c1, 0, c1}};
+		// horizontal 1D convolution with kernel H (source X, target Y)
+		void blurX(final float[] X, final float[] Y, final float[] H) {
+			final int r = H.length / 2;
+			forBands(w, h, new BandOp() {
+				float run(int v0, int v1) {
+					for (int v = v0; v < v1; v++) {
+						final int row = v * w;
+						for (int u = 0; u < w; u++) {
+							double sum = 0;
+							if (u >= r && u < w - r) {
+								for (int i = 0, j = row + u - r; i < H.length; i++, j++) {
+									sum += X[j] * H[i];
+								}
+							}
+							else {
+								for (int i = 0; i < H.length; i++) {
+									sum += X[row + clamp(u + i - r, w)] * H[i];
+								}
+							}
+							Y[row + u] = (float) sum;
+						}
+					}
+					return 0;
+				}
+			});
+		}
 		
-		final float[][] Hdy = 
-			{{-c1, -c2, -c1},
-			 {  0,   0,   0},
-			 { c1,  c2,  c1}};
-
-		for (int k = 0; k < K; k++) {
-			convolve2dArray(I[k], Dx[k], Hdx);
-			convolve2dArray(I[k], Dy[k], Hdy);
+		// vertical 1D convolution with kernel H (source X, target Y)
+		void blurY(final float[] X, final float[] Y, final float[] H) {
+			final int r = H.length / 2;
+			forBands(w, h, new BandOp() {
+				float run(int v0, int v1) {
+					final double[] sum = new double[w];
+					for (int v = v0; v < v1; v++) {
+						Arrays.fill(sum, 0);
+						for (int i = 0; i < H.length; i++) {
+							final int row = clamp(v + i - r, h) * w;
+							final float hi = H[i];
+							for (int u = 0; u < w; u++) {
+								sum[u] += X[row + u] * hi;
+							}
+						}
+						final int row = v * w;
+						for (int u = 0; u < w; u++) {
+							Y[row + u] = (float) sum[u];
+						}
+					}
+					return 0;
+				}
+			});
 		}
-	}
-	
-	void smoothGradients(float[][][] Dx, float[][][] Dy) {
-		for (int k = 0; k < Dx.length; k++) {
-			gaussianBlur(Dx[k], params.sigmaG);
+		
+		/*
+		 * Step 6-7: Compute the local geometry matrix A (used to drive the diffusion process)
+		 * from the structure matrix G (in place).
+		 */
+		void calculateGeometryMatrix() {
+			forBands(w, h, new BandOp() {
+				float run(int v0, int v1) {
+					final double[] lambda12 = new double[2]; 	// eigenvalues
+					final double[] e1 = new double[2];			// eigenvectors
+					final double[] e2 = new double[2];
+					final double a1 = params.a1;
+					final double a2 = params.a2;
+					for (int i = v0 * w; i < v1 * w; i++) {
+						final double G0 = G[0][i];	// elements of local geometry matrix (2x2)
+						final double G1 = G[1][i];
+						final double G2 = G[2][i];
+						// calculate eigenvalues:
+						if (!realEigenValues2x2(G0, G1, G1, G2, lambda12, e1, e2)) {
+							throw new RuntimeException("eigenvalues undefined in " + 
+										TschumperleDericheFilter.class.getSimpleName());
+						}
+						final double val1 = lambda12[0];
+						final double val2 = lambda12[1];
+						// G is positive semi-definite, but recursive smoothing may produce small negative values: 
+						final double arg = Math.max(1.0 + val1 + val2, 1.0);
+						final float c1 = (float) Math.pow(arg, -a1);
+						final float c2 = (float) Math.pow(arg, -a2);
+						
+						// calculate eigenvectors:
+						normalize(e1);
+						final float ex = (float) e1[0];
+						final float ey = (float) e1[1];
+						final float exx = ex * ex;
+						final float exy = ex * ey;
+						final float eyy = ey * ey;
+						G[0][i] = c1 * eyy + c2 * exx;
+						G[1][i] = (c2 - c1)* exy;
+						G[2][i] = c1 * exx + c2 * eyy;
+					}
+					return 0;
+				}
+			});
 		}
-		for (int k = 0; k < Dy.length; k++) {
-			gaussianBlur(Dy[k], params.sigmaG);
+		
+		/*
+		 * Calculate the local image velocity at position (u,v) in channel X 
+		 * from the geometry matrix A and the Hessian matrix of X.
+		 */
+		private float getVelocity(float[] X, int u, int v) {
+			final int rp = ((v > 0) ? v - 1 : 0) * w;
+			final int rc = v * w;
+			final int rn = ((v < h - 1) ? v + 1 : h - 1) * w;
+			final int pu = (u > 0) ? u - 1 : 0; 
+			final int nu = (u < w - 1) ? u + 1 : w - 1;
+			final float icc = X[rc + u];
+			final float ixx = X[rc + pu] + X[rc + nu] - 2 * icc;								// = H_xx(u,v)
+			final float ixy = 0.25f * (X[rp + pu] + X[rn + nu] - X[rn + pu] - X[rp + nu]);	// = H_xy(u,v)
+			final float iyy = X[rn + u] + X[rp + u] - 2 * icc;								// = H_yy(u,v)
+			final int i = rc + u;
+			return G[0][i] * ixx + 2 * G[1][i] * ixy + G[2][i] * iyy;
 		}
-	}
-	
-	void calculateStructureMatrix(float[][][] Dx, float[][][] Dy, float[][][] G) {
-		// compute structure tensor field G
-		// G = new float[width][height][3]; // must be clean for each slice
-		for (int u = 0; u < M; u++) {
-			for (int v = 0; v < N; v++) {
-				G[0][u][v]= 0.0f;
-				G[1][u][v]= 0.0f;
-				G[2][u][v]= 0.0f;
-				for (int k = 0; k < K; k++) {
-					//version 0.2 normalization
-					float fx = Dx[k][u][v];
-					float fy = Dy[k][u][v];
-					G[0][u][v] += fx * fx;
-					G[1][u][v] += fx * fy;
-					G[2][u][v] += fy * fy;
+		
+		// Step 8: max. absolute velocity in channel X (for time-step adaptation)
+		float calculateMaxVelocity(final float[] X) {
+			return calculateMaxVelocity(X, 0, 0, w, h);
+		}
+		
+		// max. absolute velocity in channel X inside the rectangle (uc, vc, wc, hc) of the current region
+		float calculateMaxVelocity(final float[] X, final int uc, int vc, final int wc, int hc) {
+			return forBands(vc, vc + hc, w, new BandOp() {
+				float run(int v0, int v1) {
+					float maxV = Float.MIN_VALUE;
+					for (int v = v0; v < v1; v++) {
+						for (int u = uc; u < uc + wc; u++) {
+							maxV = Math.max(maxV, Math.abs(getVelocity(X, u, v)));
+						}
+					}
+					return maxV;
 				}
-			}
+			});
+		}
+		
+		// Y = X + alpha * velocity(X)
+		void updateImage(final float[] X, final float[] Y, final float alpha) {
+			updateImage(X, 0, 0, w, h, Y, w, 0, 0, alpha);
+		}
+		
+		/*
+		 * Updates the rectangle (uc, vc, wc, hc) of the current region (X), storing 
+		 * the result at position (ua + u, va + v) in the array Y of width M.
+		 */
+		void updateImage(final float[] X, final int uc, int vc, final int wc, int hc, 
+				final float[] Y, final int M, final int ua, final int va, final float alpha) {
+			forBands(vc, vc + hc, w, new BandOp() {
+				float run(int v0, int v1) {
+					for (int v = v0; v < v1; v++) {
+						for (int u = uc; u < uc + wc; u++) {
+							final int i = v * w + u;
+							float inew = X[i] + alpha * getVelocity(X, u, v);
+							// clamp image to the original range (brute!)
+							if (inew < initial_min) inew = initial_min;
+							if (inew > initial_max) inew = initial_max;
+							Y[(va + v) * M + ua + u] = inew;
+						}
+					}
+					return 0;
+				}
+			});
 		}
 	}
 	
-	void smoothStructureMatrix(float[][][] G) {
-		for (int i = 0; i < G.length; i++) {
-			gaussianBlur(G[i], params.sigmaS);
-		}
+	// -------------------------------------------------------------------------
+	
+	/*
+	 * An operation performed on the image rows [v0, v1), returning
+	 * a (max.) value.
+	 */
+	private abstract class BandOp {
+		abstract float run(int v0, int v1);
 	}
 	
 	/*
-	 * Compute the local geometry matrix A (used to drive the diffusion process)
-	 * from the structure matrix G.
+	 * Applies op to all bands of an image of size w x h (in parallel)
+	 * and returns the max. of the results.
 	 */
-	void calculateGeometryMatrix(float[][][] G, float[][][] A) {
-		final double[] lambda12 = new double[2]; 	// eigenvalues
-		final double[] e1 = new double[2];			// eigenvectors
-		final double[] e2 = new double[2];
-		final double a1 = params.a1;
-		final double a2 = params.a2;
-		for (int u = 0; u < M; u++) {
-			for (int v = 0; v < N; v++) {
-				final double G0 = G[0][u][v];	// elements of local geometry matrix (2x2)
-				final double G1 = G[1][u][v];
-				final double G2 = G[2][u][v];
-				// calculate eigenvalues:
-				if (!realEigenValues2x2(G0, G1, G1, G2, lambda12, e1, e2)) {
-					throw new RuntimeException("eigenvalues undefined in " + 
-								TschumperleDericheFilter.class.getSimpleName());
-				}
-				final double val1 = lambda12[0];
-				final double val2 = lambda12[1];
-				final double arg = 1.0 + val1 + val2;
-				final float c1 = (float) Math.pow(arg, -a1);
-				final float c2 = (float) Math.pow(arg, -a2);
-				
-				// calculate eigenvectors:
-				normalize(e1);
-				final float ex = (float) e1[0];
-				final float ey = (float) e1[1];
-				final float exx = ex * ex;
-				final float exy = ex * ey;
-				final float eyy = ey * ey;
-				A[0][u][v] = c1 * eyy + c2 * exx;
-				A[1][u][v] = (c2 - c1)* exy;
-				A[2][u][v] = c1 * exx + c2 * eyy;
-			}
-		}
+	private float forBands(int w, int h, final BandOp op) {
+		return forBands(0, h, w, op);
 	}
 	
-	// Calculate the Hessian matrix Hk for a single position (u,v) in image Ik.
-	void calculateHessianMatrix(float[][] Ik, int u, int v, float[] Hk) {
-		final int pu = (u > 0) ? u-1 : 0; 
-		final int nu = (u < M-1) ? u+1 : M-1;
-		final int pv = (v > 0) ? v-1 : 0; 
-		final int nv = (v < N-1) ? v+1 : N-1;
-		float icc = Ik[u][v];
-		Hk[0] = Ik[pu][v] + Ik[nu][v] - 2 * icc;								// = H_xx(u,v)
-		Hk[1] = 0.25f * (Ik[pu][pv] + Ik[nu][nv] - Ik[pu][nv] - Ik[nu][pv]);	// = H_xy(u,v)
-		Hk[2] = Ik[u][nv] + Ik[u][pv] - 2 * icc;								// = H_yy(u,v)
+	// applies op to the rows [va, vb) of an image of width w
+	private float forBands(int va, int vb, int w, final BandOp op) {
+		final int bandHeight = Math.max(1, MinBandSize / w);
+		List<Callable<Float>> tasks = new ArrayList<Callable<Float>>();
+		for (int v = va; v < vb; v += bandHeight) {
+			final int v0 = v;
+			final int v1 = Math.min(v + bandHeight, vb);
+			tasks.add(new Callable<Float>() {
+				public Float call() {
+					return op.run(v0, v1);
+				}
+			});
+		}
+		float max = 0;
+		for (float x : ParallelTasks.invokeAll(pool, tasks)) {
+			max = Math.max(max, x);
+		}
+		return max;
 	}
 	
 	/*
-	 * Calculate the local image velocity B(k,u,v) from the geometry matrix A(i,u,v)
-	 * and the Hessian matrix Hkuv.
+	 * Converts the rectangle with top-left corner (u0, v0) and size w x h of the 
+	 * image ip to the float planes P (of width w).
 	 */
-	float calculateVelocities(float[][][] I, float[][][] A, float[][][] B) {
-		float maxV = Float.MIN_VALUE;
-		float minV = Float.MAX_VALUE;
-		final float[] Hkuv = new float[3];
-		for (int k = 0; k < K; k++) {
-			for (int u = 0; u < M; u++) {
-				for (int v = 0; v < N; v++) {
-					calculateHessianMatrix(I[k], u, v, Hkuv);
-					final float a = A[0][u][v];
-					final float b = A[1][u][v];
-					final float c = A[2][u][v];					
-					final float ixx = Hkuv[0]; 
-					final float ixy = Hkuv[1]; 
-					final float iyy = Hkuv[2];
-					final float vel = a * ixx + 2 * b * ixy + c * iyy; 
-					// find min/max velocity for time-step adaptation
-					if (vel > maxV) maxV = vel;
-					if (vel < minV) minV = vel;
-					B[k][u][v] = vel;
+	private void loadPixels(ImageProcessor ip, int u0, int v0, int w, int h, float[][] P) {
+		if (ip instanceof ColorProcessor) {
+			final int[] pixels = (int[]) ip.getPixels();
+			final int M = ip.getWidth();
+			for (int v = 0; v < h; v++) {
+				for (int u = 0; u < w; u++) {
+					final int c = pixels[(v0 + v) * M + u0 + u];
+					final int i = v * w + u;
+					P[0][i] = getChannelValue((c & 0xff0000) >> 16);
+					P[1][i] = getChannelValue((c & 0xff00) >> 8);
+					P[2][i] = getChannelValue(c & 0xff);
 				}
 			}
 		}
-		return Math.max(Math.abs(maxV), Math.abs(minV));
-	}
-
-	// Calculate the Hessian matrix Hk for the whole (single-channel) image Ik.
-//	void calculateHessianMatrix(float[][] Ik, float[][][] Hk) {
-//		for (int u = 0; u < M; u++) {
-//			final int pu = (u > 0) ? u-1 : 0; 
-//			final int nu = (u < M-1) ? u+1 : M-1;
-//			for (int v = 0; v < N; v++) {
-//				final int pv = (v > 0) ? v-1 : 0; 
-//				final int nv = (v < N-1) ? v+1 : N-1;
-//				float icc = Ik[u][v];
-//				Hk[0][u][v] = Ik[pu][v] + Ik[nu][v] - 2 * icc;								// = H_xx(u,v)
-//				Hk[1][u][v] = 0.25f * (Ik[pu][pv] + Ik[nu][nv] - Ik[pu][nv] - Ik[nu][pv]);	// = H_xy(u,v)
-//				Hk[2][u][v] = Ik[u][nv] + Ik[u][pv] - 2 * icc;								// = H_yy(u,v)
-//			}
-//		}
-//	}
-	
-//	float calculateVelocity(float[][][] I, float[][][] A, float[][][] B) {
-//		float maxV = Float.MIN_VALUE;
-//		float minV = Float.MAX_VALUE;
-//		for (int k = 0; k < K; k++) {
-//			// calculate the Hessian matrix for channel k:
-//			calculateHessianMatrix(I[k], Hk);
-//			for (int u = 0; u < M; u++) {
-//				for (int v = 0; v < N; v++) {
-//					float a = A[0][u][v];
-//					float b = A[1][u][v];
-//					float c = A[2][u][v];					
-//					float ixx = Hk[0][u][v]; 
-//					float ixy = Hk[1][u][v]; 
-//					float iyy = Hk[2][u][v];
-//					float vel = a * ixx + 2 * b * ixy + c * iyy; 
-//					// find min/max velocity for time-step adaptation
-//					if (vel > maxV) maxV = vel;
-//					if (vel < minV) minV = vel;
-//					B[k][u][v] = vel;
-//				}
-//			}
-//		}
-//		return Math.max(Math.abs(maxV), Math.abs(minV));
-//	}
-	
-	void updateImage(float[][][] I, float[][][] B, double alpha) {
-		final float alphaF = (float) alpha;
-		for (int k = 0; k < K; k++) {
-			for (int u = 0; u < M; u++) {
-				for (int v = 0; v < N; v++) {
-					float inew = I[k][u][v] + alphaF * B[k][u][v];
-					// clamp image to the original range (brute!)
-					if (inew < initial_min) inew = initial_min;
-					if (inew > initial_max) inew = initial_max;
-					I[k][u][v] = inew;
+		else {	// 8-bit, 16-bit or 32-bit (float) processor
+			for (int v = 0; v < h; v++) {
+				for (int u = 0; u < w; u++) {
+					P[0][v * w + u] = ip.getf(u0 + u, v0 + v);
 				}
 			}
 		}
 	}
 	
-	void copyResultToImage(ImageProcessor ip) {
-		final int[] pixel = new int[K];
+	/*
+	 * Copies the region of size w x h with top-left corner (uu, vv) of the float 
+	 * planes P (of width pw) to the image rectangle with top-left corner (u0, v0).
+	 */
+	private void storePixels(float[][] P, int pw, ImageProcessor ip, int u0, int v0, int w, int h, int uu, int vv) {
 		if (ip instanceof ColorProcessor) {
-			for (int u = 0; u < M; u++) {
-				for (int v = 0; v < N; v++) {
+			final int[] pixel = new int[K];
+			for (int v = 0; v < h; v++) {
+				for (int u = 0; u < w; u++) {
+					final int i = (vv + v) * pw + uu + u;
 					for (int k = 0; k < K; k++) {
 						int c = params.useLinearRgb ? 
-								Math.round(rgbToSrgb(I[k][u][v])) : 
-								Math.round(I[k][u][v]);
+								Math.round(rgbToSrgb(P[k][i])) : 
+								Math.round(P[k][i]);
 						if (c < 0) c = 0;
 						if (c > 255) c = 255;
 						pixel[k] = c;
 					}
-					ip.putPixel(u,v,pixel);
+					ip.putPixel(u0 + u, v0 + v, pixel);
 				}
 			}
 		}
 		else { 	// 8-bit, 16-bit or 32-bit (float) processor
-			for (int u = 0; u < M; u++) {
-				for (int v = 0; v < N; v++) {
-					ip.setf(u, v, I[0][u][v]);
+			for (int v = 0; v < h; v++) {
+				for (int u = 0; u < w; u++) {
+					ip.setf(u0 + u, v0 + v, P[0][(vv + v) * pw + uu + u]);
 				}
 			}
 		}
 	}
 	
-	// Utility methods -------------------------------------------------
-	
 	/*
-	 * Blur the 2D array source with a Gaussian kernel of width sigma
-	 * and store the result in target.
+	 * Calculate initial image statistics (over all color channels).
 	 */
-	void gaussianBlur(float[][] source, float[][] target, double sigma) {
-		if (sigma < 0.1) return;
-		if (source.length != target.length || source[0].length != target[0].length) {
-			throw new Error("source/target arrays have different dimensions");
-		}
-		float[][] Hgx = makeGaussKernel1D(sigma, true);		// horizontal 1D kernel
-		float[][] Hgy = makeGaussKernel1D(sigma, false);	// vertical 1D kernel
-		convolve2dArray(source, target, Hgx, Hgy);
+	private void getImageMinMax(ImageProcessor ip) {
+		float max = Float.MIN_VALUE;
+		float min = Float.MAX_VALUE;
+		if (ip instanceof ColorProcessor) {
+			for (int c : (int[]) ip.getPixels()) {
+				for (int k = 0; k < K; k++) {
+					float p = getChannelValue((c >> (16 - 8 * k)) & 0xff);
+					if (p>max) max = p;
+					if (p<min) min = p;
+				}
+			}
+		}
+		else {
+			for (int i = 0; i < ip.getPixelCount(); i++) {
+				float p = ip.getf(i);
+				if (p>max) max = p;
+				if (p<min) min = p;
+			}
+		}
+		initial_max = max;
+		initial_min = min;
 	}
 	
-	void gaussianBlur(float[][] source, double sigma) {	// source = target
-		gaussianBlur(source, source, sigma);
+	private float getChannelValue(int c) {
+		return params.useLinearRgb ? srgbToRgb(c) : c;
 	}
 	
-	// ----------------------------------------------------------------
+	// Utility methods -------------------------------------------------
 	
-	/*
-	 * Convolve the 2D array source successively with a sequence of kernels
-	 * and store the result in target.
-	 * This should eventually be implemented without an ImageJ FloatProcessor!
-	 */
-	void convolve2dArray(float[][] source, float[][] target, float[][]... kernels) {
-		if (source.length != target.length || source[0].length != target[0].length) {
-			throw new Error("source/target arrays have different dimensions");
-		}
-		int w = source.length;
-		int h = source[0].length;
-		if (tmpFp == null || tmpFp.getWidth() != w || tmpFp.getHeight() != h) {
-			tmpFp = new FloatProcessor(w, h);
-		}
-		// copy data to FloatProcessors		
-		for (int u = 0; u < w; u++) {
-			for (int v = 0; v < h; v++) {
-				tmpFp.setf(u, v, source[u][v]);
-			}
-		}
-		
-		Convolver conv = new Convolver();
-		conv.setNormalize(false);
-		// convolve with all specified kernels
-		for (float[][] H : kernels) {
-			if (H == null) break;
-			int wH = H.length;
-			int hH = H[0].length;
-			float[] H1 = flatten(H);
-			conv.convolveFloat(tmpFp, H1, wH, hH);
-		}
-		// copy data back to array	
-		for (int u = 0; u < w; u++) {
-			for (int v = 0; v < h; v++) {
-				target[u][v] = tmpFp.getf(u, v);
-			}
-		}
+	private static int clamp(int i, int n) {
+		return (i < 0) ? 0 : (i >= n) ? n - 1 : i;
 	}
 	
-	/*
-	 * Copy a 2D float  array into a 1D float array
-	 */
-	float[] flatten (float[][] arr2d) {
-		int w = arr2d.length;
-		int h = arr2d[0].length;
-		float[] arr1d = new float[w*h];
-		int k = 0;
-		for (int i = 0; i < w; i++) {
-			for (int j = 0; j < h; j++) {
-				arr1d[k] = arr2d[i][j];
-				k++;
-			}
-		}
-		return arr1d;
+	private int getGaussRadius(double sigma) {
+		return (sigma < 0.1) ? 0 : Math.max((int) (3.5 * sigma), 1);
 	}
 	
 	/*
-	 * Construct a 2D Gaussian filter kernel large enough to avoid truncation effects.
-	 * Returns a 1D kernel as a 2D array, so it can be used flexibly in horizontal
-	 * or vertical direction.
+	 * Construct a 1D Gaussian filter kernel large enough to avoid truncation effects.
+	 * Returns null if sigma is too small for any smoothing.
 	 */
-	private float[][] makeGaussKernel1D(double sigma, boolean horizontal){
-		// Construct a 2D Gaussian filter kernel large enough
-		// to avoid truncation effects.
+	private float[] makeGaussKernel1D(double sigma){
+		if (sigma < 0.1) 
+			return null;
 		final double sigma2 = sigma * sigma;
 		final double scale = 1.0 / (Math.sqrt(2 * Math.PI) * sigma);	
-		final int rad = Math.max((int) (3.5 * sigma), 1); 
+		final int rad = getGaussRadius(sigma); 
 		int size = rad + 1 +rad;	//center cell = kernel[rad]
-		float[][] kernel = (horizontal) ?  
-				new float[size][1] : 
-				new float[1][size]; 
+		float[] kernel = new float[size]; 
 		double sum = 0;
 		for (int i = 0; i < size; i++) {
 			double x = rad - i;
 			float val = (float) (scale * Math.exp(-0.5 * (x*x) / sigma2));
-			if (horizontal) 
-				kernel[i][0] =  val;
-			else 
-				kernel[0][i] =  val;
+			kernel[i] =  val;
 			sum = sum + val;
 		}
 		
 		// normalize (just to be safe)
 		for (int i = 0; i < kernel.length; i++) {
-			for (int j = 0; j < kernel[i].length; j++) {
-				kernel[i][j] = (float) (kernel[i][j] / sum);
-			}
+			kernel[i] = (float) (kernel[i] / sum);
 		}
 		return kernel;
 	}
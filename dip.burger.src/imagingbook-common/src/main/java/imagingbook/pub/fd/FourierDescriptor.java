@@ -12,6 +12,7 @@ package imagingbook.pub.fd;
 
 import imagingbook.lib.math.Arithmetic;
 import imagingbook.lib.math.Complex;
+import imagingbook.lib.math.ComplexArray;
 
 import java.awt.geom.Path2D;
 import java.awt.geom.Point2D;
@@ -28,6 +29,9 @@ import org.apache.commons.math3.optim.univariate.UnivariatePointValuePair;
 /**
  * This is the abstract super-class for Fourier descriptors. It cannot
  * be instantiated.
+ * Samples and coefficients are stored as {@link ComplexArray} and
+ * modified in place, {@link Complex} instances are only created
+ * at the public API.
  * @author W. Burger
  * @version 2015/08/13
  */
@@ -35,8 +39,8 @@ public abstract class FourierDescriptor implements Cloneable {
 
 	static int minReconstructionSamples = 50;
 
-	protected Complex[] g;	// complex-valued samples (used only for display purposes)
-	protected Complex[] G;	// complex-valued DFT spectrum
+	protected ComplexArray g;	// complex-valued samples (used only for display purposes)
+	protected ComplexArray G;	// complex-valued DFT spectrum
 	protected double reconstructionScale = 1.0;		// remembers original scale after normalization
 
 	// ----------------------------------------------------------------
@@ -67,15 +71,11 @@ public abstract class FourierDescriptor implements Cloneable {
 	}
 
 	private void truncateSelf(int Mp) {
-		int M = G.length;
+		int M = G.size();
 		if (Mp > 0 && Mp < M) {
-			Complex[] Gnew = new Complex[Mp];
-			for (int m = 0; m < Mp; m++) {
-				if (m <= Mp / 2)
-					Gnew[m] = G[m];
-				else
-					Gnew[m] = G[M - Mp + m];
-			}
+			ComplexArray Gnew = new ComplexArray(Mp);
+			G.copyTo(0, Gnew, 0, Mp / 2 + 1);
+			G.copyTo(M - Mp + Mp / 2 + 1, Gnew, Mp / 2 + 1, Mp - Mp / 2 - 1);
 			G = Gnew;
 		}
 	}
@@ -87,30 +87,30 @@ public abstract class FourierDescriptor implements Cloneable {
 		} catch (CloneNotSupportedException e) {
 			e.printStackTrace();
 		}
-		fd2.g = Complex.duplicate(this.g);
-		fd2.G = Complex.duplicate(this.G);
+		fd2.g = this.g.duplicate();
+		fd2.G = this.G.duplicate();
 		return fd2;
 	}
 
 	public int getMaxNegHarmonic() {
-		return -(G.length - 1)/2;
+		return -(G.size() - 1)/2;
 	}
 
 	public int getMaxPosHarmonic() {
-		return G.length/2;
+		return G.size()/2;
 	}
 
 	public int getMaxCoefficientPairs() {
-		return (G.length - 1)/2;
+		return (G.size() - 1)/2;
 	}
 
 	// ----------------------------------------------------------------
 
-	protected static Complex[] makeComplex(Point2D[] points) {
+	protected static ComplexArray makeComplex(Point2D[] points) {
 		int N = points.length;
-		Complex[] samples = new Complex[N];
+		ComplexArray samples = new ComplexArray(N);
 		for (int i = 0; i < N; i++) {
-			samples[i] = new Complex(points[i]);
+			samples.set(i, points[i].getX(), points[i].getY());
 		}
 		return samples;
 	}
@@ -118,34 +118,34 @@ public abstract class FourierDescriptor implements Cloneable {
 	// ------------------------------------------------------------------
 
 	public Complex[] getSamples() {
-		return g;
+		return g.toComplexArray();
 	}
 
 	public Complex[] getCoefficients() {
-		return G;
+		return G.toComplexArray();
 	}
 
 	public int size() {
-		return G.length;	// = M
+		return G.size();	// = M
 	}
 
 	public int getCoefficientIndex(int m) {
-		return Arithmetic.mod(m, G.length);
+		return Arithmetic.mod(m, G.size());
 	}
 
 	public Complex getCoefficient(int m) {
-		int mm = Arithmetic.mod(m, G.length);
-		return new Complex(G[mm]);
+		int mm = Arithmetic.mod(m, G.size());
+		return G.get(mm);
 	}
 
 	public void setCoefficient(int m, Complex z) {
-		int mm = Arithmetic.mod(m, G.length);
-		G[mm] = new Complex(z);
+		int mm = Arithmetic.mod(m, G.size());
+		G.set(mm, z);
 	}
 
 	public void setCoefficient(int m, double a, double b) {
-		int mm = Arithmetic.mod(m, G.length);
-		G[mm] = new Complex(a, b);
+		int mm = Arithmetic.mod(m, G.size());
+		G.set(mm, a, b);
 	}
 
 	// ------------------------------------------------------------------
@@ -213,13 +213,13 @@ public abstract class FourierDescriptor implements Cloneable {
 	 * @return single contour point
 	 */
 	private Complex getReconstructionPoint(double t, int mm, int mp) {
-		double x = G[0].re();
-		double y = G[0].im();
+		double x = G.re(0);
+		double y = G.im(0);
 		for (int m = mm; m <= mp; m++) {
 			if (m != 0) {
-				Complex Gm = getCoefficient(m);
-				double A = reconstructionScale * Gm.re();
-				double B = reconstructionScale * Gm.im();
+				int k = getCoefficientIndex(m);
+				double A = reconstructionScale * G.re(k);
+				double B = reconstructionScale * G.im(k);
 				double phi = 2 * Math.PI * m * t;
 				double sinPhi = Math.sin(phi);
 				double cosPhi = Math.cos(phi);
@@ -235,7 +235,7 @@ public abstract class FourierDescriptor implements Cloneable {
 
 	public Path2D makeEllipse(Complex G1, Complex G2, int m, double xOffset, double yOffset) {
 		Path2D path = new Path2D.Float();
-		int recPoints = Math.max(minReconstructionSamples, G.length * 3);
+		int recPoints = Math.max(minReconstructionSamples, G.size() * 3);
 		for (int i = 0; i < recPoints; i++) {
 			double t = (double) i / recPoints;
 			Complex p1 = this.getEllipsePoint(G1, G2, m, t);
@@ -297,7 +297,7 @@ public abstract class FourierDescriptor implements Cloneable {
 	 * @return reconstructed shape
 	 */
 	public Path2D makeFourierPairsReconstruction() {
-		int M = G.length;
+		int M = G.size();
 		return  makeFourierPairsReconstruction(M/2);
 	}
 
@@ -308,9 +308,9 @@ public abstract class FourierDescriptor implements Cloneable {
 	 * @return reconstructed shape
 	 */
 	public Path2D makeFourierPairsReconstruction(int Mp) {
-		int M = G.length;
+		int M = G.size();
 		Mp = Math.min(Mp, M/2);
-		int recPoints = Math.max(minReconstructionSamples, G.length * 3);
+		int recPoints = Math.max(minReconstructionSamples, G.size() * 3);
 		Path2D path = new Path2D.Float();
 		for (int i = 0; i < recPoints; i++) {
 			double t = (double) i / recPoints;
@@ -337,8 +337,8 @@ public abstract class FourierDescriptor implements Cloneable {
 	public int getMaxDftMagnitudeIndex() {
 		double maxMag = -1;
 		int maxIdx = -1;
-		for (int i=0; i<G.length; i++) {
-			double mag = G[i].abs();
+		for (int i=0; i<G.size(); i++) {
+			double mag = G.abs(i);
 			if (mag > maxMag) {
 				maxMag = mag;
 				maxIdx = i;
@@ -349,7 +349,7 @@ public abstract class FourierDescriptor implements Cloneable {
 
 	public double getMaxDftMagnitude() {
 		int maxIdx = getMaxDftMagnitudeIndex();
-		return G[maxIdx].abs();
+		return G.abs(maxIdx);
 	}
 
 	// Invariance -----------------------------------------------------
@@ -388,7 +388,7 @@ public abstract class FourierDescriptor implements Cloneable {
 	 * Sets the zero (DC) coefficient to zero.
 	 */
 	public void makeTranslationInvariant() {
-		G[0] = new Complex(0,0);
+		G.set(0, 0, 0);
 	}
 
 
@@ -400,15 +400,15 @@ public abstract class FourierDescriptor implements Cloneable {
 	 */
 	public double makeScaleInvariant() {
 		double s = 0;
-		for (int m = 1; m < G.length; m++) {
-			s = s + G[m].abs2();
+		for (int m = 1; m < G.size(); m++) {
+			s = s + G.abs2(m);
 		}
 		// scale coefficients
 		double norm = Math.sqrt(s);
 		reconstructionScale = norm;		// keep for later reconstruction
 		double scale = 1 / norm;
-		for (int m = 1; m < G.length; m++) {
-			G[m] =  G[m].mult(scale);
+		for (int m = 1; m < G.size(); m++) {
+			G.mult(m, scale, 0);
 		}
 		return scale;
 	}
@@ -424,15 +424,15 @@ public abstract class FourierDescriptor implements Cloneable {
 	private double makeScaleInvariant(int Mp) {
 		double s = 0;
 		for (int m = 1; m <= Mp; m++) {
-			s = s + getCoefficient(-m).abs2() + getCoefficient(m).abs2();
+			s = s + G.abs2(getCoefficientIndex(-m)) + G.abs2(getCoefficientIndex(m));
 		}
 		// scale Fourier coefficients:
 		double norm = Math.sqrt(s);
 		reconstructionScale = norm;		// keep for later reconstruction
 		double scale = 1 / norm;
 		for (int m = 1; m <= Mp; m++) {
-			setCoefficient(-m, getCoefficient(-m).mult(scale));
-			setCoefficient( m, getCoefficient( m).mult(scale));
+			G.mult(getCoefficientIndex(-m), scale, 0);
+			G.mult(getCoefficientIndex( m), scale, 0);
 		}
 		return scale;
 	}
@@ -445,18 +445,20 @@ public abstract class FourierDescriptor implements Cloneable {
 	}
 
 	private double makeRotationInvariant(int Mp) {
-		Complex z = new Complex(0,0);
+		double zRe = 0, zIm = 0;
 		for (int m = 1; m <= Mp; m++) {
-			Complex Gm = getCoefficient(-m);
-			Complex Gp = getCoefficient(+m);
+			int km = getCoefficientIndex(-m);
+			int kp = getCoefficientIndex(+m);
 			double w = 1.0 / m;
-			z = z.add(Gm.mult(w));
-			z = z.add(Gp.mult(w));
+			zRe = zRe + w * (G.re(km) + G.re(kp));
+			zIm = zIm + w * (G.im(km) + G.im(kp));
 		}
-		double beta = z.arg();
+		double beta = Math.atan2(zIm, zRe);
+		double cb = Math.cos(-beta);
+		double sb = Math.sin(-beta);
 		for (int m = 1; m <= Mp; m++) {
-			setCoefficient(-m, getCoefficient(-m).rotate(-beta));
-			setCoefficient( m, getCoefficient( m).rotate(-beta));
+			G.mult(getCoefficientIndex(-m), cb, sb);
+			G.mult(getCoefficientIndex( m), cb, sb);
 		}
 		return beta;
 	}
@@ -476,10 +478,11 @@ public abstract class FourierDescriptor implements Cloneable {
 	 * @param C complex point
 	 * @param phi angle
 	 */
-	private void rotate(Complex[] C, double phi) {
-		Complex rot = new Complex(phi);
-		for (int m = 1; m < G.length; m++) {
-			C[m] = C[m].mult(rot);
+	private void rotate(ComplexArray C, double phi) {
+		double cp = Math.cos(phi);
+		double sp = Math.sin(phi);
+		for (int m = 1; m < G.size(); m++) {
+			C.mult(m, cp, sp);
 		}
 	}
 
@@ -490,10 +493,10 @@ public abstract class FourierDescriptor implements Cloneable {
 	 * @param Mp most positive/negative frequency index
 	 */
 	private void shiftStartPointPhase(double phi, int Mp) {
-		Mp = Math.min(Mp, G.length/2);
+		Mp = Math.min(Mp, G.size()/2);
 		for (int m = -Mp; m <= Mp; m++) {
 			if (m != 0) {
-				setCoefficient(m, getCoefficient(m).rotate(m * phi));
+				G.rotate(getCoefficientIndex(m), m * phi);
 			}
 		}
 	}
@@ -509,7 +512,7 @@ public abstract class FourierDescriptor implements Cloneable {
 	 * @return start point phase
 	 */
 	public double getStartPointPhase(int Mp) {
-		Mp = Math.min(Mp, (G.length-1)/2);
+		Mp = Math.min(Mp, (G.size()-1)/2);
 		UnivariateFunction fp =  new TargetFunction(Mp);
 		// search for the global maximum in coarse steps
 		double cmax = Double.NEGATIVE_INFINITY;
@@ -554,14 +557,20 @@ public abstract class FourierDescriptor implements Cloneable {
 		/** 
 		 * The value returned is the sum of the cross products of the FD pairs,
 		 * with all coefficients rotated to the given start point phase phi.
-		 * TODO: This could be made a lot more efficient!
 		 */
 		public double value(double phi) {
 			double sum = 0;
 			for (int m = 1; m <= Mp; m++) {
-				Complex Gm = getCoefficient(-m).rotate(-m * phi);
-				Complex Gp = getCoefficient( m).rotate( m * phi);
-				sum = sum + Gp.crossProduct(Gm);
+				int km = getCoefficientIndex(-m);
+				int kp = getCoefficientIndex( m);
+				// rotate G[-m] by -m * phi and G[m] by m * phi:
+				double c = Math.cos(m * phi);
+				double s = Math.sin(m * phi);
+				double xm = G.re(km) * c + G.im(km) * s;
+				double ym = G.im(km) * c - G.re(km) * s;
+				double xp = G.re(kp) * c - G.im(kp) * s;
+				double yp = G.im(kp) * c + G.re(kp) * s;
+				sum = sum + (xp * ym - yp * xm);	// cross product Gp x Gm
 			}
 			return sum;
 		}
@@ -569,20 +578,20 @@ public abstract class FourierDescriptor implements Cloneable {
 
 
 	public double distanceComplex(FourierDescriptor fd2) {
-		return distanceComplex(fd2, G.length/2);
+		return distanceComplex(fd2, G.size()/2);
 	}
 
 
 	public double distanceComplex(FourierDescriptor fd2, int Mp) {
 		FourierDescriptor fd1 = this;
-		Mp = Math.min(Mp, G.length/2);
+		Mp = Math.min(Mp, G.size()/2);
 		double sum = 0;
 		for (int m = -Mp; m <= Mp; m++) {
 			if (m != 0) {
-				Complex G1m = fd1.getCoefficient(m);
-				Complex G2m = fd2.getCoefficient(m);
-				double dRe = G1m.re() - G2m.re();
-				double dIm = G1m.im() - G2m.im();
+				int k1 = fd1.getCoefficientIndex(m);
+				int k2 = fd2.getCoefficientIndex(m);
+				double dRe = fd1.G.re(k1) - fd2.G.re(k2);
+				double dIm = fd1.G.im(k1) - fd2.G.im(k2);
 				sum = sum + dRe * dRe + dIm * dIm;
 			}
 		}
@@ -598,12 +607,12 @@ public abstract class FourierDescriptor implements Cloneable {
 
 	public double distanceMagnitude(FourierDescriptor fd2, int Mp) {
 		FourierDescriptor fd1 = this;
-		Mp = Math.min(Mp, G.length/2);
+		Mp = Math.min(Mp, G.size()/2);
 		double sum = 0;
 		for (int m = -Mp; m <= Mp; m++) {
 			if (m != 0) {
-				double mag1 = fd1.getCoefficient(m).abs();
-				double mag2 = fd2.getCoefficient(m).abs();
+				double mag1 = fd1.G.abs(fd1.getCoefficientIndex(m));
+				double mag2 = fd2.G.abs(fd2.getCoefficientIndex(m));
 				double dmag = mag2 - mag1;
 				sum = sum + (dmag * dmag);
 			}
@@ -8,7 +8,7 @@ import static java.lang.Math.cos;
 import static java.lang.Math.sin;
 import static java.lang.Math.sqrt;
 import ij.gui.Roi;
-import imagingbook.lib.math.Complex;
+import imagingbook.lib.math.ComplexArray;
 
 import java.awt.Point;
 import java.awt.Polygon;
@@ -46,19 +46,19 @@ public class FourierDescriptorFromPolygon extends FourierDescriptor {
 	}
 	
 	void makeDftSpectrumTrigonometric(int Mp) {
-		final int N = g.length;				// number of polygon vertices
+		final int N = g.size();				// number of polygon vertices
 		final int M = 2 * Mp + 1;			// number of Fourier coefficients
         double[] dx = new double[N];		// dx[k] is the delta-x for polygon segment <k,k+1>
         double[] dy = new double[N];		// dy[k] is the delta-y for polygon segment <k,k+1>
         double[] lambda = new double[N];	// lambda[k] is the length of the polygon segment <k,k+1>
         double[] L  = new double[N + 1]; 	// T[k] is the cumulated path length at polygon vertex k in [0,K]
         
-        G = new Complex[M];
+        G = new ComplexArray(M);
         
         L[0] = 0;
         for (int i = 0; i < N; i++) {	// compute Dx, Dy, Dt and t tables
-            dx[i] = g[(i + 1) % N].re() - g[i].re();
-            dy[i] = g[(i + 1) % N].im() - g[i].im();
+            dx[i] = g.re((i + 1) % N) - g.re(i);
+            dy[i] = g.im((i + 1) % N) - g.im(i);
             lambda[i] = sqrt(sqr(dx[i]) + sqr(dy[i])); 
             if (abs(lambda[i]) < EPSILON_DOUBLE) {
         		throw new Error("Zero-length polygon segment!");
@@ -69,19 +69,19 @@ public class FourierDescriptorFromPolygon extends FourierDescriptor {
         double Ln = L[N];	// Ln is the closed polygon length
                
         // calculate DFT coefficient G[0]:
-        double x0 = g[0].re(); // V[0].getX();
-        double y0 = g[0].im(); // V[0].getY();
+        double x0 = g.re(0); // V[0].getX();
+        double y0 = g.im(0); // V[0].getY();
         double a0 = 0;
         double c0 = 0;
         for (int i = 0; i < N; i++) {	// for each polygon vertex
         	double s = (sqr(L[i+1]) - sqr(L[i])) / (2 * lambda[i]) - L[i];
-        	double xi = g[i].re(); // V[i].getX();
-        	double yi = g[i].im(); // V[i].getY();
+        	double xi = g.re(i); // V[i].getX();
+        	double yi = g.im(i); // V[i].getY();
         	a0 = a0 + s * dx[i] + (xi - x0) * lambda[i];
         	c0 = c0 + s * dy[i] + (yi - y0) * lambda[i];
         }
         //G[0] = new Complex(x0 + a0/Ln, y0 + c0/Ln);
-        this.setCoefficient(0, new Complex(x0 + a0/Ln, y0 + c0/Ln));
+        this.setCoefficient(0, x0 + a0/Ln, y0 + c0/Ln);
         
         // calculate remaining FD pairs G[-m], G[+m] for m = 1,...,Mp
         for (int m = 1; m <= Mp; m++) {	// for each FD pair
@@ -99,8 +99,8 @@ public class FourierDescriptorFromPolygon extends FourierDescriptor {
                 d = d + dSin * (dy[i] / lambda[i]);
             }
             double s = Ln / sqr(2 * PI * m);
-            this.setCoefficient(+m, new Complex(s * (a + d), s * (c - b)));
-            this.setCoefficient(-m, new Complex(s * (a - d), s * (b + c)));
+            this.setCoefficient(+m, s * (a + d), s * (c - b));
+            this.setCoefficient(-m, s * (a - d), s * (b + c));
         }
 	}
 	
@@ -1,7 +1,8 @@
 package imagingbook.pub.fd;
 
 import imagingbook.lib.math.Arithmetic;
-import imagingbook.lib.math.Complex;
+import imagingbook.lib.math.ComplexArray;
+import imagingbook.pub.dft.Fft1d;
 
 import java.awt.geom.Point2D;
 
@@ -43,81 +44,38 @@ public class FourierDescriptorUniform extends FourierDescriptor {
 	
 
 	/**
-	 * DFT with the resulting spectrum (signal, if inverse) of the same length
-	 * as the input vector g. Not using sin/cos tables.
+	 * DFT with the resulting spectrum of the same length
+	 * as the input vector g. Uses the FFT in {@link Fft1d}.
 	 * 
 	 * @param g signal vector
 	 * @return DFT spectrum
 	 */
-	private Complex[] DFT(Complex[] g) {
-		int M = g.length;
-//		double[] cosTable = makeCosTable(M);	// cosTable[m] == cos(2*pi*m/M)
-//		double[] sinTable = makeSinTable(M);
-		Complex[] G = new Complex[M];
-		double s = 1.0 / M; //common scale factor (fwd/inverse differ!)
-		for (int m = 0; m < M; m++) {
-			double Am = 0;
-			double Bm = 0;
-			for (int k = 0; k < M; k++) {
-				double x = g[k].re();
-				double y = g[k].im();
-				double phi = 2 * Math.PI * m * k / M;
-				double cosPhi = Math.cos(phi);
-				double sinPhi = Math.sin(phi);
-				Am = Am + x * cosPhi + y * sinPhi;
-				Bm = Bm - x * sinPhi + y * cosPhi;
-			}
-			G[m] = new Complex(s * Am, s * Bm);
-		}
+	private ComplexArray DFT(ComplexArray g) {
+		int M = g.size();
+		ComplexArray G = g.duplicate();
+		new Fft1d(M).transform(G, true);
+		G.mult(1.0 / Math.sqrt(M));	// common scale factor 1/M (Fft1d scales by 1/sqrt(M))
 		return G;
 	}
 	
 
 	/**
-	 * As above, but the length P of the resulting spectrum (signal, if inverse) 
-	 * is explicitly specified.
+	 * As above, but the length P of the resulting spectrum 
+	 * is explicitly specified. Coefficients are taken from the full 
+	 * spectrum for frequencies m = -(P-1)/2,...,P/2 (modulo M).
 	 * @param g signal vector
 	 * @param P length of the resulting  DFT spectrum
 	 * @return DFT spectrum
 	 */
-	private Complex[] DFT(Complex[] g, int P) {
-		int M = g.length;
-//		double[] cosTable = makeCosTable(M);	// cosTable[m] == cos(2*pi*m/M)
-//		double[] sinTable = makeSinTable(M);
-		Complex[] G = new Complex[P];
-		double s = 1.0/M; //common scale factor (fwd/inverse differ!)
+	private ComplexArray DFT(ComplexArray g, int P) {
+		int M = g.size();
+		ComplexArray Gfull = DFT(g);
+		ComplexArray G = new ComplexArray(P);
 		for (int m = P/2-P+1; m <= P/2; m++) {
-			double Am = 0;
-			double Bm = 0;
-			for (int k = 0; k < M; k++) {
-				double x = g[k].re();
-				double y = g[k].im();
-				//int mk = (m * k) % M; double phi = 2 * Math.PI * mk / M;
-				double phi = 2 * Math.PI * m * k / M;	
-				double cosPhi = Math.cos(phi);
-				double sinPhi = Math.sin(phi);
-				Am = Am + x * cosPhi + y * sinPhi;
-				Bm = Bm - x * sinPhi + y * cosPhi;
-			}
-			G[Arithmetic.mod(m, P)] = new Complex(s * Am, s * Bm);
+			int k = Arithmetic.mod(m, M);
+			G.set(Arithmetic.mod(m, P), Gfull.re(k), Gfull.im(k));
 		}
 		return G;
 	}
 
-//	private double[] makeCosTable(int M) {
-//		double[] cosTab = new double[M];
-//		for (int m = 0; m < M; m++) {
-//			cosTab[m] = Math.cos(2 * Math.PI * m / M);
-//		}
-//		return cosTab;
-//	}
-
-//	private double[] makeSinTable(int M) {
-//		double[] sinTab = new double[M];
-//		for (int m = 0; m < M; m++) {
-//			sinTab[m] = Math.sin(2 * Math.PI * m / M);
-//		}
-//		return sinTab;
-//	}
-
 }
@@ -10,6 +10,8 @@
 
 package imagingbook.pub.fd;
 
+import imagingbook.lib.math.ComplexArray;
+
 import java.awt.geom.Point2D;
 
 public class PolygonSampler {
@@ -25,24 +27,45 @@ public class PolygonSampler {
 	 * @return the sample points as an array of Point2D objects.
 	 */
 	public Point2D[] samplePolygonUniformly(Point2D[] V, int M) {
-		int N = V.length;
+		ComplexArray S = samplePolygonUniformly(toComplexArray(V), M);
+		Point2D[] P = new Point2D[M];
+		for (int j = 0; j < M; j++) {
+			P[j] = new Point2D.Double(S.re(j), S.im(j));
+		}
+		return P;
+	}
+	
+	/**
+	 * Samples the closed polygon path specified by V at M
+	 * equi-distant positions. Vertices and samples are stored as
+	 * complex values (x + i y), no intermediate objects are created.
+	 * @param V the vertices of the (closed) polygon.
+	 * @param M the number of sample points.
+	 * @return the sample points.
+	 */
+	public ComplexArray samplePolygonUniformly(ComplexArray V, int M) {
+		final int N = V.size();
+		final double[] x = V.re();
+		final double[] y = V.im();
 		double Delta = pathLength(V) / M;	// constant segment length in Q
 		// distribute N points along polygon path P
-		Point2D[] S = new Point2D[M];
-		S[0] = (Point2D) V[0].clone();	// q_0 = p_0 (duplicate p_0)
+		ComplexArray S = new ComplexArray(M);
+		S.set(0, x[0], y[0]);	// q_0 = p_0 (duplicate p_0)
 		int i = 0;			// lower index of segment (i,i+1) in P
 		int j = 1;			// index of next point to be added to Q
 		double alpha = 0;	// lower boundary of current path segment in P
 		double beta = Delta;	// path position of next point to be added to Q
 		// for all M segments in P do:
 		while (i < N && j < M) {
-			Point2D vA = V[i];
-			Point2D vB = V[(i + 1) % N];
-			double delta = vA.distance(vB);
+			int k = (i + 1) % N;
+			double dx = x[k] - x[i];
+			double dy = y[k] - y[i];
+			double delta = Math.sqrt(dx * dx + dy * dy);
 			// handle segment (i,i+1) with path boundaries (a,a+d), knowing a < b
 			while (beta <= alpha + delta && j < M) {
 				// a < b <= a+d
-				S[j] = interpolate(vA, vB, (beta - alpha) / delta);
+				double t = (beta - alpha) / delta;	// t is in [0,1]
+				S.set(j, x[i] + t * dx, y[i] + t * dy);
 				j = j + 1;
 				beta = beta + Delta;
 			}
@@ -76,6 +99,26 @@ public class PolygonSampler {
 	}
 	
 	
+	protected double pathLength(ComplexArray V) {
+		double L = 0;
+		final int N = V.size();
+		for (int i = 0; i < N; i++) {
+			int k = (i + 1) % N;
+			double dx = V.re(k) - V.re(i);
+			double dy = V.im(k) - V.im(i);
+			L = L + Math.sqrt(dx * dx + dy * dy);
+		}
+		return L;
+	}
+	
+	private ComplexArray toComplexArray(Point2D[] V) {
+		ComplexArray C = new ComplexArray(V.length);
+		for (int i = 0; i < V.length; i++) {
+			C.set(i, V[i].getX(), V[i].getY());
+		}
+		return C;
+	}
+	
 	protected double pathLength(Point2D[] V) {
 		double L = 0;
 		final int N = V.length;
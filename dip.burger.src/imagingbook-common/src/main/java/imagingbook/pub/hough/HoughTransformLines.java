@@ -14,8 +14,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
+import java.util.Random;
 
 import ij.IJ;
+import ij.process.ByteProcessor;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 
@@ -33,6 +35,16 @@ public class HoughTransformLines {
 		public int nAng = 256;	
 		/** Number of radial steps in each pos/neg direction (accum. size = 2 * nRad + 1) */
 		public int nRad = 128;	
+		/** Half width of the angular voting window around the local edge orientation
+		 * (only used if a gradient image is supplied) */
+		public double dTheta = Math.PI / 16;
+		/** Number of threads (0 = use the common thread pool, 1 = run on the calling thread) */
+		public int parallelism = 0;
+		/** Set true to find lines with the progressive probabilistic Hough transform (see
+		 * {@link HoughTransformLines#getLines(int, int)}) */
+		public boolean progressive = false;
+		/** Seed of the random sampling order (progressive mode only) */
+		public long randomSeed = 0;
 		public boolean showProgress = true;
 		public boolean showCheckImage = true;
 		public boolean debug = false;
@@ -52,11 +64,9 @@ public class HoughTransformLines {
 	
 	private final int accWidth;			// width of the accumulator array (angular direction)
 	private final int accHeight;		// height of the accumulator array (radial direction)
-	private final int[][] accumulator; 		// accumulator array
-	private final int[][] accumulatorMax;	// accumulator, with local maxima only
-	
-	private final double[] cosTable;	// tabulated cosine values
-	private final double[] sinTable;	// tabulated sine values
+	private final LineAccumulator accumulator; 	// accumulator array (flat)
+	private final int[] accumulatorMax;			// accumulator, with local maxima only
+	private LineAccumulator.EdgePoints points = null;	// edge points (progressive mode only)
 	
 	// --------------  public constructor(s) ------------------------
 	
@@ -67,8 +77,22 @@ public class HoughTransformLines {
 	 * @param params parameter object.
 	 */
 	public HoughTransformLines(ImageProcessor I, Parameters params) {
+		this(I, null, params);
+	}
+	
+	/**
+	 * Creates a new Hough transform from the image I, where each edge point
+	 * only votes for the angles within &plusmn; {@code params.dTheta} around the
+	 * local edge orientation, estimated from the gradient of image G.
+	 * @param I input image, relevant (edge) points have pixel
+	 * values greater 0.
+	 * @param G image used to estimate the edge orientations (usually the
+	 * original image from which I was derived), may be null.
+	 * @param params parameter object.
+	 */
+	public HoughTransformLines(ImageProcessor I, ImageProcessor G, Parameters params) {
 		this(I.getWidth(), I.getHeight(), params);
-		process(I);
+		process(I, G);
 	}
 	
 	/**
@@ -102,10 +126,8 @@ public class HoughTransformLines {
 		this.cRad = nRad;
 		this.accWidth = nAng;
 		this.accHeight = nRad + 1 + nRad;
-		this.accumulator    = new int[accWidth][accHeight]; // cells are initialized to zero!
-		this.accumulatorMax = new int[accWidth][accHeight];
-		this.cosTable = makeCosTable();
-		this.sinTable = makeSinTable();
+		this.accumulator    = new LineAccumulator(accWidth, accHeight, dAng, dRad, cRad, xc, yc);
+		this.accumulatorMax = new int[accWidth * accHeight];
 	}
 	
 	// --------------  public methods ------------------------
@@ -115,11 +137,16 @@ public class HoughTransformLines {
 	 * a specified min. pixel count. All objects in the returned array
 	 * are valid, but the array may be empty.
 	 * Note: Could perhaps be implemented more efficiently with insert-sort.
+	 * In progressive mode (see {@link Parameters#progressive}) the lines are 
+	 * returned in the order of their detection instead (see 
+	 * {@link #getLinesProgressive(int, int)}).
 	 * @param amin the minimum accumulator value for each line.
 	 * @param maxLines maximum number of (strongest) lines to extract.
 	 * @return a possibly empty array of {@link HoughLine} objects.
 	 */
 	public HoughLine[] getLines(int amin, int maxLines) {
+		if (params.progressive)
+			return getLinesProgressive(amin, maxLines);
 		findLocalMaxima();
 		// create an array of n blank HoughLine objects (with initial count = -1):
 		HoughLine[] lineArr = new HoughLine[maxLines];
@@ -129,7 +156,7 @@ public class HoughTransformLines {
 
 		for (int ri = 0; ri < accHeight; ri++) {
 			for (int ai = 0; ai < accWidth; ai++) {
-				int hcount = accumulatorMax[ai][ri];
+				int hcount = accumulatorMax[ai * accHeight + ri];
 				if (hcount >= amin) {
 					HoughLine last = lineArr[lineArr.length - 1];
 					// last holds the weakest line found so far - replace it?
@@ -154,6 +181,71 @@ public class HoughTransformLines {
 		return lineList.toArray(new HoughLine[0]);
 	}
 	
+	/*
+	 * Progressive probabilistic Hough transform (J. Matas, C. Galambos, J. Kittler: 
+	 * "Robust detection of lines using the progressive probabilistic Hough transform",
+	 * CVIU 78(1), 2000). Edge points are visited in random order, each adding its
+	 * votes to the accumulator. As soon as one of the cells voted for reaches amin, 
+	 * the corresponding line is reported and all remaining points within one radial
+	 * step of that line are removed (withdrawing their votes, if already cast).
+	 * The process stops when maxLines lines have been found or all points are used up,
+	 * i.e., usually long before all points have voted. Line counts are the numbers
+	 * of removed (supporting) points. The accumulator is cleared at the start.
+	 * Unlike Matas et al., who only remove the points in a corridor along the 
+	 * detected segment, all points near the whole (infinite) line are removed, 
+	 * so collinear segments are reported as a single line.
+	 */
+	private HoughLine[] getLinesProgressive(int amin, int maxLines) {
+		final LineAccumulator.EdgePoints pts = points;
+		final int n = pts.n;
+		final int[] A = accumulator.getArray();
+		accumulator.clear();
+		// random sampling order (Fisher-Yates shuffle):
+		final int[] order = new int[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		Random rnd = new Random(params.randomSeed);
+		for (int i = n - 1; i > 0; i--) {
+			int j = rnd.nextInt(i + 1);
+			int tmp = order[i]; order[i] = order[j]; order[j] = tmp;
+		}
+		final boolean[] voted = new boolean[n];
+		final boolean[] removed = new boolean[n];
+		List<HoughLine> lineList = new ArrayList<HoughLine>();
+		for (int k = 0; k < n && lineList.size() < maxLines; k++) {
+			final int i = order[k];
+			if (removed[i])
+				continue;
+			final int iMax = accumulator.votePoint(pts.x[i], pts.y[i], theta(pts, i), params.dTheta, 1);
+			voted[i] = true;
+			if (iMax < 0 || A[iMax] < amin)
+				continue;
+			// found a line, remove its supporting points:
+			final double angle = angleFromIndex(iMax / accHeight);
+			final double radius = radiusFromIndex(iMax % accHeight);
+			final double cs = Math.cos(angle), sn = Math.sin(angle);
+			int count = 0;
+			for (int j = 0; j < n; j++) {
+				if (!removed[j] && Math.abs((pts.x[j] - xc) * cs + (pts.y[j] - yc) * sn - radius) <= dRad) {
+					removed[j] = true;
+					count++;
+					if (voted[j]) {
+						accumulator.votePoint(pts.x[j], pts.y[j], theta(pts, j), params.dTheta, -1);
+					}
+				}
+			}
+			lineList.add(new HoughLine(angle, radius, count));
+			if (params.debug) 
+				IJ.log("progressive HT: line " + lineList.size() + " after " + (k + 1) + " of " + n + " points");
+		}
+		return lineList.toArray(new HoughLine[0]);
+	}
+	
+	private static float theta(LineAccumulator.EdgePoints pts, int i) {
+		return (pts.theta == null) ? Float.NaN : pts.theta[i];
+	}
+	
 	/**
 	 * @return The reference point used by this Hough transform.
 	 */
@@ -179,10 +271,6 @@ public class HoughTransformLines {
 		return (ri - cRad) * dRad;
 	}
 	
-	private int radiusToIndex(double rad) {
-		return cRad + (int) Math.rint(rad / dRad);
-	}
-	
 //	public int[][] getAccumulator() {
 //		return accumulator;
 //	}
@@ -196,7 +284,7 @@ public class HoughTransformLines {
 	 * @return A FloatProcessor (since accumulator values may be large).
 	 */
 	public FloatProcessor getAccumulatorImage() {
-		return new FloatProcessor(accumulator);
+		return makeImage(accumulator.getArray());
 	}
 	
 	/**
@@ -209,9 +297,9 @@ public class HoughTransformLines {
 		FloatProcessor fp = new FloatProcessor(2 * accWidth, accHeight);
 		for (int ai = 0; ai < accWidth; ai++) {
 			for (int ri = 0; ri < accHeight; ri++) {
-				fp.setf(ai, ri, accumulator[ai][ri]);
+				fp.setf(ai, ri, accumulator.get(ai, ri));
 				if (ri > 0) {
-					fp.setf(accWidth + ai, ri, accumulator[ai][accHeight - ri]);
+					fp.setf(accWidth + ai, ri, accumulator.get(ai, accHeight - ri));
 				}
 			}
 		}
@@ -226,72 +314,40 @@ public class HoughTransformLines {
 	 * @return A FloatProcessor (since accumulator values may be large).
 	 */
 	public FloatProcessor getAccumulatorMaxImage() {
-		return new FloatProcessor(accumulatorMax);
+		return makeImage(accumulatorMax);
 	}
 	
 	// --------------  nonpublic methods ------------------------
 	
-	private double[] makeCosTable() {
-		double[] cosTab = new double[nAng];
-		for (int ai = 0; ai < nAng; ai++) {
-			double angle = dAng * ai;
-			cosTab[ai] = Math.cos(angle);
-		}
-		return cosTab;
-	}
-	
-	private double[] makeSinTable() {
-		double[] sinTab = new double[nAng];
-		for (int ai = 0; ai < nAng; ai++) {
-			double angle = dAng * ai;
-			sinTab[ai] = Math.sin(angle);
+	// image of size accWidth x accHeight from a flat array (angle-major)
+	private FloatProcessor makeImage(int[] A) {
+		FloatProcessor fp = new FloatProcessor(accWidth, accHeight);
+		for (int ai = 0; ai < accWidth; ai++) {
+			for (int ri = 0; ri < accHeight; ri++) {
+				fp.setf(ai, ri, A[ai * accHeight + ri]);
+			}
 		}
-		return sinTab;
+		fp.resetMinAndMax();
+		return fp;
 	}
 	
-	private void process(ImageProcessor ip) {
-//		ByteProcessor check = new ByteProcessor(M, N);
-		if (params.showProgress) IJ.showStatus("filling accumulator ...");
-		for (int v = 0; v < N; v++) {
-			if (params.showProgress) IJ.showProgress(v, N);
-			for (int u = 0; u < M; u++) {
-				if ((0xFFFFFF & ip.get(u, v)) != 0) { // this is a foreground (edge) pixel - use ImageAccessor??
-					processPoint(u, v);
-//					check.putPixel(u, v, 128);
-				}
-			}
-		}
-		if (params.showProgress) 
-			IJ.showProgress(1, 1);
-//		if (params.showCheckImage)
-//			(new ImagePlus("Check", check)).show();
+	private void process(ImageProcessor ip, ImageProcessor G) {
+		process(new LineAccumulator.EdgePoints(ip, G));
 	}
 	
 	private void process(Point2D[] points) {
-		if (params.showProgress) IJ.showStatus("filling accumulator ...");
-		for (int i = 0; i < points.length; i++) {
-			if (params.showProgress && i % 50 == 0) IJ.showProgress(i, points.length);
-			Point2D p = points[i];
-			if (p != null) {
-				processPoint(p.getX(), p.getY());
-			}
-		}
-		if (params.showProgress) IJ.showProgress(1, 1);
+		process(new LineAccumulator.EdgePoints(points));
 	}
-
-
-	private void processPoint(double u, double v) {
-		final double x = u - xc;
-		final double y = v - yc;
-		for (int ai = 0; ai < accWidth; ai++) {
-//			double theta = dAng * ai;
-//			double r = x * Math.cos(theta) + y * Math.sin(theta);
-			double r = x * cosTable[ai] + y * sinTable[ai];	// sin/cos tables improve speed!
-			int ri =  radiusToIndex(r); // cRad + (int) Math.rint(r / dRad); - changed
-			if (ri >= 0 && ri < accHeight) {
-				accumulator[ai][ri]++;
-			}
+	
+	private void process(LineAccumulator.EdgePoints pts) {
+		if (params.progressive) {	// votes are cast in getLines()
+			points = pts;
+			return;
 		}
+		if (params.showProgress) IJ.showStatus("filling accumulator ...");
+		accumulator.addPoints(pts, params.dTheta, params.parallelism);
+		if (params.showProgress) 
+			IJ.showProgress(1, 1);
 	}
 	
 
@@ -302,6 +358,7 @@ public class HoughTransformLines {
 	 */
 	private void findLocalMaxima() {
 		if (params.showProgress) IJ.showStatus("finding local maxima");
+		final int[] acc = accumulator.getArray();
 		int count = 0;
 		for (int aC = 0; aC < accWidth; aC++) {	// center angle index
 			// angle index ai is treated cyclically but the accumulator 
@@ -323,20 +380,20 @@ public class HoughTransformLines {
 				// do we need to swap vertical on either side?
 				int r0 = (mL) ? accHeight - rC + 1 : rC - 1; 
 				int r1 = (mR) ? accHeight - rC - 1 : rC + 1;			
-				int vC = accumulator[aC][rC];
+				int vC = acc[aC * accHeight + rC];
 				// this test is critical if 2 identical cell values 
 				// appear next to each other!
 				boolean ismax =
-						vC > accumulator[a1][rC] &&	// 0
-						vC > accumulator[a1][r0] &&	// 1
-						vC > accumulator[aC][r0] &&	// 2
-						vC > accumulator[a0][r0] &&	// 3
-						vC > accumulator[a0][rC] &&	// 4
-						vC > accumulator[a0][r1] &&	// 5
-						vC > accumulator[aC][r1] &&	// 6
-						vC > accumulator[a1][r1] ;	// 7					
+						vC > acc[a1 * accHeight + rC] &&	// 0
+						vC > acc[a1 * accHeight + r0] &&	// 1
+						vC > acc[aC * accHeight + r0] &&	// 2
+						vC > acc[a0 * accHeight + r0] &&	// 3
+						vC > acc[a0 * accHeight + rC] &&	// 4
+						vC > acc[a0 * accHeight + r1] &&	// 5
+						vC > acc[aC * accHeight + r1] &&	// 6
+						vC > acc[a1 * accHeight + r1] ;		// 7					
 				if (ismax) {
-					accumulatorMax[aC][rC] = vC;
+					accumulatorMax[aC * accHeight + rC] = vC;
 					count++;
 					if (params.debug && vC > 50) {
 						IJ.log("found max at " + aC + " / " + rC);
@@ -381,6 +438,51 @@ public class HoughTransformLines {
 //	if (params.debug) IJ.log("found maxima: " + count);
 //}
 	
+	// ---------------------------------------------------------------------
+	
+	/**
+	 * Benchmark: time to find the first lines in a synthetic edge image (straight
+	 * lines plus random noise points) with the full and the progressive probabilistic 
+	 * Hough transform.
+	 * @param args ignored
+	 */
+	public static void main(String[] args) {
+		final int size = 1024;
+		final int nLines = 8;
+		ByteProcessor ip = new ByteProcessor(size, size);
+		Random rnd = new Random(17);
+		ip.setValue(255);
+		for (int i = 0; i < nLines; i++) {
+			ip.drawLine(rnd.nextInt(size), rnd.nextInt(size), rnd.nextInt(size), rnd.nextInt(size));
+		}
+		for (int i = 0; i < size * size / 50; i++) {
+			ip.set(rnd.nextInt(size), rnd.nextInt(size), 255);
+		}
+		System.out.println("mode        | angles | lines | time (ms)");
+		for (int nAng : new int[] {256, 1024}) {
+			for (boolean progressive : new boolean[] {false, true}) {
+				Parameters params = new Parameters();
+				params.nAng = nAng;
+				params.nRad = 512;
+				params.showProgress = false;
+				params.progressive = progressive;
+				HoughLine[] lines = null;
+				long time = 0;
+				for (int k = 0; k < 3; k++) {	// the first 2 runs are for warming up
+					long t0 = System.nanoTime();
+					HoughTransformLines ht = new HoughTransformLines(ip, params);
+					lines = ht.getLines(150, nLines / 2);
+					time = System.nanoTime() - t0;
+				}
+				System.out.format("%-11s | %6d | %5d | %9d%n", progressive ? "progressive" : "full", 
+						nAng, lines.length, time / 1000000);
+				for (HoughLine hl : lines) {
+					System.out.println("    " + hl);
+				}
+			}
+		}
+	}
+	
 	/**
 	 * This class represents a straight line in Hessian normal form, 
 	 * i.e., x * cos(angle) + y * sin(angle) = radius.
@@ -35,6 +35,11 @@ public class HoughTransformLinesPosRadius {
 		public int nAng = 256;
 		/** Number of radial steps (pos. radii only) */
 		public int nRad = 256;
+		/** Half width of the angular voting window around the local edge orientation
+		 * (only used if a gradient image is supplied) */
+		public double dTheta = Math.PI / 16;
+		/** Number of threads (0 = use the common thread pool, 1 = run on the calling thread) */
+		public int parallelism = 0;
 		public boolean showProgress = true;
 		public boolean showCheckImage = true;
 		public boolean debug = false;
@@ -52,11 +57,8 @@ public class HoughTransformLinesPosRadius {
 	private final double dRad; 			// increment of radius
 	private final int    cRad;			// array index for zero radius (r[cRad] = 0)
 	
-	private final int[][] accumulator; 		// Hough accumulator array
-	private final int[][] accumulatorMax;	// Hough accumulator, local maxima only
-	
-	private final double[] cosTable;
-	private final double[] sinTable;
+	private final LineAccumulator accumulator; 	// Hough accumulator array (flat)
+	private final int[] accumulatorMax;			// Hough accumulator, local maxima only
 	
 	// --------------  public constructor(s) ------------------------
 	
@@ -67,8 +69,22 @@ public class HoughTransformLinesPosRadius {
 	 * @param params parameter object.
 	 */
 	public HoughTransformLinesPosRadius(ImageProcessor I, Parameters params) {
+		this(I, null, params);
+	}
+	
+	/**
+	 * Creates a new Hough transform from the image I, where each edge point
+	 * only votes for the angles within &plusmn; {@code params.dTheta} around the
+	 * local edge orientation (and its opposite), estimated from the gradient of image G.
+	 * @param I input image, relevant (edge) points have pixel
+	 * values greater 0.
+	 * @param G image used to estimate the edge orientations (usually the
+	 * original image from which I was derived), may be null.
+	 * @param params parameter object.
+	 */
+	public HoughTransformLinesPosRadius(ImageProcessor I, ImageProcessor G, Parameters params) {
 		this(I.getWidth(), I.getHeight(), params);
-		process(I);
+		process(I, G);
 	}
 	
 	/**
@@ -101,10 +117,8 @@ public class HoughTransformLinesPosRadius {
 		this.dAng = 2 * Math.PI / nAng;		// CHANGE
 		this.dRad = 0.5 * Math.sqrt(M * M + N * N) / nRad;
 		this.cRad = 0; // nRad / 2;	// CHANGE
-		this.accumulator    = new int[nAng][nRad]; // cells are initialized to zero!
-		this.accumulatorMax = new int[nAng][nRad];
-		this.cosTable = makeCosTable();
-		this.sinTable = makeSinTable();
+		this.accumulator    = new LineAccumulator(nAng, nRad, dAng, dRad, cRad, xc, yc);
+		this.accumulatorMax = new int[nAng * nRad];
 	}
 	
 	// --------------  public methods ------------------------
@@ -135,7 +149,7 @@ public class HoughTransformLinesPosRadius {
 
 		for (int ir = 0; ir < nRad; ir++) {
 			for (int ia = 0; ia < nAng; ia++) {
-				int hcount = accumulatorMax[ia][ir];
+				int hcount = accumulatorMax[ia * nRad + ir];
 				if (hcount >= amin) {
 					HoughLine last = lineArr[lineArr.length - 1];
 					// last holds the weakest line found so far - replace it?
@@ -185,12 +199,26 @@ public class HoughTransformLinesPosRadius {
 		return (j - cRad) * dRad;
 	}
 	
+	/**
+	 * @return a copy of the accumulator array, indexed as [angle][radius]
+	 */
 	public int[][] getAccumulator() {
-		return accumulator;
+		return toArray2D(accumulator.getArray());
 	}
 	
+	/**
+	 * @return a copy of the accumulator array with local maxima only, indexed as [angle][radius]
+	 */
 	public int[][] getAccumulatorMax() {
-		return accumulatorMax;
+		return toArray2D(accumulatorMax);
+	}
+	
+	private int[][] toArray2D(int[] A) {
+		int[][] B = new int[nAng][];
+		for (int ia = 0; ia < nAng; ia++) {
+			B[ia] = Arrays.copyOfRange(A, ia * nRad, (ia + 1) * nRad);
+		}
+		return B;
 	}
 	
 	/**
@@ -201,7 +229,7 @@ public class HoughTransformLinesPosRadius {
 		FloatProcessor fp = new FloatProcessor(nAng, nRad);
 		for (int ir = 0; ir < nRad; ir++) {
 			for (int ia = 0; ia < nAng; ia++) {
-				fp.setf(ia, ir, accumulator[ia][ir]);
+				fp.setf(ia, ir, accumulator.get(ia, ir));
 			}
 		}
 		fp.resetMinAndMax();
@@ -217,7 +245,7 @@ public class HoughTransformLinesPosRadius {
 		FloatProcessor fp = new FloatProcessor(nAng, nRad);
 		for (int ir = 0; ir < nRad; ir++) {
 			for (int ia = 0; ia < nAng; ia++) {
-				fp.setf(ia, ir, accumulatorMax[ia][ir]);
+				fp.setf(ia, ir, accumulatorMax[ia * nRad + ir]);
 			}
 		}
 		fp.resetMinAndMax();
@@ -226,96 +254,55 @@ public class HoughTransformLinesPosRadius {
 	
 	// --------------  nonpublic methods ------------------------
 	
-	private double[] makeCosTable() {
-		double[] cosTab = new double[nAng];
-		for (int ia = 0; ia < nAng; ia++) {
-			double theta = dAng * ia;
-			cosTab[ia] = Math.cos(theta);
-		}
-		return cosTab;
-	}
-	
-	private double[] makeSinTable() {
-		double[] sinTab = new double[nAng];
-		for (int ia = 0; ia < nAng; ia++) {
-			double theta = dAng * ia;
-			sinTab[ia] = Math.sin(theta);
-		}
-		return sinTab;
-	}
-	
-	private void process(ImageProcessor ip) {
-		ByteProcessor check = new ByteProcessor(M, N);
+	private void process(ImageProcessor ip, ImageProcessor G) {
 		if (params.showProgress) IJ.showStatus("filling accumulator ...");
-		for (int v = 0; v < N; v++) {
-			if (params.showProgress) IJ.showProgress(v, N);
-			for (int u = 0; u < M; u++) {
-				if ((0xFFFFFF & ip.get(u, v)) != 0) { // this is a foreground (edge) pixel - use ImageAccessor??
-					doOnePoint(u, v);
-					check.putPixel(u, v, 128);
-				}
-			}
-		}
+		LineAccumulator.EdgePoints pts = new LineAccumulator.EdgePoints(ip, G);
+		accumulator.addPoints(pts, params.dTheta, params.parallelism);
 		if (params.showProgress) 
 			IJ.showProgress(1, 1);
-		if (params.showCheckImage)
+		if (params.showCheckImage) {
+			ByteProcessor check = new ByteProcessor(M, N);
+			for (int i = 0; i < pts.n; i++) {
+				check.putPixel((int) pts.x[i], (int) pts.y[i], 128);
+			}
 			(new ImagePlus("Check", check)).show();
+		}
 	}
 	
 	private void process(Point2D[] points) {
 		if (params.showProgress) IJ.showStatus("filling accumulator ...");
-		for (int i = 0; i < points.length; i++) {
-			if (params.showProgress && i % 50 == 0) IJ.showProgress(i, points.length);
-			Point2D p = points[i];
-			if (p != null) {
-				doOnePoint(p.getX(), p.getY());
-			}
-		}
+		accumulator.addPoints(new LineAccumulator.EdgePoints(points), params.dTheta, params.parallelism);
 		if (params.showProgress) IJ.showProgress(1, 1);
 	}
 
 	public int closestRadialIndex(double r) {
-		return cRad + (int) Math.rint(r / dRad);
-	}
-
-	private void doOnePoint(double u, double v) {
-		final double x = u - xc;
-		final double y = v - yc;
-		for (int ia = 0; ia < nAng; ia++) {
-//			double theta = dAng * ai;
-//			double r = x * Math.cos(theta) + y * Math.sin(theta);
-			double r = x * cosTable[ia] + y * sinTable[ia];	// sin/cos tables improve speed!
-			int ir =  closestRadialIndex(r); //cRad + (int) Math.rint(r / dRad);
-			if (ir >= 0 && ir < nRad) {
-				//accumulator[ia][ir]++;	
-				accumulator[ia][ir]+= 1;	
-			}
-		}
+		return accumulator.radiusToIndex(r);
 	}
 	
 	// TODO: lines with ZERO radius cannot be detected!!
 	private void findAccumulatorPeaks() {
 		if (params.showProgress) IJ.showStatus("finding local maxima");
+		final int[] acc = accumulator.getArray();
 		int count = 0;
 		for (int ia = 0; ia < nAng; ia++) {
 			// angle index ai is treated cyclically:
 			final int a1 = (ia > 0) ? ia - 1 : nAng - 1;
 			final int a2 = (ia < nAng-1) ? ia + 1 : 0;
 			for (int ir = 1; ir < nRad - 1; ir++) {
-				int ha = accumulator[ia][ir];
+				int ha = acc[ia * nRad + ir];
 				// this test is critical if 2 identical cell values 
 				// appear next to each other!
 				boolean ismax =
-					ha > accumulator[a1][ir - 1] &&
-					ha > accumulator[a1][ir]   &&
-					ha > accumulator[a1][ir + 1] &&
-					ha > accumulator[ia][ir - 1] &&
-					ha > accumulator[ia][ir + 1] &&
-					ha > accumulator[a2][ir - 1] &&
-					ha > accumulator[a2][ir]   &&
-					ha > accumulator[a2][ir + 1] ;
+					ha > acc[a1 * nRad + ir - 1] &&
+					ha > acc[a1 * nRad + ir]   &&
+					ha > acc[a1 * nRad + ir + 1] &&
+					ha > acc[ia * nRad + ir - 1] &&
+					ha > acc[ia * nRad + ir + 1] &&
+					ha > acc[a2 * nRad + ir - 1] &&
+					ha > acc[a2 * nRad + ir]   &&
+					ha > acc[a2 * nRad + ir + 1] ;
 				if (ismax) {
-					accumulatorMax[ia][ir] = ha;
+					accumulatorMax[ia * nRad + ir] = ha;
 					count++;
 				}
 			}
@@ -0,0 +1,308 @@
+/*******************************************************************************
+ * This software is provided as a supplement to the authors' textbooks on digital
+ * image processing published by Springer-Verlag in various languages and editions.
+ * Permission to use and distribute this software is granted under the BSD 2-Clause 
+ * "Simplified" License (see http://opensource.org/licenses/BSD-2-Clause). 
+ * Copyright (c) 2006-2015 Wilhelm Burger, Mark J. Burge. 
+ * All rights reserved. Visit http://www.imagingbook.com for additional details.
+ *  
+ *******************************************************************************/
+package imagingbook.pub.hough;
+
+import ij.process.ImageProcessor;
+import imagingbook.lib.util.ParallelTasks;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Voting engine shared by {@link HoughTransformLines} and {@link HoughTransformLinesPosRadius}.
+ * The accumulator is a flat array of size nAng x nRad, with cell (ai, ri) at position
+ * ai * nRad + ri, i.e., all radii of one angle are stored contiguously.
+ * Points are distributed over several tasks, each voting into a partial accumulator of
+ * its own, which are summed up at the end (no synchronization is needed while voting).
+ * If the local edge orientation of a point is known, it only votes for the angles within
+ * a window of &plusmn; dTheta around the orientation (and the opposite direction,
+ * if the angular range is 2 pi).
+ */
+class LineAccumulator {
+
+	// min. number of votes (points x angles) to be cast by a single task
+	private static final int MinTaskVotes = 1 << 20;
+
+	private final int nAng;				// number of angular steps (accumulator width)
+	private final int nRad;				// number of radial steps (accumulator height)
+	private final double dAng;			// increment of angle
+	private final double dRad;			// increment of radius
+	private final int cRad;				// array index representing the zero radius
+	private final double xc, yc;		// reference point
+	private final int nTurns;			// number of half turns (pi) covered by the angular range
+
+	private final double[] cosTable;
+	private final double[] sinTable;
+	private final int[] acc;
+	private final int[] ranges;			// angle ranges used by votePoint()
+
+	LineAccumulator(int nAng, int nRad, double dAng, double dRad, int cRad, double xc, double yc) {
+		this.nAng = nAng;
+		this.nRad = nRad;
+		this.dAng = dAng;
+		this.dRad = dRad;
+		this.cRad = cRad;
+		this.xc = xc;
+		this.yc = yc;
+		this.nTurns = Math.max(1, (int) Math.round(nAng * dAng / Math.PI));
+		this.cosTable = new double[nAng];
+		this.sinTable = new double[nAng];
+		for (int ai = 0; ai < nAng; ai++) {
+			cosTable[ai] = Math.cos(dAng * ai);
+			sinTable[ai] = Math.sin(dAng * ai);
+		}
+		this.acc = new int[nAng * nRad];
+		this.ranges = new int[4 * nTurns];
+	}
+
+	/**
+	 * @return the flat accumulator array (not copied)
+	 */
+	int[] getArray() {
+		return acc;
+	}
+
+	int get(int ai, int ri) {
+		return acc[ai * nRad + ri];
+	}
+
+	int radiusToIndex(double r) {
+		return cRad + (int) Math.rint(r / dRad);
+	}
+
+	/**
+	 * Adds the votes of the given points to the accumulator.
+	 * @param pts the points
+	 * @param dTheta half width of the angular voting window
+	 * @param parallelism number of threads (0 = use the common thread pool, 1 = run on the calling thread)
+	 */
+	void addPoints(EdgePoints pts, double dTheta, int parallelism) {
+		addPoints(pts.x, pts.y, pts.theta, pts.n, dTheta, parallelism);
+	}
+
+	/**
+	 * Adds the votes of n points (x[i], y[i]) to the accumulator.
+	 * @param x x-coordinates
+	 * @param y y-coordinates
+	 * @param theta local edge (gradient) orientations, NaN if unknown (may be null)
+	 * @param n the number of points
+	 * @param dTheta half width of the angular voting window
+	 * @param parallelism number of threads (0 = use the common thread pool, 1 = run on the calling thread)
+	 */
+	void addPoints(final double[] x, final double[] y, final float[] theta, final int n,
+			final double dTheta, int parallelism) {
+		final int nThreads = (parallelism == 0) ? Runtime.getRuntime().availableProcessors() : parallelism;
+		final int nTasks = (int) Math.max(1, Math.min(nThreads, (long) n * nAng / MinTaskVotes));
+		if (nTasks == 1) {
+			vote(acc, x, y, theta, 0, n, dTheta);
+			return;
+		}
+		List<Callable<int[]>> tasks = new ArrayList<Callable<int[]>>(nTasks);
+		for (int k = 0; k < nTasks; k++) {
+			final int i0 = (int) ((long) n * k / nTasks);
+			final int i1 = (int) ((long) n * (k + 1) / nTasks);
+			tasks.add(new Callable<int[]>() {
+				public int[] call() {
+					int[] part = new int[acc.length];
+					vote(part, x, y, theta, i0, i1, dTheta);
+					return part;
+				}
+			});
+		}
+		ExecutorService pool = ParallelTasks.makePool(parallelism);
+		try {
+			for (int[] part : ParallelTasks.invokeAll(pool, tasks)) {
+				for (int i = 0; i < acc.length; i++) {
+					acc[i] += part[i];
+				}
+			}
+		} finally {
+			ParallelTasks.release(pool);
+		}
+	}
+
+	private void vote(int[] A, double[] x, double[] y, float[] theta, int i0, int i1, double dTheta) {
+		final int[] R = new int[4 * nTurns];
+		for (int i = i0; i < i1; i++) {
+			final double xs = x[i] - xc;
+			final double ys = y[i] - yc;
+			final int nR = getAngleRanges((theta == null) ? Float.NaN : theta[i], dTheta, R);
+			for (int k = 0; k < 2 * nR; k += 2) {
+				for (int ai = R[k]; ai < R[k + 1]; ai++) {
+					final int ri = radiusToIndex(xs * cosTable[ai] + ys * sinTable[ai]);
+					if (ri >= 0 && ri < nRad) {
+						A[ai * nRad + ri]++;
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Adds (delta = 1) or removes (delta = -1) the votes of a single point (x, y).
+	 * Not thread-safe (uses a shared work array).
+	 * @param x x-coordinate
+	 * @param y y-coordinate
+	 * @param theta local edge orientation (NaN if unknown)
+	 * @param dTheta half width of the angular voting window
+	 * @param delta the vote increment
+	 * @return the (flat) index of the largest accumulator cell among the cells 
+	 * voted for, -1 if none
+	 */
+	int votePoint(double x, double y, float theta, double dTheta, int delta) {
+		final int[] R = ranges;
+		final int nR = getAngleRanges(theta, dTheta, R);
+		final double xs = x - xc;
+		final double ys = y - yc;
+		int iMax = -1;
+		int aMax = Integer.MIN_VALUE;
+		for (int k = 0; k < 2 * nR; k += 2) {
+			for (int ai = R[k]; ai < R[k + 1]; ai++) {
+				final int ri = radiusToIndex(xs * cosTable[ai] + ys * sinTable[ai]);
+				if (ri >= 0 && ri < nRad) {
+					final int i = ai * nRad + ri;
+					final int a = acc[i] + delta;
+					acc[i] = a;
+					if (a > aMax) {
+						aMax = a;
+						iMax = i;
+					}
+				}
+			}
+		}
+		return iMax;
+	}
+	
+	/*
+	 * Collects the (cyclic) angle index ranges [R[2k], R[2k+1]) a point votes for, 
+	 * i.e., +/- dTheta around theta (and theta + pi if the angular range is 2 pi),
+	 * or all angles if theta is NaN. Returns the number of ranges.
+	 */
+	private int getAngleRanges(float theta, double dTheta, int[] R) {
+		final int nHalf = nAng / nTurns;	// number of angle indices per half turn
+		final int w = (int) Math.floor(dTheta / dAng);
+		if (Float.isNaN(theta) || 2 * w + 1 >= nHalf) {
+			R[0] = 0;
+			R[1] = nAng;
+			return 1;
+		}
+		final int a0 = (int) Math.rint(theta / dAng);
+		int k = 0;
+		for (int t = 0; t < nTurns; t++) {
+			final int aLo = floorMod(a0 + t * nHalf - w, nAng);
+			final int aHi = aLo + 2 * w + 1;
+			if (aHi <= nAng) {
+				R[k++] = aLo;
+				R[k++] = aHi;
+			}
+			else {	// wrap around
+				R[k++] = aLo;
+				R[k++] = nAng;
+				R[k++] = 0;
+				R[k++] = aHi - nAng;
+			}
+		}
+		return k / 2;
+	}
+
+	void clear() {
+		Arrays.fill(acc, 0);
+	}
+
+	private static int floorMod(int a, int n) {
+		final int m = a % n;
+		return (m < 0) ? m + n : m;
+	}
+
+	// ---------------------------------------------------------------------
+
+	/*
+	 * Point coordinates with (optional) local edge orientations.
+	 */
+	static class EdgePoints {
+		final double[] x, y;
+		final float[] theta;	// null if orientations are unknown
+		final int n;
+
+		/*
+		 * Collects all pixels of I with values > 0 in a single raster scan.
+		 * If G is not null, the orientation of each point is estimated from the
+		 * Sobel gradient of G (NaN where the gradient is zero).
+		 */
+		EdgePoints(ImageProcessor I, ImageProcessor G) {
+			final int M = I.getWidth();
+			final int N = I.getHeight();
+			int cnt = 0;
+			for (int i = 0; i < M * N; i++) {
+				if ((0xFFFFFF & I.get(i)) != 0) cnt++;
+			}
+			this.n = cnt;
+			this.x = new double[n];
+			this.y = new double[n];
+			this.theta = (G == null) ? null : new float[n];
+			final float[] g = (G == null) ? null : (float[]) G.convertToFloatProcessor().getPixels();
+			final int MG = (G == null) ? 0 : G.getWidth();
+			final int NG = (G == null) ? 0 : G.getHeight();
+			int k = 0;
+			for (int v = 0; v < N; v++) {
+				for (int u = 0; u < M; u++) {
+					if ((0xFFFFFF & I.get(v * M + u)) != 0) {
+						x[k] = u;
+						y[k] = v;
+						if (g != null) {
+							theta[k] = getOrientation(g, MG, NG, u, v);
+						}
+						k++;
+					}
+				}
+			}
+		}
+
+		EdgePoints(Point2D[] points) {
+			int cnt = 0;
+			for (Point2D p : points) {
+				if (p != null) cnt++;
+			}
+			this.n = cnt;
+			this.x = new double[n];
+			this.y = new double[n];
+			this.theta = null;
+			int k = 0;
+			for (Point2D p : points) {
+				if (p != null) {
+					x[k] = p.getX();
+					y[k] = p.getY();
+					k++;
+				}
+			}
+		}
+
+		// direction of the Sobel gradient at (u, v), border pixels are replicated
+		private static float getOrientation(float[] g, int M, int N, int u, int v) {
+			if (u >= M || v >= N)
+				return Float.NaN;
+			final int u0 = Math.max(u - 1, 0), u1 = Math.min(u + 1, M - 1);
+			final int v0 = Math.max(v - 1, 0), v1 = Math.min(v + 1, N - 1);
+			final float a = g[v0 * M + u0], b = g[v0 * M + u], c = g[v0 * M + u1];
+			final float d = g[v  * M + u0],                    f = g[v  * M + u1];
+			final float p = g[v1 * M + u0], q = g[v1 * M + u], r = g[v1 * M + u1];
+			final float gx = (c + 2 * f + r) - (a + 2 * d + p);
+			final float gy = (p + 2 * q + r) - (a + 2 * b + c);
+			if (gx == 0 && gy == 0)
+				return Float.NaN;
+			return (float) Math.atan2(gy, gx);
+		}
+	}
+
+}
@@ -11,14 +11,38 @@
 package imagingbook.pub.matching;
 
 import ij.process.FloatProcessor;
+import imagingbook.lib.image.IntegralImage;
+import imagingbook.lib.image.IntegralImage.BorderMode;
+import imagingbook.pub.dft.Fft2d;
 
 /**
+ * Template matching by the (local) correlation coefficient. Score maps are
+ * either calculated directly (in O(MI NI MR NR) time) or, for larger templates,
+ * by J. P. Lewis' method ("Fast normalized cross-correlation", Vision Interface 1995):
+ * the cross-correlation of the image with the zero-mean template is calculated 
+ * with the FFT, local sums of I and I^2 are obtained from integral images. 
+ * Both methods yield the same scores (up to rounding errors). 
+ * The FFT of the search image and its integral images are calculated once
+ * and reused when matching several templates.
+ * Since these are created lazily on first use, instances of this class are
+ * not thread-safe.
+ * 
  * @author W. Burger
  * @version 2014-04-20
  */
 public class CorrCoeffMatcher {
+	
+	// the FFT method is used if the number of operations of the direct method 
+	// exceeds FftCostFactor * P * Q * log2(P * Q), for FFT size P x Q
+	private static final double FftCostFactor = 20;
+	
 	private final FloatProcessor I; // search image
 	private final int MI, NI; 		// width/height of image
+	
+	private IntegralImage II = null;				// integral images of I, I^2
+	private double[] specRe = null, specIm = null;	// spectrum of I (size P x Q)
+	private final int P, Q;							// size of the FFT (powers of 2)
+	private Fft2d fft = null;
 
 	private FloatProcessor R; 		// reference image
 	private int MR, NR; 			// width/height of reference
@@ -30,9 +54,30 @@ public class CorrCoeffMatcher {
 		this.I = I;
 		this.MI = this.I.getWidth();
 		this.NI = this.I.getHeight();
+		this.P = Integer.highestOneBit(2 * MI - 1);		// smallest power of 2 >= MI
+		this.Q = Integer.highestOneBit(2 * NI - 1);
 	}
 	
+	/**
+	 * Calculates the correlation coefficient for all positions (r, s) of the
+	 * template R inside the search image. The FFT-based method is selected
+	 * automatically if it is expected to be faster.
+	 * @param R the template
+	 * @return the score map C[r][s] of size (MI - MR + 1) x (NI - NR + 1)
+	 */
 	public float[][] getMatch(FloatProcessor R) {
+		final double nOffsets = (double) (MI - R.getWidth() + 1) * (NI - R.getHeight() + 1);
+		final double costDirect = nOffsets * R.getWidth() * R.getHeight();
+		final double costFft = FftCostFactor * P * Q * (Math.log(P * Q) / Math.log(2));
+		return (costDirect > costFft) ? getMatchFft(R) : getMatchDirect(R);
+	}
+	
+	/**
+	 * Same as {@link #getMatch(FloatProcessor)}, using the direct method.
+	 * @param R the template
+	 * @return the score map
+	 */
+	public float[][] getMatchDirect(FloatProcessor R) {
 		this.R = R;
 		this.MR = R.getWidth();
 		this.NR = R.getHeight();
@@ -80,4 +125,77 @@ public class CorrCoeffMatcher {
 				// WB: added 1 in denominator to handle flat image regions (w. zero variance)
 	}  
 	
+	/**
+	 * Same as {@link #getMatch(FloatProcessor)}, using the FFT-based method.
+	 * @param R the template
+	 * @return the score map
+	 */
+	public float[][] getMatchFft(FloatProcessor R) {
+		final int MR = R.getWidth();
+		final int NR = R.getHeight();
+		final int K = MR * NR;
+		if (MR > MI || NR > NI)
+			throw new IllegalArgumentException("template must not be larger than the search image");
+		if (II == null) {
+			II = new IntegralImage(I);
+		}
+		makeImageSpectrum();
+		
+		// template statistics (as in getMatchDirect()):
+		final float[] pR = (float[]) R.getPixels();
+		double sumR = 0, sumR2 = 0;
+		for (float aR : pR) {
+			sumR  += aR;
+			sumR2 += aR * aR;
+		}
+		final double meanR = sumR / K;
+		final double varR = Math.sqrt(sumR2 - K * meanR * meanR);
+		
+		// cross-correlation of I with the zero-mean template, i.e., 
+		// sum (I(r+i, s+j) * (R(i,j) - meanR)) = sumIR - K * meanI * meanR:
+		final double[] re = new double[P * Q];
+		final double[] im = new double[P * Q];
+		for (int j = 0; j < NR; j++) {
+			for (int i = 0; i < MR; i++) {
+				re[j * P + i] = pR[j * MR + i] - meanR;
+			}
+		}
+		fft.transform(re, im, true);
+		for (int k = 0; k < P * Q; k++) {	// multiply spectrum of I by the conjugate spectrum of R
+			final double a = specRe[k], b = specIm[k];
+			final double c = re[k], d = -im[k];
+			re[k] = a * c - b * d;
+			im[k] = a * d + b * c;
+		}
+		fft.transform(re, im, false);
+		final double scale = Math.sqrt(P * Q);	// compensates the symmetric DFT scale factors
+		
+		final float[][] C = new float[MI - MR + 1][NI - NR + 1];
+		for (int s = 0; s <= NI - NR; s++) {
+			for (int r = 0; r <= MI - MR; r++) {
+				final double sumI  = II.getBlockSum1(r, s, r + MR - 1, s + NR - 1, BorderMode.Clip);
+				final double sumI2 = II.getBlockSum2(r, s, r + MR - 1, s + NR - 1, BorderMode.Clip);
+				final double meanI = sumI / K;
+				final double varI = Math.max(0, sumI2 - K * meanI * meanI);
+				C[r][s] = (float) ((scale * re[s * P + r]) / (1 + Math.sqrt(varI) * varR));
+			}
+		}
+		return C;
+	}
+	
+	private void makeImageSpectrum() {
+		if (specRe != null)
+			return;
+		fft = new Fft2d(P, Q);
+		final float[] pI = (float[]) I.getPixels();
+		specRe = new double[P * Q];
+		specIm = new double[P * Q];
+		for (int v = 0; v < NI; v++) {
+			for (int u = 0; u < MI; u++) {
+				specRe[v * P + u] = pI[v * MI + u];
+			}
+		}
+		fft.transform(specRe, specIm, true);
+	}
+	
 }
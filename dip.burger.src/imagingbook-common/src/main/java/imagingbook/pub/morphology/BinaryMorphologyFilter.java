@@ -14,10 +14,19 @@ import ij.ImagePlus;
 import ij.process.Blitter;
 import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
+import imagingbook.lib.image.BinaryImage;
+import imagingbook.pub.morphology.StructuringElement.Part;
+
+import java.util.List;
 
 
 /**
  * This class implements binary morphological filters.
+ * Dilation and erosion are performed on the decomposition of the
+ * {@link StructuringElement} (see {@link VanHerkGilWerman}), unless
+ * disabled with {@link #setUseDecomposition(boolean)}. Binary images
+ * (with values 0 and 255 only) are processed in bit-packed form
+ * (see {@link BinaryImage}), 64 pixels at a time.
  * Original version 2007.
  * TODO: Make a subclass for thinning.
  * @author W. Burger
@@ -26,6 +35,8 @@ import ij.process.ImageProcessor;
 public class BinaryMorphologyFilter {
 	
 	private final int[][] H; // structuring element
+	private final StructuringElement se;
+	private boolean useDecomposition = true;
 
 	public static enum OpType {
 		Dilate, Erode, Open, Close, Outline, Thin;
@@ -34,21 +45,37 @@ public class BinaryMorphologyFilter {
 	// constructor methods
 
 	public BinaryMorphologyFilter() {
-		H = makeBoxKernel3x3();
+		this(makeBoxKernel3x3());
 	}
 
 	public BinaryMorphologyFilter(int[][] H) {
 		this.H = H;
+		this.se = (H == null) ? null : new StructuringElement(H);
+	}
+	
+	public BinaryMorphologyFilter(StructuringElement se) {
+		this.H = se.getMatrix();
+		this.se = se;
+	}
+	
+	/**
+	 * Selects between the decomposed (fast) filter and the original
+	 * implementation, which copies the image once for every element of H.
+	 * Both give identical results.
+	 * @param useDecomposition true to use the decomposed structuring element
+	 */
+	public void setUseDecomposition(boolean useDecomposition) {
+		this.useDecomposition = useDecomposition;
 	}
 	
 	// public methods
 
 	public void applyTo(ByteProcessor I, OpType op) {
 		switch(op) {
-			case Dilate:	this.dilate(I, H);	break;
-			case Erode: 	this.erode(I, H);	break;
-			case Open: 		this.open(I, H);	break;
-			case Close: 	this.close(I, H);	break;
+			case Dilate:	this.dilate(I, se);	break;
+			case Erode: 	this.erode(I, se);	break;
+			case Open: 		this.open(I, se);	break;
+			case Close: 	this.close(I, se);	break;
 			case Outline:	this.outline(I);	break;
 			case Thin:		this.thin(I);		break;
 			default: throw new Error("BinMorpher: unknown operation " + op);
@@ -56,28 +83,70 @@ public class BinaryMorphologyFilter {
 	}
 	
 	public void dilate(ByteProcessor ip) {
-		dilate(ip, H);
+		dilate(ip, se);
 	}
 	
 	public void erode(ByteProcessor ip) {
-		erode(ip, H);
+		erode(ip, se);
 	}
 	
 	public void open(ByteProcessor ip) {
-		open(ip, H);
+		open(ip, se);
 	}
 	
 	public void close(ByteProcessor ip) {
-		close(ip, H);
+		close(ip, se);
 	}
 
 	// internal morphology methods 
 	
-	private void dilate(ByteProcessor ip, int[][] H) {
-		if (H == null) {
+	private void dilate(ByteProcessor ip, StructuringElement se) {
+		if (se == null) {
 			IJ.error("no structuring element");
 			return;
 		}
+		if (!useDecomposition)
+			dilate(ip, se.getMatrix());
+		else if (ip.isBinary())
+			dilate(new BinaryImage(ip), se).copyTo(ip);
+		else
+			GrayscaleMorphologyFilter.apply(ip, se, true);
+	}
+	
+	/*
+	 * Dilation of a bit-packed image with a decomposed structuring element. Each segment
+	 * with n points is applied by log2(n) shifted copies (doubling the covered length in
+	 * each step), the image is padded such that all intermediate results are valid.
+	 */
+	private static BinaryImage dilate(BinaryImage I, StructuringElement se) {
+		final int[] bb = se.getBounds();
+		final int left = Math.max(0, bb[1]);
+		final int top = Math.max(0, bb[3]);
+		final int W = I.getWidth() + left + Math.max(0, -bb[0]);
+		final int H = I.getHeight() + top + Math.max(0, -bb[2]);
+		BinaryImage P = new BinaryImage(W, H);
+		P.orShifted(I, left, top);
+		BinaryImage R = new BinaryImage(I.getWidth(), I.getHeight());
+		for (List<Part> group : se.getPartGroups()) {
+			BinaryImage J = P;
+			for (int[] s : group.get(0).segments) {
+				for (int c = 1; c < s[2]; ) {	// c = number of points covered
+					final int k = Math.min(c, s[2] - c);
+					BinaryImage T = J;
+					J = new BinaryImage(W, H);
+					J.or(T);
+					J.orShifted(T, k * s[0], k * s[1]);
+					c = c + k;
+				}
+			}
+			for (Part p : group) {
+				R.orShifted(J, p.tx - left, p.ty - top);
+			}
+		}
+		return R;
+	}
+	
+	private void dilate(ByteProcessor ip, int[][] H) {
 
 		//assume that the hot spot of se is at its center (ic,jc)
 		int ic = (H[0].length - 1) / 2;
@@ -101,6 +170,25 @@ public class BinaryMorphologyFilter {
 		
 	}
 	
+	private void erode(ByteProcessor ip, StructuringElement se) {
+		if (se == null) {
+			IJ.error("no structuring element");
+			return;
+		}
+		if (!useDecomposition)
+			erode(ip, se.getMatrix());
+		else if (ip.isBinary()) {
+			// dilates the background (pixels outside the image are foreground)
+			BinaryImage bi = new BinaryImage(ip);
+			bi.invert();
+			bi = dilate(bi, se.reflect());
+			bi.invert();
+			bi.copyTo(ip);
+		}
+		else
+			GrayscaleMorphologyFilter.apply(ip, se.reflect(), false);
+	}
+	
 	private void erode(ByteProcessor ip, int[][] H) {
 		// dilates the background
 		ip.invert();
@@ -108,14 +196,14 @@ public class BinaryMorphologyFilter {
 		ip.invert();
 	}
 
-	private void open(ByteProcessor ip, int[][] H) {
-		erode(ip, H);
-		dilate(ip, H);
+	private void open(ByteProcessor ip, StructuringElement se) {
+		erode(ip, se);
+		dilate(ip, se);
 	}
 
-	private void close(ByteProcessor ip, int[][] H) {
-		dilate(ip, H);
-		erode(ip, H);
+	private void close(ByteProcessor ip, StructuringElement se) {
+		dilate(ip, se);
+		erode(ip, se);
 	}
 
 	public void outline(ByteProcessor ip) {
@@ -124,7 +212,7 @@ public class BinaryMorphologyFilter {
 				{ 1, 1, 1 }, 
 				{ 0, 1, 0 } };
 		ByteProcessor foreground = (ByteProcessor) ip.duplicate();
-		erode(foreground, H);
+		erode(foreground, new StructuringElement(H));
 		ip.copyBits(foreground, 0, 0, Blitter.DIFFERENCE);
 	}
 
@@ -144,92 +232,26 @@ public class BinaryMorphologyFilter {
 	
 	/*
 	 * Fast parallel thinning. Returns the number of iterations performed.
+	 * Performed on a bit-packed copy of the image (see {@link BinaryImage#thin(int)}),
+	 * deleted pixels are set to 0 in the original image.
 	 */
 	public int thin(ByteProcessor ip) {
 		return thin(ip, 1500);
 	}
 	
 	public int thin(ByteProcessor ip, int iMax) {
-		int M = ip.getWidth();
-		int N = ip.getHeight();
-		byte[][] D = new byte[M][N];
-		int n;
-		int iter = 0;
-		do {
-			n = thinOnce(ip, D);
-			iter++;
-		} while (n > 0 && iter <  iMax);
+		BinaryImage bi = new BinaryImage(ip);
+		int iter = bi.thin(iMax);
+		bi.applyMask(ip);
 		return iter;
 	}
 	
 	// Single thinning interation. Returns the number of deletions performed.
 	public int thinOnce(ByteProcessor ip) {
-		int M = ip.getWidth();
-		int N = ip.getHeight();
-		byte[][]  D = new byte[M][N];
-		return thinOnce(ip, D);
-	}
-	
-	// Single thinning interation. Returns the number of deletions performed.
-	private int thinOnce(ByteProcessor ip, byte[][] D) {
-		int M = ip.getWidth();
-		int N = ip.getHeight();
-		int nd = 0;
-		for (byte p = 1; p <= 2; p++) {	// make 2 passes
-			int n = 0;
-			for (int u = 0; u < M; u++) {
-				for (int v = 0; v < N; v++) {
-					D[u][v] = 0;
-					if (ip.get(u, v) > 0) {
-						int c = getNeighborhoodIndex(ip, u, v);
-						byte q = Q[c];
-						// if (deleteCode == 1 || deleteCode == 3)
-						if ((p & q) != 0) {
-							D[u][v] = 1;
-							n = n + 1;
-						}
-					}
-				}
-			}			
-			if (n > 0) {
-				deleteMarked(ip, D);
-				nd = nd + n;
-			}
-		}
-		return nd;
-	}
-	
-	// neighborhood deletion code table
-	private static final byte[] Q = {
-		0, 0, 0, 3, 0, 0, 3, 3, 0, 0, 0, 0, 3, 0, 3, 3, 
-		0, 0, 0, 0, 0, 0, 0, 0, 3, 0, 0, 0, 3, 0, 3, 1, 
-		0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 
-		3, 0, 0, 0, 0, 0, 0, 0, 3, 0, 0, 0, 3, 0, 3, 1, 
-		0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 
-		0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 
-		3, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 
-		3, 0, 0, 0, 0, 0, 0, 0, 3, 0, 0, 0, 1, 0, 1, 0, 
-		0, 3, 0, 3, 0, 0, 0, 3, 0, 0, 0, 0, 0, 0, 0, 3, 
-		0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 
-		0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 
-		0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 
-		3, 3, 0, 3, 0, 0, 0, 2, 0, 0, 0, 0, 0, 0, 0, 2, 
-		0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 
-		3, 3, 0, 3, 0, 0, 0, 2, 0, 0, 0, 0, 0, 0, 0, 0, 
-		3, 2, 0, 2, 0, 0, 0, 0, 3, 2, 0, 0, 1, 0, 0, 0 
-	};
-	
-	private int getNeighborhoodIndex(ImageProcessor ip, int u, int v) {
-		int c = 0;
-		if (ip.getPixel(u+1, v) > 0) 	c+= 1;		// NH[0]
-		if (ip.getPixel(u+1, v-1) > 0) 	c+= 2;		// NH[1]
-		if (ip.getPixel(u, v-1) > 0) 	c+= 4; 		// NH[2]
-		if (ip.getPixel(u-1, v-1) > 0) 	c+= 8;		// NH[3]
-		if (ip.getPixel(u-1, v) > 0) 	c+= 16;		// NH[4]
-		if (ip.getPixel(u-1, v+1) > 0) 	c+= 32;		// NH[5]
-		if (ip.getPixel(u, v+1) > 0) 	c+= 64;		// NH[6]
-		if (ip.getPixel(u+1, v+1) > 0) 	c+= 128;	// NH[7]
-		return c;	// c = 0,...,255
+		BinaryImage bi = new BinaryImage(ip);
+		int n = bi.thinOnce();
+		bi.applyMask(ip);
+		return n;
 	}
 	
 	private void deleteMarked (ByteProcessor ip, byte[][] D) {
@@ -372,7 +394,7 @@ public class BinaryMorphologyFilter {
 //		}
 		
 		public Box(int rad) {
-			super(makeBoxElement(rad));
+			super(StructuringElement.makeBox(Math.max(rad, 1)));
 		}
 	}
 	
@@ -390,6 +412,28 @@ public class BinaryMorphologyFilter {
 		}
 	}
 	
+	/*
+	 * Inner class: use as 'BinaryMorphologyFilter.PolygonalDisk'
+	 * (approximates a disk, see {@link StructuringElement#makePolygonalDisk(double)})
+	 */
+	public static class PolygonalDisk extends BinaryMorphologyFilter {
+		
+		public PolygonalDisk(double rad) {
+			super(StructuringElement.makePolygonalDisk(rad));
+		}
+	}
+	
+	/*
+	 * Inner class: use as 'BinaryMorphologyFilter.Line'
+	 * (see {@link StructuringElement#makeLine(int, int, int)})
+	 */
+	public static class Line extends BinaryMorphologyFilter {
+		
+		public Line(int dx, int dy, int n) {
+			super(StructuringElement.makeLine(dx, dy, n));
+		}
+	}
+	
 	// ------------------------------------------------------------------
 
 	private static int[][] makeBoxKernel3x3() {
@@ -410,7 +454,7 @@ public class BinaryMorphologyFilter {
 		return strElem;
 	}
 	
-	private static int[][] makeDiskElement(double radius){
+	static int[][] makeDiskElement(double radius){
 		int r = (int) Math.rint(radius);
 		if (r <= 1) r = 1;
 		int size = r + r + 1;
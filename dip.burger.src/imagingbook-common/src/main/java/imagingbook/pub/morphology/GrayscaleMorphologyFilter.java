@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * This software is provided as a supplement to the authors' textbooks on digital
+ * image processing published by Springer-Verlag in various languages and editions.
+ * Permission to use and distribute this software is granted under the BSD 2-Clause 
+ * "Simplified" License (see http://opensource.org/licenses/BSD-2-Clause). 
+ * Copyright (c) 2006-2015 Wilhelm Burger, Mark J. Burge. 
+ * All rights reserved. Visit http://www.imagingbook.com for additional details.
+ *  
+ *******************************************************************************/
+
+package imagingbook.pub.morphology;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import imagingbook.pub.morphology.BinaryMorphologyFilter.OpType;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * This class implements grayscale morphological filters with flat structuring
+ * elements (for all image types, color images are processed by component).
+ * Dilation and erosion are performed by {@link VanHerkGilWerman} on the decomposition
+ * of the {@link StructuringElement}, i.e., their cost does not depend on the size of
+ * boxes, lines or polygonal disks. As in {@link BinaryMorphologyFilter}, pixels outside
+ * the image are ignored (i.e., set to the minimum possible value for dilation and to
+ * the maximum possible value for erosion).
+ */
+public class GrayscaleMorphologyFilter {
+
+	private final StructuringElement se;
+
+	public GrayscaleMorphologyFilter(StructuringElement se) {
+		this.se = se;
+	}
+
+	public GrayscaleMorphologyFilter(int[][] H) {
+		this(new StructuringElement(H));
+	}
+
+	public StructuringElement getStructuringElement() {
+		return se;
+	}
+
+	public void applyTo(ImageProcessor ip, OpType op) {
+		switch(op) {
+			case Dilate:	dilate(ip);	break;
+			case Erode: 	erode(ip);	break;
+			case Open: 		open(ip);	break;
+			case Close: 	close(ip);	break;
+			default: throw new IllegalArgumentException("unsupported operation " + op);
+		}
+	}
+
+	public void dilate(ImageProcessor ip) {
+		apply(ip, se, true);
+	}
+
+	public void erode(ImageProcessor ip) {
+		apply(ip, se.reflect(), false);
+	}
+
+	public void open(ImageProcessor ip) {
+		erode(ip);
+		dilate(ip);
+	}
+
+	public void close(ImageProcessor ip) {
+		dilate(ip);
+		erode(ip);
+	}
+
+	// ---------------------------------------------------------------------
+
+	static void apply(ImageProcessor ip, StructuringElement se, boolean max) {
+		final float pad = max ? getMinValue(ip) : getMaxValue(ip);
+		FloatProcessor fp = null;
+		for (int c = 0; c < ip.getNChannels(); c++) {
+			fp = ip.toFloat(c, fp);
+			VanHerkGilWerman.apply((float[]) fp.getPixels(), fp.getWidth(), fp.getHeight(), se, max, pad);
+			ip.setPixels(c, fp);
+		}
+	}
+
+	private static float getMinValue(ImageProcessor ip) {
+		return (ip instanceof FloatProcessor) ? Float.NEGATIVE_INFINITY : 0;
+	}
+
+	private static float getMaxValue(ImageProcessor ip) {
+		if (ip instanceof FloatProcessor)
+			return Float.POSITIVE_INFINITY;
+		if (ip instanceof ShortProcessor)
+			return 65535;
+		return 255;
+	}
+
+	// ---------------------------------------------------------------------
+
+	/**
+	 * Benchmark: running times of the original (one image copy per element
+	 * point) and the decomposed filters, for binary and grayscale images
+	 * and increasing radii (binary images are also processed in bit-packed form),
+	 * followed by the running times of thinning.
+	 * @param args ignored
+	 */
+	public static void main(String[] args) {
+		final int size = 512;
+		ByteProcessor bin = new ByteProcessor(size, size);
+		ByteProcessor gray = new ByteProcessor(size, size);
+		Random rnd = new Random(11);
+		for (int i = 0; i < 200; i++) {
+			int x = rnd.nextInt(size), y = rnd.nextInt(size), r = 2 + rnd.nextInt(20);
+			bin.setValue(255);
+			bin.fillOval(x - r, y - r, 2 * r, 2 * r);
+			gray.setValue(rnd.nextInt(256));
+			gray.fillOval(x - r, y - r, 2 * r, 2 * r);
+		}
+		System.out.println("image  | element        | radius | points | brute force (ms) | decomposed (ms) | bit-packed (ms) | equal");
+		for (ByteProcessor ip : new ByteProcessor[] {bin, gray}) {
+			for (int r : new int[] {1, 2, 5, 10, 20, 40}) {
+				StructuringElement[] elements = {
+						StructuringElement.makeBox(r),
+						new StructuringElement(BinaryMorphologyFilter.makeDiskElement(r)),
+						StructuringElement.makePolygonalDisk(r)};
+				String[] names = {"box", "disk", "polygonal disk"};
+				for (int k = 0; k < elements.length; k++) {
+					BinaryMorphologyFilter slow = new BinaryMorphologyFilter(elements[k]);
+					slow.setUseDecomposition(false);
+					GrayscaleMorphologyFilter fast = new GrayscaleMorphologyFilter(elements[k]);
+					BinaryMorphologyFilter packed = new BinaryMorphologyFilter(elements[k]);
+					ByteProcessor A = (ByteProcessor) ip.duplicate();
+					ByteProcessor B = (ByteProcessor) ip.duplicate();
+					ByteProcessor C = (ByteProcessor) ip.duplicate();
+					long t0 = System.nanoTime();
+					slow.close(A);
+					long t1 = System.nanoTime();
+					fast.close(B);
+					long t2 = System.nanoTime();
+					packed.close(C);	// bit-packed if ip is binary
+					long t3 = System.nanoTime();
+					boolean equal = Arrays.equals((byte[]) A.getPixels(), (byte[]) B.getPixels()) &&
+							Arrays.equals((byte[]) A.getPixels(), (byte[]) C.getPixels());
+					System.out.format("%-6s | %-14s | %6d | %6d | %16d | %15d | %15s | %s%n", (ip == bin) ? "binary" : "gray",
+							names[k], r, countPoints(elements[k]), (t1 - t0) / 1000000, (t2 - t1) / 1000000, 
+							(ip == bin) ? Long.toString((t3 - t2) / 1000000) : "-", equal);
+				}
+			}
+		}
+		
+		System.out.println("thinning  | size        | slow (ms) | bit-packed (ms) | equal");
+		for (int s : new int[] {512, 2048}) {
+			ByteProcessor ip = new ByteProcessor(s, s);
+			ip.setValue(255);
+			for (int i = 0; i < s / 2; i++) {
+				int x = rnd.nextInt(s), y = rnd.nextInt(s), r = 2 + rnd.nextInt(s / 20);
+				ip.fillOval(x - r, y - r, 2 * r, 2 * r);
+			}
+			BinaryMorphologyFilter bmf = new BinaryMorphologyFilter();
+			ByteProcessor A = (ByteProcessor) ip.duplicate();
+			ByteProcessor B = (ByteProcessor) ip.duplicate();
+			long t0 = System.nanoTime();
+			bmf.thinSlow(A);
+			long t1 = System.nanoTime();
+			bmf.thin(B);
+			long t2 = System.nanoTime();
+			System.out.format("thinning  | %4d x %4d | %9d | %15d | %s%n", s, s, (t1 - t0) / 1000000, (t2 - t1) / 1000000,
+					Arrays.equals((byte[]) A.getPixels(), (byte[]) B.getPixels()));
+		}
+	}
+
+	private static int countPoints(StructuringElement se) {
+		int n = 0;
+		for (int[] row : se.getMatrix()) {
+			for (int h : row) {
+				if (h > 0) n++;
+			}
+		}
+		return n;
+	}
+
+}
@@ -0,0 +1,311 @@
+/*******************************************************************************
+ * This software is provided as a supplement to the authors' textbooks on digital
+ * image processing published by Springer-Verlag in various languages and editions.
+ * Permission to use and distribute this software is granted under the BSD 2-Clause 
+ * "Simplified" License (see http://opensource.org/licenses/BSD-2-Clause). 
+ * Copyright (c) 2006-2015 Wilhelm Burger, Mark J. Burge. 
+ * All rights reserved. Visit http://www.imagingbook.com for additional details.
+ *  
+ *******************************************************************************/
+
+package imagingbook.pub.morphology;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Flat structuring element, given as a binary matrix H whose hot spot is
+ * the center element ((M-1)/2, (N-1)/2), as in {@link BinaryMorphologyFilter}.
+ * In addition, every structuring element holds a decomposition of its point set
+ * into "parts", each part being a translated Minkowski sum of (periodic) line
+ * segments, the element being the union of its parts. This decomposition is used
+ * by {@link VanHerkGilWerman} to apply dilations and erosions at a cost
+ * independent of the segment lengths. Boxes, lines and polygonal disks consist
+ * of a single part (with 2, 1 and up to 8 segments, respectively), arbitrary
+ * matrices are decomposed into their horizontal runs (one part per run).
+ */
+public class StructuringElement {
+
+	private final int[][] H;
+	private final Part[] parts;
+
+	/*
+	 * The point set t + sum_k j_k * (dx_k, dy_k), with j_k = 0,...,n_k-1.
+	 */
+	static class Part {
+		final int tx, ty;			// translation
+		final int[][] segments;		// {dx, dy, n} for each segment
+
+		Part(int tx, int ty, int[][] segments) {
+			this.tx = tx;
+			this.ty = ty;
+			this.segments = segments;
+		}
+
+		// identifies parts that differ only by their translation
+		String getSignature() {
+			StringBuilder sb = new StringBuilder();
+			for (int[] s : segments) {
+				sb.append(s[0]).append(',').append(s[1]).append(',').append(s[2]).append(';');
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * Creates a structuring element from an arbitrary binary matrix
+	 * (elements &gt; 0 are set). The element is decomposed into horizontal runs.
+	 * @param H the binary matrix (not copied)
+	 */
+	public StructuringElement(int[][] H) {
+		if (H == null || H.length == 0 || H[0].length == 0)
+			throw new IllegalArgumentException("empty structuring element");
+		this.H = H;
+		this.parts = makeRuns(H);
+	}
+
+	private StructuringElement(int[][] H, Part[] parts) {
+		this.H = H;
+		this.parts = parts;
+	}
+
+	/**
+	 * Creates a square structuring element of size (2r+1) x (2r+1).
+	 * @param r the radius (&ge; 0)
+	 * @return a new structuring element
+	 */
+	public static StructuringElement makeBox(int r) {
+		if (r < 0)
+			throw new IllegalArgumentException("radius must be >= 0");
+		return makeFromParts(new Part(-r, -r, new int[][] {{1, 0, 2 * r + 1}, {0, 1, 2 * r + 1}}));
+	}
+
+	/**
+	 * Creates a (periodic) line with n points j * (dx, dy), centered at the origin.
+	 * For example, (1, 0) gives a horizontal and (1, 1) a diagonal line segment,
+	 * while (2, 1) gives a line whose points are 2 pixels apart horizontally.
+	 * @param dx x-component of the step vector
+	 * @param dy y-component of the step vector
+	 * @param n the number of points (&ge; 1)
+	 * @return a new structuring element
+	 */
+	public static StructuringElement makeLine(int dx, int dy, int n) {
+		if (n < 1)
+			throw new IllegalArgumentException("number of points must be >= 1");
+		if (dx == 0 && dy == 0)
+			throw new IllegalArgumentException("step vector must not be zero");
+		final int c = (n - 1) / 2;
+		return makeFromParts(new Part(-c * dx, -c * dy, new int[][] {{dx, dy, n}}));
+	}
+
+	/**
+	 * Creates a polygonal approximation of a disk with radius r, as the Minkowski sum
+	 * of (up to 8) centered periodic lines in the directions (1,0), (0,1), (1,1), (1,-1),
+	 * (2,1), (2,-1), (1,2) and (1,-2). The segment lengths are chosen to minimize the
+	 * maximum radial deviation of the resulting polygon from the circle.
+	 * The cost of filtering with this element does not depend on r, but the element
+	 * differs (slightly) from the digital disk used by {@link BinaryMorphologyFilter.Disk}.
+	 * @param r the radius (&ge; 0)
+	 * @return a new structuring element
+	 */
+	public static StructuringElement makePolygonalDisk(double r) {
+		if (r < 0)
+			throw new IllegalArgumentException("radius must be >= 0");
+		// sample directions in [0, pi/4] (the polygon is 8-fold symmetric):
+		final int K = 32;
+		double[] ca = new double[K + 1];	// support of the (1,0) + (0,1) segments
+		double[] cb = new double[K + 1];	// support of the (1,1) + (1,-1) segments
+		double[] cc = new double[K + 1];	// support of the 4 knight's move segments
+		for (int k = 0; k <= K; k++) {
+			double phi = 0.25 * Math.PI * k / K;
+			double x = Math.cos(phi), y = Math.sin(phi);
+			ca[k] = x + y;
+			cb[k] = Math.abs(x + y) + Math.abs(x - y);
+			cc[k] = Math.abs(2 * x + y) + Math.abs(2 * x - y) + Math.abs(x + 2 * y) + Math.abs(x - 2 * y);
+		}
+		int aBest = 0, bBest = 0, cBest = 0;
+		double eBest = Double.POSITIVE_INFINITY;
+		for (int c = 0; 6 * c <= r; c++) {
+			for (int b = 0; 2 * b + 6 * c <= r; b++) {
+				int a0 = (int) Math.rint(r - 2 * b - 6 * c);
+				for (int a = Math.max(a0 - 2, (c > 0) ? 1 : 0); a <= a0 + 2; a++) {
+					double e = 0;
+					for (int k = 0; k <= K && e < eBest; k++) {
+						e = Math.max(e, Math.abs(a * ca[k] + b * cb[k] + c * cc[k] - r));
+					}
+					if (e < eBest) {
+						eBest = e;
+						aBest = a; bBest = b; cBest = c;
+					}
+				}
+			}
+		}
+		List<int[]> segs = new ArrayList<int[]>();
+		int tx = 0, ty = 0;
+		int[][] dirs = {{1, 0, aBest}, {0, 1, aBest}, {1, 1, bBest}, {1, -1, bBest},
+				{2, 1, cBest}, {2, -1, cBest}, {1, 2, cBest}, {1, -2, cBest}};
+		for (int[] d : dirs) {
+			if (d[2] > 0) {
+				segs.add(new int[] {d[0], d[1], 2 * d[2] + 1});
+				tx = tx - d[2] * d[0];
+				ty = ty - d[2] * d[1];
+			}
+		}
+		if (segs.isEmpty()) {	// r < 0.5: single point
+			segs.add(new int[] {1, 0, 1});
+		}
+		return makeFromParts(new Part(tx, ty, segs.toArray(new int[0][])));
+	}
+
+	// ---------------------------------------------------------------------
+
+	/**
+	 * @return the binary matrix of this structuring element (not copied)
+	 */
+	public int[][] getMatrix() {
+		return H;
+	}
+
+	/**
+	 * Returns the structuring element mirrored around its hot spot, consistent
+	 * with mirroring the matrix H (for matrices with even size, the mirrored
+	 * point set is shifted by one position).
+	 * @return a new structuring element
+	 */
+	public StructuringElement reflect() {
+		final int N = H.length;
+		final int M = H[0].length;
+		int[][] Hr = new int[N][M];
+		for (int j = 0; j < N; j++) {
+			for (int i = 0; i < M; i++) {
+				Hr[j][i] = H[N - j - 1][M - i - 1];
+			}
+		}
+		final int ex = 1 - M % 2;
+		final int ey = 1 - N % 2;
+		Part[] pr = new Part[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			Part p = parts[i];
+			int tx = ex - p.tx;
+			int ty = ey - p.ty;
+			for (int[] s : p.segments) {
+				tx = tx - (s[2] - 1) * s[0];
+				ty = ty - (s[2] - 1) * s[1];
+			}
+			pr[i] = new Part(tx, ty, p.segments);
+		}
+		return new StructuringElement(Hr, pr);
+	}
+
+	Part[] getParts() {
+		return parts;
+	}
+
+	/*
+	 * Groups of parts with identical segments (differing only by their translation).
+	 */
+	List<List<Part>> getPartGroups() {
+		Map<String, List<Part>> groups = new LinkedHashMap<String, List<Part>>();
+		for (Part p : parts) {
+			String key = p.getSignature();
+			List<Part> group = groups.get(key);
+			if (group == null) {
+				group = new ArrayList<Part>();
+				groups.put(key, group);
+			}
+			group.add(p);
+		}
+		return new ArrayList<List<Part>>(groups.values());
+	}
+
+	/*
+	 * Bounding box {xmin, xmax, ymin, ymax} of all points.
+	 */
+	int[] getBounds() {
+		int[] bb = {Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE};
+		for (Part p : parts) {
+			int[] pb = getBounds(p);
+			bb[0] = Math.min(bb[0], pb[0]);
+			bb[1] = Math.max(bb[1], pb[1]);
+			bb[2] = Math.min(bb[2], pb[2]);
+			bb[3] = Math.max(bb[3], pb[3]);
+		}
+		return bb;
+	}
+
+	private static int[] getBounds(Part p) {
+		int[] bb = {p.tx, p.tx, p.ty, p.ty};
+		for (int[] s : p.segments) {
+			int ex = (s[2] - 1) * s[0];
+			int ey = (s[2] - 1) * s[1];
+			bb[0] = bb[0] + Math.min(0, ex);
+			bb[1] = bb[1] + Math.max(0, ex);
+			bb[2] = bb[2] + Math.min(0, ey);
+			bb[3] = bb[3] + Math.max(0, ey);
+		}
+		return bb;
+	}
+
+	private static Part[] makeRuns(int[][] H) {
+		final int ic = (H[0].length - 1) / 2;
+		final int jc = (H.length - 1) / 2;
+		List<Part> runs = new ArrayList<Part>();
+		for (int j = 0; j < H.length; j++) {
+			int i = 0;
+			while (i < H[j].length) {
+				if (H[j][i] > 0) {
+					int i0 = i;
+					while (i < H[j].length && H[j][i] > 0) {
+						i++;
+					}
+					runs.add(new Part(i0 - ic, j - jc, new int[][] {{1, 0, i - i0}}));
+				}
+				else {
+					i++;
+				}
+			}
+		}
+		return runs.toArray(new Part[0]);
+	}
+
+	/*
+	 * Creates the (centered, odd-sized) matrix for the given parts.
+	 */
+	private static StructuringElement makeFromParts(Part... parts) {
+		int R = 0;
+		for (Part p : parts) {
+			for (int b : getBounds(p)) {
+				R = Math.max(R, Math.abs(b));
+			}
+		}
+		final int size = 2 * R + 1;
+		int[][] H = new int[size][size];
+		for (Part p : parts) {
+			boolean[][] S = new boolean[size][size];
+			S[p.ty + R][p.tx + R] = true;
+			for (int[] s : p.segments) {
+				boolean[][] T = new boolean[size][size];
+				for (int v = 0; v < size; v++) {
+					for (int u = 0; u < size; u++) {
+						if (S[v][u]) {
+							for (int j = 0; j < s[2]; j++) {
+								T[v + j * s[1]][u + j * s[0]] = true;
+							}
+						}
+					}
+				}
+				S = T;
+			}
+			for (int v = 0; v < size; v++) {
+				for (int u = 0; u < size; u++) {
+					if (S[v][u])
+						H[v][u] = 1;
+				}
+			}
+		}
+		return new StructuringElement(H, parts);
+	}
+
+}
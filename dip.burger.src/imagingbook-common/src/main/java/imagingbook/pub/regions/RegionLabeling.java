@@ -21,6 +21,7 @@ import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Formatter;
 import java.util.HashMap;
@@ -57,10 +58,24 @@ public abstract class RegionLabeling {
 	
 	protected List<BinaryRegion> regions;
 	
+	private BinaryRegion[] regionIndex = null;	// maps labels to regions (created on demand)
+	private boolean hasRuns = false;			// true if the regions' pixel runs are available
+	
 	RegionLabeling(ByteProcessor ip) {
+		this(ip, true);
+	}
+	
+	// if run is false, the sub-class constructor must call label() itself
+	RegionLabeling(ByteProcessor ip, boolean run) {
 		this.ip = ip;
 		width  = ip.getWidth();
 		height = ip.getHeight();
+		if (run) {
+			label();
+		}
+	}
+	
+	void label() {
 		initialize();
 		applyLabeling();
 		collectRegions();
@@ -190,14 +205,50 @@ public abstract class RegionLabeling {
 	// Find the region object with the given label:
 	public BinaryRegion findRegion(int label) {
 		if (label <= 0 || regions == null) return null;
-		BinaryRegion regn = null;
-		for (BinaryRegion r : regions) {
-			if (r.getLabel() == label) {
-				regn = r;
-				break;
+		BinaryRegion[] index = getRegionIndex();
+		return (label < index.length) ? index[label] : null;
+	}
+	
+	// dense label -> region table, created on first use
+	private BinaryRegion[] getRegionIndex() {
+		if (regionIndex == null) {
+			int maxLb = 0;
+			for (BinaryRegion r : regions) {
+				maxLb = Math.max(maxLb, r.getLabel());
+			}
+			BinaryRegion[] index = new BinaryRegion[maxLb + 1];
+			for (BinaryRegion r : regions) {
+				index[r.getLabel()] = r;
+			}
+			regionIndex = index;
+		}
+		return regionIndex;
+	}
+	
+	/*
+	 * Collects the pixel runs of all regions in a single scan over the label
+	 * array (on first use). Subsequent pixel iterations take time proportional
+	 * to the region size rather than to the size of its bounding box.
+	 */
+	synchronized void makeRuns() {
+		if (hasRuns || regions == null)
+			return;
+		BinaryRegion[] index = getRegionIndex();
+		for (int v = 0; v < height; v++) {
+			int u = 0;
+			while (u < width) {
+				final int label = getLabel(u, v);
+				final int u0 = u;
+				u++;
+				while (u < width && getLabel(u, v) == label) {
+					u++;
+				}
+				if (label > 0 && label < index.length && index[label] != null) {
+					index[label].addRun(v, u0, u - 1);
+				}
 			}
 		}
-		return regn;
+		hasRuns = true;
 	}
 	
 	/**
@@ -251,68 +302,28 @@ public abstract class RegionLabeling {
 		return r.getRegionPoints();
 	}
 	
+	/*
+	 * Iterates over the pixel runs of a region (in raster order).
+	 */
 	protected class RegionPixelIterator implements Iterator<Point> {
-		final int label;					// the corresponding region's label
-		final int uMin, uMax, vMin, vMax;	// coordinates of region's bounding box
-		int uCur, vCur;						// current pixel position
-		Point pNext;						// coordinates of the next region pixel
-		boolean first;						// control flag
+		final int[] runs;	// run k is (runs[3k], runs[3k+1], runs[3k+2]) = (v, uStart, uEnd)
+		final int n;		// 3 x number of runs
+		int k = 0;			// index of the current run
+		int u;				// next x-position in the current run
 
 		RegionPixelIterator(BinaryRegion R) {
-			this.label = R.getLabel();
-			first = true;
-			Rectangle bb = R.getBoundingBox();
-			uMin = bb.x;
-			uMax = bb.x + bb.width;
-			vMin = bb.y;
-			vMax = bb.y + bb.height;
-			uCur = uMin;
-			vCur = vMin;
-			pNext = null;
-		}
-
-		/** 
-		 * Search from position (uCur, vCur) for the next valid region pixel.
-		 * Return the next position as a Point or null if no such point can be found.
-		 * Don't assume that (uCur, vCur) is a valid region pixel!
-		 * 
-		 * @return the next point
-		 */
-		private Point findNext() {
-			// start search for next region pixel at (u,v):
-			int u = (first) ? uCur : uCur + 1;
-			int v = vCur;
-			first = false;
-			while (v <= vMax) {
-				while (u <= uMax) {
-					if (getLabel(u, v) == label) { // next pixel found (uses surrounding labeling)
-						uCur = u;
-						vCur = v;
-						return new Point(uCur, vCur);
-					}
-					u++;
-				}
-				v++;
-				u = uMin;
-			}
-			uCur = uMax + 1;	// just to make sure we'll never enter the loop again
-			vCur = vMax + 1;
-			return null;		// no next pixel found
+			makeRuns();
+			runs = R.runs;
+			n = 3 * R.runCount;
+			u = (n > 0) ? runs[1] : 0;
 		}
 
 		/**
 		 * Returns true if the iteration has more elements. (In other words, returns true if next() 
 		 * would return an element rather than throwing an exception.)
-		 * If hasNext() returns true, then pNext refers to a valid region pixel.
 		 */
 		public boolean hasNext() {
-			if (pNext != null) {	// next element has been queried before but not consumed
-				return true;
-			}
-			else {
-				pNext = findNext();	// keep next pixel coordinates in pNext
-				return (pNext != null);
-			}
+			return k < n;
 		}
 
 		/**
@@ -320,14 +331,18 @@ public abstract class RegionLabeling {
 		 * Throws: NoSuchElementException - if the iteration has no more elements.
 		 */
 		public Point next() {
-			if (pNext != null || hasNext()) {
-				Point pn = pNext;
-				pNext = null;		// "consume" pNext
-				return pn;
+			if (k >= n)
+				throw new NoSuchElementException();
+			Point p = new Point(u, runs[k]);
+			if (u < runs[k + 2]) {
+				u++;
 			}
 			else {
-				throw new NoSuchElementException();
+				k = k + 3;
+				if (k < n)
+					u = runs[k + 1];
 			}
+			return p;
 		}
 
 		public void remove() {
@@ -361,6 +376,11 @@ public abstract class RegionLabeling {
 		private long y1Sum  = 0;
 		private long x2Sum = 0;
 		private long y2Sum = 0;
+		private long xySum = 0;
+		
+		// run-length encoded pixels (v, uStart, uEnd), collected by makeRuns():
+		private int[] runs = null;
+		private int runCount = 0;
 		
 		public double getXc() {
 			return xc;
@@ -386,9 +406,13 @@ public abstract class RegionLabeling {
 			return y2Sum;
 		}
 		
+		public long getXYSum() {
+			return xySum;
+		}
+		
 		// ------- constructor --------------------------
 		
-		private BinaryRegion(int label){
+		BinaryRegion(int label){
 			this.label = label;
 			this.outerContour = null;
 			this.innerContours = null;
@@ -469,12 +493,113 @@ public abstract class RegionLabeling {
 			y1Sum = y1Sum + v;
 			x2Sum = x2Sum + u * u;
 			y2Sum = y2Sum + v * v;
+			xySum = xySum + (long) u * v;
 			if (u < left)   left = u;
 			if (v < top)    top = v;
 			if (u > right)  right = u;
 			if (v > bottom)	bottom = v;
 		}
 		
+		/**
+		 * Adds a set of pixels, given by its accumulated statistics
+		 * (as obtained by repeated calls to {@link #addPixel(int, int)}).
+		 * 
+		 * @param n number of pixels
+		 * @param x1 sum of x-positions
+		 * @param y1 sum of y-positions
+		 * @param x2 sum of squared x-positions
+		 * @param y2 sum of squared y-positions
+		 * @param xy sum of the products of x- and y-positions
+		 * @param uMin minimum x-position
+		 * @param vMin minimum y-position
+		 * @param uMax maximum x-position
+		 * @param vMax maximum y-position
+		 */
+		protected void addPixels(int n, long x1, long y1, long x2, long y2, long xy, 
+				int uMin, int vMin, int uMax, int vMax) {
+			size = size + n;
+			x1Sum = x1Sum + x1;
+			y1Sum = y1Sum + y1;
+			x2Sum = x2Sum + x2;
+			y2Sum = y2Sum + y2;
+			xySum = xySum + xy;
+			if (uMin < left)   left = uMin;
+			if (vMin < top)    top = vMin;
+			if (uMax > right)  right = uMax;
+			if (vMax > bottom) bottom = vMax;
+		}
+		
+		// appends the run of pixels (uStart,...,uEnd) in row v
+		void addRun(int v, int uStart, int uEnd) {
+			if (runs == null) {
+				runs = new int[3 * 4];
+			}
+			else if (3 * runCount == runs.length) {
+				runs = Arrays.copyOf(runs, 2 * runs.length);
+			}
+			runs[3 * runCount] = v;
+			runs[3 * runCount + 1] = uStart;
+			runs[3 * runCount + 2] = uEnd;
+			runCount++;
+		}
+		
+		/**
+		 * Returns the pixels of this region as horizontal runs, in raster order.
+		 * Run k is given by the 3 values (v, uStart, uEnd) at positions 3k,...,3k+2.
+		 * @return a new array of run values
+		 */
+		public int[] getRuns() {
+			makeRuns();
+			return (runs == null) ? new int[0] : Arrays.copyOf(runs, 3 * runCount);
+		}
+		
+		/**
+		 * Returns the central moment mu_pq of this region for p + q &le; 2,
+		 * calculated from the accumulated coordinate sums.
+		 * @param p order in x
+		 * @param q order in y
+		 * @return the central moment
+		 */
+		public double getCentralMoment(int p, int q) {
+			if (p < 0 || q < 0 || p + q > 2)
+				throw new IllegalArgumentException("central moments of order 0,...,2 only");
+			final double n = size;
+			switch (10 * p + q) {
+			case  0: return n;
+			case 20: return x2Sum - x1Sum * (x1Sum / n);
+			case  2: return y2Sum - y1Sum * (y1Sum / n);
+			case 11: return xySum - x1Sum * (y1Sum / n);
+			default: return 0;	// mu_10 = mu_01 = 0
+			}
+		}
+		
+		/**
+		 * Returns the orientation of this region's major axis,
+		 * i.e., 0.5 atan2(2 mu_11, mu_20 - mu_02).
+		 * @return the orientation angle (in radians)
+		 */
+		public double getOrientation() {
+			final double mu20 = getCentralMoment(2, 0);
+			final double mu02 = getCentralMoment(0, 2);
+			final double mu11 = getCentralMoment(1, 1);
+			return 0.5 * Math.atan2(2 * mu11, mu20 - mu02);
+		}
+		
+		/**
+		 * Returns the eccentricity of this region, i.e., the ratio of the
+		 * eigenvalues of the region's covariance (scatter) matrix (&ge; 1).
+		 * @return the eccentricity (infinite if the region is a straight line
+		 * and NaN for single-pixel regions)
+		 */
+		public double getEccentricity() {
+			final double mu20 = getCentralMoment(2, 0);
+			final double mu02 = getCentralMoment(0, 2);
+			final double mu11 = getCentralMoment(1, 1);
+			final double a = mu20 + mu02;
+			final double b = Math.sqrt((mu20 - mu02) * (mu20 - mu02) + 4 * mu11 * mu11);
+			return (a + b) / (a - b);
+		}
+		
 		/**
 		 * Call this method to update the region's statistics. For now only the
 		 * center coordinates (xc, yc) are updated. Add additional statements as
@@ -12,245 +12,386 @@ package imagingbook.pub.regions;
 
 import ij.IJ;
 import ij.process.ByteProcessor;
+import imagingbook.lib.util.ParallelTasks;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 /**
+ * Sequential (two-pass) region labeling with 8-connectivity.
+ * Label equivalences found in the first pass are recorded in a union-find
+ * structure (union by rank, path compression), labels are stored in a flat
+ * array and the region statistics are accumulated while the final labels
+ * are written in the second pass.
+ * The image can be processed in horizontal bands (in parallel), whose labels
+ * are merged across the band seams before the second pass. Final labels are
+ * assigned in raster order of the regions' first pixels, independent of the
+ * number of bands.
  * Updated/checked: 2014-11-12
  * @author WB
  *
  */
 public class SequentialLabeling extends RegionLabeling {
 
-	Map<LabelCollision,LabelCollision> collisionMap = null;
+	private int[] labels;		// flat label array, index v * width + u
+	private int parallelism;	// 0 = common pool, 1 = calling thread (see ParallelTasks)
 
+	/**
+	 * Labels the given image, using the common thread pool.
+	 * @param ip binary image (pixels &gt; 0 are foreground)
+	 */
 	public SequentialLabeling(ByteProcessor ip) {
-		super(ip);
+		this(ip, 0);
+	}
+
+	/**
+	 * Labels the given image with the specified number of threads.
+	 * @param ip binary image (pixels &gt; 0 are foreground)
+	 * @param parallelism number of threads (see {@link ParallelTasks#makePool(int)})
+	 */
+	public SequentialLabeling(ByteProcessor ip, int parallelism) {
+		super(ip, false);
+		if (parallelism < 0)
+			throw new IllegalArgumentException("parallelism must be >= 0");
+		this.parallelism = parallelism;
+		label();
 	}
 
+	@Override
+	void initialize() {
+		final byte[] pixels = (byte[]) ip.getPixels();
+		labels = new int[width * height];
+		for (int i = 0; i < labels.length; i++) {
+			labels[i] = (pixels[i] != 0) ? FOREGROUND : BACKGROUND;
+		}
+	}
+
+	@Override
+	public int getLabel(int u, int v) {
+		if (u >= 0 && u < width && v >= 0 && v < height)
+			return labels[v * width + u];
+		else
+			return BACKGROUND;
+	}
+
+	@Override
+	void setLabel(int u, int v, int label) {
+		if (u >= 0 && u < width && v >= 0 && v < height)
+			labels[v * width + u] = label;
+	}
+
+	@Override
 	void applyLabeling() {
-		if (IJ.debugMode) IJ.log("Sequential region labeling - Step 1");
-		collisionMap = new HashMap<LabelCollision,LabelCollision>(1000);
-		
-		// Step 1: assign initial labels:
 		resetLabel();
-		for (int v = 0; v < height; v++) {
-			for (int u = 0; u < width; u++) {
-				if (getLabel(u, v) >= START_LABEL) {
-					setLabel(u, v, makeLabel(u, v));
-				}
-			}
+		final int bandHeight = ParallelTasks.getBandSize(height, parallelism);
+		List<Band> bands = new ArrayList<Band>();
+		for (int v = 0; v < height; v += bandHeight) {
+			bands.add(new Band(v, Math.min(v + bandHeight, height)));
 		}
-		
-		// Step 2: resolve label collisions
-		if (IJ.debugMode) IJ.log("Sequential region labeling - Step 2");
-		int[] replacementTable = makeReplacementTable(getMaxLabel() + 1);
-		
-		// Step 3: relabel the image
-		applyReplacementTable(replacementTable);
-		//showLabelArray();
-	}
+		ExecutorService pool = ParallelTasks.makePool(parallelism);
+		try {
+			// Step 1: assign provisional labels (in each band):
+			if (IJ.debugMode) IJ.log("Sequential region labeling - Step 1");
+			ParallelTasks.invokeAll(pool, makeTasks(bands, false));
 
-	int makeLabel(int u, int v) {
-		int newLabel = 0;
-		//assemble the neighborhood n:
-		//
-		// [1][2][3]
-		// [0][x]
-		//
-		int[] n = new int[4];
-		n[0] = getLabel(u-1, v);
-		//gives 0 if no label is set or outside borders
-		n[1] = getLabel(u-1, v-1);
-		n[2] = getLabel(u, v-1);
-		n[3] = getLabel(u+1, v-1);
-
-		if (   n[0] == BACKGROUND
-			&& n[1] == BACKGROUND
-			&& n[2] == BACKGROUND
-			&& n[3] == BACKGROUND) {
-			//all neighbors in n[] are empty, assign a new label:
-			newLabel = this.getNextLabel(); 		
-		} 
-		else {	//at least one label in n[] is not BACKGROUND
-				//find minimum region label among neighbors
-			int min = Integer.MAX_VALUE;
-			for (int i = 0; i < 4; i++) {
-				int ni = n[i];
-				if (ni >= START_LABEL && ni < min)
-					min = ni;
+			// Step 2: merge the bands' equivalences and across the seams, assign final labels:
+			if (IJ.debugMode) IJ.log("Sequential region labeling - Step 2");
+			UnionFind uf = new UnionFind(1);
+			for (Band b : bands) {
+				b.offset = uf.size - 1;
+				uf.append(b.uf);
+			}
+			for (int k = 1; k < bands.size(); k++) {
+				mergeSeam(uf, bands.get(k - 1), bands.get(k));
+			}
+			final int[] finalLabel = uf.makeContiguous(START_LABEL);
+			for (Band b : bands) {
+				b.finalLabel = finalLabel;
+			}
+			final int nRegions = finalLabel[uf.size];
+			if (nRegions > 0) {
+				currentLabel = maxLabel = START_LABEL + nRegions - 1;
 			}
-			newLabel = min;
 
-			//register label equivalence (collision)
-			for (int i = 0; i < 4; i++) {
-				int ni = n[i];
-				if (ni >= START_LABEL && ni != newLabel) {
-					registerCollision(ni, newLabel);
-				}
+			// Step 3: relabel the image and collect the region statistics:
+			if (IJ.debugMode) IJ.log("Sequential region labeling - Step 3");
+			ParallelTasks.invokeAll(pool, makeTasks(bands, true));
+			BinaryRegion[] regionArray = new BinaryRegion[nRegions];
+			for (int i = 0; i < nRegions; i++) {
+				regionArray[i] = new BinaryRegion(START_LABEL + i);
+			}
+			for (Band b : bands) {
+				b.addStatistics(regionArray);
+			}
+			List<BinaryRegion> regionList = new LinkedList<BinaryRegion>();
+			for (BinaryRegion r : regionArray) {
+				r.update();
+				regionList.add(r);
 			}
+			regions = regionList;
+		} finally {
+			ParallelTasks.release(pool);
 		}
-		return newLabel;
 	}
 
-	void registerCollision(int a, int b) {
-		if (collisionMap == null){
-			throw new Error("registerCollision(): no collission map!");
-		}
-		if (a != b) {
-			LabelCollision c;
-			if (a < b)
-				c = new LabelCollision(a, b);
-			else
-				c = new LabelCollision(b, a);
-			if (!collisionMap.containsKey(c))
-				collisionMap.put(c, c);
-		}
+	@Override
+	void collectRegions() {
+		// nothing to do, regions are collected by applyLabeling()
 	}
-	
-	void listCollisions() {
-		IJ.log("Listing collisions********* " + collisionMap.size());
-		for (LabelCollision c: collisionMap.keySet()) {
-			IJ.log("  ---next----" + c.a + "/" + c.b + "=" + c);
+
+	private List<Callable<Void>> makeTasks(List<Band> bands, final boolean secondPass) {
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (final Band b : bands) {
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					if (secondPass)
+						b.relabel();
+					else
+						b.makeProvisionalLabels();
+					return null;
+				}
+			});
 		}
+		return tasks;
 	}
-	
-	//---------------------------------------------------------------------------
 
-	int[] makeReplacementTable(int size) {
-		int[] rTable = resolveCollisions(size);
-		return cleanupReplacementTable(rTable);
-	}
-	
-	/**
-	 *  This is the core of the algorithm: The set of collisions (stored in map) 
-	 *  is used to merge connected regions. Transitivity of collisions makes this 
-	 *  a nontrivial task. The algorithm used here is a basic "Connected-Components 
-	 *  Algorithm" as used for finding connected parts in undirected graphs 
-	 *  (e.g. see Corman, Leiserson, Rivest: "Introduction to Algorithms", MIT Press, 
-	 *  1995, p. 441). Here, the regions represent the nodes of the graph and the 
-	 *  collisions are equivalent to the edges of the graph. The implementation is 
-	 *  not particularly efficient, since the merging of sets is done by relabeling 
-	 *  the entire replacement table for each pair of nodes. Still fast enough even 
-	 *  for large and complex images.
-	 *  
-	 *  @param size size of the label set
-	 *  @return replacement table
+	/*
+	 * Unites the regions touching the seam between the last row of band a and the
+	 * first row of band b (8-neighborhood).
 	 */
-	int[] resolveCollisions(int size) {
-		
-		// The table setNumber[i] indicates to which set the element i belongs:
-		//   k == setNumber[e] means that e is in set k 
-		int[] setNumber = new int[size];
-
-		//Initially, we assign a separate set to each element e:
-		for (int e = 0; e < size; e++) {
-			setNumber[e] = e;
-		}
-
-		// Inspect all collisions c=(a,b) one by one [note that a<b]
-		for (LabelCollision c: collisionMap.keySet()) {
-			int A = setNumber[c.a]; //element a is currently in set A
-			int B = setNumber[c.b]; //element b is currently in set B
-			//Merge sets A and B (unless they are the same) by
-			//moving all elements of set B into set A
-			if (A != B) {
-				for (int i = 0; i < size; i++) {
-					if (setNumber[i] == B)
-						setNumber[i] = A;
+	private void mergeSeam(UnionFind uf, Band a, Band b) {
+		final int p = (b.v0 - 1) * width;	// row above the seam
+		final int q = b.v0 * width;			// row below the seam
+		for (int u = 0; u < width; u++) {
+			final int lq = labels[q + u];
+			if (lq == BACKGROUND)
+				continue;
+			final int gq = b.offset - lq;
+			for (int du = -1; du <= 1; du++) {
+				final int x = u + du;
+				if (x >= 0 && x < width && labels[p + x] != BACKGROUND) {
+					uf.union(gq, a.offset - labels[p + x]);
 				}
 			}
 		}
-		return setNumber;
 	}
 
-	int[] cleanupReplacementTable(int[] table) {
-		if (table.length == 0) return table; // case of empty image
-		// Assume the replacement table looks the following:
-		// table = [0 1 4 4 4 6 6 8 3 3 ]
-		//     i =  0 1 2 3 4 5 6 7 8 9
-		// meaning that label 2 should be replaced by 4 etc.
-		
-		// First, figure out which of the original labels
-		// are still used. For this we use an intermediate array "mark":
-		int[] mark = new int[table.length];
-		for (int i = 0; i < table.length; i++) {
-			int k = table[i];
-			if (k >= 0 && k < table.length)
-				mark[k] = 1;
+	// ---------------------------------------------------------------------
+
+	/*
+	 * A horizontal band of image rows v0,...,v1-1. During the first pass, provisional
+	 * labels are stored as negative values -1, -2,... in the label array.
+	 */
+	private class Band {
+		final int v0, v1;
+		final UnionFind uf = new UnionFind(64);
+		int offset;					// offset of this band's labels in the global union-find structure
+		int[] finalLabel;			// maps global provisional labels to final labels
+
+		// region statistics, indexed by provisional label:
+		int[] n;
+		long[] x1, y1, x2, y2, xy;
+		int[] uMin, vMin, uMax, vMax;
+
+		Band(int v0, int v1) {
+			this.v0 = v0;
+			this.v1 = v1;
 		}
-		// Result:
-		// mark = [1 1 0 1 1 0 1 0 1 0 ]
-		//    i =  0 1 2 3 4 5 6 7 8 9
-		
-		// Now we assign new, contiguous labels in mark:
-		int newLabel = START_LABEL;
-		mark[BACKGROUND] = BACKGROUND;
-		mark[FOREGROUND] = FOREGROUND;
-		for (int i = START_LABEL; i < table.length; i++) {
-			if (mark[i]>0) {
-				mark[i] = newLabel;
-				newLabel = newLabel + 1;
+
+		void makeProvisionalLabels() {
+			for (int v = v0; v < v1; v++) {
+				final int p = v * width;
+				final int q = p - width;	// previous row
+				final boolean hasUp = v > v0;
+				for (int u = 0; u < width; u++) {
+					if (labels[p + u] == BACKGROUND)
+						continue;
+					// neighbors: [b][c][d]
+					//            [a][x]
+					final int a = (u > 0) ? labels[p + u - 1] : 0;
+					final int b = (hasUp && u > 0) ? labels[q + u - 1] : 0;
+					final int c = hasUp ? labels[q + u] : 0;
+					final int d = (hasUp && u < width - 1) ? labels[q + u + 1] : 0;
+					int lb;
+					if (c != 0) {
+						lb = c;		// a, b, d are already united with c
+					}
+					else if (d != 0) {
+						lb = d;
+						if (a != 0)
+							uf.union(-d, -a);
+						else if (b != 0)
+							uf.union(-d, -b);
+					}
+					else if (b != 0) {
+						lb = b;		// a is already united with b
+					}
+					else if (a != 0) {
+						lb = a;
+					}
+					else {
+						lb = -uf.add();
+					}
+					labels[p + u] = lb;
+				}
 			}
 		}
-		// Result:
-		// mark = [0 1 0 2 3 0 4 0 5 0 ]
-		//    i =  0 1 2 3 4 5 6 7 8 9
-		
-		//Now modify the actual replacement table to reflect the new labels
-		for (int i = 0; i < table.length; i++) {
-			table[i] = mark[table[i]];
-		}
-        // table = [0 1 4 4 4 6 6 8 3 3 ]
-        //              |             |
-        //              V             V
-		// table = [0 1 3 3 3 4 4 5 2 2 ]
-		//     i =  0 1 2 3 4 5 6 7 8 9
-		
-		return table;
-	}
 
-	void applyReplacementTable(int[] replacementTable){
-		if (replacementTable != null && replacementTable.length > 0){
-			for (int v = 0; v < height; v++) {
-				for (int u = 0; u < width; u++) {
-					int oldLb = getLabel(u, v);
-					if (oldLb >= START_LABEL && oldLb < replacementTable.length){	
-						setLabel(u, v, replacementTable[oldLb]);
+		void relabel() {
+			final int m = uf.size;
+			n = new int[m];
+			x1 = new long[m]; y1 = new long[m]; x2 = new long[m]; y2 = new long[m]; xy = new long[m];
+			uMin = new int[m]; vMin = new int[m]; uMax = new int[m]; vMax = new int[m];
+			for (int v = v0; v < v1; v++) {
+				final int p = v * width;
+				int u = 0;
+				while (u < width) {
+					final int lb = -labels[p + u];
+					if (lb == 0) {
+						u++;
+						continue;
+					}
+					// run of pixels with the same provisional label:
+					final int u0 = u;
+					final int flb = finalLabel[offset + lb];
+					while (u < width && labels[p + u] == -lb) {
+						labels[p + u] = flb;
+						u++;
+					}
+					final int u1 = u - 1;
+					final int k = u1 - u0 + 1;
+					if (n[lb] == 0) {
+						uMin[lb] = u0; uMax[lb] = u1;
+						vMin[lb] = v;
+					}
+					else {
+						if (u0 < uMin[lb]) uMin[lb] = u0;
+						if (u1 > uMax[lb]) uMax[lb] = u1;
 					}
+					vMax[lb] = v;
+					n[lb] = n[lb] + k;
+					final long sx = (long) (u0 + u1) * k / 2;
+					x1[lb] = x1[lb] + sx;
+					x2[lb] = x2[lb] + sumOfSquares(u1) - sumOfSquares(u0 - 1);
+					y1[lb] = y1[lb] + (long) k * v;
+					y2[lb] = y2[lb] + (long) k * v * v;
+					xy[lb] = xy[lb] + sx * v;
 				}
 			}
 		}
+
+		void addStatistics(BinaryRegion[] regionArray) {
+			for (int lb = 1; lb < uf.size; lb++) {
+				if (n[lb] > 0) {
+					regionArray[finalLabel[offset + lb] - START_LABEL].addPixels(
+							n[lb], x1[lb], y1[lb], x2[lb], y2[lb], xy[lb], uMin[lb], vMin[lb], uMax[lb], vMax[lb]);
+				}
+			}
+			n = null;
+			x1 = y1 = x2 = y2 = xy = null;
+			uMin = vMin = uMax = vMax = null;
+		}
 	}
-	
-	/**
-	 * This class represents a collision between two pixel labels a, b
+
+	// sum of k^2 for k = 0,...,m
+	private static long sumOfSquares(int m) {
+		return (m < 1) ? 0 : (long) m * (m + 1) * (2 * m + 1) / 6;
+	}
+
+	// ---------------------------------------------------------------------
+
+	/*
+	 * Disjoint-set forest with union by rank and path compression (path halving).
+	 * Elements are 1,...,size-1 (element 0 is unused).
 	 */
-	class LabelCollision { 
-		private int a, b;
+	private static class UnionFind {
+		int[] parent;
+		byte[] rank;
+		int size = 1;
 
-		LabelCollision(int label_a, int label_b) {
-			a = label_a;
-			b = label_b;
+		UnionFind(int capacity) {
+			parent = new int[Math.max(capacity, 2)];
+			rank = new byte[parent.length];
 		}
 
-		// This is important because hashCode determines how keys in the hashtable are
-		// compared. It makes sure that the key is directly related to the values of a,b. 
-		// Otherwise the key would be derived from the address of the Collision object.
-		public int hashCode() {
-			return a * b;
+		// adds a new singleton set and returns its element
+		int add() {
+			ensureCapacity(size + 1);
+			parent[size] = size;
+			rank[size] = 0;
+			return size++;
 		}
 
-		public boolean equals(Object obj) {
-			if (obj instanceof LabelCollision) {
-				LabelCollision c = (LabelCollision) obj;
-				return (this.a == c.a && this.b == c.b);
-			} else
-				return false;
+		// appends all elements of uf (element i of uf becomes size - 1 + i)
+		void append(UnionFind uf) {
+			final int offset = size - 1;
+			ensureCapacity(size + uf.size - 1);
+			for (int i = 1; i < uf.size; i++) {
+				parent[offset + i] = offset + uf.parent[i];
+				rank[offset + i] = uf.rank[i];
+			}
+			size = size + uf.size - 1;
 		}
-	}
 
-}
+		int find(int x) {
+			while (parent[x] != x) {
+				parent[x] = parent[parent[x]];
+				x = parent[x];
+			}
+			return x;
+		}
+
+		void union(int x, int y) {
+			x = find(x);
+			y = find(y);
+			if (x == y)
+				return;
+			if (rank[x] < rank[y]) {
+				parent[x] = y;
+			}
+			else if (rank[x] > rank[y]) {
+				parent[y] = x;
+			}
+			else {
+				parent[y] = x;
+				rank[x]++;
+			}
+		}
 
+		/*
+		 * Returns a table mapping each element to the label of its set, with labels
+		 * first, first+1,... assigned in the order of the sets' smallest elements.
+		 * The last entry (index size) holds the number of sets.
+		 */
+		int[] makeContiguous(int first) {
+			int[] table = new int[size + 1];
+			int[] setLabel = new int[size];
+			int next = first;
+			for (int i = 1; i < size; i++) {
+				final int r = find(i);
+				if (setLabel[r] == 0) {
+					setLabel[r] = next++;
+				}
+				table[i] = setLabel[r];
+			}
+			table[size] = next - first;
+			return table;
+		}
 
+		private void ensureCapacity(int n) {
+			if (n > parent.length) {
+				final int m = Math.max(n, 2 * parent.length);
+				int[] p = new int[m];
+				byte[] r = new byte[m];
+				System.arraycopy(parent, 0, p, 0, size);
+				System.arraycopy(rank, 0, r, 0, size);
+				parent = p;
+				rank = r;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,52 @@
+/*******************************************************************************
+ * This software is provided as a supplement to the authors' textbooks on digital
+ * image processing published by Springer-Verlag in various languages and editions.
+ * Permission to use and distribute this software is granted under the BSD 2-Clause 
+ * "Simplified" License (see http://opensource.org/licenses/BSD-2-Clause). 
+ * Copyright (c) 2006-2015 Wilhelm Burger, Mark J. Burge. 
+ * All rights reserved. Visit http://www.imagingbook.com for additional details.
+ *  
+ *******************************************************************************/
+
+package imagingbook.pub.sift;
+
+import imagingbook.lib.math.VectorNorm;
+
+/**
+ * Exact nearest-neighbor search by comparing the query to all items.
+ */
+public class BruteForceIndex extends NearestNeighborIndex {
+	
+	private final VectorNorm norm;
+	
+	public BruteForceIndex(SiftDescriptor[] items, VectorNorm norm) {
+		super(items);
+		this.norm = norm;
+	}
+
+	@Override
+	public void findTwoNearest(SiftDescriptor query, int[] idx, double[] dist) {
+		final int[] x = query.getFeatures();
+		int i1 = -1;
+		int i2 = -1;
+		double d1 = Double.MAX_VALUE;
+		double d2 = Double.MAX_VALUE;
+		for (int j = 0; j < items.length; j++) {
+			double d = norm.distance(x, items[j].getFeatures());
+			if (d < d1) {	// new absolute minimum distance
+				i2 = i1;	// old best becomes second-best
+				d2 = d1;
+				i1 = j;
+				d1 = d;
+			}
+			else // not a new absolute min., but possible second-best
+				if (d < d2) { // new second-best
+					i2 = j;
+					d2 = d;
+				}
+		}
+		idx[0] = i1; idx[1] = i2;
+		dist[0] = d1; dist[1] = d2;
+	}
+
+}
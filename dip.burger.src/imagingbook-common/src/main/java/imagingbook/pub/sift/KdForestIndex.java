@@ -0,0 +1,302 @@
+/*******************************************************************************
+ * This software is provided as a supplement to the authors' textbooks on digital
+ * image processing published by Springer-Verlag in various languages and editions.
+ * Permission to use and distribute this software is granted under the BSD 2-Clause 
+ * "Simplified" License (see http://opensource.org/licenses/BSD-2-Clause). 
+ * Copyright (c) 2006-2015 Wilhelm Burger, Mark J. Burge. 
+ * All rights reserved. Visit http://www.imagingbook.com for additional details.
+ *  
+ *******************************************************************************/
+
+package imagingbook.pub.sift;
+
+import ij.IJ;
+import ij.process.ImageProcessor;
+import imagingbook.lib.math.VectorNorm;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Nearest-neighbor search with a forest of randomized k-d trees and 
+ * best-bin-first traversal (Silpa-Anan and Hartley, "Optimised KD-trees for 
+ * fast image descriptor matching", CVPR 2008). Each tree splits at the mean 
+ * of a dimension randomly chosen among those with the largest variance.
+ * All trees are searched simultaneously with a common priority queue, 
+ * ordered by the (lower bound of the) distance to the query.
+ * The search is exact if the number of distance evaluations is unlimited 
+ * (maxChecks = 0), otherwise approximate. The lower distance bounds 
+ * used for ordering and pruning are valid for all {@link VectorNorm} types.
+ * Instances keep per-query state and thus must not be shared between threads.
+ */
+public class KdForestIndex extends NearestNeighborIndex {
+	
+	static int LeafSize = 8;			// max. number of items in a leaf node
+	static int RandomDims = 5;			// number of top-variance dimensions to choose from
+	static int VarianceSamples = 100;	// max. number of items used for estimating variances
+	
+	private final VectorNorm norm;
+	private final int maxChecks;
+	private final Node[] roots;
+	private final int[] index;			// item indices referenced by leaf nodes (for all trees)
+	private final int[] checked;		// checked[j] = number of the last query which checked item j
+	private int queryCount = 0;
+	
+	private static class Node {
+		final int dim;			// split dimension (-1 for leaf nodes)
+		final double split;		// split value
+		final Node left, right;
+		final int[] leafItems;	// item indices (leaf nodes only)
+		
+		Node(int dim, double split, Node left, Node right) {
+			this.dim = dim; this.split = split; this.left = left; this.right = right;
+			this.leafItems = null;
+		}
+		
+		Node(int[] leafItems) {
+			this.dim = -1; this.split = 0; this.left = null; this.right = null;
+			this.leafItems = leafItems;
+		}
+	}
+	
+	private static class Branch implements Comparable<Branch> {
+		final Node node;
+		final double bound;		// lower bound of the distance to any item in this branch
+		
+		Branch(Node node, double bound) {
+			this.node = node;
+			this.bound = bound;
+		}
+
+		public int compareTo(Branch other) {
+			return Double.compare(this.bound, other.bound);
+		}
+	}
+	
+	/**
+	 * @param items the descriptors to be searched
+	 * @param norm the distance norm
+	 * @param nTrees number of randomized trees
+	 * @param maxChecks max. number of distance evaluations per query (0 = exact search)
+	 * @param seed random seed used for building the trees
+	 */
+	public KdForestIndex(SiftDescriptor[] items, VectorNorm norm, int nTrees, int maxChecks, long seed) {
+		super(items);
+		if (nTrees < 1)
+			throw new IllegalArgumentException("at least one tree required");
+		this.norm = norm;
+		this.maxChecks = maxChecks;
+		this.roots = new Node[nTrees];
+		this.index = new int[items.length];
+		this.checked = new int[items.length];
+		Random rnd = new Random(seed);
+		for (int t = 0; t < nTrees; t++) {
+			for (int i = 0; i < index.length; i++) {
+				index[i] = i;
+			}
+			roots[t] = (items.length > 0) ? buildTree(0, items.length, rnd) : null;
+		}
+	}
+	
+	// builds a (sub)tree for the items index[lo],...,index[hi-1]
+	private Node buildTree(int lo, int hi, Random rnd) {
+		if (hi - lo <= LeafSize) {
+			return makeLeaf(lo, hi);
+		}
+		final int D = items[index[lo]].getFeatures().length;
+		// estimate mean and variance of each dimension from a subset of the items:
+		final int n = Math.min(hi - lo, VarianceSamples);
+		final double[] mean = new double[D];
+		final double[] var = new double[D];
+		for (int k = 0; k < n; k++) {
+			int[] f = items[index[lo + k]].getFeatures();
+			for (int d = 0; d < D; d++) {
+				mean[d] = mean[d] + f[d];
+				var[d] = var[d] + (double) f[d] * f[d];
+			}
+		}
+		for (int d = 0; d < D; d++) {
+			mean[d] = mean[d] / n;
+			var[d] = var[d] / n - mean[d] * mean[d];
+		}
+		final int dim = selectDimension(var, rnd);
+		final double split = mean[dim];
+		// partition into items with f[dim] < split (left) and f[dim] >= split (right):
+		int i = lo;
+		int j = hi - 1;
+		while (i <= j) {
+			if (items[index[i]].getFeatures()[dim] < split) {
+				i++;
+			}
+			else {
+				int tmp = index[i]; index[i] = index[j]; index[j] = tmp;
+				j--;
+			}
+		}
+		if (i == lo || i == hi) {	// all items on one side (all values equal)
+			return makeLeaf(lo, hi);
+		}
+		Node left = buildTree(lo, i, rnd);
+		Node right = buildTree(i, hi, rnd);
+		return new Node(dim, split, left, right);
+	}
+	
+	private Node makeLeaf(int lo, int hi) {
+		int[] leafItems = new int[hi - lo];
+		System.arraycopy(index, lo, leafItems, 0, hi - lo);
+		return new Node(leafItems);
+	}
+	
+	// randomly selects one of the RandomDims dimensions with the largest variance
+	private int selectDimension(double[] var, Random rnd) {
+		final int m = Math.min(RandomDims, var.length);
+		final int[] top = new int[m];		// top[0..m-1] in descending order of variance
+		int count = 0;
+		for (int d = 0; d < var.length; d++) {
+			int k;
+			if (count < m)
+				k = count++;
+			else if (var[d] > var[top[m - 1]])
+				k = m - 1;
+			else
+				continue;
+			while (k > 0 && var[d] > var[top[k - 1]]) {	// insertion sort
+				top[k] = top[k - 1];
+				k--;
+			}
+			top[k] = d;
+		}
+		return top[rnd.nextInt(count)];
+	}
+	
+	// ---------------------------------------------------------------------
+
+	@Override
+	public void findTwoNearest(SiftDescriptor query, int[] idx, double[] dist) {
+		final int[] x = query.getFeatures();
+		if (++queryCount == Integer.MAX_VALUE) {	// restart numbering before overflow
+			Arrays.fill(checked, 0);
+			queryCount = 1;
+		}
+		final Search s = new Search(x, queryCount);
+		final PriorityQueue<Branch> queue = new PriorityQueue<Branch>();
+		for (Node root : roots) {
+			if (root != null)
+				s.descend(root, 0, queue);
+		}
+		while (!queue.isEmpty() && (maxChecks <= 0 || s.checks < maxChecks)) {
+			Branch b = queue.poll();
+			if (b.bound >= s.d2)	// no closer items in any remaining branch
+				break;
+			s.descend(b.node, b.bound, queue);
+		}
+		idx[0] = s.i1; idx[1] = s.i2;
+		dist[0] = s.d1; dist[1] = s.d2;
+	}
+	
+	/*
+	 * State of a single query.
+	 */
+	private class Search {
+		final int[] x;
+		final int id;		// query number, used to mark checked items (items shared by multiple trees are checked once)
+		int checks = 0;
+		int i1 = -1, i2 = -1;
+		double d1 = Double.MAX_VALUE, d2 = Double.MAX_VALUE;
+		
+		Search(int[] x, int id) {
+			this.x = x;
+			this.id = id;
+		}
+		
+		// follows the closer branches down to a leaf, queuing the other branches
+		void descend(Node node, double bound, PriorityQueue<Branch> queue) {
+			while (node.leafItems == null) {
+				double diff = x[node.dim] - node.split;
+				Node near = (diff < 0) ? node.left : node.right;
+				Node far  = (diff < 0) ? node.right : node.left;
+				double farBound = Math.max(bound, Math.abs(diff));
+				if (farBound < d2) {
+					queue.add(new Branch(far, farBound));
+				}
+				node = near;
+			}
+			for (int j : node.leafItems) {
+				if (checked[j] == id)
+					continue;
+				checked[j] = id;
+				checks++;
+				double d = norm.distance(x, items[j].getFeatures());
+				if (d < d1) {
+					i2 = i1; d2 = d1;
+					i1 = j; d1 = d;
+				}
+				else if (d < d2) {
+					i2 = j; d2 = d;
+				}
+			}
+		}
+	}
+
+	// ---------------------------------------------------------------------
+	
+	/**
+	 * Benchmark comparing the k-d forest to brute-force search. Extracts SIFT
+	 * features from two images (arguments: image file paths; the second image 
+	 * defaults to a rotated and scaled copy of the first) and prints the running 
+	 * times of {@link SiftMatcher#matchDescriptors(List)} and the recall, i.e., 
+	 * the fraction of brute-force matches also found with the k-d forest.
+	 * @param args paths of one or two image files
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.out.println("usage: KdForestIndex image1 [image2]");
+			return;
+		}
+		ImageProcessor ipA = IJ.openImage(args[0]).getProcessor();
+		ImageProcessor ipB;
+		if (args.length > 1) {
+			ipB = IJ.openImage(args[1]).getProcessor();
+		}
+		else {
+			ipB = ipA.duplicate();
+			ipB.setInterpolationMethod(ImageProcessor.BILINEAR);
+			ipB.rotate(20);
+			ipB = ipB.resize((int) (0.8 * ipA.getWidth()));
+		}
+		List<SiftDescriptor> fA = new SiftDetector(ipA.convertToFloatProcessor()).getSiftFeatures();
+		List<SiftDescriptor> fB = new SiftDetector(ipB.convertToFloatProcessor()).getSiftFeatures();
+		System.out.println("descriptors: " + fA.size() + " / " + fB.size());
+		
+		SiftMatcher.Parameters params = new SiftMatcher.Parameters();
+		params.sort = false;
+		long t0 = System.nanoTime();
+		List<SiftMatch> reference = new SiftMatcher(fA, params).matchDescriptors(fB);
+		long t1 = System.nanoTime();
+		System.out.println(String.format("brute force: %d matches, %.1f ms", reference.size(), (t1 - t0) * 1e-6));
+		
+		params.search = SiftMatcher.SearchMethod.KdForest;
+		for (int maxChecks : new int[] {32, 64, 128, 256, 512, 0}) {
+			params.maxChecks = maxChecks;
+			t0 = System.nanoTime();
+			List<SiftMatch> matches = new SiftMatcher(fA, params).matchDescriptors(fB);
+			t1 = System.nanoTime();
+			Map<SiftDescriptor, SiftDescriptor> matched = new IdentityHashMap<SiftDescriptor, SiftDescriptor>();
+			for (SiftMatch m : matches) {
+				matched.put(m.getDescriptor1(), m.getDescriptor2());
+			}
+			int found = 0;
+			for (SiftMatch m : reference) {
+				if (matched.get(m.getDescriptor1()) == m.getDescriptor2())
+					found++;
+			}
+			System.out.println(String.format("k-d forest (%d trees, maxChecks = %d): %d matches, recall = %.3f, %.1f ms", 
+					params.nTrees, maxChecks, matches.size(), (double) found / Math.max(1, reference.size()), (t1 - t0) * 1e-6));
+		}
+	}
+
+}
@@ -0,0 +1,45 @@
+/*******************************************************************************
+ * This software is provided as a supplement to the authors' textbooks on digital
+ * image processing published by Springer-Verlag in various languages and editions.
+ * Permission to use and distribute this software is granted under the BSD 2-Clause 
+ * "Simplified" License (see http://opensource.org/licenses/BSD-2-Clause). 
+ * Copyright (c) 2006-2015 Wilhelm Burger, Mark J. Burge. 
+ * All rights reserved. Visit http://www.imagingbook.com for additional details.
+ *  
+ *******************************************************************************/
+
+package imagingbook.pub.sift;
+
+/**
+ * Search structure for finding the two nearest neighbors (as required
+ * by the ratio test in {@link SiftMatcher}) of a query descriptor
+ * in a fixed set of SIFT descriptors.
+ */
+public abstract class NearestNeighborIndex {
+	
+	protected final SiftDescriptor[] items;
+	
+	protected NearestNeighborIndex(SiftDescriptor[] items) {
+		this.items = items;
+	}
+	
+	public SiftDescriptor getItem(int i) {
+		return items[i];
+	}
+	
+	public int size() {
+		return items.length;
+	}
+	
+	/**
+	 * Finds the two items closest to the query descriptor. 
+	 * The item indices are returned in idx[0] (closest) and idx[1] (second-closest), 
+	 * the corresponding distances in dist[0], dist[1]. Missing results have index -1 and
+	 * distance {@code Double.MAX_VALUE}.
+	 * @param query the query descriptor
+	 * @param idx array receiving the indices of the two nearest items
+	 * @param dist array receiving the distances of the two nearest items
+	 */
+	public abstract void findTwoNearest(SiftDescriptor query, int[] idx, double[] dist);
+
+}
@@ -13,6 +13,8 @@ package imagingbook.pub.sift;
 import ij.IJ;
 import ij.process.FloatProcessor;
 import imagingbook.lib.math.Matrix;
+import imagingbook.lib.util.ParallelTasks;
+import imagingbook.pub.sift.filters.GaussianFilterMethod;
 import imagingbook.pub.sift.scalespace.DogScaleSpace;
 import imagingbook.pub.sift.scalespace.GaussianScaleSpace;
 import imagingbook.pub.sift.scalespace.ScaleLevel;
@@ -23,6 +25,8 @@ import java.util.Collections;
 import java.util.Formatter;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 public class SiftDetector {
 
@@ -70,6 +74,10 @@ public class SiftDetector {
 		public double s_Fscale = 512.0;
 		/** Set true to sort detected keypoints by response magnitude */
 		public boolean sortKeyPoints = true;
+		/** Gaussian filter used for building the scale space (Recursive is faster for large sigma) */
+		public GaussianFilterMethod filterMethod = GaussianFilterMethod.FIR;
+		/** Number of threads (0 = use the common thread pool, 1 = run on the calling thread) */
+		public int parallelism = 0;
 	}
 	
 	private final Parameters params;
@@ -105,8 +113,14 @@ public class SiftDetector {
 		normalize(fp);
 		this.params = params;
 		nhSize = params.nhType.size;
-		G = new GaussianScaleSpace(fp, params.sigma_s, params.sigma_0, params.P, params.Q, -1, params.Q+1);
-		D = new DogScaleSpace(G);
+		ExecutorService pool = ParallelTasks.makePool(params.parallelism);
+		try {
+			G = new GaussianScaleSpace(fp, params.sigma_s, params.sigma_0, params.P, params.Q, -1, params.Q+1, 
+					params.filterMethod, pool);
+			D = new DogScaleSpace(G, pool);
+		} finally {
+			ParallelTasks.release(pool);
+		}
 	}
 
 	/**
@@ -191,41 +205,99 @@ public class SiftDetector {
 	 * @return the sequence of extracted SIFT descriptors
 	 */
 	public List<SiftDescriptor> getSiftFeatures() {
-		List<KeyPoint> keyPoints = getKeyPoints();
-		List<SiftDescriptor> siftDescriptors = new ArrayList<SiftDescriptor>();
-		for (KeyPoint c : keyPoints) {
-			for (double phi_d : getDominantOrientations(c)) {
-				SiftDescriptor sd = makeSiftDescriptor(c, phi_d);
-				if (sd != null) {
-					siftDescriptors.add(sd);
+		ExecutorService pool = ParallelTasks.makePool(params.parallelism);
+		try {
+			return getSiftFeatures(pool);
+		} finally {
+			ParallelTasks.release(pool);
+		}
+	}
+	
+	/* 
+	 * Descriptors are created in parallel for blocks of consecutive key points 
+	 * and collected in the order of the key points (the result does not depend
+	 * on the number of threads).
+	 */
+	private List<SiftDescriptor> getSiftFeatures(ExecutorService pool) {
+		final List<KeyPoint> keyPoints = getKeyPoints(pool);
+		final int blockSize = 32;
+		List<Callable<List<SiftDescriptor>>> tasks = new ArrayList<Callable<List<SiftDescriptor>>>();
+		for (int i = 0; i < keyPoints.size(); i += blockSize) {
+			final List<KeyPoint> block = keyPoints.subList(i, Math.min(i + blockSize, keyPoints.size()));
+			tasks.add(new Callable<List<SiftDescriptor>>() {
+				public List<SiftDescriptor> call() {
+					List<SiftDescriptor> descriptors = new ArrayList<SiftDescriptor>();
+					for (KeyPoint c : block) {
+						for (double phi_d : getDominantOrientations(c)) {
+							SiftDescriptor sd = makeSiftDescriptor(c, phi_d);
+							if (sd != null) {
+								descriptors.add(sd);
+							}
+						}
+					}
+					return descriptors;
 				}
-			}
+			});
+		}
+		List<SiftDescriptor> siftDescriptors = new ArrayList<SiftDescriptor>();
+		for (List<SiftDescriptor> descriptors : ParallelTasks.invokeAll(pool, tasks)) {
+			siftDescriptors.addAll(descriptors);
 		}
 		return siftDescriptors;
 	}
 
 	public List<KeyPoint> getKeyPoints() {
-		List<KeyPoint> keyPts = new ArrayList<KeyPoint>();
+		ExecutorService pool = ParallelTasks.makePool(params.parallelism);
+		try {
+			return getKeyPoints(pool);
+		} finally {
+			ParallelTasks.release(pool);
+		}
+	}
+	
+	/*
+	 * Extrema are detected (and refined) in parallel for vertical bands of 
+	 * each DoG level (p,q) and collected in the same order as if the
+	 * levels were scanned sequentially.
+	 */
+	private List<KeyPoint> getKeyPoints(ExecutorService pool) {
 		final int P = params.P;
 		final int K = params.Q;
+		final int bandWidth = 64;
+		List<Callable<List<KeyPoint>>> tasks = new ArrayList<Callable<List<KeyPoint>>>();
 		for (int p = 0; p <= P-1; p++) {	// for every octave p
+			final int M = D.getScaleLevel(p, 0).getWidth();
 			for (int q = 0; q <= K-1; q++) {	// for every scale level q
-				List<KeyPoint> extrema = findExtrema(p, q);
-				for (KeyPoint e : extrema) {
-					KeyPoint c = refineKeyPosition(D, e);
-					if (c != null) {
-						keyPts.add(c);
-					}
+				for (int u0 = 1; u0 <= M-2; u0 += bandWidth) {
+					final int pp = p, qq = q, uu0 = u0;
+					final int uu1 = Math.min(u0 + bandWidth - 1, M-2);
+					tasks.add(new Callable<List<KeyPoint>>() {
+						public List<KeyPoint> call() {
+							List<KeyPoint> keyPts = new ArrayList<KeyPoint>();
+							for (KeyPoint e : findExtrema(pp, qq, uu0, uu1)) {
+								KeyPoint c = refineKeyPosition(D, e);
+								if (c != null) {
+									keyPts.add(c);
+								}
+							}
+							return keyPts;
+						}
+					});
 				}
 			}
 		}
+		List<KeyPoint> keyPts = new ArrayList<KeyPoint>();
+		for (List<KeyPoint> kps : ParallelTasks.invokeAll(pool, tasks)) {
+			keyPts.addAll(kps);
+		}
 		if (params.sortKeyPoints) {
 			Collections.sort(keyPts);
 		}
 		return keyPts;
 	}
 
-	private List<KeyPoint> findExtrema(int p, int q) {
+	// finds the extrema at level (p,q) within the columns u0,...,u1
+	private List<KeyPoint> findExtrema(int p, int q, int u0, int u1) {
 		final float tMag = (float) params.t_Mag;
 		final float tExtrm = (float) params.t_Extrm;
 		ScaleOctave Dp = D.getOctave(p);
@@ -236,7 +308,7 @@ public class SiftDetector {
 		float scale = (float) D.getAbsoluteScale(p, q); //D.getScaleIndexFloat(p, q); needed?
 
 		final float[][][] nh = new float[3][3][3];	// 3x3x3 neighborhood [q][u][v]
-		for (int u = 1; u <= M-2; u++) {
+		for (int u = Math.max(u0, 1); u <= Math.min(u1, M-2); u++) {
 			float x_real = (float) D.getRealX(p, u);	// for display purposes only
 			for (int v = 1; v <= N-2; v++) {
 				float y_real = (float) D.getRealY(p, v);	// for display purposes only
@@ -26,6 +26,21 @@ public class SiftMatcher {
 		public double rho_max = 0.8;
 		/** Set true to sort matches */
 		public boolean sort = true;
+		/** Search method used for finding the nearest neighbors */
+		public SearchMethod search = SearchMethod.BruteForce;
+		/** Number of randomized trees (KdForest only) */
+		public int nTrees = 4;
+		/** Max. number of distance evaluations per descriptor (KdForest only, 0 = exact search) */
+		public int maxChecks = 0;
+		/** Random seed for building the trees (KdForest only) */
+		public long seed = 0;
+	}
+	
+	public enum SearchMethod {
+		/** Exact search by comparing all pairs of descriptors */
+		BruteForce, 
+		/** Exact or approximate search with randomized k-d trees (see {@link KdForestIndex}) */
+		KdForest;
 	}
 	
 	private final Parameters params;
@@ -47,28 +62,17 @@ public class SiftMatcher {
 	public List<SiftMatch> matchDescriptors(List<SiftDescriptor> sfB) {
 		SiftDescriptor[] fB = sfB.toArray(new SiftDescriptor[0]);
 		List<SiftMatch> matches = new ArrayList<SiftMatch>(fA.length);
+		NearestNeighborIndex index = makeIndex(fB);
+		final int[] idx = new int[2];
+		final double[] dst = new double[2];
 				
 		for (int i = 0; i < fA.length; i++) {
 			SiftDescriptor si = fA[i];
-			int i1 = -1;
-			int i2 = -1;
-			double d1 = Double.MAX_VALUE;
-			double d2 = Double.MAX_VALUE;
-			
-			for (int j = 0; j < fB.length; j++) {
-				double d = dist(si, fB[j]);
-				if (d < d1) {	// new absolute minimum distance
-					i2 = i1;	// old best becomes second-best
-					d2 = d1;
-					i1 = j;
-					d1 = d;
-				}
-				else // not a new absolute min., but possible second-best
-					if (d < d2) { // new second-best
-						i2 = j;
-						d2 = d;
-					}
-			}
+			index.findTwoNearest(si, idx, dst);
+			int i1 = idx[0];
+			int i2 = idx[1];
+			double d1 = dst[0];
+			double d2 = dst[1];
 			if (i2 >= 0 && d2 > 0.001 && d1/d2 < params.rho_max) {
 				SiftDescriptor s1 = fB[i1];
 				SiftMatch m = new SiftMatch(si, s1, d1);
@@ -79,6 +83,13 @@ public class SiftMatcher {
 		return matches;
 	}
 	
+	NearestNeighborIndex makeIndex(SiftDescriptor[] fB) {
+		switch (params.search) {
+		case KdForest : return new KdForestIndex(fB, am, params.nTrees, params.maxChecks, params.seed);
+		default : return new BruteForceIndex(fB, am);
+		}
+	}
+	
 	double dist(SiftDescriptor d1, SiftDescriptor d2) {
 		//final ArrayMatcher matcher = params.norm.matcher;
 		return am.distance(d1.getFeatures(), d2.getFeatures());
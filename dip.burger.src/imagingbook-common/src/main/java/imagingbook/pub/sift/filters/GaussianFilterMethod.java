@@ -0,0 +1,34 @@
+/*******************************************************************************
+ * This software is provided as a supplement to the authors' textbooks on digital
+ * image processing published by Springer-Verlag in various languages and editions.
+ * Permission to use and distribute this software is granted under the BSD 2-Clause 
+ * "Simplified" License (see http://opensource.org/licenses/BSD-2-Clause). 
+ * Copyright (c) 2006-2015 Wilhelm Burger, Mark J. Burge. 
+ * All rights reserved. Visit http://www.imagingbook.com for additional details.
+ *  
+ *******************************************************************************/
+
+package imagingbook.pub.sift.filters;
+
+import ij.process.FloatProcessor;
+
+/**
+ * Gaussian filter implementations available for building the
+ * SIFT scale space.
+ */
+public enum GaussianFilterMethod {
+	/** Separable convolution with a sampled Gaussian kernel ({@link GaussianFilter}) */
+	FIR {
+		public void applyTo(FloatProcessor fp, double sigma) {
+			new GaussianFilter(sigma).applyTo(fp);
+		}
+	},
+	/** Recursive filter with constant cost per pixel ({@link GaussianFilterRecursive}) */
+	Recursive {
+		public void applyTo(FloatProcessor fp, double sigma) {
+			new GaussianFilterRecursive(sigma).applyTo(fp);
+		}
+	};
+	
+	public abstract void applyTo(FloatProcessor fp, double sigma);
+}
@@ -10,19 +10,42 @@
 
 package imagingbook.pub.sift.scalespace;
 
+import imagingbook.lib.util.ParallelTasks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 public class DogScaleSpace extends HierarchicalScaleSpace {
 	
 	public DogScaleSpace(GaussianScaleSpace G) {
+		this(G, null);
+	}
+	
+	/**
+	 * The octaves are created in parallel on the given thread
+	 * pool (or serially if pool is null).
+	 */
+	public DogScaleSpace(GaussianScaleSpace G, ExecutorService pool) {
 		super(G.P, G.Q, G.sigma_s, G.sigma_0, G.botLevel, G.topLevel-1);  //botLevel = -1, topLevel = K+1
-		build(G);
-	}	
+		build(G, pool);
+	}
 	
-	private final void build(GaussianScaleSpace G) {
+	private final void build(GaussianScaleSpace G, ExecutorService pool) {
 		// build DoG octaves:
+		List<Callable<DogOctave>> tasks = new ArrayList<Callable<DogOctave>>();
+		for (int p = 0; p < P; p++) {
+			final ScaleOctave Gp = G.getOctave(p);
+			tasks.add(new Callable<DogOctave>() {
+				public DogOctave call() {
+					return new DogOctave(Gp);
+				}
+			});
+		}
+		List<DogOctave> results = ParallelTasks.invokeAll(pool, tasks);
 		for (int p = 0; p < P; p++) {
-			ScaleOctave Gp = G.getOctave(p);
-			octaves[p] = new DogOctave(Gp);
+			octaves[p] = results.get(p);
 		}
 	}
 
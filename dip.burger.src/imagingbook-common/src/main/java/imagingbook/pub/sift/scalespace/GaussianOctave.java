@@ -10,23 +10,42 @@
 
 package imagingbook.pub.sift.scalespace;
 
+import imagingbook.lib.util.ParallelTasks;
+import imagingbook.pub.sift.filters.GaussianFilterMethod;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
 public class GaussianOctave extends ScaleOctave {
 	
-	GaussianOctave(int p, int Q, ScaleLevel Gbot, int botIndex, int topIndex, double sigma_0) {
+	// the levels above the bottom level are filtered independently (in parallel if pool is not null)
+	GaussianOctave(int p, int Q, final ScaleLevel Gbot, int botIndex, int topIndex, double sigma_0, 
+			final GaussianFilterMethod filterMethod, ExecutorService pool) {
 		super(p, Q, Gbot, botIndex, topIndex);	// initialize the bottom level (botIndex) of this octave with Gbot
 		this.sigma_0 = sigma_0;					// reference scale at level 0 of this octave
 		double sigmaA_bot = getAbsoluteScale(p, botIndex);
 		Gbot.setAbsoluteScale(sigmaA_bot);
 		
 		// create octave levels q = botIndex + 1,...,topIndex
+		List<Callable<ScaleLevel>> tasks = new ArrayList<Callable<ScaleLevel>>();
 		for (int q = botIndex + 1; q <= topIndex; q++) {
-			double sigmaA_q = getAbsoluteScale(p, q);	// absolute scale of level q
+			final double sigmaA_q = getAbsoluteScale(p, q);	// absolute scale of level q
 //			double sigmaR_q = Math.sqrt(sigmaA_q * sigmaA_q - sigmaA_bot * sigmaA_bot) / Math.pow(2, p);  // relative scale from bottom level (-1)
-			double sigmaR_q = sigma_0 * Math.sqrt(Math.pow(2, 2.0 * q / Q) - Math.pow(2, -2.0 / Q)); // relative scale from bottom level (-1)
-			ScaleLevel G_pq = Gbot.duplicate();
-			G_pq.filterGaussian(sigmaR_q);
-			G_pq.setAbsoluteScale(sigmaA_q);
-			this.setLevel(q, G_pq);
+			final double sigmaR_q = sigma_0 * Math.sqrt(Math.pow(2, 2.0 * q / Q) - Math.pow(2, -2.0 / Q)); // relative scale from bottom level (-1)
+			tasks.add(new Callable<ScaleLevel>() {
+				public ScaleLevel call() {
+					ScaleLevel G_pq = Gbot.duplicate();
+					G_pq.filterGaussian(sigmaR_q, filterMethod);
+					G_pq.setAbsoluteScale(sigmaA_q);
+					return G_pq;
+				}
+			});
+		}
+		List<ScaleLevel> results = ParallelTasks.invokeAll(pool, tasks);
+		for (int q = botIndex + 1; q <= topIndex; q++) {
+			this.setLevel(q, results.get(q - botIndex - 1));
 		}
 	}
 	
@@ -11,27 +11,39 @@
 package imagingbook.pub.sift.scalespace;
 
 import ij.process.FloatProcessor;
+import imagingbook.pub.sift.filters.GaussianFilterMethod;
+
+import java.util.concurrent.ExecutorService;
 
 public class GaussianScaleSpace extends HierarchicalScaleSpace {
 
 	public GaussianScaleSpace(FloatProcessor fp, double sigma_s, double sigma_0, int P, int Q, int botLevel, int topLevel) {
+		this(fp, sigma_s, sigma_0, P, Q, botLevel, topLevel, GaussianFilterMethod.FIR, null);
+	}
+	
+	/**
+	 * The levels of each octave are created in parallel on the given thread
+	 * pool (or serially if pool is null).
+	 */
+	public GaussianScaleSpace(FloatProcessor fp, double sigma_s, double sigma_0, int P, int Q, int botLevel, int topLevel, 
+			GaussianFilterMethod filterMethod, ExecutorService pool) {
 		super(P, Q, sigma_s, sigma_0, botLevel, topLevel);	
-		build(fp);
+		build(fp, filterMethod, pool);
 	}
 	
-	private final void build(FloatProcessor fp) {
+	private final void build(FloatProcessor fp, GaussianFilterMethod filterMethod, ExecutorService pool) {
 		double scale_b = getAbsoluteScale(0, -1) ;	// absolute scale of level(0,-1)
 		double sigma_b = getRelativeScale(sigma_s, scale_b);
 		
 		ScaleLevel Ginit = new ScaleLevel(fp, sigma_s);
-		Ginit.filterGaussian(sigma_b);
+		Ginit.filterGaussian(sigma_b, filterMethod);
 		Ginit.setAbsoluteScale(scale_b);
 
 		// build Gaussian octaves:
-		octaves[0] = new GaussianOctave(0, Q, Ginit, botLevel, topLevel, sigma_0);
+		octaves[0] = new GaussianOctave(0, Q, Ginit, botLevel, topLevel, sigma_0, filterMethod, pool);
 		for (int p = 1; p < P; p++) {
 			ScaleLevel Gbase = octaves[p-1].getLevel(Q-1).decimate();
-			octaves[p] = new GaussianOctave(p, Q, Gbase, botLevel, topLevel, sigma_0);
+			octaves[p] = new GaussianOctave(p, Q, Gbase, botLevel, topLevel, sigma_0, filterMethod, pool);
 		}
 	}
 	
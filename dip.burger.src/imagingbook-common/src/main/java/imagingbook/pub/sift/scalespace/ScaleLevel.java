@@ -11,7 +11,7 @@
 package imagingbook.pub.sift.scalespace;
 
 import ij.process.FloatProcessor;
-import imagingbook.pub.sift.filters.GaussianFilter;
+import imagingbook.pub.sift.filters.GaussianFilterMethod;
 
 /**
  * Represents a single scale level. Just a special kind of FloatProcessor
@@ -39,8 +39,11 @@ public class ScaleLevel extends FloatProcessor {	// TODO: make IJ independent, u
 	// ------------------------------
 
 	public void filterGaussian(double sigma) {
-		GaussianFilter gf = new GaussianFilter(sigma);
-		gf.applyTo(this);
+		filterGaussian(sigma, GaussianFilterMethod.FIR);
+	}
+	
+	public void filterGaussian(double sigma, GaussianFilterMethod method) {
+		method.applyTo(this, sigma);
 	}
 	
 	public ScaleLevel duplicate() {
@@ -14,6 +14,8 @@ import ij.plugin.filter.GaussianBlur;
 import ij.plugin.filter.RankFilters;
 import ij.process.ByteProcessor;
 import ij.process.FloatProcessor;
+import imagingbook.lib.image.IntegralImage;
+import imagingbook.lib.image.IntegralImage.BorderMode;
 import imagingbook.pub.threshold.BackgroundMode;
 
 /**
@@ -83,28 +85,18 @@ public abstract class NiblackThresholder extends AdaptiveThresholder {
 
 		@Override
 		protected void makeMeanAndVariance(ByteProcessor I, Parameters params) {
+			// box statistics are obtained from an integral image at constant cost per pixel
 			int width = I.getWidth();
 			int height = I.getHeight();
-			Imean =  new FloatProcessor(width, height);
-			Isigma =  new FloatProcessor(width, height);
-			final int radius = params.radius;
-			final int n = (radius + 1 + radius) * (radius + 1 + radius);
-
-			for (int v = 0; v < height; v++) {
-				for (int u = 0; u < width; u++) {
-					long A = 0;	// sum of image values in support region
-					long B = 0;	// sum of squared image values in support region
-					for (int j = -radius; j <= radius; j++) {
-						for (int i = -radius; i <= radius; i++) {
-							int p = getPaddedPixel(I, u + i, v + j); // this is slow!
-							A = A + p;
-							B = B + p * p;
-						}
-					}
-					Imean.setf(u, v, (float) A / n);
-					Isigma.setf(u, v, (float) Math.sqrt((B - (double) (A * A) / n) / n));
-				}
+			float[] mean = new float[width * height];
+			float[] var = new float[width * height];
+			IntegralImage ii = new IntegralImage(I);
+			ii.getBoxStatistics(params.radius, params.radius, BorderMode.Replicate, mean, var);
+			for (int i = 0; i < var.length; i++) {
+				var[i] = (float) Math.sqrt(var[i]);
 			}
+			Imean = new FloatProcessor(width, height, mean);
+			Isigma = new FloatProcessor(width, height, var);
 		}
 		
 	}
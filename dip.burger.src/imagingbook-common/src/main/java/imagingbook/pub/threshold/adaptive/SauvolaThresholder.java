@@ -13,6 +13,8 @@ package imagingbook.pub.threshold.adaptive;
 import ij.plugin.filter.RankFilters;
 import ij.process.ByteProcessor;
 import ij.process.FloatProcessor;
+import imagingbook.lib.image.IntegralImage;
+import imagingbook.lib.image.IntegralImage.BorderMode;
 import imagingbook.pub.threshold.BackgroundMode;
 import imagingbook.pub.threshold.adaptive.AdaptiveThresholder;
 
@@ -28,6 +30,8 @@ public class SauvolaThresholder extends AdaptiveThresholder {
 		public double kappa =  0.5;
 		public double sigmaMax =  128;
 		public BackgroundMode bgMode = BackgroundMode.DARK;
+		/** Use a square support region (via an integral image) instead of a disk. */
+		public boolean squareRegion = false;
 	}
 		
 	private FloatProcessor Imean;
@@ -46,16 +50,24 @@ public class SauvolaThresholder extends AdaptiveThresholder {
 	
 	@Override
 	public ByteProcessor getThreshold(ByteProcessor I) {
-		FloatProcessor mean = (FloatProcessor) I.convertToFloat();
-		FloatProcessor var = (FloatProcessor) mean.duplicate();
-		
-		RankFilters rf = new RankFilters();
-		rf.rank(mean, params.radius, RankFilters.MEAN);
-		Imean = mean;
-		
-		rf.rank(var, params.radius, RankFilters.VARIANCE);
-		var.sqrt();
-		Isigma = var;
+		if (params.squareRegion) {
+			IntegralImage ii = new IntegralImage(I);
+			Imean = ii.getMeanImage(params.radius, BorderMode.Replicate);
+			Isigma = ii.getVarianceImage(params.radius, BorderMode.Replicate);
+			Isigma.sqrt();
+		}
+		else {
+			FloatProcessor mean = (FloatProcessor) I.convertToFloat();
+			FloatProcessor var = (FloatProcessor) mean.duplicate();
+
+			RankFilters rf = new RankFilters();
+			rf.rank(mean, params.radius, RankFilters.MEAN);
+			Imean = mean;
+
+			rf.rank(var, params.radius, RankFilters.VARIANCE);
+			var.sqrt();
+			Isigma = var;
+		}
 		
 		int width = I.getWidth();
 		int height = I.getHeight();
@@ -54,6 +54,7 @@ public class Threshold_Adaptive_Sauvola implements PlugInFilter {
 		gd.addNumericField("kappa", params.kappa, 2);
 		gd.addNumericField("sigmaMax", params.sigmaMax, 2);
 		gd.addCheckbox("bright background", (params.bgMode == BackgroundMode.BRIGHT));
+		gd.addCheckbox("square support region", params.squareRegion);
 		gd.showDialog();
 		if (gd.wasCanceled()) {
 			return false;
@@ -62,6 +63,7 @@ public class Threshold_Adaptive_Sauvola implements PlugInFilter {
 		params.kappa = gd.getNextNumber();
 		params.sigmaMax = gd.getNextNumber();
 		params.bgMode = (gd.getNextBoolean()) ? BackgroundMode.BRIGHT : BackgroundMode.DARK;
+		params.squareRegion = gd.getNextBoolean();
 		return true;
 	}
 }
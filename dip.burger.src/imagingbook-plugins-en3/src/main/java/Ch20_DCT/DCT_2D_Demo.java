@@ -18,7 +18,7 @@ import imagingbook.pub.dct.Dct2d;
 
 /** 
  * Calculates and displays the 2-dimensional DCT after converting the input image to a float image.
- * of arbitrary size. Be patient, this is not optimized and thus slow!
+ * of arbitrary size.
  * @author W. Burger
  * @version 2014-04-13
  */